@@ -0,0 +1,112 @@
+package tepisclient;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Records the reads of a {@link TepisClient} in the manifest format of the
+ * {@link CacheWarmer}.
+ * <p>
+ * Each metadata, tile, region and associated image request of the client is
+ * appended to the log as one line with the same parameters, so replaying the
+ * log with a cache warmer repeats the requests of a recorded session, for
+ * example a review of a set of slides. Failures to write the log are
+ * ignored, so that they do not affect the reads.
+ *
+ */
+
+public class AccessLog implements Closeable {
+
+	private final Writer writer;
+
+	/**
+	 * @param file
+	 *            The log file. Lines are appended to an existing file.
+	 * @throws IOException
+	 *             If the file cannot be opened.
+	 */
+	public AccessLog(File file) throws IOException {
+
+		writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file, true), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Flushes and closes the log.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+
+		writer.close();
+	}
+
+	/*
+	 * Appends a line. Each line is flushed, so that the log is complete if
+	 * the process ends without closing it.
+	 */
+	synchronized void write(String line) {
+
+		try {
+			writer.write(line);
+			writer.write('\n');
+			writer.flush();
+		} catch (IOException e) {
+			// the log is incomplete, which only makes warming less effective
+		}
+
+	}
+
+	static String metadata(String imageID) {
+
+		return imageID + " metadata";
+	}
+
+	static String tile(String imageID, ImageTileParam itp, ImageFormatParam ifp) {
+
+		return imageID + " tile " + value(itp.getCol()) + " "
+				+ value(itp.getRow()) + " " + value(itp.getDir())
+				+ format(ifp);
+	}
+
+	static String region(String imageID, ImageRegionParam irp,
+			ImageFormatParam ifp) {
+
+		return imageID + " region " + value(irp.getLevel()) + " "
+				+ value(irp.getX()) + " " + value(irp.getY()) + " "
+				+ value(irp.getWidth()) + " " + value(irp.getHeight())
+				+ (irp.getUnit() != null ? " " + irp.getUnit().name() : "")
+				+ format(ifp);
+	}
+
+	static String associatedImage(String imageID, AssociatedImageType ait,
+			ImageFormatParam ifp) {
+
+		return imageID + " " + ait.name() + format(ifp);
+	}
+
+	/*
+	 * Values that are not set are omitted from the request and recorded as
+	 * "-".
+	 */
+	private static String value(Object value) {
+
+		return value != null ? value.toString() : "-";
+	}
+
+	private static String format(ImageFormatParam ifp) {
+
+		if (ifp == null) {
+			return "";
+		}
+
+		return (ifp.getFormat() != null ? " " + ifp.getFormat().name() : "")
+				+ (ifp.getQuality() != null ? " " + ifp.getQuality() : "");
+	}
+
+}
@@ -0,0 +1,308 @@
+package tepisclient;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the image quality of reads from the measured throughput of the link
+ * to the server.
+ * <p>
+ * The throughput is measured over all requests that completed within a
+ * sliding window of time, as their total size over the time during which at
+ * least one of them was in flight. Requests that overlap are counted once, so
+ * the latency of concurrent requests, which dominates the duration of small
+ * responses, is not mistaken for a slow link. Preview reads use the maximum
+ * quality when the throughput is at or above the high throughput, the
+ * minimum quality when it is at or below the low throughput and a linearly
+ * interpolated quality in between. Analysis reads always use the fixed
+ * analysis quality, so that the results of the analysis do not depend on the
+ * link.
+ * <p>
+ * The quality of preview reads starts at the maximum until the first request
+ * is measured. When no request completed within the window, the last
+ * measurement is kept.
+ *
+ */
+
+public class AdaptiveFormatPolicy {
+
+	/**
+	 * Default throughput below which the minimum quality is used in bytes per
+	 * second.
+	 */
+	public static final double DEFAULT_LOW_THROUGHPUT = 1 << 20;
+
+	/**
+	 * Default throughput above which the maximum quality is used in bytes per
+	 * second.
+	 */
+	public static final double DEFAULT_HIGH_THROUGHPUT = 10 << 20;
+
+	/*
+	 * Time in nanoseconds over which the throughput is measured.
+	 */
+	private static final long WINDOW = TimeUnit.SECONDS.toNanos(2);
+
+	private final Format format;
+
+	private final int minQuality;
+
+	private final int maxQuality;
+
+	private final int analysisQuality;
+
+	private final double lowThroughput;
+
+	private final double highThroughput;
+
+	/*
+	 * Requests that completed within the window as start, end and size, in
+	 * the order in which they started. Guarded by this, together with the
+	 * fields below.
+	 */
+	private final ArrayList<long[]> transfers = new ArrayList<long[]>();
+
+	/*
+	 * Throughput in bytes per second or NaN if no request was measured yet.
+	 */
+	private double throughput = Double.NaN;
+
+	private int quality;
+
+	private long requests;
+
+	/**
+	 * Creates a policy for JPEG images with the default throughput bounds.
+	 * Analysis reads use the maximum quality.
+	 *
+	 * @param minQuality
+	 *            Minimum quality of preview reads between 1 and 100.
+	 * @param maxQuality
+	 *            Maximum quality of preview reads between 1 and 100.
+	 */
+	public AdaptiveFormatPolicy(int minQuality, int maxQuality) {
+
+		this(Format.JPEG, minQuality, maxQuality, maxQuality,
+				DEFAULT_LOW_THROUGHPUT, DEFAULT_HIGH_THROUGHPUT);
+	}
+
+	/**
+	 * @param format
+	 *            Image format of the reads.
+	 * @param minQuality
+	 *            Minimum quality of preview reads between 1 and 100.
+	 * @param maxQuality
+	 *            Maximum quality of preview reads between 1 and 100.
+	 * @param analysisQuality
+	 *            Quality of analysis reads between 1 and 100.
+	 * @param lowThroughput
+	 *            Throughput at or below which preview reads use the minimum
+	 *            quality in bytes per second.
+	 * @param highThroughput
+	 *            Throughput at or above which preview reads use the maximum
+	 *            quality in bytes per second.
+	 */
+	public AdaptiveFormatPolicy(Format format, int minQuality, int maxQuality,
+			int analysisQuality, double lowThroughput, double highThroughput) {
+
+		if (minQuality < 1 || maxQuality > 100 || minQuality > maxQuality
+				|| analysisQuality < 1 || analysisQuality > 100) {
+			throw new IllegalArgumentException(
+					"Quality must be an integer between 1 and 100");
+		}
+
+		if (!(lowThroughput < highThroughput)) {
+			throw new IllegalArgumentException(
+					"Low throughput must be smaller than high throughput");
+		}
+
+		this.format = format;
+		this.minQuality = minQuality;
+		this.maxQuality = maxQuality;
+		this.analysisQuality = analysisQuality;
+		this.lowThroughput = lowThroughput;
+		this.highThroughput = highThroughput;
+
+		quality = maxQuality;
+	}
+
+	/**
+	 * Returns the image format and quality for a read.
+	 *
+	 * @param readClass
+	 *            Class of the read.
+	 * @return Parameter object specifying the image format and quality.
+	 */
+	public ImageFormatParam getFormatParam(ReadClass readClass) {
+
+		return new ImageFormatParam(format,
+				readClass == ReadClass.ANALYSIS ? analysisQuality
+						: getQuality());
+	}
+
+	/**
+	 * Records the transfer of a request that just completed and updates the
+	 * quality of preview reads. Requests that run concurrently must all be
+	 * recorded, so that their overlap is taken into account.
+	 *
+	 * @param bytes
+	 *            Size of the response in bytes.
+	 * @param nanos
+	 *            Duration of the request in nanoseconds.
+	 */
+	public synchronized void recordTransfer(long bytes, long nanos) {
+
+		long end = System.nanoTime();
+
+		long start = end - Math.max(0, nanos);
+
+		// requests mostly complete in the order in which they started, so the
+		// position is usually found at the end
+		int index = transfers.size();
+
+		while (index > 0 && transfers.get(index - 1)[0] > start) {
+			index--;
+		}
+
+		transfers.add(index, new long[] { start, end, bytes });
+
+		// total size over the union of the durations of the requests, while
+		// removing the requests that completed before the window
+		long total = 0;
+		long busy = 0;
+		long busyUntil = Long.MIN_VALUE;
+
+		int kept = 0;
+
+		for (int i = 0; i < transfers.size(); i++) {
+
+			long[] transfer = transfers.get(i);
+
+			if (transfer[1] < end - WINDOW) {
+				continue;
+			}
+
+			transfers.set(kept++, transfer);
+
+			total += transfer[2];
+
+			if (transfer[1] > busyUntil) {
+				busy += transfer[1] - Math.max(transfer[0], busyUntil);
+				busyUntil = transfer[1];
+			}
+
+		}
+
+		transfers.subList(kept, transfers.size()).clear();
+
+		throughput = total * 1e9 / Math.max(1, busy);
+
+		double fraction = Math.min(1, Math.max(0,
+				(throughput - lowThroughput) / (highThroughput - lowThroughput)));
+
+		quality = (int) Math.round(minQuality + fraction
+				* (maxQuality - minQuality));
+
+		requests++;
+
+	}
+
+	/**
+	 * Reads a region of a digital slide with the format and quality for the
+	 * read class and records the transfer.
+	 *
+	 * @param client
+	 *            Client used to read the image data.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param irp
+	 *            Parameter object specifying the image region.
+	 * @param readClass
+	 *            Class of the read.
+	 * @return The encoded image data.
+	 * @see TepisClient#getImagePixelData(String imageID, ImageRegionParam irp,
+	 *      ImageFormatParam ifp)
+	 */
+	public byte[] getImagePixelData(TepisClient client, String imageID,
+			ImageRegionParam irp, ReadClass readClass) {
+
+		ImageFormatParam ifp = getFormatParam(readClass);
+
+		long start = System.nanoTime();
+
+		byte[] data = client.getImagePixelData(imageID, irp, ifp);
+
+		recordTransfer(data.length, System.nanoTime() - start);
+
+		return data;
+	}
+
+	/**
+	 * Reads a tile of a digital slide with the format and quality for the read
+	 * class and records the transfer.
+	 *
+	 * @param client
+	 *            Client used to read the image data.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param itp
+	 *            Parameter object specifying the tile.
+	 * @param readClass
+	 *            Class of the read.
+	 * @return The encoded image data.
+	 * @see TepisClient#getTiledImagePixelData(String imageID, ImageTileParam
+	 *      itp, ImageFormatParam ifp)
+	 */
+	public byte[] getTiledImagePixelData(TepisClient client, String imageID,
+			ImageTileParam itp, ReadClass readClass) {
+
+		ImageFormatParam ifp = getFormatParam(readClass);
+
+		long start = System.nanoTime();
+
+		byte[] data = client.getTiledImagePixelData(imageID, itp, ifp);
+
+		recordTransfer(data.length, System.nanoTime() - start);
+
+		return data;
+	}
+
+	/**
+	 * Gets the quality that is currently chosen for preview reads.
+	 *
+	 * @return The quality between the minimum and maximum quality.
+	 */
+	public synchronized int getQuality() {
+
+		return quality;
+	}
+
+	/**
+	 * Gets the throughput of the requests measured within the window.
+	 *
+	 * @return The throughput in bytes per second or NaN if no request was
+	 *         measured yet.
+	 */
+	public synchronized double getThroughput() {
+
+		return throughput;
+	}
+
+	/**
+	 * Gets the number of measured requests.
+	 *
+	 * @return The number of requests.
+	 */
+	public synchronized long getRequests() {
+
+		return requests;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return "AdaptiveFormatPolicy [quality=" + quality + ", throughput="
+				+ throughput + ", requests=" + requests + "]";
+	}
+
+}
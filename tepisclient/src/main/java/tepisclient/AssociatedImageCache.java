@@ -0,0 +1,385 @@
+package tepisclient;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.ws.rs.NotFoundException;
+
+/**
+ * Cache for the associated images (label, macro and thumbnail) of digital
+ * slides with batch reading.
+ * <p>
+ * Associated images never change, so they are kept until the cache is full,
+ * after which the least recently used images are evicted. Batches of images,
+ * for example the labels of all slides in a cohort, are read concurrently and
+ * concurrent requests for the same image share one request to the server.
+ * The absence of an image, for example of the label of a slide without one,
+ * is cached as well.
+ *
+ */
+
+public class AssociatedImageCache {
+
+	/*
+	 * Marks images that do not exist, which are cached as well.
+	 */
+	private static final byte[] MISSING = new byte[0];
+
+	/*
+	 * Size in bytes counted for each entry in addition to the image, so that
+	 * the number of cached absences of images is bounded as well.
+	 */
+	private static final int ENTRY_OVERHEAD = 256;
+
+	private final TepisClient client;
+
+	/*
+	 * Executor on which the images are read and decoded.
+	 */
+	private final ExecutorService executor;
+
+	private final ImageFormatParam ifp;
+
+	/*
+	 * Maximum total size of the cached images in bytes.
+	 */
+	private final long maxBytes;
+
+	/*
+	 * Encoded images in least recently used order. Guarded by this, together
+	 * with the fields below.
+	 */
+	private final LinkedHashMap<AssociatedImageRequest, byte[]> images = new LinkedHashMap<AssociatedImageRequest, byte[]>(
+			16, 0.75f, true);
+
+	/*
+	 * Images that are being read.
+	 */
+	private final Map<AssociatedImageRequest, Future<byte[]>> pending = new HashMap<AssociatedImageRequest, Future<byte[]>>();
+
+	private long bytes;
+
+	/**
+	 * @param client
+	 *            Client used to read the images.
+	 * @param executor
+	 *            Executor on which the images are read and decoded. The number
+	 *            of threads determines the number of parallel requests to the
+	 *            server.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the images or null for the server default.
+	 * @param maxBytes
+	 *            Maximum total size of the cached encoded images in bytes,
+	 *            where each image and each cached absence of an image counts
+	 *            a fixed overhead in addition to its size.
+	 */
+	public AssociatedImageCache(TepisClient client, ExecutorService executor,
+			ImageFormatParam ifp, long maxBytes) {
+
+		this.client = client;
+		this.executor = executor;
+		this.ifp = ifp;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns an associated image.
+	 *
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param ait
+	 *            Type of the associated image.
+	 * @return The encoded image or null if the slide has no image of this
+	 *         type.
+	 * @throws IOException
+	 *             If the image cannot be read.
+	 */
+	public byte[] get(String imageID, AssociatedImageType ait)
+			throws IOException {
+
+		List<AssociatedImageRequest> requests = new ArrayList<AssociatedImageRequest>();
+		requests.add(new AssociatedImageRequest(imageID, ait));
+
+		return getAll(requests).get(0);
+	}
+
+	/**
+	 * Returns a batch of associated images. The images that are not cached are
+	 * read concurrently.
+	 *
+	 * @param requests
+	 *            The requested images.
+	 * @return The encoded images in the order of the requests, with null for
+	 *         slides that have no image of the requested type.
+	 * @throws IOException
+	 *             If any of the images cannot be read.
+	 */
+	public List<byte[]> getAll(List<AssociatedImageRequest> requests)
+			throws IOException {
+
+		List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+
+		for (AssociatedImageRequest request : requests) {
+			futures.add(lookup(request));
+		}
+
+		List<byte[]> images = new ArrayList<byte[]>();
+
+		for (int i = 0; i < futures.size(); i++) {
+			byte[] data = result(requests.get(i), futures.get(i));
+
+			images.add(data != MISSING ? data : null);
+		}
+
+		return images;
+	}
+
+	/**
+	 * Returns a batch of associated images decoded and downscaled to fit into
+	 * a fixed size, for example for a slide catalogue. The images are read and
+	 * decoded concurrently.
+	 *
+	 * @param requests
+	 *            The requested images.
+	 * @param width
+	 *            Maximum width of the thumbnails.
+	 * @param height
+	 *            Maximum height of the thumbnails.
+	 * @return The thumbnails in the order of the requests, with null for
+	 *         slides that have no image of the requested type. The aspect
+	 *         ratio of the images is preserved and images that fit are not
+	 *         upscaled. Large images are decoded subsampled.
+	 * @throws IOException
+	 *             If any of the images cannot be read or decoded.
+	 */
+	public List<BufferedImage> getThumbnails(
+			List<AssociatedImageRequest> requests, final int width,
+			final int height) throws IOException {
+
+		List<Future<byte[]>> images = new ArrayList<Future<byte[]>>();
+
+		for (AssociatedImageRequest request : requests) {
+			images.add(lookup(request));
+		}
+
+		// decoding tasks are submitted only when the image is read, so they
+		// never wait for the reading tasks on the same executor
+		List<Future<BufferedImage>> futures = new ArrayList<Future<BufferedImage>>();
+
+		for (int i = 0; i < images.size(); i++) {
+
+			final byte[] data = result(requests.get(i), images.get(i));
+
+			if (data == MISSING) {
+				futures.add(null);
+				continue;
+			}
+
+			futures.add(executor.submit(new Callable<BufferedImage>() {
+
+				@Override
+				public BufferedImage call() throws IOException {
+
+					return thumbnail(
+							ImageDecoder.decodeToFit(data, width, height),
+							width, height);
+				}
+
+			}));
+
+		}
+
+		List<BufferedImage> thumbnails = new ArrayList<BufferedImage>();
+
+		for (int i = 0; i < futures.size(); i++) {
+			thumbnails.add(futures.get(i) != null ? result(requests.get(i),
+					futures.get(i)) : null);
+		}
+
+		return thumbnails;
+	}
+
+	/**
+	 * Removes all images from the cache.
+	 */
+	public synchronized void clear() {
+
+		images.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Gets the number of cached images.
+	 *
+	 * @return The number of images.
+	 */
+	public synchronized int size() {
+
+		return images.size();
+	}
+
+	/**
+	 * Gets the total size of the cached images, including a fixed overhead of
+	 * each image and of each cached absence of an image.
+	 *
+	 * @return The size in bytes.
+	 */
+	public synchronized long getBytes() {
+
+		return bytes;
+	}
+
+	/*
+	 * Returns a future for a cached image, for an image that is being read or
+	 * starts reading the image.
+	 */
+	private synchronized Future<byte[]> lookup(
+			final AssociatedImageRequest request) {
+
+		final byte[] cached = images.get(request);
+
+		if (cached != null) {
+
+			FutureTask<byte[]> future = new FutureTask<byte[]>(
+					new Callable<byte[]>() {
+
+						@Override
+						public byte[] call() {
+
+							return cached;
+						}
+
+					});
+
+			future.run();
+
+			return future;
+		}
+
+		Future<byte[]> future = pending.get(request);
+
+		if (future == null) {
+
+			FutureTask<byte[]> task = new FutureTask<byte[]>(
+					new Callable<byte[]>() {
+
+						@Override
+						public byte[] call() {
+
+							byte[] data = null;
+
+							try {
+								data = client.getAssociatedImage(
+										request.getImageID(), request.getType(),
+										ifp);
+								return data;
+							} catch (NotFoundException e) {
+								data = MISSING;
+								return data;
+							} finally {
+								completed(request, data);
+							}
+
+						}
+
+					});
+
+			// registered before it is submitted, since an executor that runs
+			// the task in the calling thread completes it immediately
+			pending.put(request, task);
+
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				pending.remove(request);
+				throw e;
+			}
+
+			future = task;
+
+		}
+
+		return future;
+	}
+
+	private synchronized void completed(AssociatedImageRequest request,
+			byte[] data) {
+
+		pending.remove(request);
+
+		if (data == null || size(data) > maxBytes) {
+			return;
+		}
+
+		byte[] previous = images.put(request, data);
+
+		bytes += size(data) - (previous != null ? size(previous) : 0);
+
+		// evict the least recently used images
+		Iterator<byte[]> it = images.values().iterator();
+
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= size(it.next());
+			it.remove();
+		}
+
+	}
+
+	/*
+	 * Size counted for a cached image or absence of an image.
+	 */
+	private static long size(byte[] data) {
+
+		return data.length + ENTRY_OVERHEAD;
+	}
+
+	private static <T> T result(AssociatedImageRequest request,
+			Future<T> future) throws IOException {
+
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Reading of associated images interrupted");
+		} catch (ExecutionException e) {
+
+			throw new IOException("Reading of " + request + " failed",
+					e.getCause());
+
+		}
+
+	}
+
+	/*
+	 * Downscales an image to fit into a rectangle.
+	 */
+	static BufferedImage thumbnail(BufferedImage image, int width, int height) {
+
+		double scale = Math.min(1, Math.min((double) width / image.getWidth(),
+				(double) height / image.getHeight()));
+
+		if (scale == 1) {
+			return image;
+		}
+
+		return ImageResampler.areaAverage(image,
+				Math.max(1, (int) Math.round(image.getWidth() * scale)),
+				Math.max(1, (int) Math.round(image.getHeight() * scale)));
+	}
+
+}
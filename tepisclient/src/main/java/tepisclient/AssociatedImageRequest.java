@@ -0,0 +1,76 @@
+package tepisclient;
+
+/**
+ * Contains parameters specifying an associated image of a digital slide in a
+ * batch request to {@link AssociatedImageCache}.
+ *
+ */
+
+public class AssociatedImageRequest {
+
+	private final String imageID;
+
+	private final AssociatedImageType type;
+
+	/**
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param type
+	 *            Type of the associated image.
+	 */
+	public AssociatedImageRequest(String imageID, AssociatedImageType type) {
+
+		if (imageID == null || type == null) {
+			throw new NullPointerException();
+		}
+
+		this.imageID = imageID;
+		this.type = type;
+	}
+
+	/**
+	 * Gets the value of the imageID property.
+	 *
+	 * @return
+	 */
+	public String getImageID() {
+
+		return imageID;
+	}
+
+	/**
+	 * Gets the value of the type property.
+	 *
+	 * @return
+	 */
+	public AssociatedImageType getType() {
+
+		return type;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+
+		if (!(obj instanceof AssociatedImageRequest)) {
+			return false;
+		}
+
+		AssociatedImageRequest other = (AssociatedImageRequest) obj;
+
+		return imageID.equals(other.imageID) && type == other.type;
+	}
+
+	@Override
+	public int hashCode() {
+
+		return 31 * imageID.hashCode() + type.hashCode();
+	}
+
+	@Override
+	public String toString() {
+
+		return "AssociatedImageRequest [imageID=" + imageID + ", type=" + type
+				+ "]";
+	}
+
+}
@@ -23,7 +23,7 @@ public class AuthenticationFilter implements ClientRequestFilter,
 	/**
 	 * The authentication cookie.
 	 */
-	private NewCookie authCookie;
+	private volatile NewCookie authCookie;
 
 	@Override
 	public void filter(ClientRequestContext requestContext) {
@@ -0,0 +1,114 @@
+package tepisclient;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Decoded block of a digital slide passed to a {@link BlockCallback}.
+ * <p>
+ * The image of the block includes the padding (halo) around the block. At the
+ * borders of the level the padding is filled by replicating the border
+ * pixels, so the image always has size (width + 2 * padding)-by-(height + 2 *
+ * padding).
+ *
+ */
+
+public class Block {
+
+	/*
+	 * Position of the block in the grid.
+	 */
+	private final int col;
+	private final int row;
+
+	/*
+	 * Block without the padding.
+	 */
+	private final ImageRegionParam region;
+
+	private final int padding;
+
+	/*
+	 * Decoded image data of the block including the padding.
+	 */
+	private final BufferedImage image;
+
+	/**
+	 * @param col
+	 *            Column of the block in the grid.
+	 * @param row
+	 *            Row of the block in the grid.
+	 * @param region
+	 *            Parameter object specifying the block without the padding.
+	 * @param padding
+	 *            Padding around the block in pixels.
+	 * @param image
+	 *            Decoded image data of the block including the padding.
+	 */
+	public Block(int col, int row, ImageRegionParam region, int padding,
+			BufferedImage image) {
+
+		this.col = col;
+		this.row = row;
+		this.region = region;
+		this.padding = padding;
+		this.image = image;
+	}
+
+	/**
+	 * Gets the column of the block in the grid.
+	 *
+	 * @return The column.
+	 */
+	public int getCol() {
+
+		return col;
+	}
+
+	/**
+	 * Gets the row of the block in the grid.
+	 *
+	 * @return The row.
+	 */
+	public int getRow() {
+
+		return row;
+	}
+
+	/**
+	 * Gets the parameters for the block without the padding.
+	 *
+	 * @return Parameters for the block.
+	 */
+	public ImageRegionParam getRegion() {
+
+		return region;
+	}
+
+	/**
+	 * Gets the padding around the block in pixels.
+	 *
+	 * @return The padding.
+	 */
+	public int getPadding() {
+
+		return padding;
+	}
+
+	/**
+	 * Gets the decoded image data of the block including the padding.
+	 *
+	 * @return The image.
+	 */
+	public BufferedImage getImage() {
+
+		return image;
+	}
+
+	@Override
+	public String toString() {
+
+		return "Block [col=" + col + ", row=" + row + ", region=" + region
+				+ ", padding=" + padding + "]";
+	}
+
+}
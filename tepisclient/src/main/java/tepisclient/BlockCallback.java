@@ -0,0 +1,26 @@
+package tepisclient;
+
+/**
+ * Callback that processes the blocks of a {@link BlockProcessor}.
+ * <p>
+ * The callback is called concurrently from multiple threads.
+ *
+ * @param <R>
+ *            Type of the result of processing a block.
+ */
+
+public interface BlockCallback<R> {
+
+	/**
+	 * Processes a single block.
+	 *
+	 * @param block
+	 *            The decoded block.
+	 * @return The result for the block or null if there is nothing to write.
+	 * @throws Exception
+	 *             If the block cannot be processed. Processing of the
+	 *             remaining blocks is stopped.
+	 */
+	R process(Block block) throws Exception;
+
+}
@@ -0,0 +1,29 @@
+package tepisclient;
+
+/**
+ * Filter for the blocks of a {@link BlockGrid}.
+ *
+ */
+
+public interface BlockFilter {
+
+	/**
+	 * Decides whether a block should be processed.
+	 *
+	 * @param level
+	 *            Level of the block.
+	 * @param x
+	 *            Horizontal coordinate of the top-left corner of the block in
+	 *            pixels of the level.
+	 * @param y
+	 *            Vertical coordinate of the top-left corner of the block in
+	 *            pixels of the level.
+	 * @param width
+	 *            Width of the block in pixels.
+	 * @param height
+	 *            Height of the block in pixels.
+	 * @return true if the block should be processed.
+	 */
+	boolean accept(int level, int x, int y, int width, int height);
+
+}
@@ -0,0 +1,339 @@
+package tepisclient;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Grid of distinct rectangular blocks covering a level of a digital slide.
+ * <p>
+ * The blocks at the right and bottom border of the level are clipped to the
+ * level size. An optional {@link BlockFilter} can be used to skip blocks, for
+ * example blocks that contain only background (see {@link TissueMask}).
+ * Iterating over the grid returns the accepted blocks in row-major order.
+ *
+ */
+
+public class BlockGrid implements Iterable<ImageRegionParam> {
+
+	/*
+	 * Level and size of the level in pixels.
+	 */
+	private final int level;
+	private final int levelWidth;
+	private final int levelHeight;
+
+	/*
+	 * Size of the blocks in pixels.
+	 */
+	private final int blockWidth;
+	private final int blockHeight;
+
+	private final BlockFilter filter;
+
+	/**
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param level
+	 *            Level of the grid.
+	 * @param blockWidth
+	 *            Width of the blocks in pixels.
+	 * @param blockHeight
+	 *            Height of the blocks in pixels.
+	 */
+	public BlockGrid(SlideGeometry geometry, int level, int blockWidth,
+			int blockHeight) {
+
+		this(geometry, level, blockWidth, blockHeight, null);
+	}
+
+	/**
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param level
+	 *            Level of the grid.
+	 * @param blockWidth
+	 *            Width of the blocks in pixels.
+	 * @param blockHeight
+	 *            Height of the blocks in pixels.
+	 * @param filter
+	 *            Filter for the blocks or null if all blocks should be
+	 *            accepted.
+	 */
+	public BlockGrid(SlideGeometry geometry, int level, int blockWidth,
+			int blockHeight, BlockFilter filter) {
+
+		this.level = level;
+		this.levelWidth = geometry.getWidth(level);
+		this.levelHeight = geometry.getHeight(level);
+		this.blockWidth = blockWidth;
+		this.blockHeight = blockHeight;
+		this.filter = filter;
+	}
+
+	/**
+	 * Returns a grid with blocks that correspond to the tiles of a level.
+	 *
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param level
+	 *            Level of the grid.
+	 * @param filter
+	 *            Filter for the tiles or null if all tiles should be accepted.
+	 * @return The tile grid.
+	 */
+	public static BlockGrid tileGrid(SlideGeometry geometry, int level,
+			BlockFilter filter) {
+
+		return new BlockGrid(geometry, level, geometry.getTileWidth(level),
+				geometry.getTileHeight(level), filter);
+	}
+
+	/**
+	 * Returns a grid with the same blocks and a different filter.
+	 *
+	 * @param filter
+	 *            Filter for the blocks or null if all blocks should be
+	 *            accepted.
+	 * @return The new grid.
+	 */
+	public BlockGrid withFilter(BlockFilter filter) {
+
+		return new BlockGrid(level, levelWidth, levelHeight, blockWidth,
+				blockHeight, filter);
+	}
+
+	private BlockGrid(int level, int levelWidth, int levelHeight,
+			int blockWidth, int blockHeight, BlockFilter filter) {
+
+		this.level = level;
+		this.levelWidth = levelWidth;
+		this.levelHeight = levelHeight;
+		this.blockWidth = blockWidth;
+		this.blockHeight = blockHeight;
+		this.filter = filter;
+	}
+
+	/**
+	 * Checks whether a block is accepted by the filter of the grid.
+	 *
+	 * @param col
+	 *            Column of the block.
+	 * @param row
+	 *            Row of the block.
+	 * @return true if the block is accepted.
+	 */
+	public boolean isAccepted(int col, int row) {
+
+		return filter == null
+				|| filter.accept(level, getX(col), getY(row), getWidth(col),
+						getHeight(row));
+	}
+
+	/**
+	 * Returns parameters for a block of the grid.
+	 *
+	 * @param col
+	 *            Column of the block.
+	 * @param row
+	 *            Row of the block.
+	 * @return Parameters for the block.
+	 */
+	public ImageRegionParam getRegion(int col, int row) {
+
+		return new ImageRegionParam((float) getX(col), (float) getY(row),
+				(float) getWidth(col), (float) getHeight(row), level,
+				Unit.PIXEL);
+	}
+
+	/**
+	 * Returns tile parameters for a block of the grid. Only meaningful for
+	 * grids created with {@link #tileGrid(SlideGeometry, int, BlockFilter)}.
+	 *
+	 * @param col
+	 *            Column of the block.
+	 * @param row
+	 *            Row of the block.
+	 * @return Parameters for the tile.
+	 */
+	public ImageTileParam getTile(int col, int row) {
+
+		return new ImageTileParam(col, row, level);
+	}
+
+	/**
+	 * Gets the horizontal coordinate of the top-left corner of the blocks in a
+	 * column.
+	 *
+	 * @param col
+	 * @return The horizontal coordinate.
+	 */
+	public int getX(int col) {
+
+		return col * blockWidth;
+	}
+
+	/**
+	 * Gets the vertical coordinate of the top-left corner of the blocks in a
+	 * row.
+	 *
+	 * @param row
+	 * @return The vertical coordinate.
+	 */
+	public int getY(int row) {
+
+		return row * blockHeight;
+	}
+
+	/**
+	 * Gets the width of the blocks in a column, clipped to the level size.
+	 *
+	 * @param col
+	 * @return The width.
+	 */
+	public int getWidth(int col) {
+
+		return Math.min(blockWidth, levelWidth - getX(col));
+	}
+
+	/**
+	 * Gets the height of the blocks in a row, clipped to the level size.
+	 *
+	 * @param row
+	 * @return The height.
+	 */
+	public int getHeight(int row) {
+
+		return Math.min(blockHeight, levelHeight - getY(row));
+	}
+
+	/**
+	 * Gets the number of block columns.
+	 *
+	 * @return The number of columns.
+	 */
+	public int getColumns() {
+
+		return (levelWidth + blockWidth - 1) / blockWidth;
+	}
+
+	/**
+	 * Gets the number of block rows.
+	 *
+	 * @return The number of rows.
+	 */
+	public int getRows() {
+
+		return (levelHeight + blockHeight - 1) / blockHeight;
+	}
+
+	/**
+	 * Gets the level of the grid.
+	 *
+	 * @return The level.
+	 */
+	public int getLevel() {
+
+		return level;
+	}
+
+	/**
+	 * Gets the width of the level of the grid in pixels.
+	 *
+	 * @return The level width.
+	 */
+	public int getLevelWidth() {
+
+		return levelWidth;
+	}
+
+	/**
+	 * Gets the height of the level of the grid in pixels.
+	 *
+	 * @return The level height.
+	 */
+	public int getLevelHeight() {
+
+		return levelHeight;
+	}
+
+	/**
+	 * Gets the nominal width of the blocks in pixels.
+	 *
+	 * @return The block width.
+	 */
+	public int getBlockWidth() {
+
+		return blockWidth;
+	}
+
+	/**
+	 * Gets the nominal height of the blocks in pixels.
+	 *
+	 * @return The block height.
+	 */
+	public int getBlockHeight() {
+
+		return blockHeight;
+	}
+
+	@Override
+	public Iterator<ImageRegionParam> iterator() {
+
+		return new Iterator<ImageRegionParam>() {
+
+			private int index = advance(0);
+
+			@Override
+			public boolean hasNext() {
+
+				return index < getColumns() * getRows();
+			}
+
+			@Override
+			public ImageRegionParam next() {
+
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+
+				ImageRegionParam irp = getRegion(index % getColumns(), index
+						/ getColumns());
+
+				index = advance(index + 1);
+
+				return irp;
+			}
+
+			@Override
+			public void remove() {
+
+				throw new UnsupportedOperationException();
+			}
+
+			/*
+			 * Returns the index of the first accepted block starting from the
+			 * specified index.
+			 */
+			private int advance(int index) {
+
+				while (index < getColumns() * getRows()
+						&& !isAccepted(index % getColumns(), index
+								/ getColumns())) {
+					index++;
+				}
+
+				return index;
+			}
+
+		};
+	}
+
+	@Override
+	public String toString() {
+
+		return "BlockGrid [level=" + level + ", blockWidth=" + blockWidth
+				+ ", blockHeight=" + blockHeight + ", columns=" + getColumns()
+				+ ", rows=" + getRows() + "]";
+	}
+
+}
@@ -0,0 +1,386 @@
+package tepisclient;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Parallel block processing of a whole level of a digital slide.
+ * <p>
+ * This is a multithreaded alternative to block processing with the
+ * blockproc function in MATLAB. The blocks of a {@link BlockGrid} are read
+ * from the server together with a padding (halo) around each block, decoded,
+ * passed to a {@link BlockCallback} and the results are passed to a
+ * {@link BlockWriter}. Reading is done on the fetch executor while decoding,
+ * processing and writing are done on the compute executor, so reading of new
+ * blocks overlaps with the processing of the blocks that were already read.
+ * <p>
+ * The number of blocks that were submitted for reading but are not yet
+ * written is bounded. When the bound is reached, no new blocks are read until
+ * the processing of earlier blocks finishes, which limits the memory use when
+ * the processing is slower than the reading.
+ * <p>
+ * With a {@link ScanCheckpoint}, only the blocks of one shard are processed
+ * and each block is recorded as completed when its result is written, so an
+ * interrupted scan can be resumed without processing the completed blocks
+ * again.
+ *
+ */
+
+public class BlockProcessor {
+
+	private final TepisClient client;
+
+	private final String imageID;
+
+	/*
+	 * Executors for reading and for decoding, processing and writing.
+	 */
+	private final ExecutorService fetchExecutor;
+	private final ExecutorService computeExecutor;
+
+	/*
+	 * Maximum number of blocks that are read or processed at the same time.
+	 */
+	private final int maxPendingBlocks;
+
+	/**
+	 * @param client
+	 *            Client used to read the blocks.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param fetchExecutor
+	 *            Executor on which the blocks are read. The number of threads
+	 *            determines the number of parallel requests to the server.
+	 * @param computeExecutor
+	 *            Executor on which the blocks are decoded, processed and
+	 *            written. Usually has one thread per processor core.
+	 * @param maxPendingBlocks
+	 *            Maximum number of blocks that are read, waiting for
+	 *            processing or processed at the same time.
+	 */
+	public BlockProcessor(TepisClient client, String imageID,
+			ExecutorService fetchExecutor, ExecutorService computeExecutor,
+			int maxPendingBlocks) {
+
+		this.client = client;
+		this.imageID = imageID;
+		this.fetchExecutor = fetchExecutor;
+		this.computeExecutor = computeExecutor;
+		this.maxPendingBlocks = maxPendingBlocks;
+	}
+
+	/**
+	 * Processes all accepted blocks of a grid in the default image format and
+	 * quality of the server.
+	 *
+	 * @param grid
+	 *            The block grid.
+	 * @param padding
+	 *            Padding around each block in pixels.
+	 * @param callback
+	 *            Callback that processes the blocks.
+	 * @param writer
+	 *            Writer for the results or null if the results should be
+	 *            discarded.
+	 * @throws IOException
+	 *             If reading, processing or writing of any of the blocks
+	 *             fails.
+	 * @see process(BlockGrid grid, int padding, ImageFormatParam ifp,
+	 *      BlockCallback callback, BlockWriter writer)
+	 */
+	public <R> void process(BlockGrid grid, int padding,
+			BlockCallback<R> callback, BlockWriter<? super R> writer)
+			throws IOException {
+
+		process(grid, padding, null, callback, writer);
+	}
+
+	/**
+	 * Processes all accepted blocks of a grid with specified image format and
+	 * quality.
+	 * <p>
+	 * The method returns when all blocks are written. If any of the blocks
+	 * fails, no new blocks are read and the method throws after the blocks
+	 * that are in progress are finished.
+	 *
+	 * @param grid
+	 *            The block grid.
+	 * @param padding
+	 *            Padding around each block in pixels.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the image data that is read from the server.
+	 * @param callback
+	 *            Callback that processes the blocks.
+	 * @param writer
+	 *            Writer for the results or null if the results should be
+	 *            discarded.
+	 * @throws IOException
+	 *             If reading, processing or writing of any of the blocks
+	 *             fails.
+	 * @see process(BlockGrid grid, int padding, BlockCallback callback,
+	 *      BlockWriter writer)
+	 */
+	public <R> void process(BlockGrid grid, int padding,
+			ImageFormatParam ifp, BlockCallback<R> callback,
+			BlockWriter<? super R> writer) throws IOException {
+
+		process(grid, padding, ifp, callback, writer, null);
+	}
+
+	/**
+	 * Processes the accepted blocks of a grid that belong to the shard of a
+	 * checkpoint and are not yet completed.
+	 * <p>
+	 * Each block is marked as completed in the checkpoint after its result is
+	 * written. Blocks that fail are not marked, so they are processed again
+	 * when the scan is resumed.
+	 *
+	 * @param grid
+	 *            The block grid.
+	 * @param padding
+	 *            Padding around each block in pixels.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the image data that is read from the server.
+	 * @param callback
+	 *            Callback that processes the blocks.
+	 * @param writer
+	 *            Writer for the results or null if the results should be
+	 *            discarded.
+	 * @param checkpoint
+	 *            Checkpoint of the grid or null if all blocks should be
+	 *            processed.
+	 * @throws IOException
+	 *             If reading, processing or writing of any of the blocks
+	 *             fails.
+	 */
+	public <R> void process(BlockGrid grid, int padding,
+			ImageFormatParam ifp, BlockCallback<R> callback,
+			BlockWriter<? super R> writer, ScanCheckpoint checkpoint)
+			throws IOException {
+
+		if (checkpoint != null
+				&& (checkpoint.getColumns() != grid.getColumns() || checkpoint
+						.getRows() != grid.getRows())) {
+			throw new IllegalArgumentException(
+					"Scan checkpoint of a different block grid");
+		}
+
+		Semaphore pending = new Semaphore(maxPendingBlocks);
+
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		boolean interrupted = false;
+
+		submit: for (int row = 0; row < grid.getRows(); row++) {
+			for (int col = 0; col < grid.getColumns(); col++) {
+
+				if (!grid.isAccepted(col, row)
+						|| (checkpoint != null && !checkpoint.isPending(col,
+								row))) {
+					continue;
+				}
+
+				try {
+					pending.acquire();
+				} catch (InterruptedException e) {
+					interrupted = true;
+					failure.compareAndSet(null, e);
+					break submit;
+				}
+
+				if (failure.get() != null) {
+					pending.release();
+					break submit;
+				}
+
+				FetchTask<R> task = new FetchTask<R>(grid, col, row, padding,
+						ifp, callback, writer, checkpoint, pending, failure);
+
+				try {
+					fetchExecutor.execute(task);
+				} catch (RuntimeException e) {
+					pending.release();
+					failure.compareAndSet(null, e);
+					break submit;
+				}
+
+			}
+		}
+
+		// wait for the blocks in progress
+		pending.acquireUninterruptibly(maxPendingBlocks);
+		pending.release(maxPendingBlocks);
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Block processing interrupted");
+		}
+
+		Throwable cause = failure.get();
+
+		if (cause instanceof IOException) {
+			throw (IOException) cause;
+		} else if (cause != null) {
+			throw new IOException("Block processing failed", cause);
+		}
+
+	}
+
+	/*
+	 * Reads a padded block and hands it over to the compute executor.
+	 */
+	private class FetchTask<R> implements Runnable {
+
+		private final BlockGrid grid;
+		private final int col;
+		private final int row;
+		private final int padding;
+		private final ImageFormatParam ifp;
+		private final BlockCallback<R> callback;
+		private final BlockWriter<? super R> writer;
+		private final ScanCheckpoint checkpoint;
+		private final Semaphore pending;
+		private final AtomicReference<Throwable> failure;
+
+		FetchTask(BlockGrid grid, int col, int row, int padding,
+				ImageFormatParam ifp, BlockCallback<R> callback,
+				BlockWriter<? super R> writer, ScanCheckpoint checkpoint,
+				Semaphore pending, AtomicReference<Throwable> failure) {
+
+			this.grid = grid;
+			this.col = col;
+			this.row = row;
+			this.padding = padding;
+			this.ifp = ifp;
+			this.callback = callback;
+			this.writer = writer;
+			this.checkpoint = checkpoint;
+			this.pending = pending;
+			this.failure = failure;
+		}
+
+		@Override
+		public void run() {
+
+			try {
+
+				if (failure.get() != null) {
+					pending.release();
+					return;
+				}
+
+				int x = grid.getX(col);
+				int y = grid.getY(row);
+				int width = grid.getWidth(col);
+				int height = grid.getHeight(row);
+
+				// padded region clipped to the level
+				int fromX = Math.max(0, x - padding);
+				int fromY = Math.max(0, y - padding);
+				int toX = Math.min(grid.getLevelWidth(), x + width + padding);
+				int toY = Math.min(grid.getLevelHeight(), y + height + padding);
+
+				ImageRegionParam irp = new ImageRegionParam((float) fromX,
+						(float) fromY, (float) (toX - fromX),
+						(float) (toY - fromY), grid.getLevel(), Unit.PIXEL);
+
+				final byte[] data = client.getImagePixelData(imageID, irp, ifp);
+
+				final int offsetX = padding - (x - fromX);
+				final int offsetY = padding - (y - fromY);
+
+				computeExecutor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+
+						try {
+
+							if (failure.get() != null) {
+								return;
+							}
+
+							BufferedImage image = pad(
+									ImageDecoder.decode(data), offsetX,
+									offsetY, grid.getWidth(col) + 2 * padding,
+									grid.getHeight(row) + 2 * padding);
+
+							Block block = new Block(col, row, grid.getRegion(
+									col, row), padding, image);
+
+							R result = callback.process(block);
+
+							if (writer != null && result != null) {
+								writer.write(block, result);
+							}
+
+							if (checkpoint != null) {
+								checkpoint.markDone(col, row);
+							}
+
+						} catch (Throwable e) {
+							failure.compareAndSet(null, e);
+						} finally {
+							pending.release();
+						}
+
+					}
+
+				});
+
+			} catch (Throwable e) {
+				failure.compareAndSet(null, e);
+				pending.release();
+			}
+
+		}
+
+	}
+
+	/*
+	 * Places an image in a larger image at the specified offset and fills the
+	 * remaining pixels by replicating the border pixels of the image.
+	 */
+	static BufferedImage pad(BufferedImage image, int offsetX, int offsetY,
+			int width, int height) {
+
+		int sourceWidth = image.getWidth();
+		int sourceHeight = image.getHeight();
+
+		if (offsetX == 0 && offsetY == 0 && sourceWidth == width
+				&& sourceHeight == height) {
+			return image;
+		}
+
+		int[] source = image.getRGB(0, 0, sourceWidth, sourceHeight, null, 0,
+				sourceWidth);
+		int[] target = new int[width * height];
+
+		for (int y = 0; y < height; y++) {
+
+			int sourceY = Math.min(Math.max(y - offsetY, 0), sourceHeight - 1);
+
+			for (int x = 0; x < width; x++) {
+
+				int sourceX = Math.min(Math.max(x - offsetX, 0),
+						sourceWidth - 1);
+
+				target[y * width + x] = source[sourceY * sourceWidth + sourceX];
+
+			}
+		}
+
+		BufferedImage padded = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		padded.setRGB(0, 0, width, height, target, 0, width);
+
+		return padded;
+	}
+
+}
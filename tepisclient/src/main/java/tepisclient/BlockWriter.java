@@ -0,0 +1,28 @@
+package tepisclient;
+
+import java.io.IOException;
+
+/**
+ * Writes the results of a {@link BlockProcessor} for each block.
+ * <p>
+ * The writer is called concurrently from multiple threads, each time for a
+ * different block.
+ *
+ * @param <R>
+ *            Type of the result of processing a block.
+ */
+
+public interface BlockWriter<R> {
+
+	/**
+	 * Writes the result for a single block.
+	 *
+	 * @param block
+	 *            The processed block.
+	 * @param result
+	 *            The result returned by the {@link BlockCallback}.
+	 * @throws IOException
+	 */
+	void write(Block block, R result) throws IOException;
+
+}
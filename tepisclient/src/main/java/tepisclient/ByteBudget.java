@@ -0,0 +1,185 @@
+package tepisclient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory budget for the response data of the requests of a client.
+ * <p>
+ * Each request reserves the expected size of its response before it is sent
+ * and blocks while the budget is used up, so the number of responses that
+ * are held in memory at the same time is limited by their total size rather
+ * than by their number. The reservation is corrected to the actual size of
+ * the response when its headers arrive and is released when the response is
+ * delivered to the caller. Responses of asynchronous requests that are never
+ * retrieved from their future are released when the request is cancelled or
+ * the future is no longer referenced.
+ * <p>
+ * A request that is larger than the whole budget is admitted when no other
+ * request holds any of the budget. Corrections never block, so the used
+ * bytes can temporarily exceed the budget.
+ *
+ * @see TepisClient#setByteBudget(ByteBudget)
+ */
+
+public class ByteBudget {
+
+	private final long maxBytes;
+
+	/*
+	 * Guarded by this, together with the fields below.
+	 */
+	private long usedBytes;
+
+	private int waitingRequests;
+
+	/**
+	 * @param maxBytes
+	 *            Size of the budget in bytes.
+	 */
+	public ByteBudget(long maxBytes) {
+
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("Budget must be positive");
+		}
+
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Reserves bytes, waiting while the budget is used up.
+	 *
+	 * @param bytes
+	 *            Number of bytes.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 * @see acquire(long bytes, long timeout)
+	 */
+	public void acquire(long bytes) throws InterruptedException {
+
+		acquire(bytes, 0);
+	}
+
+	/**
+	 * Reserves bytes, waiting at most the specified time while the budget is
+	 * used up.
+	 *
+	 * @param bytes
+	 *            Number of bytes.
+	 * @param timeout
+	 *            Maximum waiting time in milliseconds or 0 to wait without
+	 *            timeout.
+	 * @return True if the bytes were reserved, false if the waiting time
+	 *         elapsed.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 * @see acquire(long bytes)
+	 */
+	public synchronized boolean acquire(long bytes, long timeout)
+			throws InterruptedException {
+
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		waitingRequests++;
+
+		try {
+
+			while (usedBytes > 0 && usedBytes + bytes > maxBytes) {
+
+				if (timeout <= 0) {
+					wait();
+					continue;
+				}
+
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline
+						- System.nanoTime());
+
+				if (remaining <= 0) {
+					return false;
+				}
+
+				wait(remaining);
+
+			}
+
+		} finally {
+			waitingRequests--;
+		}
+
+		usedBytes += bytes;
+
+		return true;
+	}
+
+	/**
+	 * Reserves bytes without waiting, even if the budget is exceeded.
+	 *
+	 * @param bytes
+	 *            Number of bytes.
+	 */
+	public synchronized void force(long bytes) {
+
+		usedBytes += bytes;
+	}
+
+	/**
+	 * Releases reserved bytes.
+	 *
+	 * @param bytes
+	 *            Number of bytes.
+	 */
+	public synchronized void release(long bytes) {
+
+		usedBytes -= bytes;
+
+		notifyAll();
+	}
+
+	/**
+	 * Gets the value of the maxBytes property.
+	 *
+	 * @return
+	 */
+	public long getMaxBytes() {
+
+		return maxBytes;
+	}
+
+	/**
+	 * Gets the number of reserved bytes.
+	 *
+	 * @return The number of bytes.
+	 */
+	public synchronized long getUsedBytes() {
+
+		return usedBytes;
+	}
+
+	/**
+	 * Gets the fraction of the budget that is reserved.
+	 *
+	 * @return The utilisation, larger than 1 if the budget is exceeded.
+	 */
+	public synchronized double getUtilisation() {
+
+		return (double) usedBytes / maxBytes;
+	}
+
+	/**
+	 * Gets the number of requests that are waiting for the budget.
+	 *
+	 * @return The number of requests.
+	 */
+	public synchronized int getWaitingRequests() {
+
+		return waitingRequests;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return "ByteBudget [usedBytes=" + usedBytes + ", maxBytes="
+				+ maxBytes + ", waitingRequests=" + waitingRequests + "]";
+	}
+
+}
@@ -0,0 +1,846 @@
+package tepisclient;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warms the caches of a {@link TepisClient}, for example its
+ * {@link RevalidatingCache}, with the data that will be read by a scheduled
+ * analysis or a review session.
+ * <p>
+ * The data is listed in a manifest, which can be written by hand or recorded
+ * with an {@link AccessLog}. Each line of the manifest has the ID of a
+ * digital slide followed by one of:
+ * <ul>
+ * <li><code>metadata</code>: the metadata of the slide;</li>
+ * <li><code>LABEL</code>, <code>MACRO</code> or <code>THUMBNAIL</code>: an
+ * associated image;</li>
+ * <li><code>level</code> <i>level</i>: all tiles of a level;</li>
+ * <li><code>tile</code> <i>col row level</i>: a single tile;</li>
+ * <li><code>region</code> <i>level x y width height</i>: a region of interest,
+ * which is read in the same parts as by a {@link SplitRegionReader} with the
+ * default maximum number of pixels.</li>
+ * </ul>
+ * The tiles, levels, regions and associated images can be followed by the
+ * image format (<code>JPEG</code> or <code>PNG</code>) and quality, and the
+ * regions by the unit of the coordinates, which are otherwise the server
+ * defaults. Values that are not set are written as "-". Empty lines, lines
+ * starting with "#" and repeated lines are ignored.
+ * <p>
+ * Warming has low priority: at most a fixed number of requests are in flight
+ * at the same time, the request rate is limited and no requests are started
+ * while requests of the client are waiting for its {@link ByteBudget}.
+ * Failed requests, for example of a missing label, are counted and skipped.
+ * The progress is saved in a file, so an interrupted warming job resumes
+ * where it stopped. The reads of the warmer are not recorded in the
+ * {@link AccessLog} of the client, so a log can be replayed while it is
+ * recorded.
+ * <p>
+ * Warming is useful only if the caches can hold the data of the manifest,
+ * otherwise the data that is warmed last evicts the data that was warmed
+ * first. {@link #estimateBytes(List)} gives an upper bound of its size.
+ *
+ */
+
+public class CacheWarmer {
+
+	/*
+	 * Interval at which the progress file is written and the budget of the
+	 * client is polled, in milliseconds.
+	 */
+	private static final long SAVE_INTERVAL = 1000;
+	private static final long BACKOFF_INTERVAL = 100;
+
+	private final TepisClient client;
+
+	/*
+	 * Executor on which the requests run.
+	 */
+	private final ExecutorService executor;
+
+	/*
+	 * Maximum number of requests in flight.
+	 */
+	private final int maxInFlight;
+
+	/*
+	 * Minimum time between the starts of two requests in nanoseconds or 0 if
+	 * the rate is not limited.
+	 */
+	private final long requestInterval;
+
+	private final AtomicLong warmed = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param client
+	 *            Client whose caches are warmed.
+	 * @param executor
+	 *            Executor on which the requests run. Should have at least
+	 *            maxInFlight threads.
+	 * @param maxInFlight
+	 *            Maximum number of requests in flight.
+	 * @param maxRequestsPerSecond
+	 *            Maximum number of requests started per second or 0 for no
+	 *            limit.
+	 */
+	public CacheWarmer(TepisClient client, ExecutorService executor,
+			int maxInFlight, double maxRequestsPerSecond) {
+
+		this.client = client;
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.requestInterval = maxRequestsPerSecond > 0 ? (long) (1e9 / maxRequestsPerSecond) : 0;
+	}
+
+	/**
+	 * Warms the caches with the data listed in a manifest file.
+	 *
+	 * @param manifest
+	 *            The manifest or access log.
+	 * @param progress
+	 *            File in which the progress is saved or null. If the file
+	 *            exists and belongs to the same manifest, the data that was
+	 *            already warmed is skipped.
+	 * @throws IOException
+	 *             If the manifest is invalid or the progress cannot be saved.
+	 * @throws InterruptedIOException
+	 *             If the calling thread is interrupted. The requests in flight
+	 *             are finished and the progress is saved before the method
+	 *             returns.
+	 * @see warm(List<String> manifest, File progress)
+	 */
+	public void warm(File manifest, File progress) throws IOException {
+
+		warm(Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8),
+				progress);
+	}
+
+	/**
+	 * Warms the caches with the data listed in the lines of a manifest.
+	 *
+	 * @param manifest
+	 *            The lines of the manifest or access log.
+	 * @param progress
+	 *            File in which the progress is saved or null. If the file
+	 *            exists and belongs to the same manifest, the data that was
+	 *            already warmed is skipped.
+	 * @throws IOException
+	 *             If the manifest is invalid or the progress cannot be saved.
+	 * @throws InterruptedIOException
+	 *             If the calling thread is interrupted. The requests in flight
+	 *             are finished and the progress is saved before the method
+	 *             returns.
+	 * @see warm(File manifest, File progress)
+	 */
+	public void warm(List<String> manifest, File progress) throws IOException {
+
+		// the reads of this thread are not recorded, like those of the
+		// requests
+		TepisClient.UNRECORDED.set(Boolean.TRUE);
+
+		try {
+			warmEntries(parse(manifest), progress);
+		} finally {
+			TepisClient.UNRECORDED.remove();
+		}
+
+	}
+
+	private void warmEntries(List<Entry> entries, File progress)
+			throws IOException {
+
+		Set<String> unique = new LinkedHashSet<String>();
+
+		for (Entry entry : entries) {
+			unique.add(entry.line);
+		}
+
+		final Progress tracker = new Progress(progress, digest(unique));
+
+		Map<String, SlideGeometry> geometries = new HashMap<String, SlideGeometry>();
+
+		final Semaphore slots = new Semaphore(maxInFlight);
+
+		long next = System.nanoTime();
+
+		try {
+
+			for (int line = tracker.line; line < entries.size(); line++) {
+
+				List<Request> requests;
+
+				try {
+					requests = entries.get(line).requests(this, geometries);
+				} catch (RuntimeException e) {
+					// the metadata of the slide cannot be read
+					failed.incrementAndGet();
+					requests = new ArrayList<Request>();
+				}
+
+				int offset = line == tracker.line ? tracker.offset : 0;
+
+				tracker.begin(line, offset);
+
+				for (; offset < requests.size(); offset++) {
+
+					// limit the request rate
+					long now = System.nanoTime();
+
+					if (next > now) {
+						TimeUnit.NANOSECONDS.sleep(next - now);
+					}
+
+					next = Math.max(next, now) + requestInterval;
+
+					// give way to the requests of the client
+					ByteBudget budget = client.getByteBudget();
+
+					while (budget != null && budget.getWaitingRequests() > 0) {
+						Thread.sleep(BACKOFF_INTERVAL);
+					}
+
+					slots.acquire();
+
+					final Request request = requests.get(offset);
+					final long sequence = tracker.submitted++;
+
+					try {
+						executor.execute(new Runnable() {
+
+							@Override
+							public void run() {
+
+								TepisClient.UNRECORDED.set(Boolean.TRUE);
+
+								try {
+									request.run();
+									warmed.incrementAndGet();
+								} catch (RuntimeException e) {
+									failed.incrementAndGet();
+								} finally {
+									TepisClient.UNRECORDED.remove();
+									tracker.completed(sequence);
+									slots.release();
+								}
+
+							}
+
+						});
+					} catch (RuntimeException e) {
+						slots.release();
+						throw e;
+					}
+
+				}
+
+			}
+
+			slots.acquire(maxInFlight);
+
+		} catch (InterruptedException e) {
+			slots.acquireUninterruptibly(maxInFlight);
+			tracker.save();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Cache warming interrupted");
+		}
+
+		tracker.begin(entries.size(), 0);
+		tracker.save();
+	}
+
+	/**
+	 * Estimates the size of the data listed in a manifest file.
+	 *
+	 * @param manifest
+	 *            The manifest or access log.
+	 * @return Upper bound of the size of the responses in bytes.
+	 * @throws IOException
+	 *             If the manifest is invalid.
+	 * @see estimateBytes(List<String> manifest)
+	 */
+	public long estimateBytes(File manifest) throws IOException {
+
+		return estimateBytes(Files.readAllLines(manifest.toPath(),
+				StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Estimates the size of the data listed in the lines of a manifest. The
+	 * size of each response is the size that the client reserves for it in
+	 * its {@link ByteBudget}, which for tiles and regions in pixels is their
+	 * uncompressed size. The metadata of the slides of levels and regions is
+	 * read to count their tiles and parts.
+	 *
+	 * @param manifest
+	 *            The lines of the manifest or access log.
+	 * @return Upper bound of the size of the responses in bytes. Entries of
+	 *         slides whose metadata cannot be read are not counted.
+	 * @throws IOException
+	 *             If the manifest is invalid.
+	 * @see estimateBytes(File manifest)
+	 */
+	public long estimateBytes(List<String> manifest) throws IOException {
+
+		TepisClient.UNRECORDED.set(Boolean.TRUE);
+
+		try {
+
+			Map<String, SlideGeometry> geometries = new HashMap<String, SlideGeometry>();
+
+			long bytes = 0;
+
+			for (Entry entry : parse(manifest)) {
+				try {
+					for (Request request : entry.requests(this, geometries)) {
+						bytes += request.bytes;
+					}
+				} catch (RuntimeException e) {
+					// the metadata of the slide cannot be read
+				}
+			}
+
+			return bytes;
+
+		} finally {
+			TepisClient.UNRECORDED.remove();
+		}
+
+	}
+
+	/**
+	 * Gets the number of requests that succeeded since the warmer was
+	 * created.
+	 *
+	 * @return The number of requests.
+	 */
+	public long getWarmed() {
+
+		return warmed.get();
+	}
+
+	/**
+	 * Gets the number of requests that failed since the warmer was created,
+	 * including those for the metadata of slides that cannot be read.
+	 *
+	 * @return The number of requests.
+	 */
+	public long getFailed() {
+
+		return failed.get();
+	}
+
+	@Override
+	public String toString() {
+
+		return "CacheWarmer [warmed=" + warmed + ", failed=" + failed + "]";
+	}
+
+	private SlideGeometry geometry(String imageID,
+			Map<String, SlideGeometry> geometries) {
+
+		SlideGeometry geometry = geometries.get(imageID);
+
+		if (geometry == null) {
+			geometry = new SlideGeometry(client.getPixelMetadata(imageID));
+			geometries.put(imageID, geometry);
+		}
+
+		return geometry;
+	}
+
+	/*
+	 * Parses the lines of a manifest, without the empty, comment and
+	 * repeated lines. All lines are parsed before the first request.
+	 */
+	private static List<Entry> parse(List<String> manifest) throws IOException {
+
+		Set<String> unique = new LinkedHashSet<String>();
+
+		for (String line : manifest) {
+			if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+				unique.add(line.trim());
+			}
+		}
+
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for (String line : unique) {
+			entries.add(Entry.parse(line));
+		}
+
+		return entries;
+	}
+
+	private static String digest(Set<String> lines) {
+
+		try {
+
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+			for (String line : lines) {
+				digest.update(line.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) '\n');
+			}
+
+			StringBuilder hex = new StringBuilder();
+
+			for (byte b : digest.digest()) {
+				hex.append(String.format("%02x", b));
+			}
+
+			return hex.toString();
+
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+	}
+
+	/*
+	 * A request of an entry of a manifest and the expected size of its
+	 * response.
+	 */
+	private abstract static class Request implements Runnable {
+
+		final long bytes;
+
+		Request(long bytes) {
+
+			this.bytes = bytes;
+		}
+
+	}
+
+	/*
+	 * A parsed line of a manifest.
+	 */
+	private static class Entry {
+
+		private final String line;
+
+		private final String imageID;
+
+		private final String type;
+
+		/*
+		 * Numeric arguments of the type, null if not set.
+		 */
+		private final List<String> arguments = new ArrayList<String>();
+
+		private Unit unit;
+
+		private Format format;
+
+		private Integer quality;
+
+		private Entry(String line, String imageID, String type) {
+
+			this.line = line;
+			this.imageID = imageID;
+			this.type = type;
+		}
+
+		static Entry parse(String line) throws IOException {
+
+			String[] tokens = line.split("\\s+");
+
+			if (tokens.length < 2) {
+				throw new IOException("Invalid manifest line: " + line);
+			}
+
+			Entry entry = new Entry(line, tokens[0], tokens[1]);
+
+			int numberOfArguments;
+
+			if ("metadata".equals(entry.type)) {
+				numberOfArguments = 0;
+			} else if ("level".equals(entry.type)) {
+				numberOfArguments = 1;
+			} else if ("tile".equals(entry.type)) {
+				numberOfArguments = 3;
+			} else if ("region".equals(entry.type)) {
+				numberOfArguments = 5;
+			} else if (associatedImageType(entry.type) != null) {
+				numberOfArguments = 0;
+			} else {
+				throw new IOException("Invalid manifest line: " + line);
+			}
+
+			if (tokens.length < 2 + numberOfArguments) {
+				throw new IOException("Invalid manifest line: " + line);
+			}
+
+			try {
+
+				for (int i = 2; i < 2 + numberOfArguments; i++) {
+
+					String argument = "-".equals(tokens[i]) ? null : tokens[i];
+
+					if (argument != null) {
+						Float.parseFloat(argument);
+					}
+
+					entry.arguments.add(argument);
+
+				}
+
+				for (int i = 2 + numberOfArguments; i < tokens.length; i++) {
+
+					String option = tokens[i].toUpperCase();
+
+					if ("region".equals(entry.type)
+							&& isConstant(Unit.class, option)) {
+						entry.unit = Unit.valueOf(option);
+					} else if (!"metadata".equals(entry.type)
+							&& isConstant(Format.class, option)) {
+						entry.format = Format.valueOf(option);
+					} else if (!"metadata".equals(entry.type)) {
+						entry.quality = Integer.valueOf(tokens[i]);
+					} else {
+						throw new NumberFormatException();
+					}
+
+				}
+
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid manifest line: " + line, e);
+			}
+
+			if ("level".equals(entry.type) && entry.arguments.get(0) == null) {
+				throw new IOException("Invalid manifest line: " + line);
+			}
+
+			return entry;
+		}
+
+		/*
+		 * The requests of the entry. Reads the metadata of the slide if
+		 * needed for the tiles of a level or the parts of a region.
+		 */
+		List<Request> requests(final CacheWarmer warmer,
+				Map<String, SlideGeometry> geometries) {
+
+			final TepisClient client = warmer.client;
+			final ImageFormatParam ifp = format != null || quality != null ? new ImageFormatParam(
+					format, quality) : null;
+
+			List<Request> requests = new ArrayList<Request>();
+
+			if ("metadata".equals(type)) {
+
+				requests.add(new Request(TepisClient.METADATA_BYTES) {
+
+					@Override
+					public void run() {
+
+						client.getPixelMetadata(imageID);
+					}
+
+				});
+
+			} else if ("level".equals(type)) {
+
+				int level = integer(0);
+
+				SlideGeometry geometry = warmer.geometry(imageID, geometries);
+
+				for (int row = 0; row < geometry.getTileRows(level); row++) {
+					for (int col = 0; col < geometry.getTileColumns(level); col++) {
+						requests.add(tile(client, new ImageTileParam(col, row,
+								level), ifp));
+					}
+				}
+
+			} else if ("tile".equals(type)) {
+
+				requests.add(tile(client, new ImageTileParam(integer(0),
+						integer(1), integer(2)), ifp));
+
+			} else if ("region".equals(type)) {
+
+				final ImageRegionParam irp = new ImageRegionParam(decimal(1),
+						decimal(2), decimal(3), decimal(4), integer(0), unit);
+
+				List<Rectangle> parts = null;
+
+				if (irp.getX() != null && irp.getY() != null
+						&& irp.getWidth() != null && irp.getHeight() != null) {
+					parts = new SplitRegionReader(client, imageID,
+							warmer.geometry(imageID, geometries),
+							warmer.executor).split(irp);
+				}
+
+				if (parts == null) {
+					requests.add(region(client, irp, ifp));
+				} else {
+					for (Rectangle part : parts) {
+						requests.add(region(client, new ImageRegionParam(
+								(float) part.x, (float) part.y,
+								(float) part.width, (float) part.height,
+								irp.getLevel() != null ? irp.getLevel() : 0,
+								Unit.PIXEL), ifp));
+					}
+				}
+
+			} else {
+
+				final AssociatedImageType ait = associatedImageType(type);
+
+				requests.add(new Request(TepisClient.ASSOCIATED_IMAGE_BYTES) {
+
+					@Override
+					public void run() {
+
+						client.getAssociatedImage(imageID, ait, ifp);
+					}
+
+				});
+
+			}
+
+			return requests;
+		}
+
+		private Request tile(final TepisClient client,
+				final ImageTileParam itp, final ImageFormatParam ifp) {
+
+			return new Request(TepisClient.TILE_BYTES) {
+
+				@Override
+				public void run() {
+
+					client.getTiledImagePixelData(imageID, itp, ifp);
+				}
+
+			};
+		}
+
+		private Request region(final TepisClient client,
+				final ImageRegionParam irp, final ImageFormatParam ifp) {
+
+			return new Request(TepisClient.regionBytes(irp)) {
+
+				@Override
+				public void run() {
+
+					client.getImagePixelData(imageID, irp, ifp);
+				}
+
+			};
+		}
+
+		private Integer integer(int index) {
+
+			String argument = arguments.get(index);
+
+			return argument != null ? Integer.valueOf(argument) : null;
+		}
+
+		private Float decimal(int index) {
+
+			String argument = arguments.get(index);
+
+			return argument != null ? Float.valueOf(argument) : null;
+		}
+
+		private static AssociatedImageType associatedImageType(String type) {
+
+			for (AssociatedImageType ait : AssociatedImageType.values()) {
+				if (ait.name().equals(type)) {
+					return ait;
+				}
+			}
+
+			return null;
+		}
+
+		private static <E extends Enum<E>> boolean isConstant(Class<E> type,
+				String name) {
+
+			for (E constant : type.getEnumConstants()) {
+				if (constant.name().equals(name)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		@Override
+		public String toString() {
+
+			return line;
+		}
+
+	}
+
+	/*
+	 * Tracks the completed requests and saves the position up to which all
+	 * requests are completed: the line of the manifest and the number of its
+	 * requests.
+	 */
+	private static class Progress {
+
+		private final File file;
+
+		private final String manifest;
+
+		/*
+		 * Position from which warming starts.
+		 */
+		int line;
+
+		int offset;
+
+		/*
+		 * Number of submitted requests. Only accessed by the warming thread.
+		 */
+		long submitted;
+
+		/*
+		 * Lines and offsets by the sequence number of their first request.
+		 * Guarded by this, together with the fields below.
+		 */
+		private final TreeMap<Long, int[]> positions = new TreeMap<Long, int[]>();
+
+		/*
+		 * Completed requests by sequence number.
+		 */
+		private final BitSet completed = new BitSet();
+
+		/*
+		 * Sequence number of the first request that is not completed.
+		 */
+		private long first;
+
+		private long saved = System.nanoTime();
+
+		Progress(File file, String manifest) throws IOException {
+
+			this.file = file;
+			this.manifest = manifest;
+
+			if (file == null || !file.exists()) {
+				return;
+			}
+
+			Properties properties = new Properties();
+
+			InputStream in = new FileInputStream(file);
+
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+
+			// the progress of another manifest is ignored
+			if (manifest.equals(properties.getProperty("manifest"))) {
+				try {
+					line = Integer.parseInt(properties.getProperty("line"));
+					offset = Integer.parseInt(properties.getProperty("offset"));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid progress file " + file, e);
+				}
+			}
+
+		}
+
+		/*
+		 * Registers the start of the requests of a line.
+		 */
+		synchronized void begin(int line, int offset) {
+
+			positions.put(submitted, new int[] { line, offset });
+		}
+
+		synchronized void completed(long sequence) {
+
+			completed.set((int) sequence);
+
+			first = completed.nextClearBit((int) first);
+
+			if (System.nanoTime() - saved > TimeUnit.MILLISECONDS
+					.toNanos(SAVE_INTERVAL)) {
+				try {
+					save();
+				} catch (IOException e) {
+					// saving is retried after the next interval
+				}
+			}
+
+		}
+
+		/*
+		 * Saves the position, atomically replacing the file.
+		 */
+		synchronized void save() throws IOException {
+
+			saved = System.nanoTime();
+
+			if (file == null) {
+				return;
+			}
+
+			// the position of the first request that is not completed
+			Map.Entry<Long, int[]> position = positions.floorEntry(first);
+
+			if (position == null) {
+				return;
+			}
+
+			Properties properties = new Properties();
+			properties.setProperty("manifest", manifest);
+			properties.setProperty("line",
+					Integer.toString(position.getValue()[0]));
+			properties.setProperty("offset", Long.toString(position
+					.getValue()[1] + first - position.getKey()));
+
+			File temp = new File(file.getPath() + ".tmp");
+
+			OutputStream out = new FileOutputStream(temp);
+
+			try {
+				properties.store(out, "Cache warming progress");
+			} finally {
+				out.close();
+			}
+
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+
+			// positions before the current one are no longer needed
+			positions.headMap(position.getKey()).clear();
+
+		}
+
+	}
+
+}
@@ -0,0 +1,53 @@
+package tepisclient;
+
+/**
+ * Receives progress notifications from a {@link CohortScheduler}.
+ * <p>
+ * All methods are called from the thread that runs the scheduler.
+ *
+ */
+
+public interface CohortListener {
+
+	/**
+	 * Called when the processing of a slide starts.
+	 *
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param totalUnits
+	 *            Number of work units of the slide.
+	 */
+	void slideStarted(String imageID, int totalUnits);
+
+	/**
+	 * Called after each completed work unit of a slide.
+	 *
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param completedUnits
+	 *            Number of completed work units of the slide.
+	 * @param totalUnits
+	 *            Number of work units of the slide.
+	 */
+	void progress(String imageID, int completedUnits, int totalUnits);
+
+	/**
+	 * Called when all work units of a slide are completed.
+	 *
+	 * @param imageID
+	 *            ID of the digital slide.
+	 */
+	void slideCompleted(String imageID);
+
+	/**
+	 * Called when the work plan or a work unit of a slide fails. The
+	 * remaining work units of the slide are skipped.
+	 *
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param cause
+	 *            The failure.
+	 */
+	void slideFailed(String imageID, Throwable cause);
+
+}
@@ -0,0 +1,326 @@
+package tepisclient;
+
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Processes a cohort of digital slides over one shared pool of request slots.
+ * <p>
+ * Each slide is processed according to a {@link SlideWorkPlan}. A limited
+ * number of slides is processed at the same time and the work units of these
+ * slides are dispatched in round-robin order, so a slide with many work units
+ * does not delay the other slides: each active slide gets an equal share of
+ * the request slots. The total number of work units in flight is bounded by a
+ * global limit, which should be chosen so that the network link is saturated.
+ * The work units of a slide are created on the executor as well, counting
+ * towards the limit, so the dispatching for the other slides continues while
+ * a slide is prepared.
+ * <p>
+ * The progress of each slide is reported to a {@link CohortListener}. A
+ * failure of a slide does not affect the other slides.
+ *
+ */
+
+public class CohortScheduler {
+
+	/*
+	 * Executor on which the work units run.
+	 */
+	private final ExecutorService executor;
+
+	/*
+	 * Maximum number of work units in flight.
+	 */
+	private final int maxInFlight;
+
+	/*
+	 * Maximum number of slides with work units that are waiting for
+	 * dispatching.
+	 */
+	private final int maxActiveSlides;
+
+	/**
+	 * @param executor
+	 *            Executor on which the work units run. Should have at least
+	 *            maxInFlight threads.
+	 * @param maxInFlight
+	 *            Maximum number of work units in flight over all slides.
+	 * @param maxActiveSlides
+	 *            Maximum number of slides that are processed at the same time.
+	 */
+	public CohortScheduler(ExecutorService executor, int maxInFlight,
+			int maxActiveSlides) {
+
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.maxActiveSlides = maxActiveSlides;
+	}
+
+	/**
+	 * Processes a cohort of slides. The method returns when all slides are
+	 * completed or failed.
+	 *
+	 * @param imageIDs
+	 *            IDs of the digital slides.
+	 * @param plan
+	 *            The work plan for the slides.
+	 * @param listener
+	 *            Listener for the progress of the slides.
+	 * @throws InterruptedIOException
+	 *             If the calling thread is interrupted. The work units in
+	 *             flight are finished before the method returns.
+	 */
+	public void run(List<String> imageIDs, SlideWorkPlan plan,
+			CohortListener listener) throws InterruptedIOException {
+
+		Iterator<String> waitingSlides = imageIDs.iterator();
+
+		// slides with work units that are not dispatched yet, in round-robin
+		// order
+		LinkedList<SlideState> activeSlides = new LinkedList<SlideState>();
+
+		BlockingQueue<Completion> completions = new LinkedBlockingQueue<Completion>();
+
+		int inFlight = 0;
+
+		// slides whose work units are being created
+		int preparing = 0;
+
+		boolean interrupted = false;
+
+		while (true) {
+
+			// prepare new slides
+			while (!interrupted
+					&& activeSlides.size() + preparing < maxActiveSlides
+					&& inFlight < maxInFlight && waitingSlides.hasNext()) {
+
+				executor.execute(new PrepareTask(waitingSlides.next(), plan,
+						completions));
+
+				preparing++;
+				inFlight++;
+
+			}
+
+			// dispatch one work unit of the next slide
+			if (!interrupted && inFlight < maxInFlight
+					&& !activeSlides.isEmpty()) {
+
+				SlideState slide = activeSlides.removeFirst();
+
+				executor.execute(new WorkUnitTask(slide, slide.units.next(),
+						completions));
+
+				inFlight++;
+
+				if (slide.units.hasNext()) {
+					activeSlides.addLast(slide);
+				}
+
+				continue;
+			}
+
+			if (inFlight == 0) {
+				break;
+			}
+
+			// wait for a work unit to complete
+			Completion completion;
+
+			try {
+				completion = completions.take();
+			} catch (InterruptedException e) {
+				interrupted = true;
+				continue;
+			}
+
+			inFlight--;
+
+			if (completion.slide == null) {
+
+				preparing--;
+
+				if (interrupted) {
+					continue;
+				}
+
+				if (completion.failure != null) {
+					listener.slideFailed(completion.imageID, completion.failure);
+					continue;
+				}
+
+				SlideState slide = new SlideState(completion.imageID,
+						completion.units);
+
+				listener.slideStarted(slide.imageID, slide.totalUnits);
+
+				if (slide.totalUnits == 0) {
+					listener.slideCompleted(slide.imageID);
+				} else {
+					activeSlides.add(slide);
+				}
+
+				continue;
+			}
+
+			SlideState slide = completion.slide;
+
+			if (slide.failed) {
+				continue;
+			}
+
+			if (completion.failure != null) {
+				slide.failed = true;
+				activeSlides.remove(slide);
+				listener.slideFailed(slide.imageID, completion.failure);
+				continue;
+			}
+
+			slide.completedUnits++;
+
+			listener.progress(slide.imageID, slide.completedUnits,
+					slide.totalUnits);
+
+			if (slide.completedUnits == slide.totalUnits) {
+				listener.slideCompleted(slide.imageID);
+			}
+
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Cohort processing interrupted");
+		}
+
+	}
+
+	/*
+	 * Dispatching state of a slide. Only accessed from the scheduler thread.
+	 */
+	private static class SlideState {
+
+		final String imageID;
+		final Iterator<Callable<Void>> units;
+		final int totalUnits;
+
+		int completedUnits;
+		boolean failed;
+
+		SlideState(String imageID, List<Callable<Void>> units) {
+
+			this.imageID = imageID;
+			this.units = units.iterator();
+			this.totalUnits = units.size();
+		}
+
+	}
+
+	/*
+	 * Outcome of a work unit, or of the preparation of a slide if the slide
+	 * state is null.
+	 */
+	private static class Completion {
+
+		final SlideState slide;
+		final Throwable failure;
+
+		final String imageID;
+		final List<Callable<Void>> units;
+
+		Completion(SlideState slide, Throwable failure) {
+
+			this.slide = slide;
+			this.failure = failure;
+			this.imageID = slide.imageID;
+			this.units = null;
+		}
+
+		Completion(String imageID, List<Callable<Void>> units,
+				Throwable failure) {
+
+			this.slide = null;
+			this.failure = failure;
+			this.imageID = imageID;
+			this.units = units;
+		}
+
+	}
+
+	/*
+	 * Creates the work units of a slide and hands them over to the scheduler
+	 * thread.
+	 */
+	private static class PrepareTask implements Runnable {
+
+		private final String imageID;
+		private final SlideWorkPlan plan;
+		private final BlockingQueue<Completion> completions;
+
+		PrepareTask(String imageID, SlideWorkPlan plan,
+				BlockingQueue<Completion> completions) {
+
+			this.imageID = imageID;
+			this.plan = plan;
+			this.completions = completions;
+		}
+
+		@Override
+		public void run() {
+
+			List<Callable<Void>> units = null;
+			Throwable failure = null;
+
+			try {
+				units = plan.createWorkUnits(imageID);
+			} catch (Throwable e) {
+				failure = e;
+			}
+
+			completions.add(new Completion(imageID, units, failure));
+
+		}
+
+	}
+
+	/*
+	 * Runs a work unit and reports the outcome to the scheduler thread.
+	 */
+	private static class WorkUnitTask implements Runnable {
+
+		private final SlideState slide;
+		private final Callable<Void> unit;
+		private final BlockingQueue<Completion> completions;
+
+		WorkUnitTask(SlideState slide, Callable<Void> unit,
+				BlockingQueue<Completion> completions) {
+
+			this.slide = slide;
+			this.unit = unit;
+			this.completions = completions;
+		}
+
+		@Override
+		public void run() {
+
+			Throwable failure = null;
+
+			try {
+				unit.call();
+			} catch (Throwable e) {
+				failure = e;
+			}
+
+			completions.add(new Completion(slide, failure));
+
+		}
+
+	}
+
+}
@@ -0,0 +1,128 @@
+package tepisclient;
+
+import java.awt.Rectangle;
+
+/**
+ * Contains parameters specifying which pixels of an image are decoded.
+ * <p>
+ * Only the pixels in the source region are decoded, and of those only every
+ * n-th pixel in each direction if subsampling is used. The decoded image is
+ * thus smaller than the encoded image and the pixels that would be discarded
+ * after decoding are never stored.
+ *
+ */
+
+public class DecodeOptions {
+
+	/*
+	 * Region of the image that is decoded or null for the whole image.
+	 */
+	private final Rectangle sourceRegion;
+
+	/*
+	 * Subsampling factors, at least 1.
+	 */
+	private final int subsamplingX;
+	private final int subsamplingY;
+
+	/**
+	 * @param subsampling
+	 *            Subsampling factor in both directions.
+	 */
+	public DecodeOptions(int subsampling) {
+
+		this(null, subsampling, subsampling);
+	}
+
+	/**
+	 * @param sourceRegion
+	 *            Region of the image that is decoded or null for the whole
+	 *            image.
+	 * @param subsamplingX
+	 *            Horizontal subsampling factor.
+	 * @param subsamplingY
+	 *            Vertical subsampling factor.
+	 */
+	public DecodeOptions(Rectangle sourceRegion, int subsamplingX,
+			int subsamplingY) {
+
+		if (subsamplingX < 1 || subsamplingY < 1) {
+			throw new IllegalArgumentException(
+					"Subsampling must be a positive integer");
+		}
+
+		this.sourceRegion = sourceRegion != null ? new Rectangle(sourceRegion)
+				: null;
+		this.subsamplingX = subsamplingX;
+		this.subsamplingY = subsamplingY;
+	}
+
+	/**
+	 * Returns the options with the largest subsampling at which an image is
+	 * still at least as large as the target size.
+	 *
+	 * @param width
+	 *            Width of the image or of the source region.
+	 * @param height
+	 *            Height of the image or of the source region.
+	 * @param targetWidth
+	 *            Target width.
+	 * @param targetHeight
+	 *            Target height.
+	 * @return The decode options.
+	 */
+	public static DecodeOptions forTargetSize(double width, double height,
+			int targetWidth, int targetHeight) {
+
+		return new DecodeOptions(null, subsampling(width, targetWidth),
+				subsampling(height, targetHeight));
+	}
+
+	/**
+	 * Gets the value of the sourceRegion property.
+	 *
+	 * @return
+	 */
+	public Rectangle getSourceRegion() {
+
+		return sourceRegion != null ? new Rectangle(sourceRegion) : null;
+	}
+
+	/**
+	 * Gets the value of the subsamplingX property.
+	 *
+	 * @return
+	 */
+	public int getSubsamplingX() {
+
+		return subsamplingX;
+	}
+
+	/**
+	 * Gets the value of the subsamplingY property.
+	 *
+	 * @return
+	 */
+	public int getSubsamplingY() {
+
+		return subsamplingY;
+	}
+
+	@Override
+	public String toString() {
+
+		return "DecodeOptions [sourceRegion=" + sourceRegion
+				+ ", subsamplingX=" + subsamplingX + ", subsamplingY="
+				+ subsamplingY + "]";
+	}
+
+	/*
+	 * Largest subsampling at which the size is still at least the target
+	 * size.
+	 */
+	static int subsampling(double size, int targetSize) {
+
+		return Math.max(1, (int) Math.floor(size / targetSize));
+	}
+
+}
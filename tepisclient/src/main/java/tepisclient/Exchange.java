@@ -0,0 +1,428 @@
+package tepisclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.ProcessingException;
+
+/**
+ * A single HTTP exchange with the server that can be aborted from another
+ * thread.
+ * <p>
+ * The transport attaches the connection of the exchange to its request while
+ * the request runs on the calling thread. Aborting the exchange closes the
+ * connection, which unblocks the calling thread both while waiting for the
+ * response and while reading it. The connection is closed on a separate
+ * thread, because closing an {@link java.net.HttpURLConnection} waits until
+ * a read in progress returns, so aborting never blocks. The JDK HTTP client
+ * resets the stream, while {@link java.net.HttpURLConnection} may read the
+ * rest of a small response in its keep-alive cleaner before it closes the
+ * connection.
+ * <p>
+ * The exchange also holds the reservation of its response in the byte budget
+ * of the client, which is corrected when the response headers arrive. A
+ * reservation that is kept for a response delivered later is released when
+ * the response is retrieved or cancelled, or when its future is no longer
+ * referenced.
+ *
+ */
+
+class Exchange {
+
+	/*
+	 * Aborts the exchanges that exceed their total timeout.
+	 */
+	private static final ScheduledThreadPoolExecutor WATCHDOG = watchdog();
+
+	/*
+	 * Closes the connections of aborted exchanges.
+	 */
+	private static final ExecutorService CLOSER = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+
+					Thread thread = new Thread(r, "tepisclient-abort");
+					thread.setDaemon(true);
+					return thread;
+				}
+
+			});
+
+	/*
+	 * Reasons for aborting.
+	 */
+	private static final int ACTIVE = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	/*
+	 * Guarded by this, together with the connection.
+	 */
+	private int state = ACTIVE;
+
+	private Closeable connection;
+
+	private ScheduledFuture<?> deadline;
+
+	/*
+	 * Time at which the total timeout expires in nanoseconds or 0 if none.
+	 */
+	private long deadlineNanos;
+
+	/*
+	 * Byte budget in which the response is reserved and the number of
+	 * reserved bytes.
+	 */
+	private ByteBudget budget;
+
+	private long reservedBytes;
+
+	/*
+	 * Whether the reservation is released when the exchange ends or only by
+	 * release(), and whether it was released.
+	 */
+	private boolean releaseOnEnd = true;
+
+	private boolean released;
+
+	/**
+	 * Starts the exchange on the current thread.
+	 *
+	 * @param totalTimeout
+	 *            Total timeout in milliseconds or 0 if none.
+	 */
+	void begin(long totalTimeout) {
+
+		if (totalTimeout > 0) {
+
+			deadlineNanos = System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(totalTimeout);
+
+			ScheduledFuture<?> future = WATCHDOG.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+
+					abort(EXPIRED);
+				}
+
+			}, totalTimeout, TimeUnit.MILLISECONDS);
+
+			synchronized (this) {
+				deadline = future;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Ends the exchange on the current thread.
+	 */
+	void end() {
+
+		boolean release;
+
+		synchronized (this) {
+
+			if (deadline != null) {
+				deadline.cancel(false);
+			}
+
+			connection = null;
+			release = releaseOnEnd;
+
+		}
+
+		if (release) {
+			release();
+		}
+
+	}
+
+	/**
+	 * Reserves the expected size of the response in a byte budget, waiting at
+	 * most until the total timeout expires.
+	 *
+	 * @param budget
+	 *            The byte budget.
+	 * @param bytes
+	 *            Expected size of the response in bytes.
+	 */
+	void reserve(ByteBudget budget, long bytes) {
+
+		boolean acquired;
+
+		try {
+			acquired = budget.acquire(bytes, deadlineNanos == 0 ? 0 : clamp(0));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProcessingException("Request interrupted",
+					new InterruptedIOException("Request interrupted"));
+		}
+
+		if (!acquired) {
+			throw new ProcessingException("Request deadline exceeded",
+					new SocketTimeoutException("Request deadline exceeded"));
+		}
+
+		synchronized (this) {
+			if (!released) {
+				this.budget = budget;
+				reservedBytes = bytes;
+				return;
+			}
+		}
+
+		budget.release(bytes);
+
+	}
+
+	/**
+	 * Keeps the reservation of the response after the exchange ends, until
+	 * it is released with {@link #release()}. Used for responses that are
+	 * delivered later, for example by a future.
+	 */
+	synchronized void releaseOnDelivery() {
+
+		releaseOnEnd = false;
+	}
+
+	/**
+	 * Releases the reservation of the response. Later reservations of the
+	 * exchange are ignored.
+	 */
+	void release() {
+
+		ByteBudget budget;
+		long bytes;
+
+		synchronized (this) {
+			released = true;
+			budget = this.budget;
+			bytes = reservedBytes;
+			this.budget = null;
+			reservedBytes = 0;
+		}
+
+		if (budget != null) {
+			budget.release(bytes);
+		}
+
+	}
+
+	/**
+	 * Corrects the reservation to the actual size of the response. Never
+	 * blocks, so that responses that are larger than expected cannot
+	 * deadlock on the budget.
+	 *
+	 * @param bytes
+	 *            Size of the response in bytes.
+	 */
+	void resize(long bytes) {
+
+		ByteBudget budget;
+		long difference;
+
+		synchronized (this) {
+
+			if (this.budget == null) {
+				return;
+			}
+
+			budget = this.budget;
+			difference = bytes - reservedBytes;
+			reservedBytes = bytes;
+
+			// under the lock, so that a concurrent release sees the resized
+			// reservation
+			if (difference > 0) {
+				budget.force(difference);
+			} else {
+				budget.release(-difference);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Clamps a timeout to the time that remains until the total timeout
+	 * expires.
+	 *
+	 * @param timeout
+	 *            Timeout in milliseconds or 0 if none.
+	 * @return The clamped timeout, at least 1 millisecond if any of the
+	 *         timeouts is set.
+	 */
+	int clamp(int timeout) {
+
+		if (deadlineNanos == 0) {
+			return timeout;
+		}
+
+		long remaining = Math.max(1, TimeUnit.NANOSECONDS
+				.toMillis(deadlineNanos - System.nanoTime()));
+
+		return (int) (timeout > 0 ? Math.min(timeout, remaining) : Math.min(
+				Integer.MAX_VALUE, remaining));
+	}
+
+	/**
+	 * Aborts the exchange because it was cancelled.
+	 */
+	void cancel() {
+
+		abort(CANCELLED);
+	}
+
+	/**
+	 * Closes the connection of the exchange without aborting it, so that the
+	 * rest of the response is not read when the connection is released. The
+	 * connection is not reused.
+	 */
+	void discard() {
+
+		Closeable connection;
+
+		synchronized (this) {
+			connection = this.connection;
+		}
+
+		close(connection);
+
+	}
+
+	/**
+	 * Translates a failure of the request into a failure that reflects the
+	 * reason for aborting, if the exchange was aborted.
+	 *
+	 * @param e
+	 *            The failure of the request.
+	 * @return The translated failure.
+	 */
+	synchronized RuntimeException translate(RuntimeException e) {
+
+		switch (state) {
+		case CANCELLED:
+			return new ProcessingException("Request cancelled",
+					new InterruptedIOException("Request cancelled"));
+		case EXPIRED:
+			return new ProcessingException("Request deadline exceeded",
+					new SocketTimeoutException("Request deadline exceeded"));
+		default:
+			return e;
+		}
+
+	}
+
+	private void abort(int reason) {
+
+		Closeable connection;
+
+		synchronized (this) {
+
+			if (state != ACTIVE) {
+				return;
+			}
+
+			state = reason;
+			connection = this.connection;
+
+		}
+
+		if (connection != null) {
+
+			final Closeable aborted = connection;
+
+			CLOSER.execute(new Runnable() {
+
+				@Override
+				public void run() {
+
+					close(aborted);
+				}
+
+			});
+
+		}
+
+	}
+
+	/*
+	 * Creates the watchdog. The deadlines of exchanges that end in time are
+	 * removed when they are cancelled, so that long total timeouts do not
+	 * accumulate in its queue.
+	 */
+	private static ScheduledThreadPoolExecutor watchdog() {
+
+		ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(
+				1, new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+
+						Thread thread = new Thread(r, "tepisclient-watchdog");
+						thread.setDaemon(true);
+						return thread;
+					}
+
+				});
+
+		watchdog.setRemoveOnCancelPolicy(true);
+
+		return watchdog;
+	}
+
+	private static void close(Closeable connection) {
+
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// the connection is unusable either way
+			}
+		}
+
+	}
+
+	/**
+	 * Attaches the connection of the exchange, which is closed when the
+	 * exchange is aborted.
+	 *
+	 * @param connection
+	 *            The connection.
+	 * @throws IOException
+	 *             If the exchange is already aborted.
+	 */
+	void attach(Closeable connection) throws IOException {
+
+		int reason;
+
+		synchronized (this) {
+
+			if (state == ACTIVE) {
+				this.connection = connection;
+				return;
+			}
+
+			reason = state;
+
+		}
+
+		throw reason == CANCELLED ? new InterruptedIOException(
+				"Request cancelled") : new SocketTimeoutException(
+				"Request deadline exceeded");
+	}
+
+}
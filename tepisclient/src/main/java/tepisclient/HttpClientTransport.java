@@ -0,0 +1,170 @@
+package tepisclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Transport over the HTTP client of the JDK ({@link HttpClient}).
+ * <p>
+ * The HTTP client multiplexes the requests over a small pool of connections
+ * and does not need the JAX-RS runtime. The session cookie is managed by a
+ * {@link CookieManager}.
+ * <p>
+ * The HTTP client has no per-request connect timeout and no timeout between
+ * reads of the body. The connect and read timeouts of a request therefore
+ * bound the wait for the response headers together, and the reading of the
+ * body is bounded by the total timeout of the request.
+ *
+ */
+
+public class HttpClientTransport implements Transport {
+
+	private final HttpClient client;
+
+	/*
+	 * URI of the server with a trailing slash.
+	 */
+	private final String uri;
+
+	/**
+	 * @param tepisUri
+	 *            URI of the tEPIS image management and storage (IMS) server.
+	 */
+	public HttpClientTransport(String tepisUri) {
+
+		this(tepisUri, HttpClient.newBuilder()
+				.cookieHandler(new CookieManager())
+				.followRedirects(HttpClient.Redirect.NORMAL).build());
+	}
+
+	/**
+	 * @param tepisUri
+	 *            URI of the tEPIS image management and storage (IMS) server.
+	 * @param client
+	 *            The HTTP client, for example with a specific executor,
+	 *            protocol version or proxy. Should have a cookie handler for
+	 *            authentication.
+	 */
+	public HttpClientTransport(String tepisUri, HttpClient client) {
+
+		this.client = client;
+
+		uri = tepisUri.endsWith("/") ? tepisUri : tepisUri + "/";
+	}
+
+	@Override
+	public TransportResponse get(TransportRequest request) throws IOException {
+
+		return send(request, builder(request).GET().build());
+	}
+
+	@Override
+	public TransportResponse post(TransportRequest request,
+			Map<String, String> form) throws IOException {
+
+		StringBuilder body = new StringBuilder();
+
+		for (Map.Entry<String, String> param : form.entrySet()) {
+			if (body.length() > 0) {
+				body.append('&');
+			}
+			body.append(URLEncoder.encode(param.getKey(), StandardCharsets.UTF_8))
+					.append('=')
+					.append(URLEncoder.encode(param.getValue(),
+							StandardCharsets.UTF_8));
+		}
+
+		return send(
+				request,
+				builder(request)
+						.header("Content-Type",
+								"application/x-www-form-urlencoded")
+						.POST(HttpRequest.BodyPublishers.ofString(body
+								.toString())).build());
+	}
+
+	private HttpRequest.Builder builder(TransportRequest request) {
+
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(uri
+				+ request.getPathAndQuery()));
+
+		for (Map.Entry<String, String> header : request.getHeaders()
+				.entrySet()) {
+			builder.header(header.getKey(), header.getValue());
+		}
+
+		long timeout = (long) request.getConnectTimeout()
+				+ request.getReadTimeout();
+
+		if (timeout > 0) {
+			builder.timeout(Duration.ofMillis(timeout));
+		}
+
+		return builder;
+	}
+
+	private TransportResponse send(TransportRequest request,
+			HttpRequest httpRequest) throws IOException {
+
+		final CompletableFuture<HttpResponse<InputStream>> future = client
+				.sendAsync(httpRequest,
+						HttpResponse.BodyHandlers.ofInputStream());
+
+		try {
+
+			// aborting cancels the exchange while waiting for the response
+			// and closes the body while reading it
+			request.attach(new Closeable() {
+
+				@Override
+				public void close() throws IOException {
+
+					future.cancel(true);
+
+					if (future.isDone() && !future.isCompletedExceptionally()) {
+						future.join().body().close();
+					}
+
+				}
+
+			});
+
+		} catch (IOException e) {
+			future.cancel(true);
+			throw e;
+		}
+
+		HttpResponse<InputStream> response;
+
+		try {
+			response = future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Request interrupted");
+		} catch (CancellationException e) {
+			throw new IOException("Request aborted", e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e
+					.getCause() : new IOException(e.getCause());
+		}
+
+		return new TransportResponse(response.statusCode(), response
+				.headers().map(), response.body());
+	}
+
+}
@@ -0,0 +1,151 @@
+package tepisclient;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes image data returned by the server.
+ *
+ */
+
+public class ImageDecoder {
+
+	private ImageDecoder() {
+	}
+
+	/**
+	 * Decodes image data in one of the formats supported by {@link ImageIO}.
+	 *
+	 * @param data
+	 *            The encoded image data.
+	 * @return The decoded image.
+	 * @throws IOException
+	 *             If the data cannot be decoded.
+	 * @see decode(byte[] data, DecodeOptions options)
+	 */
+	public static BufferedImage decode(byte[] data) throws IOException {
+
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+
+		if (image == null) {
+			throw new IOException("Unsupported image format");
+		}
+
+		return image;
+	}
+
+	/**
+	 * Decodes only a region of image data, optionally subsampled.
+	 *
+	 * @param data
+	 *            The encoded image data.
+	 * @param options
+	 *            Parameter object specifying the decoded region and
+	 *            subsampling.
+	 * @return The decoded image.
+	 * @throws IOException
+	 *             If the data cannot be decoded.
+	 * @see decode(byte[] data)
+	 */
+	public static BufferedImage decode(byte[] data, DecodeOptions options)
+			throws IOException {
+
+		ImageReader reader = createReader(data);
+
+		try {
+			return read(reader, options);
+		} finally {
+			dispose(reader);
+		}
+
+	}
+
+	/**
+	 * Decodes image data with the largest subsampling at which the image,
+	 * scaled to fit into a rectangle with preserved aspect ratio, is not
+	 * upscaled. Use this method to decode images that are downscaled to fit,
+	 * for example thumbnails.
+	 *
+	 * @param data
+	 *            The encoded image data.
+	 * @param width
+	 *            Width of the rectangle.
+	 * @param height
+	 *            Height of the rectangle.
+	 * @return The decoded image, at least as large as the image scaled to
+	 *         fit.
+	 * @throws IOException
+	 *             If the data cannot be decoded.
+	 */
+	public static BufferedImage decodeToFit(byte[] data, int width, int height)
+			throws IOException {
+
+		ImageReader reader = createReader(data);
+
+		try {
+
+			// the fitted image is downscaled by the larger of the two ratios
+			double scale = Math.max((double) reader.getWidth(0) / width,
+					(double) reader.getHeight(0) / height);
+
+			int subsampling = Math.max(1, (int) Math.floor(scale));
+
+			return read(reader, new DecodeOptions(subsampling));
+
+		} finally {
+			dispose(reader);
+		}
+
+	}
+
+	private static ImageReader createReader(byte[] data) throws IOException {
+
+		ImageInputStream in = ImageIO
+				.createImageInputStream(new ByteArrayInputStream(data));
+
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+
+		if (!readers.hasNext()) {
+			in.close();
+			throw new IOException("Unsupported image format");
+		}
+
+		ImageReader reader = readers.next();
+		reader.setInput(in, true, true);
+
+		return reader;
+	}
+
+	private static BufferedImage read(ImageReader reader, DecodeOptions options)
+			throws IOException {
+
+		ImageReadParam param = reader.getDefaultReadParam();
+
+		if (options.getSourceRegion() != null) {
+			param.setSourceRegion(options.getSourceRegion());
+		}
+
+		param.setSourceSubsampling(options.getSubsamplingX(),
+				options.getSubsamplingY(), 0, 0);
+
+		return reader.read(0, param);
+	}
+
+	private static void dispose(ImageReader reader) throws IOException {
+
+		try {
+			((ImageInputStream) reader.getInput()).close();
+		} finally {
+			reader.dispose();
+		}
+
+	}
+
+}
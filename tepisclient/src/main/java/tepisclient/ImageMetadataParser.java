@@ -0,0 +1,79 @@
+package tepisclient;
+
+import java.io.InputStream;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Parser of the image metadata returned by the server, which unmarshals the
+ * whole metadata with JAXB.
+ * <p>
+ * JAXB is only loaded when this class is first used, so that the client can
+ * run without the JAXB runtime as long as only the pixel metadata is read.
+ *
+ * @see PixelMetadataParser
+ */
+
+class ImageMetadataParser {
+
+	/*
+	 * Parses the XML without resolving external entities.
+	 */
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory
+			.newInstance();
+
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		INPUT_FACTORY.setProperty(
+				XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/*
+	 * Created on first use because it is expensive. JAXB contexts are thread
+	 * safe.
+	 */
+	private static JAXBContext context;
+
+	private ImageMetadataParser() {
+
+	}
+
+	/**
+	 * Parses image metadata.
+	 *
+	 * @param in
+	 *            Stream with image metadata in XML format. The stream is not
+	 *            closed.
+	 * @return The image metadata.
+	 * @throws XMLStreamException
+	 *             If the XML is malformed or cannot be unmarshalled.
+	 */
+	static ImageMetadata parse(InputStream in) throws XMLStreamException {
+
+		XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+
+		try {
+			return getContext().createUnmarshaller()
+					.unmarshal(reader, ImageMetadata.class).getValue();
+		} catch (JAXBException e) {
+			throw new XMLStreamException(e);
+		} finally {
+			reader.close();
+		}
+
+	}
+
+	private static synchronized JAXBContext getContext() throws JAXBException {
+
+		if (context == null) {
+			context = JAXBContext.newInstance(ImageMetadata.class);
+		}
+
+		return context;
+	}
+
+}
@@ -142,6 +142,47 @@ public class ImageRegionParam {
 				level, this.unit);
 	}
 
+	/**
+	 * Returns parameters for the same area of the slide located at another
+	 * level.
+	 * <p>
+	 * Unlike {@link #nextLevel()} and {@link #prevLevel()}, the coordinates
+	 * and the size of the region are rescaled with the downsampling factors
+	 * of the two levels. The coordinates must be in pixels. If the level is
+	 * not specified, the first level is assumed. Coordinates and sizes that
+	 * are not specified remain unspecified, so the server applies its
+	 * defaults at the new level.
+	 *
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param level
+	 *            Level of the new region.
+	 * @return Parameters for the new region.
+	 */
+	public ImageRegionParam toLevel(SlideGeometry geometry, int level) {
+
+		if (this.unit != null && this.unit != Unit.PIXEL) {
+			throw new IllegalStateException(
+					"Only regions in pixel units can be rescaled");
+		}
+
+		int currentLevel = this.level != null ? this.level : 0;
+
+		float scaleX = (float) (geometry.getDownsamplingX(currentLevel) / geometry
+				.getDownsamplingX(level));
+		float scaleY = (float) (geometry.getDownsamplingY(currentLevel) / geometry
+				.getDownsamplingY(level));
+
+		return new ImageRegionParam(scale(this.x, scaleX), scale(this.y,
+				scaleY), scale(this.width, scaleX), scale(this.height, scaleY),
+				level, this.unit);
+	}
+
+	private static Float scale(Float value, float scale) {
+
+		return value != null ? value * scale : null;
+	}
+
 	/**
 	 * Returns parameters for a region located above the current one from the
 	 * current one.
@@ -0,0 +1,205 @@
+package tepisclient;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Resampling of decoded images.
+ *
+ */
+
+public class ImageResampler {
+
+	private ImageResampler() {
+	}
+
+	/**
+	 * Downscales an image by area averaging.
+	 *
+	 * @param image
+	 *            The source image.
+	 * @param width
+	 *            Width of the downscaled image.
+	 * @param height
+	 *            Height of the downscaled image.
+	 * @return The downscaled image.
+	 * @see areaAverage(BufferedImage image, double x, double y, double width,
+	 *      double height, int targetWidth, int targetHeight)
+	 */
+	public static BufferedImage areaAverage(BufferedImage image, int width,
+			int height) {
+
+		return areaAverage(image, 0, 0, image.getWidth(), image.getHeight(),
+				width, height);
+	}
+
+	/**
+	 * Downscales a rectangular region of an image by area averaging.
+	 * <p>
+	 * Each target pixel is the average of the source pixels it covers,
+	 * weighted by the covered fraction of the source pixels, so the region
+	 * can have fractional coordinates. The averaging is separable and is done
+	 * on the packed RGB values of the image.
+	 *
+	 * @param image
+	 *            The source image.
+	 * @param x
+	 *            Horizontal coordinate of the top-left corner of the region.
+	 * @param y
+	 *            Vertical coordinate of the top-left corner of the region.
+	 * @param width
+	 *            Width of the region.
+	 * @param height
+	 *            Height of the region.
+	 * @param targetWidth
+	 *            Width of the downscaled image.
+	 * @param targetHeight
+	 *            Height of the downscaled image.
+	 * @return The downscaled image.
+	 */
+	public static BufferedImage areaAverage(BufferedImage image, double x,
+			double y, double width, double height, int targetWidth,
+			int targetHeight) {
+
+		int sourceWidth = image.getWidth();
+		int sourceHeight = image.getHeight();
+
+		int[] source = image.getRGB(0, 0, sourceWidth, sourceHeight, null, 0,
+				sourceWidth);
+
+		Weights columns = new Weights(x, width, targetWidth, sourceWidth);
+		Weights rows = new Weights(y, height, targetHeight, sourceHeight);
+
+		// horizontal pass over the rows that are used by the vertical pass
+		int firstRow = rows.first[0];
+		int lastRow = rows.first[targetHeight - 1]
+				+ rows.weight[targetHeight - 1].length;
+
+		float[] horizontal = new float[(lastRow - firstRow) * targetWidth * 3];
+
+		for (int row = firstRow; row < lastRow; row++) {
+
+			int sourceBase = row * sourceWidth;
+			int base = (row - firstRow) * targetWidth * 3;
+
+			for (int col = 0; col < targetWidth; col++) {
+
+				float r = 0, g = 0, b = 0;
+
+				float[] weight = columns.weight[col];
+				int first = columns.first[col];
+
+				for (int k = 0; k < weight.length; k++) {
+
+					int rgb = source[sourceBase + first + k];
+
+					r += weight[k] * ((rgb >> 16) & 0xFF);
+					g += weight[k] * ((rgb >> 8) & 0xFF);
+					b += weight[k] * (rgb & 0xFF);
+
+				}
+
+				horizontal[base + 3 * col] = r;
+				horizontal[base + 3 * col + 1] = g;
+				horizontal[base + 3 * col + 2] = b;
+
+			}
+		}
+
+		// vertical pass
+		int[] target = new int[targetWidth * targetHeight];
+
+		for (int row = 0; row < targetHeight; row++) {
+
+			float[] weight = rows.weight[row];
+			int first = rows.first[row] - firstRow;
+
+			for (int col = 0; col < targetWidth; col++) {
+
+				float r = 0, g = 0, b = 0;
+
+				for (int k = 0; k < weight.length; k++) {
+
+					int index = ((first + k) * targetWidth + col) * 3;
+
+					r += weight[k] * horizontal[index];
+					g += weight[k] * horizontal[index + 1];
+					b += weight[k] * horizontal[index + 2];
+
+				}
+
+				target[row * targetWidth + col] = (clamp(r) << 16)
+						| (clamp(g) << 8) | clamp(b);
+
+			}
+		}
+
+		BufferedImage scaled = new BufferedImage(targetWidth, targetHeight,
+				BufferedImage.TYPE_INT_RGB);
+		scaled.setRGB(0, 0, targetWidth, targetHeight, target, 0, targetWidth);
+
+		return scaled;
+	}
+
+	private static int clamp(float value) {
+
+		int rounded = Math.round(value);
+
+		return rounded < 0 ? 0 : (rounded > 255 ? 255 : rounded);
+	}
+
+	/*
+	 * Normalized weights of the source pixels covered by each target pixel
+	 * along one dimension.
+	 */
+	private static class Weights {
+
+		final int[] first;
+		final float[][] weight;
+
+		Weights(double start, double length, int targetLength, int sourceLength) {
+
+			first = new int[targetLength];
+			weight = new float[targetLength][];
+
+			double scale = length / targetLength;
+
+			for (int i = 0; i < targetLength; i++) {
+
+				double from = start + i * scale;
+				double to = from + scale;
+
+				int lo = Math.max(0, (int) Math.floor(from));
+				int hi = Math.min(sourceLength, (int) Math.ceil(to));
+
+				if (hi <= lo) {
+					// the region is outside of the image: use the nearest pixel
+					lo = Math.min(Math.max(lo, 0), sourceLength - 1);
+					hi = lo + 1;
+				}
+
+				first[i] = lo;
+				weight[i] = new float[hi - lo];
+
+				double sum = 0;
+
+				for (int k = lo; k < hi; k++) {
+
+					double covered = Math.min(to, k + 1) - Math.max(from, k);
+
+					weight[i][k - lo] = (float) Math.max(covered, 0);
+					sum += weight[i][k - lo];
+
+				}
+
+				for (int k = 0; k < weight[i].length; k++) {
+					weight[i][k] = sum > 0 ? (float) (weight[i][k] / sum)
+							: 1.0f / weight[i].length;
+				}
+
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,166 @@
+package tepisclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.HttpUrlConnectorProvider;
+
+/**
+ * Transport over the Jersey Client API with the HTTP URL connector.
+ * <p>
+ * The session cookie is managed by an {@link AuthenticationFilter}. This is
+ * the default transport of {@link TepisClient}.
+ *
+ */
+
+public class JerseyTransport implements Transport {
+
+	/*
+	 * Request that runs on the current thread, to which the connections are
+	 * attached.
+	 */
+	private static final ThreadLocal<TransportRequest> CURRENT = new ThreadLocal<TransportRequest>();
+
+	private final Client client;
+
+	/*
+	 * URI of the server with a trailing slash.
+	 */
+	private final String uri;
+
+	/**
+	 * @param tepisUri
+	 *            URI of the tEPIS image management and storage (IMS) server.
+	 */
+	public JerseyTransport(String tepisUri) {
+
+		// the connection factory allows aborting of requests
+		ClientConfig config = new ClientConfig()
+				.connectorProvider(new HttpUrlConnectorProvider()
+						.connectionFactory(new ConnectionFactory()));
+
+		client = ClientBuilder.newClient(config).register(
+				new AuthenticationFilter());
+
+		uri = tepisUri.endsWith("/") ? tepisUri : tepisUri + "/";
+	}
+
+	@Override
+	public TransportResponse get(TransportRequest request) throws IOException {
+
+		return invoke(request, null);
+	}
+
+	@Override
+	public TransportResponse post(TransportRequest request,
+			Map<String, String> form) throws IOException {
+
+		Form entity = new Form();
+
+		for (Map.Entry<String, String> param : form.entrySet()) {
+			entity.param(param.getKey(), param.getValue());
+		}
+
+		return invoke(request, Entity.entity(entity,
+				MediaType.APPLICATION_FORM_URLENCODED_TYPE));
+	}
+
+	private TransportResponse invoke(TransportRequest request,
+			Entity<Form> entity) throws IOException {
+
+		Invocation.Builder builder = client.target(
+				URI.create(uri + request.getPathAndQuery())).request();
+
+		for (Map.Entry<String, String> header : request.getHeaders()
+				.entrySet()) {
+			builder.header(header.getKey(), header.getValue());
+		}
+
+		builder.property(ClientProperties.CONNECT_TIMEOUT,
+				request.getConnectTimeout());
+		builder.property(ClientProperties.READ_TIMEOUT,
+				request.getReadTimeout());
+
+		CURRENT.set(request);
+
+		Response response;
+
+		try {
+			response = entity != null ? builder.post(entity) : builder.get();
+		} catch (ProcessingException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e
+					.getCause() : new IOException(e);
+		} finally {
+			CURRENT.remove();
+		}
+
+		Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+
+		for (Map.Entry<String, List<String>> header : response
+				.getStringHeaders().entrySet()) {
+			headers.put(header.getKey(),
+					new ArrayList<String>(header.getValue()));
+		}
+
+		InputStream body = response.hasEntity() ? response
+				.readEntity(InputStream.class) : null;
+
+		if (body == null) {
+			response.close();
+		}
+
+		return new TransportResponse(response.getStatus(), headers, body);
+	}
+
+	/**
+	 * Connection factory for the HTTP URL connector that attaches the
+	 * connections to the request of the current thread.
+	 */
+	private static class ConnectionFactory implements
+			HttpUrlConnectorProvider.ConnectionFactory {
+
+		@Override
+		public HttpURLConnection getConnection(URL url) throws IOException {
+
+			final HttpURLConnection connection = (HttpURLConnection) url
+					.openConnection();
+
+			TransportRequest request = CURRENT.get();
+
+			if (request != null) {
+				request.attach(new Closeable() {
+
+					@Override
+					public void close() {
+
+						connection.disconnect();
+					}
+
+				});
+			}
+
+			return connection;
+		}
+
+	}
+
+}
@@ -0,0 +1,195 @@
+package tepisclient;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming parser that extracts only the pixel metadata from the image
+ * metadata returned by the server.
+ * <p>
+ * The sections preceding the PixelMetadata element are skipped and parsing
+ * stops as soon as the PixelMetadata element ends. The rest of the stream is
+ * not parsed; the caller decides whether to skip it or to close the
+ * connection. The element is bound with the XML streaming API of the JDK
+ * rather than JAXB, so that the pixel metadata can be read without the JAXB
+ * runtime, with the same result as {@link ImageMetadataParser}. Unknown
+ * elements are skipped.
+ *
+ */
+
+class PixelMetadataParser {
+
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory
+			.newInstance();
+
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		INPUT_FACTORY.setProperty(
+				XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private PixelMetadataParser() {
+
+	}
+
+	/**
+	 * Parses the pixel metadata from a stream with image metadata.
+	 *
+	 * @param in
+	 *            Stream with image metadata in XML format. The stream is not
+	 *            closed.
+	 * @return The pixel metadata.
+	 * @throws XMLStreamException
+	 *             If the XML is malformed, has no PixelMetadata element or a
+	 *             value has the wrong type.
+	 */
+	static ImageMetadata.PixelMetadata parse(InputStream in)
+			throws XMLStreamException {
+
+		XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+
+		try {
+
+			while (reader.hasNext()) {
+
+				if (reader.next() == XMLStreamConstants.START_ELEMENT
+						&& "PixelMetadata".equals(reader.getLocalName())) {
+					return parsePixelMetadata(reader);
+				}
+
+			}
+
+			throw new XMLStreamException("No PixelMetadata element");
+
+		} catch (NumberFormatException e) {
+			throw new XMLStreamException("Invalid value at "
+					+ reader.getLocation(), e);
+		} finally {
+			reader.close();
+		}
+
+	}
+
+	private static ImageMetadata.PixelMetadata parsePixelMetadata(
+			XMLStreamReader reader) throws XMLStreamException {
+
+		ImageMetadata.PixelMetadata metadata = new ImageMetadata.PixelMetadata();
+
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+
+			String name = reader.getLocalName();
+
+			if ("NumberOfLevels".equals(name)) {
+				metadata.setNumberOfLevels(Integer.parseInt(text(reader)));
+			} else if ("Levels".equals(name)) {
+				metadata.setLevels(parseLevels(reader));
+			} else {
+				skip(reader);
+			}
+
+		}
+
+		return metadata;
+	}
+
+	private static ImageMetadata.PixelMetadata.Levels parseLevels(
+			XMLStreamReader reader) throws XMLStreamException {
+
+		ImageMetadata.PixelMetadata.Levels levels = new ImageMetadata.PixelMetadata.Levels();
+
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+
+			if ("PixelLevelMetadata".equals(reader.getLocalName())) {
+				levels.getPixelLevelMetadata().add(parseLevel(reader));
+			} else {
+				skip(reader);
+			}
+
+		}
+
+		return levels;
+	}
+
+	private static ImageMetadata.PixelMetadata.Levels.PixelLevelMetadata parseLevel(
+			XMLStreamReader reader) throws XMLStreamException {
+
+		ImageMetadata.PixelMetadata.Levels.PixelLevelMetadata level = new ImageMetadata.PixelMetadata.Levels.PixelLevelMetadata();
+
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+
+			String name = reader.getLocalName();
+
+			if ("Level".equals(name)) {
+				level.setLevel(Integer.parseInt(text(reader)));
+			} else if ("PixelSize".equals(name)) {
+				level.setPixelSize(reader.getElementText());
+			} else if ("PhysicalOrigin".equals(name)) {
+				level.setPhysicalOrigin(reader.getElementText());
+			} else if ("PhysicalSpacing".equals(name)) {
+				level.setPhysicalSpacing(reader.getElementText());
+			} else if ("ScanFactor".equals(name)) {
+				level.setScanFactor(Double.parseDouble(text(reader)));
+			} else if ("IsNativeLevel".equals(name)) {
+				level.setIsNativeLevel(parseBoolean(text(reader)));
+			} else if ("IsLossyCompressed".equals(name)) {
+				level.setIsLossyCompressed(parseBoolean(text(reader)));
+			} else if ("TileSize".equals(name)) {
+				level.setTileSize(reader.getElementText());
+			} else {
+				skip(reader);
+			}
+
+		}
+
+		return level;
+	}
+
+	/*
+	 * Text of a simple element, trimmed as by JAXB for numbers and booleans.
+	 */
+	private static String text(XMLStreamReader reader)
+			throws XMLStreamException {
+
+		return reader.getElementText().trim();
+	}
+
+	/*
+	 * Parses an XML schema boolean.
+	 */
+	private static boolean parseBoolean(String value) {
+
+		if ("true".equals(value) || "1".equals(value)) {
+			return true;
+		} else if ("false".equals(value) || "0".equals(value)) {
+			return false;
+		}
+
+		throw new NumberFormatException("Not a boolean: " + value);
+	}
+
+	/*
+	 * Skips the current element, including its content.
+	 */
+	private static void skip(XMLStreamReader reader) throws XMLStreamException {
+
+		int depth = 1;
+
+		while (depth > 0) {
+
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,59 @@
+package tepisclient;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Receives the image data of a progressive read of a
+ * {@link ProgressiveRegionReader}.
+ * <p>
+ * The methods are called from the threads of the executor of the reader, or
+ * from a thread of the client when a request fails, without holding a lock.
+ * Calls to {@link #regionAvailable(int, int, BufferedImage)} can be
+ * concurrent, and parts can be drawn into the image passed to
+ * {@link #previewAvailable(BufferedImage)} while the method runs.
+ *
+ */
+
+public interface ProgressiveReadListener {
+
+	/**
+	 * Called when the low resolution preview of the region is available.
+	 * Not called if the region is read directly from the smallest level.
+	 *
+	 * @param image
+	 *            The preview upscaled to the size of the region.
+	 */
+	void previewAvailable(BufferedImage image);
+
+	/**
+	 * Called when a part of the region is available at full resolution.
+	 *
+	 * @param x
+	 *            Horizontal coordinate of the part relative to the top-left
+	 *            corner of the region.
+	 * @param y
+	 *            Vertical coordinate of the part relative to the top-left
+	 *            corner of the region.
+	 * @param image
+	 *            Image data of the part.
+	 */
+	void regionAvailable(int x, int y, BufferedImage image);
+
+	/**
+	 * Called when the whole region is available at full resolution.
+	 *
+	 * @param image
+	 *            Image data of the region.
+	 */
+	void completed(BufferedImage image);
+
+	/**
+	 * Called when reading of the region fails. No further methods are
+	 * called.
+	 *
+	 * @param cause
+	 *            The failure.
+	 */
+	void failed(Throwable cause);
+
+}
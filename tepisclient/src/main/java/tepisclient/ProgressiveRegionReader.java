@@ -0,0 +1,606 @@
+package tepisclient;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Reads regions of a digital slide progressively, from coarse to fine.
+ * <p>
+ * A low resolution version of the region is first read from a smaller level,
+ * upscaled to the size of the region and delivered as a preview. The region
+ * is then read at full resolution in tile aligned parts, which are delivered
+ * as they arrive. This reduces the time until the first image data can be
+ * displayed, for example when panning or zooming in a viewer.
+ * <p>
+ * The preview and all parts are requested at once, so the executor and the
+ * byte budget of the client limit the requests in flight. The image data is
+ * decoded and drawn on the executor of the reader when it arrives, so no
+ * thread of the executor waits for a response.
+ *
+ */
+
+public class ProgressiveRegionReader {
+
+	/**
+	 * Default maximum number of pixels of the preview before upscaling.
+	 */
+	public static final int DEFAULT_MAX_PREVIEW_PIXELS = 256 * 256;
+
+	private final TepisClient client;
+
+	private final String imageID;
+
+	private final SlideGeometry geometry;
+
+	/*
+	 * Executor on which the preview and the parts are decoded and drawn.
+	 */
+	private final ExecutorService executor;
+
+	private final int maxPreviewPixels;
+
+	/*
+	 * Policy that chooses the image quality of the previews or null if the
+	 * previews are read like the parts.
+	 */
+	private final AdaptiveFormatPolicy policy;
+
+	/**
+	 * @param client
+	 *            Client used to read the image data.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param executor
+	 *            Executor on which the image data is decoded.
+	 */
+	public ProgressiveRegionReader(TepisClient client, String imageID,
+			SlideGeometry geometry, ExecutorService executor) {
+
+		this(client, imageID, geometry, executor, DEFAULT_MAX_PREVIEW_PIXELS);
+	}
+
+	/**
+	 * @param client
+	 *            Client used to read the image data.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param executor
+	 *            Executor on which the image data is decoded.
+	 * @param maxPreviewPixels
+	 *            Maximum number of pixels of the preview before upscaling. The
+	 *            preview is read from the largest level at which the region
+	 *            does not have more pixels.
+	 */
+	public ProgressiveRegionReader(TepisClient client, String imageID,
+			SlideGeometry geometry, ExecutorService executor,
+			int maxPreviewPixels) {
+
+		this(client, imageID, geometry, executor, maxPreviewPixels, null);
+	}
+
+	/**
+	 * @param client
+	 *            Client used to read the image data.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param executor
+	 *            Executor on which the image data is decoded.
+	 * @param maxPreviewPixels
+	 *            Maximum number of pixels of the preview before upscaling. The
+	 *            preview is read from the largest level at which the region
+	 *            does not have more pixels.
+	 * @param policy
+	 *            Policy that chooses the image format and quality of the
+	 *            previews, which are read as preview reads. The parts are read
+	 *            with the image format and quality passed to the read methods.
+	 */
+	public ProgressiveRegionReader(TepisClient client, String imageID,
+			SlideGeometry geometry, ExecutorService executor,
+			int maxPreviewPixels, AdaptiveFormatPolicy policy) {
+
+		this.client = client;
+		this.imageID = imageID;
+		this.geometry = geometry;
+		this.executor = executor;
+		this.maxPreviewPixels = maxPreviewPixels;
+		this.policy = policy;
+	}
+
+	/**
+	 * Selects the level from which the preview of a region is read.
+	 *
+	 * @param level
+	 *            Level of the region.
+	 * @param width
+	 *            Width of the region in pixels of the level.
+	 * @param height
+	 *            Height of the region in pixels of the level.
+	 * @return The preview level or -1 if the region should be read without a
+	 *         preview.
+	 */
+	public int selectPreviewLevel(int level, int width, int height) {
+
+		for (int previewLevel = level + 1; previewLevel < geometry
+				.getNumberOfLevels(); previewLevel++) {
+
+			double scaleX = geometry.getDownsamplingX(level)
+					/ geometry.getDownsamplingX(previewLevel);
+			double scaleY = geometry.getDownsamplingY(level)
+					/ geometry.getDownsamplingY(previewLevel);
+
+			if (width * scaleX * height * scaleY <= maxPreviewPixels
+					|| previewLevel == geometry.getNumberOfLevels() - 1) {
+				return previewLevel;
+			}
+
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Starts a progressive read of a region in the default image format and
+	 * quality of the server.
+	 *
+	 * @param level
+	 *            Level of the region.
+	 * @param x
+	 *            Horizontal coordinate of the top-left corner of the region in
+	 *            pixels of the level.
+	 * @param y
+	 *            Vertical coordinate of the top-left corner of the region in
+	 *            pixels of the level.
+	 * @param width
+	 *            Width of the region in pixels.
+	 * @param height
+	 *            Height of the region in pixels.
+	 * @param listener
+	 *            Listener that receives the image data.
+	 * @return Future for the full resolution image data of the region.
+	 *         Cancelling the future aborts the requests in flight and stops
+	 *         the delivery of the remaining image data.
+	 * @see read(int level, int x, int y, int width, int height,
+	 *      ImageFormatParam ifp, ProgressiveReadListener listener)
+	 */
+	public Future<BufferedImage> read(int level, int x, int y, int width,
+			int height, ProgressiveReadListener listener) {
+
+		return read(level, x, y, width, height, null, listener);
+	}
+
+	/**
+	 * Starts a progressive read of a region with specified image format and
+	 * quality.
+	 * <p>
+	 * The image passed to the listener with the preview and on completion is
+	 * the same image, into which the parts are drawn as they arrive.
+	 *
+	 * @param level
+	 *            Level of the region.
+	 * @param x
+	 *            Horizontal coordinate of the top-left corner of the region in
+	 *            pixels of the level.
+	 * @param y
+	 *            Vertical coordinate of the top-left corner of the region in
+	 *            pixels of the level.
+	 * @param width
+	 *            Width of the region in pixels.
+	 * @param height
+	 *            Height of the region in pixels.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the image data that is read from the server.
+	 * @param listener
+	 *            Listener that receives the image data.
+	 * @return Future for the full resolution image data of the region.
+	 *         Cancelling the future aborts the requests in flight and stops
+	 *         the delivery of the remaining image data.
+	 * @see read(int level, int x, int y, int width, int height,
+	 *      ProgressiveReadListener listener)
+	 */
+	public Future<BufferedImage> read(int level, int x, int y, int width,
+			int height, ImageFormatParam ifp, ProgressiveReadListener listener) {
+
+		ProgressiveRead read = new ProgressiveRead(level, x, y, width, height,
+				ifp, listener);
+
+		read.start();
+
+		return read;
+	}
+
+	/*
+	 * State of a single progressive read.
+	 */
+	private class ProgressiveRead extends CompletableFuture<BufferedImage> {
+
+		private final int level;
+		private final int x;
+		private final int y;
+		private final int width;
+		private final int height;
+		private final ImageFormatParam ifp;
+		private final ProgressiveReadListener listener;
+
+		/*
+		 * Image into which the preview and the parts are drawn. Guarded by
+		 * itself together with the fields below.
+		 */
+		private final BufferedImage canvas;
+
+		/*
+		 * Area of the canvas that is covered by full resolution parts.
+		 */
+		private final Area completedArea = new Area();
+
+		private int remainingParts;
+
+		private boolean failed;
+
+		/*
+		 * Requests for the parts that are in flight.
+		 */
+		private final Set<Future<byte[]>> requests = new HashSet<Future<byte[]>>();
+
+		ProgressiveRead(int level, int x, int y, int width, int height,
+				ImageFormatParam ifp, ProgressiveReadListener listener) {
+
+			this.level = level;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.ifp = ifp;
+			this.listener = listener;
+
+			canvas = new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_RGB);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+			abortRequests();
+
+			return cancelled;
+		}
+
+		/*
+		 * Aborts the exchanges of the parts in flight, which frees their
+		 * connections.
+		 */
+		private void abortRequests() {
+
+			List<Future<byte[]>> inFlight;
+
+			synchronized (canvas) {
+				inFlight = new ArrayList<Future<byte[]>>(requests);
+			}
+
+			for (Future<byte[]> request : inFlight) {
+				request.cancel(true);
+			}
+
+		}
+
+		void start() {
+
+			int previewLevel = selectPreviewLevel(level, width, height);
+
+			// tile aligned parts of the region
+			int tileWidth = geometry.getTileWidth(level);
+			int tileHeight = geometry.getTileHeight(level);
+
+			List<Rectangle> parts = new ArrayList<Rectangle>();
+
+			for (int partY = y / tileHeight * tileHeight; partY < y + height; partY += tileHeight) {
+				for (int partX = x / tileWidth * tileWidth; partX < x + width; partX += tileWidth) {
+
+					Rectangle part = new Rectangle(partX, partY, tileWidth,
+							tileHeight).intersection(new Rectangle(x, y,
+							width, height));
+
+					if (!part.isEmpty()) {
+						parts.add(part);
+					}
+
+				}
+			}
+
+			synchronized (canvas) {
+				remainingParts = parts.size();
+			}
+
+			if (previewLevel >= 0) {
+				readPreview(previewLevel);
+			}
+
+			for (Rectangle part : parts) {
+				readPart(part);
+			}
+
+		}
+
+		/*
+		 * Starts a request, which is aborted if the read is cancelled or fails
+		 * meanwhile, and returns a stage that is completed with the response.
+		 */
+		private CompletableFuture<byte[]> send(ImageRegionParam irp,
+				ImageFormatParam ifp, boolean measured) {
+
+			final long start = System.nanoTime();
+
+			final Future<byte[]> request;
+
+			try {
+				request = client.getImagePixelDataAsync(imageID, irp, ifp,
+						null);
+			} catch (RuntimeException e) {
+				CompletableFuture<byte[]> failed = new CompletableFuture<byte[]>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+
+			synchronized (canvas) {
+				requests.add(request);
+			}
+
+			// cancelled before the request was registered
+			if (isDone()) {
+				request.cancel(true);
+			}
+
+			CompletableFuture<byte[]> response = RequestFuture
+					.completion(request).whenComplete(
+							new BiConsumer<byte[], Throwable>() {
+
+								@Override
+								public void accept(byte[] data, Throwable e) {
+
+									synchronized (canvas) {
+										requests.remove(request);
+									}
+
+								}
+
+							});
+
+			if (!measured) {
+				return response;
+			}
+
+			return response.thenApply(new Function<byte[], byte[]>() {
+
+				@Override
+				public byte[] apply(byte[] data) {
+
+					policy.recordTransfer(data.length, System.nanoTime()
+							- start);
+
+					return data;
+				}
+
+			});
+		}
+
+		private void readPreview(int previewLevel) {
+
+			final double scaleX = geometry.getDownsamplingX(level)
+					/ geometry.getDownsamplingX(previewLevel);
+			final double scaleY = geometry.getDownsamplingY(level)
+					/ geometry.getDownsamplingY(previewLevel);
+
+			// pixel aligned region at the preview level
+			final int fromX = (int) Math.floor(x * scaleX);
+			final int fromY = (int) Math.floor(y * scaleY);
+			int toX = Math.min(geometry.getWidth(previewLevel),
+					(int) Math.ceil((x + width) * scaleX));
+			int toY = Math.min(geometry.getHeight(previewLevel),
+					(int) Math.ceil((y + height) * scaleY));
+
+			ImageRegionParam irp = new ImageRegionParam((float) fromX,
+					(float) fromY, (float) Math.max(1, toX - fromX),
+					(float) Math.max(1, toY - fromY), previewLevel, Unit.PIXEL);
+
+			send(irp, policy != null ? policy.getFormatParam(ReadClass.PREVIEW)
+					: ifp, policy != null).thenApplyAsync(
+					new Function<byte[], Boolean>() {
+
+						@Override
+						public Boolean apply(byte[] data) {
+
+							if (isDone()) {
+								return false;
+							}
+
+							BufferedImage preview;
+
+							try {
+								preview = ImageDecoder.decode(data);
+							} catch (IOException e) {
+								throw new CompletionException(e);
+							}
+
+							// maps the preview to the canvas
+							AffineTransform transform = new AffineTransform();
+							transform.scale(1 / scaleX, 1 / scaleY);
+							transform.translate(fromX - x * scaleX, fromY - y
+									* scaleY);
+
+							synchronized (canvas) {
+
+								if (isDone() || failed || remainingParts == 0) {
+									return false;
+								}
+
+								// do not draw over the parts that already
+								// arrived
+								Area clip = new Area(new Rectangle(0, 0, width,
+										height));
+								clip.subtract(completedArea);
+
+								Graphics2D graphics = canvas.createGraphics();
+
+								try {
+									graphics.setClip(clip);
+									graphics.setRenderingHint(
+											RenderingHints.KEY_INTERPOLATION,
+											RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+									graphics.drawImage(preview, transform, null);
+								} finally {
+									graphics.dispose();
+								}
+
+								return true;
+
+							}
+
+						}
+
+					}, executor).whenComplete(
+					new BiConsumer<Boolean, Throwable>() {
+
+						@Override
+						public void accept(Boolean drawn, Throwable e) {
+
+							// the preview is optional: the parts are still
+							// delivered if it fails
+							if (e == null && drawn && !isDone()) {
+								listener.previewAvailable(canvas);
+							}
+
+						}
+
+					});
+
+		}
+
+		private void readPart(final Rectangle part) {
+
+			ImageRegionParam irp = new ImageRegionParam((float) part.x,
+					(float) part.y, (float) part.width, (float) part.height,
+					level, Unit.PIXEL);
+
+			send(irp, ifp, false).thenApplyAsync(
+					new Function<byte[], BufferedImage>() {
+
+						@Override
+						public BufferedImage apply(byte[] data) {
+
+							if (isDone()) {
+								return null;
+							}
+
+							BufferedImage image;
+
+							try {
+								image = ImageDecoder.decode(data);
+							} catch (IOException e) {
+								throw new CompletionException(e);
+							}
+
+							synchronized (canvas) {
+
+								if (isDone() || failed) {
+									return null;
+								}
+
+								Graphics2D graphics = canvas.createGraphics();
+
+								try {
+									graphics.drawImage(image, part.x - x,
+											part.y - y, null);
+								} finally {
+									graphics.dispose();
+								}
+
+								completedArea.add(new Area(new Rectangle(part.x
+										- x, part.y - y, part.width,
+										part.height)));
+
+								remainingParts--;
+
+							}
+
+							return image;
+						}
+
+					}, executor).whenComplete(
+					new BiConsumer<BufferedImage, Throwable>() {
+
+						@Override
+						public void accept(BufferedImage image, Throwable e) {
+
+							if (e != null) {
+								fail(e instanceof CompletionException
+										&& e.getCause() != null ? e.getCause()
+										: e);
+							} else if (image != null) {
+								delivered(part, image);
+							}
+
+						}
+
+					});
+
+		}
+
+		private void delivered(Rectangle part, BufferedImage image) {
+
+			listener.regionAvailable(part.x - x, part.y - y, image);
+
+			boolean completed;
+
+			synchronized (canvas) {
+				completed = remainingParts == 0;
+			}
+
+			// only the first of the parts that see all parts drawn completes
+			// the read
+			if (completed && complete(canvas)) {
+				listener.completed(canvas);
+			}
+
+		}
+
+		private void fail(Throwable e) {
+
+			synchronized (canvas) {
+				if (failed || isDone()) {
+					return;
+				}
+				failed = true;
+			}
+
+			completeExceptionally(e);
+			abortRequests();
+			listener.failed(e);
+
+		}
+
+	}
+
+}
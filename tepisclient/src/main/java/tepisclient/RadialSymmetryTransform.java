@@ -0,0 +1,411 @@
+package tepisclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Dark orientation-only fast radial symmetry transform (FRST) for detecting
+ * points of interest in an image.
+ * <p>
+ * This is a multithreaded implementation of the frst function of the MATLAB
+ * toolbox that produces the same output up to floating point rounding. The
+ * images are row-major arrays of doubles and the projection images of the
+ * radii are computed in parallel.
+ *
+ */
+
+public class RadialSymmetryTransform {
+
+	/**
+	 * Default radial strictness.
+	 */
+	public static final double DEFAULT_ALPHA = 1;
+
+	/**
+	 * Default normalization factor.
+	 */
+	public static final double DEFAULT_KAPPA = 10;
+
+	/*
+	 * Distance from 1.0 to the next larger double, equal to eps in MATLAB.
+	 */
+	private static final double EPS = Math.ulp(1.0);
+
+	private RadialSymmetryTransform() {
+
+	}
+
+	/**
+	 * Computes the transform with the default parameters on the common
+	 * fork/join pool, which has one thread per processor and is shared by all
+	 * calls.
+	 *
+	 * @param image
+	 *            Grayscale image in row-major order.
+	 * @param width
+	 *            Width of the image.
+	 * @param height
+	 *            Height of the image.
+	 * @param radii
+	 *            Radii reflecting the scale of the points of interest.
+	 * @return The transform in row-major order.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted.
+	 * @see transform(double[] image, int width, int height, double[] radii,
+	 *      double alpha, double beta, double[] kappa, ExecutorService
+	 *      executor)
+	 */
+	public static double[] transform(double[] image, int width, int height,
+			double[] radii) throws InterruptedException {
+
+		return transform(image, width, height, radii, DEFAULT_ALPHA,
+				Double.NaN, null, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Computes the transform.
+	 *
+	 * @param image
+	 *            Grayscale image in row-major order.
+	 * @param width
+	 *            Width of the image.
+	 * @param height
+	 *            Height of the image.
+	 * @param radii
+	 *            Radii reflecting the scale of the points of interest.
+	 * @param alpha
+	 *            Radial strictness.
+	 * @param beta
+	 *            Sobel gradient magnitude threshold for ignoring small
+	 *            gradients. If NaN, one fifth of the maximum of the image is
+	 *            used.
+	 * @param kappa
+	 *            Normalization factors, one for each radius. If null, the
+	 *            default value is used for all radii. If it has one element,
+	 *            the same value is used for all radii.
+	 * @param executor
+	 *            Executor on which the radii are processed or null to process
+	 *            them on the calling thread.
+	 * @return The transform in row-major order.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted.
+	 * @see transform(double[] image, int width, int height, double[] radii)
+	 */
+	public static double[] transform(double[] image, int width, int height,
+			double[] radii, final double alpha, double beta, double[] kappa,
+			ExecutorService executor) throws InterruptedException {
+
+		if (image.length != width * height) {
+			throw new IllegalArgumentException(
+					"Image size does not match the dimensions");
+		}
+
+		if (Double.isNaN(beta)) {
+
+			double max = Double.NEGATIVE_INFINITY;
+
+			for (double value : image) {
+				max = Math.max(max, value);
+			}
+
+			beta = max / 5;
+
+		}
+
+		final Gradient gradient = new Gradient(image, width, height, beta);
+
+		List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+
+		for (int i = 0; i < radii.length; i++) {
+
+			final double radius = radii[i];
+
+			final double k = kappa == null ? DEFAULT_KAPPA
+					: (kappa.length == 1 ? kappa[0] : kappa[i]);
+
+			tasks.add(new Callable<double[]>() {
+
+				@Override
+				public double[] call() {
+
+					return project(gradient, radius, alpha, k);
+				}
+
+			});
+
+		}
+
+		double[] transform = new double[width * height];
+
+		if (executor == null) {
+
+			for (Callable<double[]> task : tasks) {
+				try {
+					add(transform, task.call());
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+		} else {
+
+			List<Future<double[]>> futures = executor.invokeAll(tasks);
+
+			// sum in the order of the radii for reproducible results
+			for (Future<double[]> future : futures) {
+				try {
+					add(transform, future.get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new IllegalStateException(cause);
+				}
+			}
+
+		}
+
+		for (int i = 0; i < transform.length; i++) {
+			transform[i] /= radii.length;
+		}
+
+		return transform;
+	}
+
+	/*
+	 * Computes the smoothed orientation projection image of a radius,
+	 * multiplied by the radius.
+	 */
+	private static double[] project(Gradient gradient, double radius,
+			double alpha, double kappa) {
+
+		int width = gradient.width;
+		int height = gradient.height;
+
+		int[] orientation = new int[width * height];
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+
+				int i = y * width + x;
+
+				if (!gradient.valid[i]) {
+					continue;
+				}
+
+				// affected pixel
+				int px = clamp(x - round(radius * gradient.dx[i]), width);
+				int py = clamp(y - round(radius * gradient.dy[i]), height);
+
+				orientation[py * width + px]++;
+
+			}
+		}
+
+		double[] projection = new double[width * height];
+
+		for (int y = 1; y < height - 1; y++) {
+			for (int x = 1; x < width - 1; x++) {
+
+				int i = y * width + x;
+
+				double o = Math.min(orientation[i], kappa) / kappa;
+
+				projection[i] = alpha == 1 ? o : Math.pow(o, alpha);
+
+			}
+		}
+
+		double[] smoothed = gaussian(projection, width, height, 0.25 * radius);
+
+		for (int i = 0; i < smoothed.length; i++) {
+			smoothed[i] *= radius;
+		}
+
+		return smoothed;
+	}
+
+	/*
+	 * Gaussian filtering with symmetric padding, equivalent to filtering with
+	 * fspecial('gaussian', roundToOdd(4 * sigma), sigma). The two dimensional
+	 * kernel is separable, so the rows and columns are filtered separately.
+	 */
+	static double[] gaussian(double[] image, int width, int height,
+			double sigma) {
+
+		int size = (int) Math.ceil(4 * sigma);
+		size += (size - 1) % 2 == 0 ? 0 : 1;
+
+		if (size <= 1) {
+			return image.clone();
+		}
+
+		int half = (size - 1) / 2;
+
+		double[] kernel = new double[size];
+		double sum = 0;
+
+		for (int i = 0; i < size; i++) {
+			kernel[i] = Math.exp(-(double) (i - half) * (i - half)
+					/ (2 * sigma * sigma));
+			sum += kernel[i];
+		}
+
+		for (int i = 0; i < size; i++) {
+			kernel[i] /= sum;
+		}
+
+		double[] rows = new double[width * height];
+		double[] line = new double[Math.max(width, height) + 2 * half];
+
+		for (int y = 0; y < height; y++) {
+
+			for (int x = -half; x < width + half; x++) {
+				line[x + half] = image[y * width + mirror(x, width)];
+			}
+
+			for (int x = 0; x < width; x++) {
+
+				double value = 0;
+
+				for (int k = 0; k < size; k++) {
+					value += kernel[k] * line[x + k];
+				}
+
+				rows[y * width + x] = value;
+
+			}
+
+		}
+
+		double[] filtered = new double[width * height];
+
+		for (int x = 0; x < width; x++) {
+
+			for (int y = -half; y < height + half; y++) {
+				line[y + half] = rows[mirror(y, height) * width + x];
+			}
+
+			for (int y = 0; y < height; y++) {
+
+				double value = 0;
+
+				for (int k = 0; k < size; k++) {
+					value += kernel[k] * line[y + k];
+				}
+
+				filtered[y * width + x] = value;
+
+			}
+
+		}
+
+		return filtered;
+	}
+
+	/*
+	 * Normalized Sobel gradient of an image and the mask of the pixels with
+	 * gradient magnitude above the threshold.
+	 */
+	private static class Gradient {
+
+		final int width;
+		final int height;
+
+		final double[] dx;
+		final double[] dy;
+		final boolean[] valid;
+
+		Gradient(double[] image, int width, int height, double beta) {
+
+			this.width = width;
+			this.height = height;
+
+			dx = new double[width * height];
+			dy = new double[width * height];
+			valid = new boolean[width * height];
+
+			for (int y = 0; y < height; y++) {
+
+				int up = mirror(y - 1, height) * width;
+				int row = y * width;
+				int down = mirror(y + 1, height) * width;
+
+				for (int x = 0; x < width; x++) {
+
+					int left = mirror(x - 1, width);
+					int right = mirror(x + 1, width);
+
+					// convolution with [1 0 -1; 2 0 -2; 1 0 -1] and its
+					// transpose
+					double gx = image[up + right] + 2 * image[row + right]
+							+ image[down + right] - image[up + left] - 2
+							* image[row + left] - image[down + left];
+					double gy = image[down + left] + 2 * image[down + x]
+							+ image[down + right] - image[up + left] - 2
+							* image[up + x] - image[up + right];
+
+					double magnitude = Math.sqrt(gx * gx + gy * gy) + EPS;
+
+					int i = row + x;
+
+					dx[i] = gx / magnitude;
+					dy[i] = gy / magnitude;
+					valid[i] = magnitude > beta;
+
+				}
+
+			}
+
+		}
+
+	}
+
+	private static void add(double[] sum, double[] values) {
+
+		for (int i = 0; i < sum.length; i++) {
+			sum[i] += values[i];
+		}
+
+	}
+
+	/*
+	 * Rounds half away from zero like the round function in MATLAB.
+	 */
+	private static int round(double value) {
+
+		return (int) (value < 0 ? -Math.floor(-value + 0.5) : Math
+				.floor(value + 0.5));
+	}
+
+	private static int clamp(int value, int size) {
+
+		return value < 0 ? 0 : (value >= size ? size - 1 : value);
+	}
+
+	/*
+	 * Index with symmetric padding: the image is mirrored at its borders
+	 * including the border pixels.
+	 */
+	private static int mirror(int index, int size) {
+
+		int period = 2 * size;
+
+		index %= period;
+
+		if (index < 0) {
+			index += period;
+		}
+
+		return index < size ? index : period - 1 - index;
+	}
+
+}
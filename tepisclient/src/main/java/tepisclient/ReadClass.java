@@ -0,0 +1,22 @@
+package tepisclient;
+
+/**
+ * Enumeration for the classes of reads, which determine how the image quality
+ * is chosen by an {@link AdaptiveFormatPolicy}.
+ *
+ */
+
+public enum ReadClass {
+
+	/**
+	 * Reads for display, for example previews and viewport tiles, for which a
+	 * lower image quality is acceptable on slow links.
+	 */
+	PREVIEW,
+
+	/**
+	 * Reads for image analysis, which always use a fixed image quality.
+	 */
+	ANALYSIS
+
+}
@@ -0,0 +1,71 @@
+package tepisclient;
+
+/**
+ * Encoded image data of a region of a digital slide that was read as part of
+ * a scan.
+ *
+ */
+
+public class RegionData {
+
+	/*
+	 * Position of the region in the scan order, starting from 0.
+	 */
+	private final long index;
+
+	private final ImageRegionParam region;
+
+	private final byte[] data;
+
+	/**
+	 * @param index
+	 *            Position of the region in the scan order, starting from 0.
+	 * @param region
+	 *            Parameter object specifying the region.
+	 * @param data
+	 *            The encoded image data.
+	 */
+	public RegionData(long index, ImageRegionParam region, byte[] data) {
+
+		this.index = index;
+		this.region = region;
+		this.data = data;
+	}
+
+	/**
+	 * Gets the value of the index property.
+	 *
+	 * @return
+	 */
+	public long getIndex() {
+
+		return index;
+	}
+
+	/**
+	 * Gets the value of the region property.
+	 *
+	 * @return
+	 */
+	public ImageRegionParam getRegion() {
+
+		return region;
+	}
+
+	/**
+	 * Gets the value of the data property.
+	 *
+	 * @return
+	 */
+	public byte[] getData() {
+
+		return data;
+	}
+
+	@Override
+	public String toString() {
+
+		return "RegionData [index=" + index + ", region=" + region + "]";
+	}
+
+}
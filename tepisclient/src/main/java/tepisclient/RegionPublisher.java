@@ -0,0 +1,335 @@
+package tepisclient;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+
+/**
+ * Publishes the image data of the regions of a scan of a digital slide on
+ * demand.
+ * <p>
+ * The regions are read only as they are requested by the subscriber: at any
+ * time, the number of regions that are being read or waiting for delivery
+ * does not exceed the outstanding demand. A slow subscriber, for example
+ * inference with a neural network or writing to disk, thus slows down the
+ * reading instead of accumulating image data in memory. The regions are
+ * delivered in the scan order, which is the order of the iterable, for
+ * example the order of the blocks of a {@link BlockGrid} or any custom order.
+ * <p>
+ * Each subscriber receives its own scan of all regions.
+ *
+ */
+
+public class RegionPublisher implements Flow.Publisher<RegionData> {
+
+	private final TepisClient client;
+
+	private final String imageID;
+
+	private final Iterable<ImageRegionParam> regions;
+
+	/*
+	 * Executor on which the regions are read.
+	 */
+	private final ExecutorService executor;
+
+	/*
+	 * Maximum number of regions that are read at the same time.
+	 */
+	private final int maxConcurrency;
+
+	private final ImageFormatParam ifp;
+
+	/**
+	 * @param client
+	 *            Client used to read the regions.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param regions
+	 *            The regions in scan order, for example a {@link BlockGrid}.
+	 * @param executor
+	 *            Executor on which the regions are read.
+	 * @param maxConcurrency
+	 *            Maximum number of regions that are read at the same time,
+	 *            regardless of the demand.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the regions or null for the server default.
+	 */
+	public RegionPublisher(TepisClient client, String imageID,
+			Iterable<ImageRegionParam> regions, ExecutorService executor,
+			int maxConcurrency, ImageFormatParam ifp) {
+
+		this.client = client;
+		this.imageID = imageID;
+		this.regions = regions;
+		this.executor = executor;
+		this.maxConcurrency = maxConcurrency;
+		this.ifp = ifp;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super RegionData> subscriber) {
+
+		ScanSubscription subscription = new ScanSubscription(subscriber,
+				regions.iterator());
+
+		subscriber.onSubscribe(subscription);
+
+		subscription.drain();
+
+	}
+
+	/*
+	 * State of the scan of a single subscriber.
+	 */
+	private class ScanSubscription implements Flow.Subscription {
+
+		private final Flow.Subscriber<? super RegionData> subscriber;
+
+		/*
+		 * Regions that are not read yet. Guarded by this, together with the
+		 * fields below.
+		 */
+		private final Iterator<ImageRegionParam> iterator;
+
+		/*
+		 * Regions that are being read and regions that are read but not
+		 * delivered, by index.
+		 */
+		private final Map<Long, Future<?>> reading = new HashMap<Long, Future<?>>();
+
+		private final Map<Long, RegionData> read = new HashMap<Long, RegionData>();
+
+		/*
+		 * Requested regions that are not delivered yet.
+		 */
+		private long demand;
+
+		private long nextReadIndex;
+
+		private long nextDeliveryIndex;
+
+		/*
+		 * Whether a thread is delivering to the subscriber, which serializes
+		 * the calls to the subscriber.
+		 */
+		private boolean draining;
+
+		private Throwable failure;
+
+		private boolean cancelled;
+
+		/*
+		 * Whether onComplete or onError was called.
+		 */
+		private boolean terminated;
+
+		ScanSubscription(Flow.Subscriber<? super RegionData> subscriber,
+				Iterator<ImageRegionParam> iterator) {
+
+			this.subscriber = subscriber;
+			this.iterator = iterator;
+		}
+
+		@Override
+		public void request(long n) {
+
+			synchronized (this) {
+
+				if (cancelled || terminated) {
+					return;
+				}
+
+				if (n <= 0) {
+					fail(new IllegalArgumentException(
+							"Number of requested items must be positive"));
+				} else {
+					// the demand saturates at Long.MAX_VALUE
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+					readAhead();
+				}
+
+			}
+
+			drain();
+
+		}
+
+		@Override
+		public synchronized void cancel() {
+
+			if (cancelled) {
+				return;
+			}
+
+			cancelled = true;
+
+			for (Future<?> future : reading.values()) {
+				future.cancel(true);
+			}
+
+			reading.clear();
+			read.clear();
+
+		}
+
+		/*
+		 * Starts reading regions while the regions being read and waiting for
+		 * delivery do not exceed the demand. Must be called while holding the
+		 * lock.
+		 */
+		private void readAhead() {
+
+			while (!cancelled && failure == null
+					&& reading.size() < maxConcurrency
+					&& reading.size() + read.size() < demand
+					&& iterator.hasNext()) {
+
+				final long index = nextReadIndex++;
+				final ImageRegionParam irp = iterator.next();
+
+				reading.put(index, executor.submit(new Runnable() {
+
+					@Override
+					public void run() {
+
+						readRegion(index, irp);
+					}
+
+				}));
+
+			}
+
+		}
+
+		private void readRegion(long index, ImageRegionParam irp) {
+
+			RegionData data = null;
+			Throwable error = null;
+
+			try {
+				data = new RegionData(index, irp, client.getImagePixelData(
+						imageID, irp, ifp));
+			} catch (Throwable e) {
+				error = e;
+			}
+
+			synchronized (this) {
+
+				if (reading.remove(index) == null) {
+					// cancelled
+					return;
+				}
+
+				if (error != null) {
+					fail(error);
+				} else {
+					read.put(index, data);
+				}
+
+			}
+
+			drain();
+
+		}
+
+		/*
+		 * Stops reading after a failure. The failure is delivered as soon as
+		 * no read region can be delivered. Must be called while holding the
+		 * lock.
+		 */
+		private void fail(Throwable e) {
+
+			if (failure == null) {
+				failure = e;
+			}
+
+			for (Future<?> future : reading.values()) {
+				future.cancel(true);
+			}
+
+			reading.clear();
+
+		}
+
+		/*
+		 * Delivers the read regions in scan order and the completion or
+		 * failure, on the calling thread unless another thread is already
+		 * delivering.
+		 */
+		void drain() {
+
+			synchronized (this) {
+
+				if (draining) {
+					return;
+				}
+
+				draining = true;
+
+			}
+
+			while (true) {
+
+				RegionData data;
+				Throwable error = null;
+				boolean complete = false;
+
+				synchronized (this) {
+
+					data = !cancelled && demand > 0 ? read
+							.remove(nextDeliveryIndex) : null;
+
+					if (data != null) {
+
+						nextDeliveryIndex++;
+						demand--;
+
+						readAhead();
+
+					} else if (!cancelled && !terminated && failure != null) {
+
+						terminated = true;
+						error = failure;
+
+					} else if (!cancelled && !terminated && reading.isEmpty()
+							&& read.isEmpty() && !iterator.hasNext()) {
+
+						terminated = true;
+						complete = true;
+
+					} else {
+
+						draining = false;
+						return;
+
+					}
+
+				}
+
+				try {
+
+					if (data != null) {
+						subscriber.onNext(data);
+					} else if (error != null) {
+						subscriber.onError(error);
+					} else if (complete) {
+						subscriber.onComplete();
+					}
+
+				} catch (RuntimeException e) {
+					// a failing subscriber is treated as cancelled
+					cancel();
+				}
+
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,182 @@
+package tepisclient;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future for an asynchronous request to the tEPIS image management and
+ * storage (IMS) server.
+ * <p>
+ * Cancelling the future with interruption aborts the HTTP exchange without
+ * waiting for it: the thread that runs the request stops reading and the
+ * connection is closed in the background.
+ * <p>
+ * The reservation of the response in the byte budget of the client is kept
+ * until the response is retrieved from the future, or until the request is
+ * cancelled. So that responses that are never retrieved do not hold the
+ * budget forever, the reservation is also released when the future is no
+ * longer referenced.
+ *
+ */
+
+class RequestFuture<T> extends FutureTask<T> {
+
+	/*
+	 * Releases the reservations of futures that are no longer referenced.
+	 */
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	private final Exchange exchange;
+
+	private final Cleaner.Cleanable reservation;
+
+	/*
+	 * Stage that is completed with the response, created on the first call
+	 * of completion(). Guarded by this.
+	 */
+	private CompletableFuture<T> completion;
+
+	RequestFuture(Callable<T> callable, Exchange exchange) {
+
+		super(callable);
+
+		this.exchange = exchange;
+
+		exchange.releaseOnDelivery();
+
+		reservation = CLEANER.register(this, new Release(exchange));
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+
+		boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+		if (cancelled && mayInterruptIfRunning) {
+			exchange.cancel();
+		}
+
+		return cancelled;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+
+		T result = super.get();
+
+		reservation.clean();
+
+		return result;
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+
+		T result = super.get(timeout, unit);
+
+		reservation.clean();
+
+		return result;
+	}
+
+	@Override
+	protected void done() {
+
+		if (isCancelled()) {
+			reservation.clean();
+		}
+
+		CompletableFuture<T> stage;
+
+		synchronized (this) {
+			stage = completion;
+		}
+
+		if (stage != null) {
+			complete(stage);
+		}
+
+	}
+
+	/**
+	 * Gets a stage that is completed with the response when the request
+	 * ends, so that the response can be processed without a thread waiting
+	 * for it. Completing the stage retrieves the response, which releases its
+	 * reservation. Cancelling the stage does not affect the request.
+	 *
+	 * @param future
+	 *            Future returned by an asynchronous method of
+	 *            {@link TepisClient}.
+	 * @return The stage, which is completed on the thread that ends the
+	 *         request, or immediately if the request already ended.
+	 */
+	static <T> CompletableFuture<T> completion(Future<T> future) {
+
+		RequestFuture<T> request = (RequestFuture<T>) future;
+
+		CompletableFuture<T> stage;
+
+		synchronized (request) {
+			if (request.completion == null) {
+				request.completion = new CompletableFuture<T>();
+			}
+			stage = request.completion;
+		}
+
+		if (request.isDone()) {
+			request.complete(stage);
+		}
+
+		return stage;
+	}
+
+	private void complete(CompletableFuture<T> stage) {
+
+		try {
+			stage.complete(get());
+		} catch (ExecutionException e) {
+			stage.completeExceptionally(e.getCause());
+		} catch (Throwable e) {
+			// cancelled
+			stage.completeExceptionally(e);
+		}
+
+	}
+
+	@Override
+	protected void setException(Throwable t) {
+
+		reservation.clean();
+
+		super.setException(t);
+	}
+
+	/*
+	 * Releases the reservation of an exchange. Must not refer to the future,
+	 * so that the future can become unreachable.
+	 */
+	private static class Release implements Runnable {
+
+		private final Exchange exchange;
+
+		Release(Exchange exchange) {
+
+			this.exchange = exchange;
+		}
+
+		@Override
+		public void run() {
+
+			exchange.release();
+		}
+
+	}
+
+}
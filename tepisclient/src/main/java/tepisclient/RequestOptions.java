@@ -0,0 +1,90 @@
+package tepisclient;
+
+/**
+ * Contains options for a request to the tEPIS image management and storage
+ * (IMS) server.
+ * <p>
+ * All timeouts are in milliseconds. A timeout of 0 means that the request can
+ * take indefinitely long.
+ *
+ */
+
+public class RequestOptions {
+
+	/**
+	 * Options without any timeouts.
+	 */
+	public static final RequestOptions DEFAULT = new RequestOptions(0, 0, 0);
+
+	/*
+	 * Maximum time for establishing the connection.
+	 */
+	private final int connectTimeout;
+
+	/*
+	 * Maximum time between two consecutive reads from the connection,
+	 * including the wait for the response.
+	 */
+	private final int readTimeout;
+
+	/*
+	 * Maximum time for the whole request, including reading of the response.
+	 */
+	private final long totalTimeout;
+
+	/**
+	 * @param connectTimeout
+	 *            Maximum time for establishing the connection.
+	 * @param readTimeout
+	 *            Maximum time of inactivity while waiting for or reading the
+	 *            response.
+	 * @param totalTimeout
+	 *            Maximum time for the whole request. The connection is aborted
+	 *            when the time is exceeded.
+	 */
+	public RequestOptions(int connectTimeout, int readTimeout, long totalTimeout) {
+
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.totalTimeout = totalTimeout;
+	}
+
+	/**
+	 * Gets the value of the connectTimeout property.
+	 *
+	 * @return
+	 */
+	public int getConnectTimeout() {
+
+		return connectTimeout;
+	}
+
+	/**
+	 * Gets the value of the readTimeout property.
+	 *
+	 * @return
+	 */
+	public int getReadTimeout() {
+
+		return readTimeout;
+	}
+
+	/**
+	 * Gets the value of the totalTimeout property.
+	 *
+	 * @return
+	 */
+	public long getTotalTimeout() {
+
+		return totalTimeout;
+	}
+
+	@Override
+	public String toString() {
+
+		return "RequestOptions [connectTimeout=" + connectTimeout
+				+ ", readTimeout=" + readTimeout + ", totalTimeout="
+				+ totalTimeout + "]";
+	}
+
+}
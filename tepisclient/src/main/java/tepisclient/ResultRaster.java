@@ -0,0 +1,509 @@
+package tepisclient;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tiled raster backed by a memory-mapped file for storing whole-slide
+ * processing results, for example probability maps.
+ * <p>
+ * The raster is divided in tiles that are allocated in the file when they are
+ * first written, so tiles that are never written (background) take no space
+ * and unwritten pixels read as zero. The file has the following layout (all
+ * values are big-endian):
+ * <ul>
+ * <li>header: magic number, format version, width, height, number of bands,
+ * tile width, tile height (7 ints) and the number of allocated tiles (1
+ * long);</li>
+ * <li>tile directory: for each tile in row-major order the index of the
+ * allocated tile plus one, or zero if the tile is not allocated (1 long);</li>
+ * <li>tile data: the allocated tiles with band-interleaved pixels in row-major
+ * order, starting at a page aligned offset.</li>
+ * </ul>
+ * <p>
+ * Writes from multiple threads are safe without any global lock: tiles are
+ * allocated with atomic operations on the tile directory and the pixel data
+ * is written directly to the mapped file. Writes of overlapping regions from
+ * different threads have undefined order.
+ *
+ */
+
+public class ResultRaster implements Closeable, BlockWriter<byte[]> {
+
+	/*
+	 * Magic number ("TRAS") and version of the file format.
+	 */
+	private static final int MAGIC = 0x54524153;
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 7 * 4 + 8;
+
+	private static final int PAGE_SIZE = 4096;
+
+	/*
+	 * Maximum size of a mapped segment of the tile data.
+	 */
+	private static final long MAX_SEGMENT_SIZE = 1L << 26;
+
+	/*
+	 * Directory entry of a tile that is being allocated.
+	 */
+	private static final long CLAIMED = -1;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+
+	/*
+	 * Size of the raster in pixels and number of bytes per pixel.
+	 */
+	private final int width;
+	private final int height;
+	private final int bands;
+
+	/*
+	 * Tile size in pixels and number of tile columns and rows.
+	 */
+	private final int tileWidth;
+	private final int tileHeight;
+	private final int tileColumns;
+	private final int tileRows;
+
+	/*
+	 * Size of a tile in bytes.
+	 */
+	private final int tileSize;
+
+	/*
+	 * Tile directory and the mapped directory section of the file.
+	 */
+	private final AtomicLongArray directory;
+	private final MappedByteBuffer mappedDirectory;
+
+	/*
+	 * Number of allocated tiles.
+	 */
+	private final AtomicLong allocated;
+
+	/*
+	 * Offset of the tile data, number of tiles per mapped segment and the
+	 * lazily mapped segments.
+	 */
+	private final long dataOffset;
+	private final int tilesPerSegment;
+	private final AtomicReferenceArray<MappedByteBuffer> segments;
+
+	/**
+	 * Creates a new raster. An existing file is overwritten.
+	 *
+	 * @param file
+	 *            The raster file.
+	 * @param width
+	 *            Width of the raster in pixels.
+	 * @param height
+	 *            Height of the raster in pixels.
+	 * @param bands
+	 *            Number of bands (bytes per pixel).
+	 * @param tileWidth
+	 *            Tile width in pixels.
+	 * @param tileHeight
+	 *            Tile height in pixels.
+	 * @return The raster.
+	 * @throws IOException
+	 */
+	public static ResultRaster create(File file, int width, int height,
+			int bands, int tileWidth, int tileHeight) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+
+			raf.setLength(0);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(width);
+			header.putInt(height);
+			header.putInt(bands);
+			header.putInt(tileWidth);
+			header.putInt(tileHeight);
+			header.putLong(0);
+
+			header.flip();
+
+			while (header.hasRemaining()) {
+				raf.getChannel().write(header, header.position());
+			}
+
+			return new ResultRaster(raf);
+
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+
+	}
+
+	/**
+	 * Opens an existing raster for reading and writing.
+	 *
+	 * @param file
+	 *            The raster file.
+	 * @return The raster.
+	 * @throws IOException
+	 */
+	public static ResultRaster open(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+			return new ResultRaster(raf);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+
+	}
+
+	private ResultRaster(RandomAccessFile raf) throws IOException {
+
+		this.raf = raf;
+		this.channel = raf.getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0) {
+				throw new IOException("Not a result raster file");
+			}
+		}
+
+		header.flip();
+
+		if (header.getInt() != MAGIC) {
+			throw new IOException("Not a result raster file");
+		}
+
+		if (header.getInt() != VERSION) {
+			throw new IOException("Unsupported result raster version");
+		}
+
+		width = header.getInt();
+		height = header.getInt();
+		bands = header.getInt();
+		tileWidth = header.getInt();
+		tileHeight = header.getInt();
+		long count = header.getLong();
+
+		tileColumns = (width + tileWidth - 1) / tileWidth;
+		tileRows = (height + tileHeight - 1) / tileHeight;
+		tileSize = tileWidth * tileHeight * bands;
+
+		int numberOfTiles = tileColumns * tileRows;
+
+		mappedDirectory = channel.map(FileChannel.MapMode.READ_WRITE,
+				HEADER_SIZE, (long) numberOfTiles * 8);
+
+		directory = new AtomicLongArray(numberOfTiles);
+
+		for (int i = 0; i < numberOfTiles; i++) {
+			directory.set(i, mappedDirectory.getLong(i * 8));
+			// the count is only written on flush, so it is behind the
+			// directory if the raster was not closed
+			count = Math.max(count, directory.get(i));
+		}
+
+		allocated = new AtomicLong(count);
+
+		long directoryEnd = HEADER_SIZE + (long) numberOfTiles * 8;
+
+		dataOffset = (directoryEnd + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+
+		tilesPerSegment = (int) Math.max(1, MAX_SEGMENT_SIZE / tileSize);
+
+		segments = new AtomicReferenceArray<MappedByteBuffer>(
+				(numberOfTiles + tilesPerSegment - 1) / tilesPerSegment);
+
+	}
+
+	/**
+	 * Writes a rectangular region of the raster.
+	 *
+	 * @param x
+	 *            Horizontal coordinate of the top-left corner of the region.
+	 * @param y
+	 *            Vertical coordinate of the top-left corner of the region.
+	 * @param width
+	 *            Width of the region.
+	 * @param height
+	 *            Height of the region.
+	 * @param data
+	 *            Band-interleaved pixel data of the region in row-major order.
+	 * @throws IOException
+	 */
+	public void write(int x, int y, int width, int height, byte[] data)
+			throws IOException {
+
+		if (data.length < width * height * bands) {
+			throw new IllegalArgumentException(
+					"Not enough data for the region");
+		}
+
+		copy(x, y, width, height, data, true);
+	}
+
+	/**
+	 * Reads a rectangular region of the raster. Pixels that were never
+	 * written are zero.
+	 *
+	 * @param x
+	 *            Horizontal coordinate of the top-left corner of the region.
+	 * @param y
+	 *            Vertical coordinate of the top-left corner of the region.
+	 * @param width
+	 *            Width of the region.
+	 * @param height
+	 *            Height of the region.
+	 * @return Band-interleaved pixel data of the region in row-major order.
+	 * @throws IOException
+	 */
+	public byte[] read(int x, int y, int width, int height)
+			throws IOException {
+
+		byte[] data = new byte[width * height * bands];
+
+		copy(x, y, width, height, data, false);
+
+		return data;
+	}
+
+	/**
+	 * Writes the result for a block of a {@link BlockProcessor} to the region
+	 * of the block without the padding. The block coordinates must be in
+	 * pixels of a level with the same size as the raster.
+	 */
+	@Override
+	public void write(Block block, byte[] result) throws IOException {
+
+		ImageRegionParam region = block.getRegion();
+
+		write(Math.round(region.getX()), Math.round(region.getY()),
+				Math.round(region.getWidth()), Math.round(region.getHeight()),
+				result);
+	}
+
+	/**
+	 * Flushes the raster to disk.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+
+		mappedDirectory.force();
+
+		for (int i = 0; i < segments.length(); i++) {
+			if (segments.get(i) != null) {
+				segments.get(i).force();
+			}
+		}
+
+		ByteBuffer count = ByteBuffer.allocate(8);
+		count.putLong(0, allocated.get());
+
+		channel.write(count, HEADER_SIZE - 8);
+
+	}
+
+	/**
+	 * Flushes the raster to disk and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		try {
+			flush();
+		} finally {
+			raf.close();
+		}
+
+	}
+
+	/**
+	 * Gets the width of the raster in pixels.
+	 *
+	 * @return The width.
+	 */
+	public int getWidth() {
+
+		return width;
+	}
+
+	/**
+	 * Gets the height of the raster in pixels.
+	 *
+	 * @return The height.
+	 */
+	public int getHeight() {
+
+		return height;
+	}
+
+	/**
+	 * Gets the number of bands (bytes per pixel).
+	 *
+	 * @return The number of bands.
+	 */
+	public int getBands() {
+
+		return bands;
+	}
+
+	/**
+	 * Gets the number of tiles that are allocated in the file.
+	 *
+	 * @return The number of allocated tiles.
+	 */
+	public long getAllocatedTiles() {
+
+		return allocated.get();
+	}
+
+	/*
+	 * Copies a region between the raster and an array.
+	 */
+	private void copy(int x, int y, int width, int height, byte[] data,
+			boolean write) throws IOException {
+
+		if (x < 0 || y < 0 || x + width > this.width
+				|| y + height > this.height) {
+			throw new IndexOutOfBoundsException("Region outside of the raster");
+		}
+
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+
+		int firstCol = x / tileWidth;
+		int lastCol = (x + width - 1) / tileWidth;
+		int firstRow = y / tileHeight;
+		int lastRow = (y + height - 1) / tileHeight;
+
+		for (int tileRow = firstRow; tileRow <= lastRow; tileRow++) {
+			for (int tileCol = firstCol; tileCol <= lastCol; tileCol++) {
+
+				int tileIndex = tileRow * tileColumns + tileCol;
+
+				long entry = write ? allocate(tileIndex) : directory
+						.get(tileIndex);
+
+				if (entry <= 0) {
+					// not allocated: the data is already zero
+					continue;
+				}
+
+				ByteBuffer tile = getTile(entry - 1);
+
+				// intersection of the region with the tile
+				int fromX = Math.max(x, tileCol * tileWidth);
+				int toX = Math.min(x + width, (tileCol + 1) * tileWidth);
+				int fromY = Math.max(y, tileRow * tileHeight);
+				int toY = Math.min(y + height, (tileRow + 1) * tileHeight);
+
+				int length = (toX - fromX) * bands;
+
+				for (int row = fromY; row < toY; row++) {
+
+					int tileX = fromX - tileCol * tileWidth;
+					int tileY = row - tileRow * tileHeight;
+
+					tile.position((tileY * tileWidth + tileX) * bands);
+
+					int offset = ((row - y) * width + fromX - x) * bands;
+
+					if (write) {
+						tile.put(data, offset, length);
+					} else {
+						tile.get(data, offset, length);
+					}
+
+				}
+
+			}
+		}
+
+	}
+
+	/*
+	 * Returns the directory entry of a tile, allocating the tile if needed.
+	 */
+	private long allocate(int tileIndex) {
+
+		long entry = directory.get(tileIndex);
+
+		while (entry <= 0) {
+
+			if (entry == 0 && directory.compareAndSet(tileIndex, 0, CLAIMED)) {
+
+				entry = allocated.incrementAndGet();
+
+				mappedDirectory.putLong(tileIndex * 8, entry);
+				directory.set(tileIndex, entry);
+
+				return entry;
+			}
+
+			// another thread is allocating the tile
+			Thread.yield();
+
+			entry = directory.get(tileIndex);
+
+		}
+
+		return entry;
+	}
+
+	/*
+	 * Returns a buffer for the tile with the specified allocation index.
+	 */
+	private ByteBuffer getTile(long index) throws IOException {
+
+		int segmentIndex = (int) (index / tilesPerSegment);
+
+		MappedByteBuffer segment = segments.get(segmentIndex);
+
+		if (segment == null) {
+
+			// the last segment only covers the remaining tiles
+			long tiles = Math.min(tilesPerSegment, directory.length()
+					- (long) segmentIndex * tilesPerSegment);
+
+			segment = channel.map(FileChannel.MapMode.READ_WRITE, dataOffset
+					+ (long) segmentIndex * tilesPerSegment * tileSize, tiles
+					* tileSize);
+
+			if (!segments.compareAndSet(segmentIndex, null, segment)) {
+				segment = segments.get(segmentIndex);
+			}
+
+		}
+
+		ByteBuffer tile = segment.duplicate();
+
+		int offset = (int) (index % tilesPerSegment) * tileSize;
+
+		tile.position(offset);
+		tile.limit(offset + tileSize);
+
+		return tile.slice();
+	}
+
+}
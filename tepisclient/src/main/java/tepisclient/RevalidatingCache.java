@@ -0,0 +1,472 @@
+package tepisclient;
+
+import java.io.ByteArrayInputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache for the responses of a {@link TepisClient} that revalidates its
+ * entries with the server.
+ * <p>
+ * Each response is stored together with its validators, the ETag and
+ * Last-Modified headers. Within the maximum age of an entry, the entry is
+ * returned without a request. After that, the entry is revalidated with a
+ * conditional request (If-None-Match and If-Modified-Since) and the server
+ * either answers with 304 Not Modified, which refreshes the entry without
+ * transferring the response again, or with the new response, for example of
+ * a slide that was scanned again. With a maximum age of 0, every request is
+ * revalidated, so stale data is never returned. Responses without validators
+ * are only cached if the maximum age is not 0.
+ * <p>
+ * The metadata and the associated images of slides benefit most, since they
+ * are requested repeatedly and rarely change. When the cache exceeds its
+ * size, the least recently used responses are evicted. The cache can be
+ * shared by several clients of the same server.
+ * <p>
+ * A {@link SharedTileCache} can be added as a second tier, which is shared
+ * with the other processes on the host. Responses that are not in memory are
+ * looked up in the shared cache, with the age they have there, and new
+ * responses are stored in both. A failure of the shared cache, for example a
+ * fault of its mapping, is treated as a miss and never fails the request.
+ *
+ */
+
+public class RevalidatingCache {
+
+	/*
+	 * Maximum total size of the cached responses in bytes.
+	 */
+	private final long maxBytes;
+
+	/*
+	 * Time in nanoseconds during which a response is returned without
+	 * revalidation.
+	 */
+	private final long maxAge;
+
+	/*
+	 * Cache shared with the other processes on the host or null.
+	 */
+	private final SharedTileCache shared;
+
+	/*
+	 * Responses by path and query of the request in least recently used
+	 * order. Guarded by this, together with the fields below.
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	private long bytes;
+
+	/*
+	 * Responses returned without a request, after a 304 response and after a
+	 * full response.
+	 */
+	private long hits;
+
+	private long revalidations;
+
+	private long misses;
+
+	/**
+	 * @param maxBytes
+	 *            Maximum total size of the cached responses in bytes.
+	 * @param maxAge
+	 *            Time in milliseconds during which a cached response is
+	 *            returned without revalidating it with the server.
+	 */
+	public RevalidatingCache(long maxBytes, long maxAge) {
+
+		this(maxBytes, maxAge, null);
+	}
+
+	/**
+	 * @param maxBytes
+	 *            Maximum total size of the responses cached in memory in
+	 *            bytes.
+	 * @param maxAge
+	 *            Time in milliseconds during which a cached response is
+	 *            returned without revalidating it with the server.
+	 * @param shared
+	 *            Cache shared with the other processes on the host or null.
+	 */
+	public RevalidatingCache(long maxBytes, long maxAge,
+			SharedTileCache shared) {
+
+		this.maxBytes = maxBytes;
+		this.maxAge = TimeUnit.MILLISECONDS.toNanos(maxAge);
+		this.shared = shared;
+	}
+
+	/**
+	 * Gets the maximum total size of the responses cached in memory.
+	 *
+	 * @return The size in bytes.
+	 */
+	public long getMaxBytes() {
+
+		return maxBytes;
+	}
+
+	/**
+	 * Gets the cache shared with the other processes on the host.
+	 *
+	 * @return The shared cache or null.
+	 */
+	public SharedTileCache getSharedCache() {
+
+		return shared;
+	}
+
+	/**
+	 * Removes all responses from the cache.
+	 */
+	public synchronized void clear() {
+
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Gets the number of cached responses.
+	 *
+	 * @return The number of responses.
+	 */
+	public synchronized int size() {
+
+		return entries.size();
+	}
+
+	/**
+	 * Gets the total size of the cached responses.
+	 *
+	 * @return The size in bytes.
+	 */
+	public synchronized long getBytes() {
+
+		return bytes;
+	}
+
+	/**
+	 * Gets the number of responses returned from the cache without a request.
+	 *
+	 * @return The number of responses.
+	 */
+	public synchronized long getHits() {
+
+		return hits;
+	}
+
+	/**
+	 * Gets the number of responses returned from the cache after the server
+	 * confirmed with 304 Not Modified that they are still valid.
+	 *
+	 * @return The number of responses.
+	 */
+	public synchronized long getRevalidations() {
+
+		return revalidations;
+	}
+
+	/**
+	 * Gets the number of responses that were transferred from the server,
+	 * because they were not cached or had changed.
+	 *
+	 * @return The number of responses.
+	 */
+	public synchronized long getMisses() {
+
+		return misses;
+	}
+
+	/**
+	 * Returns the cached response to a request if it does not need to be
+	 * revalidated and adds the conditional headers to the request otherwise.
+	 *
+	 * @param request
+	 *            The request.
+	 * @param entry
+	 *            The cached entry for the request or null.
+	 * @return The cached response or null if the request must be sent.
+	 */
+	TransportResponse prepare(TransportRequest request, Entry entry) {
+
+		if (entry == null) {
+			return null;
+		}
+
+		if (maxAge > 0 && System.nanoTime() - entry.validated < maxAge) {
+
+			synchronized (this) {
+				hits++;
+			}
+
+			return entry.response();
+		}
+
+		String eTag = entry.getHeader("ETag");
+		String lastModified = entry.getHeader("Last-Modified");
+
+		if (eTag != null) {
+			request.header("If-None-Match", eTag);
+		}
+
+		if (lastModified != null) {
+			request.header("If-Modified-Since", lastModified);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the cached entry for a request.
+	 *
+	 * @param request
+	 *            The request.
+	 * @return The entry or null if the response is not cached.
+	 */
+	Entry get(TransportRequest request) {
+
+		String key = request.getPathAndQuery();
+
+		synchronized (this) {
+
+			Entry entry = entries.get(key);
+
+			if (entry != null || shared == null) {
+				return entry;
+			}
+
+		}
+
+		SharedTileCache.Record record = getShared(key);
+
+		if (record == null) {
+			return null;
+		}
+
+		// keep the age of the response in the shared cache
+		long age = Math.max(0, System.currentTimeMillis()
+				- record.getValidated());
+
+		Entry entry = new Entry(record.getData(), record.getHeaders(),
+				System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(age));
+
+		synchronized (this) {
+			store(key, entry);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Refreshes a cached entry after the server responded with 304 Not
+	 * Modified.
+	 *
+	 * @param request
+	 *            The conditional request.
+	 * @param entry
+	 *            The cached entry that was revalidated.
+	 * @param response
+	 *            The 304 response, whose validators replace the cached ones.
+	 * @return The cached response.
+	 */
+	TransportResponse notModified(TransportRequest request, Entry entry,
+			TransportResponse response) {
+
+		Map<String, List<String>> headers = new TreeMap<String, List<String>>(
+				String.CASE_INSENSITIVE_ORDER);
+		headers.putAll(entry.headers);
+
+		for (String name : new String[] { "ETag", "Last-Modified" }) {
+			if (!response.getHeaders(name).isEmpty()) {
+				headers.put(name, response.getHeaders(name));
+			}
+		}
+
+		Entry refreshed = new Entry(entry.data, headers);
+
+		synchronized (this) {
+
+			revalidations++;
+
+			// the entry may have been replaced by a newer response meanwhile
+			if (entries.get(request.getPathAndQuery()) == entry) {
+				entries.put(request.getPathAndQuery(), refreshed);
+			}
+
+		}
+
+		return refreshed.response();
+	}
+
+	/**
+	 * Caches a successful response.
+	 *
+	 * @param request
+	 *            The request.
+	 * @param response
+	 *            The response, whose body is already read.
+	 * @param data
+	 *            The body of the response.
+	 * @return A response with the same status and headers over the data.
+	 */
+	TransportResponse put(TransportRequest request,
+			TransportResponse response, byte[] data) {
+
+		Entry entry = new Entry(data, response.getHeaders());
+
+		String key = request.getPathAndQuery();
+
+		boolean cacheable = maxAge > 0 || entry.getHeader("ETag") != null
+				|| entry.getHeader("Last-Modified") != null;
+
+		synchronized (this) {
+
+			misses++;
+
+			if (cacheable) {
+				store(key, entry);
+			} else {
+				remove(key);
+			}
+
+		}
+
+		if (cacheable && shared != null) {
+			putShared(key, entry.headers, data);
+		}
+
+		return entry.response();
+	}
+
+	/*
+	 * Looks up a response in the shared cache, treating a failure as a miss.
+	 */
+	private SharedTileCache.Record getShared(String key) {
+
+		try {
+			return shared.get(key);
+		} catch (RuntimeException e) {
+			return null;
+		} catch (InternalError e) {
+			// fault of the mapping, for example if the file was truncated
+			return null;
+		}
+
+	}
+
+	/*
+	 * Stores a response in the shared cache, ignoring a failure.
+	 */
+	private void putShared(String key, Map<String, List<String>> headers,
+			byte[] data) {
+
+		try {
+			shared.put(key, headers, data, System.currentTimeMillis());
+		} catch (RuntimeException e) {
+			// the response is still cached in memory
+		} catch (InternalError e) {
+			// fault of the mapping, for example if the file was truncated
+		}
+
+	}
+
+	/*
+	 * Stores an entry and evicts the least recently used responses. Must be
+	 * called while holding the lock.
+	 */
+	private void store(String key, Entry entry) {
+
+		remove(key);
+
+		if (entry.data.length > maxBytes) {
+			return;
+		}
+
+		entries.put(key, entry);
+		bytes += entry.data.length;
+
+		Iterator<Entry> it = entries.values().iterator();
+
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().data.length;
+			it.remove();
+		}
+
+	}
+
+	private void remove(String key) {
+
+		Entry previous = entries.remove(key);
+
+		if (previous != null) {
+			bytes -= previous.data.length;
+		}
+
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return "RevalidatingCache [size=" + entries.size() + ", bytes=" + bytes
+				+ ", hits=" + hits + ", revalidations=" + revalidations
+				+ ", misses=" + misses + "]";
+	}
+
+	/*
+	 * A cached response. Entries are immutable and replaced when they are
+	 * revalidated.
+	 */
+	static class Entry {
+
+		private final byte[] data;
+
+		private final Map<String, List<String>> headers;
+
+		/*
+		 * Time of the response or of its last revalidation in nanoseconds.
+		 */
+		private final long validated;
+
+		Entry(byte[] data, Map<String, List<String>> headers) {
+
+			this(data, headers, System.nanoTime());
+		}
+
+		Entry(byte[] data, Map<String, List<String>> headers, long validated) {
+
+			this.data = data;
+			this.headers = headers;
+			this.validated = validated;
+		}
+
+		String getHeader(String name) {
+
+			for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+				if (header.getKey().equalsIgnoreCase(name)
+						&& !header.getValue().isEmpty()) {
+					return header.getValue().get(0);
+				}
+			}
+
+			return null;
+		}
+
+		/*
+		 * A new response over the cached data, which is shared and must not
+		 * be modified.
+		 */
+		TransportResponse response() {
+
+			return new TransportResponse(200, headers,
+					new ByteArrayInputStream(data));
+		}
+
+	}
+
+}
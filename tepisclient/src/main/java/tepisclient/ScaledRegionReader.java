@@ -0,0 +1,307 @@
+package tepisclient;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Reads regions of a digital slide at a target resolution.
+ * <p>
+ * The region is specified in pixel coordinates of the first (largest) level.
+ * The region is read from the smallest level that still has at least the
+ * requested resolution and is then downscaled to the exact target size by
+ * area averaging. This avoids reading the first level when a smaller level
+ * gives the same result.
+ *
+ */
+
+public class ScaledRegionReader {
+
+	/*
+	 * Tolerance for comparing downsampling factors.
+	 */
+	private static final double EPS = 1e-6;
+
+	private final TepisClient client;
+
+	private final String imageID;
+
+	private final SlideGeometry geometry;
+
+	/**
+	 * The pixel geometry of the slide is read from the server.
+	 *
+	 * @param client
+	 *            Client used to read the image data.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 */
+	public ScaledRegionReader(TepisClient client, String imageID) {
+
+		this(client, imageID, new SlideGeometry(
+				client.getPixelMetadata(imageID)));
+	}
+
+	/**
+	 * @param client
+	 *            Client used to read the image data.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 */
+	public ScaledRegionReader(TepisClient client, String imageID,
+			SlideGeometry geometry) {
+
+		this.client = client;
+		this.imageID = imageID;
+		this.geometry = geometry;
+	}
+
+	/**
+	 * Selects the smallest level from which a region can be read with at
+	 * least the target size.
+	 *
+	 * @param width
+	 *            Width of the region in pixels of the first level.
+	 * @param height
+	 *            Height of the region in pixels of the first level.
+	 * @param targetWidth
+	 *            Target width of the region.
+	 * @param targetHeight
+	 *            Target height of the region.
+	 * @return The selected level.
+	 */
+	public int selectLevel(double width, double height, int targetWidth,
+			int targetHeight) {
+
+		double downsamplingX = width / targetWidth;
+		double downsamplingY = height / targetHeight;
+
+		int selectedLevel = 0;
+
+		for (int level = 1; level < geometry.getNumberOfLevels(); level++) {
+			if (geometry.getDownsamplingX(level) <= downsamplingX * (1 + EPS)
+					&& geometry.getDownsamplingY(level) <= downsamplingY
+							* (1 + EPS)) {
+				selectedLevel = level;
+			}
+		}
+
+		return selectedLevel;
+	}
+
+	/**
+	 * Selects the smallest level with physical pixel size not larger than the
+	 * target pixel size.
+	 *
+	 * @param micronsPerPixel
+	 *            Target physical size of the pixels in micrometers.
+	 * @return The selected level.
+	 */
+	public int selectLevel(double micronsPerPixel) {
+
+		// the physical spacing is in mm
+		double width = micronsPerPixel
+				/ (1000 * geometry.getPhysicalSpacingX(0));
+		double height = micronsPerPixel
+				/ (1000 * geometry.getPhysicalSpacingY(0));
+
+		return selectLevel(width, height, 1, 1);
+	}
+
+	/**
+	 * Reads a region with the specified target size in the default image
+	 * format and quality of the server.
+	 *
+	 * @param x
+	 *            Horizontal coordinate of the top-left corner of the region in
+	 *            pixels of the first level.
+	 * @param y
+	 *            Vertical coordinate of the top-left corner of the region in
+	 *            pixels of the first level.
+	 * @param width
+	 *            Width of the region in pixels of the first level.
+	 * @param height
+	 *            Height of the region in pixels of the first level.
+	 * @param targetWidth
+	 *            Width of the returned image.
+	 * @param targetHeight
+	 *            Height of the returned image.
+	 * @return The requested region.
+	 * @throws IOException
+	 *             If the image data cannot be decoded.
+	 */
+	public BufferedImage readRegion(double x, double y, double width,
+			double height, int targetWidth, int targetHeight)
+			throws IOException {
+
+		return readRegion(x, y, width, height, targetWidth, targetHeight, null);
+	}
+
+	/**
+	 * Reads a region with the specified target size and with specified image
+	 * format and quality.
+	 *
+	 * @param x
+	 *            Horizontal coordinate of the top-left corner of the region in
+	 *            pixels of the first level.
+	 * @param y
+	 *            Vertical coordinate of the top-left corner of the region in
+	 *            pixels of the first level.
+	 * @param width
+	 *            Width of the region in pixels of the first level.
+	 * @param height
+	 *            Height of the region in pixels of the first level.
+	 * @param targetWidth
+	 *            Width of the returned image.
+	 * @param targetHeight
+	 *            Height of the returned image.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the image data that is read from the server.
+	 * @return The requested region.
+	 * @throws IOException
+	 *             If the image data cannot be decoded.
+	 */
+	public BufferedImage readRegion(double x, double y, double width,
+			double height, int targetWidth, int targetHeight,
+			ImageFormatParam ifp) throws IOException {
+
+		return read(x, y, width, height, targetWidth, targetHeight, ifp, false);
+	}
+
+	/**
+	 * Reads a preview of a region with the specified target size and with
+	 * specified image format and quality.
+	 * <p>
+	 * Unlike {@link #readRegion(double, double, double, double, int, int,
+	 * ImageFormatParam)}, the image data is decoded with the largest source
+	 * subsampling at which it still has at least the target size, so only the
+	 * pixels that contribute to the preview are decoded and stored. The
+	 * subsampled pixels are not averaged, so the preview can show aliasing
+	 * and should not be used for analysis.
+	 *
+	 * @param x
+	 *            Horizontal coordinate of the top-left corner of the region in
+	 *            pixels of the first level.
+	 * @param y
+	 *            Vertical coordinate of the top-left corner of the region in
+	 *            pixels of the first level.
+	 * @param width
+	 *            Width of the region in pixels of the first level.
+	 * @param height
+	 *            Height of the region in pixels of the first level.
+	 * @param targetWidth
+	 *            Width of the returned image.
+	 * @param targetHeight
+	 *            Height of the returned image.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the image data that is read from the server.
+	 * @return The preview of the requested region.
+	 * @throws IOException
+	 *             If the image data cannot be decoded.
+	 */
+	public BufferedImage readPreview(double x, double y, double width,
+			double height, int targetWidth, int targetHeight,
+			ImageFormatParam ifp) throws IOException {
+
+		return read(x, y, width, height, targetWidth, targetHeight, ifp, true);
+	}
+
+	/**
+	 * Reads a region with the specified target physical pixel size in the
+	 * default image format and quality of the server.
+	 *
+	 * @param x
+	 *            Horizontal coordinate of the top-left corner of the region in
+	 *            pixels of the first level.
+	 * @param y
+	 *            Vertical coordinate of the top-left corner of the region in
+	 *            pixels of the first level.
+	 * @param width
+	 *            Width of the region in pixels of the first level.
+	 * @param height
+	 *            Height of the region in pixels of the first level.
+	 * @param micronsPerPixel
+	 *            Physical size of the pixels of the returned image in
+	 *            micrometers.
+	 * @return The requested region.
+	 * @throws IOException
+	 *             If the image data cannot be decoded.
+	 */
+	public BufferedImage readRegion(double x, double y, double width,
+			double height, double micronsPerPixel) throws IOException {
+
+		int targetWidth = (int) Math.max(1, Math.round(width
+				* geometry.getPhysicalSpacingX(0) * 1000 / micronsPerPixel));
+		int targetHeight = (int) Math.max(1, Math.round(height
+				* geometry.getPhysicalSpacingY(0) * 1000 / micronsPerPixel));
+
+		return readRegion(x, y, width, height, targetWidth, targetHeight, null);
+	}
+
+	private BufferedImage read(double x, double y, double width,
+			double height, int targetWidth, int targetHeight,
+			ImageFormatParam ifp, boolean subsample) throws IOException {
+
+		int level = selectLevel(width, height, targetWidth, targetHeight);
+
+		double downsamplingX = geometry.getDownsamplingX(level);
+		double downsamplingY = geometry.getDownsamplingY(level);
+
+		// region in the coordinates of the selected level
+		double levelX = x / downsamplingX;
+		double levelY = y / downsamplingY;
+		double levelWidth = width / downsamplingX;
+		double levelHeight = height / downsamplingY;
+
+		// pixel aligned region that covers the requested region
+		int fromX = Math.max(0, (int) Math.floor(levelX));
+		int fromY = Math.max(0, (int) Math.floor(levelY));
+		int toX = Math.min(geometry.getWidth(level),
+				(int) Math.ceil(levelX + levelWidth));
+		int toY = Math.min(geometry.getHeight(level),
+				(int) Math.ceil(levelY + levelHeight));
+
+		ImageRegionParam irp = new ImageRegionParam((float) fromX,
+				(float) fromY, (float) Math.max(1, toX - fromX),
+				(float) Math.max(1, toY - fromY), level, Unit.PIXEL);
+
+		byte[] data = client.getImagePixelData(imageID, irp, ifp);
+
+		if (!subsample) {
+
+			BufferedImage image = ImageDecoder.decode(data);
+
+			return ImageResampler.areaAverage(image, levelX - fromX, levelY
+					- fromY, levelWidth, levelHeight, targetWidth, targetHeight);
+		}
+
+		// pixel i of the subsampled image is pixel i * subsampling of the
+		// region
+		DecodeOptions options = DecodeOptions.forTargetSize(levelWidth,
+				levelHeight, targetWidth, targetHeight);
+
+		double subsamplingX = options.getSubsamplingX();
+		double subsamplingY = options.getSubsamplingY();
+
+		BufferedImage image = ImageDecoder.decode(data, options);
+
+		return ImageResampler.areaAverage(image,
+				(levelX - fromX) / subsamplingX, (levelY - fromY)
+						/ subsamplingY, levelWidth / subsamplingX, levelHeight
+						/ subsamplingY, targetWidth, targetHeight);
+	}
+
+	/**
+	 * Gets the pixel geometry of the digital slide.
+	 *
+	 * @return The pixel geometry.
+	 */
+	public SlideGeometry getGeometry() {
+
+		return geometry;
+	}
+
+}
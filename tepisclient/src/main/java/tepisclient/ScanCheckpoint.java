@@ -0,0 +1,414 @@
+package tepisclient;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checkpoint of a scan over the blocks of a {@link BlockGrid}, split in
+ * shards that can be processed by different processes.
+ * <p>
+ * Each block is assigned to one of a number of shards by a fixed hash of its
+ * position in the grid, so every process computes the same assignment without
+ * coordination and the blocks with tissue are spread evenly over the shards.
+ * Completed blocks are recorded in a bitmap in a memory-mapped file, so a scan
+ * that is restarted after a failure skips the blocks that were already
+ * completed. The file has the following layout (all values are big-endian):
+ * <ul>
+ * <li>header: magic number, format version, number of block columns and
+ * number of block rows (4 ints) and a digest that identifies the scan, for
+ * example the slide, the level and the block size (1 long);</li>
+ * <li>bitmap: one bit for each block in row-major order, set when the block
+ * is completed (1 long per 64 blocks).</li>
+ * </ul>
+ * <p>
+ * Bits are set with atomic operations on the mapped file, so the processes of
+ * all shards on one host can share one checkpoint file, and the number of
+ * shards may change when a scan is resumed. Memory-mapped files are not
+ * coherent between hosts, so processes on different hosts must use one file
+ * per shard and the same number of shards when resuming. The bitmap is kept
+ * when a process fails and is written to disk when the checkpoint is flushed
+ * or closed; blocks whose bits are lost with the operating system are
+ * processed again.
+ * <p>
+ * A checkpoint is opened with the identification of its scan and cannot be
+ * opened for a different scan, so a file that is left over from another
+ * slide or level is not mistaken for progress.
+ *
+ */
+
+public class ScanCheckpoint implements Closeable {
+
+	/*
+	 * Magic number ("TCKP") and version of the file format.
+	 */
+	private static final int MAGIC = 0x54434b50;
+	private static final int VERSION = 2;
+
+	/*
+	 * The bitmap starts at a multiple of 8 bytes for the atomic access.
+	 */
+	private static final int HEADER_SIZE = 4 * 4 + 8;
+
+	/*
+	 * Atomic access to the words of the bitmap, which also works between
+	 * processes.
+	 */
+	private static final VarHandle LONGS = MethodHandles
+			.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private final RandomAccessFile raf;
+
+	private final MappedByteBuffer bitmap;
+
+	/*
+	 * Number of block columns and rows of the grid.
+	 */
+	private final int columns;
+	private final int rows;
+
+	/*
+	 * Shard of this process and number of shards.
+	 */
+	private final int shard;
+	private final int shards;
+
+	/**
+	 * Opens the checkpoint of a shard of a block grid and creates it if the
+	 * file does not exist.
+	 *
+	 * @param file
+	 *            The checkpoint file.
+	 * @param imageID
+	 *            ID of the digital slide that is scanned.
+	 * @param grid
+	 *            The block grid.
+	 * @param shard
+	 *            Shard of this process, from 0 to shards - 1.
+	 * @param shards
+	 *            Number of shards.
+	 * @return The checkpoint.
+	 * @throws IOException
+	 *             If the file cannot be mapped or is a checkpoint of a
+	 *             different slide, level or grid.
+	 */
+	public static ScanCheckpoint open(File file, String imageID,
+			BlockGrid grid, int shard, int shards) throws IOException {
+
+		return open(file, imageID + " level " + grid.getLevel() + " blocks "
+				+ grid.getBlockWidth() + "x" + grid.getBlockHeight(),
+				grid.getColumns(), grid.getRows(), shard, shards);
+	}
+
+	/**
+	 * Opens the checkpoint of a shard of a grid with the specified number of
+	 * blocks and creates it if the file does not exist.
+	 *
+	 * @param file
+	 *            The checkpoint file.
+	 * @param scan
+	 *            Identification of the scan, for example the ID of the slide,
+	 *            the level and the block size. Only its digest is stored.
+	 * @param columns
+	 *            Number of block columns.
+	 * @param rows
+	 *            Number of block rows.
+	 * @param shard
+	 *            Shard of this process, from 0 to shards - 1.
+	 * @param shards
+	 *            Number of shards.
+	 * @return The checkpoint.
+	 * @throws IOException
+	 *             If the file cannot be mapped or is a checkpoint of a
+	 *             different scan or grid.
+	 */
+	public static ScanCheckpoint open(File file, String scan, int columns,
+			int rows, int shard, int shards) throws IOException {
+
+		if (shards < 1 || shard < 0 || shard >= shards) {
+			throw new IllegalArgumentException("Invalid shard " + shard
+					+ " of " + shards);
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+
+			FileLock lock = raf.getChannel().lock();
+
+			try {
+
+				if (raf.length() == 0) {
+
+					raf.setLength(HEADER_SIZE + words(columns, rows) * 8);
+
+					ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+					header.putInt(MAGIC);
+					header.putInt(VERSION);
+					header.putInt(columns);
+					header.putInt(rows);
+					header.putLong(digest(scan));
+
+					header.flip();
+
+					while (header.hasRemaining()) {
+						raf.getChannel().write(header, header.position());
+					}
+
+				}
+
+			} finally {
+				lock.release();
+			}
+
+			return new ScanCheckpoint(raf, scan, columns, rows, shard, shards);
+
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+
+	}
+
+	private ScanCheckpoint(RandomAccessFile raf, String scan, int columns,
+			int rows, int shard, int shards) throws IOException {
+
+		this.raf = raf;
+		this.columns = columns;
+		this.rows = rows;
+		this.shard = shard;
+		this.shards = shards;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+		while (header.hasRemaining()) {
+			if (raf.getChannel().read(header, header.position()) < 0) {
+				throw new IOException("Not a scan checkpoint file");
+			}
+		}
+
+		header.flip();
+
+		if (header.getInt() != MAGIC) {
+			throw new IOException("Not a scan checkpoint file");
+		}
+
+		if (header.getInt() != VERSION) {
+			throw new IOException("Unsupported scan checkpoint version");
+		}
+
+		if (header.getInt() != columns || header.getInt() != rows) {
+			throw new IOException("Scan checkpoint of a different block grid");
+		}
+
+		if (header.getLong() != digest(scan)) {
+			throw new IOException("Scan checkpoint of a different scan than "
+					+ scan);
+		}
+
+		bitmap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_SIZE + words(columns, rows) * 8);
+	}
+
+	/*
+	 * First 8 bytes of the SHA-256 digest of the identification of a scan.
+	 */
+	private static long digest(String scan) {
+
+		try {
+			return ByteBuffer.wrap(
+					MessageDigest.getInstance("SHA-256").digest(
+							scan.getBytes(StandardCharsets.UTF_8))).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+
+	}
+
+	private static long words(int columns, int rows) {
+
+		return ((long) columns * rows + 63) / 64;
+	}
+
+	/**
+	 * Writes the bitmap to disk and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		flush();
+		raf.close();
+	}
+
+	/**
+	 * Writes the bitmap to disk, so that it survives a failure of the
+	 * operating system.
+	 */
+	public void flush() {
+
+		bitmap.force();
+	}
+
+	/**
+	 * Returns the shard of a block.
+	 *
+	 * @param col
+	 *            Column of the block.
+	 * @param row
+	 *            Row of the block.
+	 * @return The shard, from 0 to the number of shards - 1.
+	 */
+	public int shardOf(int col, int row) {
+
+		// SplitMix64 finalizer, so that neighbouring blocks are spread over
+		// the shards
+		long hash = (long) row * columns + col;
+
+		hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+		hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+		hash = hash ^ (hash >>> 31);
+
+		return (int) Long.remainderUnsigned(hash, shards);
+	}
+
+	/**
+	 * Checks whether a block is completed, in any shard.
+	 *
+	 * @param col
+	 *            Column of the block.
+	 * @param row
+	 *            Row of the block.
+	 * @return true if the block is completed.
+	 */
+	public boolean isDone(int col, int row) {
+
+		long index = index(col, row);
+
+		return ((long) LONGS.getAcquire(bitmap, offset(index)) & (1L << index)) != 0;
+	}
+
+	/**
+	 * Checks whether a block belongs to the shard of this checkpoint and is
+	 * not completed.
+	 *
+	 * @param col
+	 *            Column of the block.
+	 * @param row
+	 *            Row of the block.
+	 * @return true if the block should be processed.
+	 */
+	public boolean isPending(int col, int row) {
+
+		return shardOf(col, row) == shard && !isDone(col, row);
+	}
+
+	/**
+	 * Records that a block is completed. Can be called concurrently from
+	 * multiple threads and processes.
+	 *
+	 * @param col
+	 *            Column of the block.
+	 * @param row
+	 *            Row of the block.
+	 */
+	public void markDone(int col, int row) {
+
+		long index = index(col, row);
+
+		LONGS.getAndBitwiseOrRelease(bitmap, offset(index), 1L << index);
+	}
+
+	/**
+	 * Gets the number of completed blocks in all shards.
+	 *
+	 * @return The number of blocks.
+	 */
+	public long getCompletedBlocks() {
+
+		long completed = 0;
+
+		for (long word = 0; word < words(columns, rows); word++) {
+			completed += Long.bitCount((long) LONGS.getAcquire(bitmap,
+					(int) (HEADER_SIZE + word * 8)));
+		}
+
+		return completed;
+	}
+
+	/**
+	 * Gets the shard of this checkpoint.
+	 *
+	 * @return The shard.
+	 */
+	public int getShard() {
+
+		return shard;
+	}
+
+	/**
+	 * Gets the number of shards.
+	 *
+	 * @return The number of shards.
+	 */
+	public int getShards() {
+
+		return shards;
+	}
+
+	/**
+	 * Gets the number of block columns.
+	 *
+	 * @return The number of columns.
+	 */
+	public int getColumns() {
+
+		return columns;
+	}
+
+	/**
+	 * Gets the number of block rows.
+	 *
+	 * @return The number of rows.
+	 */
+	public int getRows() {
+
+		return rows;
+	}
+
+	private long index(int col, int row) {
+
+		if (col < 0 || col >= columns || row < 0 || row >= rows) {
+			throw new IndexOutOfBoundsException("Block " + col + ", " + row
+					+ " outside the grid");
+		}
+
+		return (long) row * columns + col;
+	}
+
+	private static int offset(long index) {
+
+		return (int) (HEADER_SIZE + index / 64 * 8);
+	}
+
+	@Override
+	public String toString() {
+
+		return "ScanCheckpoint [columns=" + columns + ", rows=" + rows
+				+ ", shard=" + shard + ", shards=" + shards
+				+ ", completedBlocks=" + getCompletedBlocks() + "]";
+	}
+
+}
@@ -0,0 +1,701 @@
+package tepisclient;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Tile cache in a memory-mapped file that is shared by all processes on a
+ * host, for example the MATLAB workers of a parallel pool.
+ * <p>
+ * Each process opens the same file and reads and fills the cache, so a tile
+ * is read from the server and held in memory once per host instead of once
+ * per process. The cache is used as the second tier of a
+ * {@link RevalidatingCache}. The file is best placed on a memory file system
+ * such as /dev/shm. A new file is limited to half of the usable space of its
+ * file system and written completely when it is created, so that the memory
+ * of the cache is committed up front and a file system that fills up later
+ * cannot fault the mapping. It has the following layout (all values are in
+ * the native byte order of the host):
+ * <ul>
+ * <li>header: magic number, format version and number of index slots (3
+ * ints), size of the data segments, capacity of the data section and
+ * allocation cursor (3 longs), padded to a page;</li>
+ * <li>index: hash of the key and position of the record plus one, or zero
+ * if the slot is empty (2 longs) for each slot;</li>
+ * <li>data: a ring of records, each with the hash of the key (1 long), the
+ * lengths of the key, headers and data (3 ints), the CRC-32C checksum of the
+ * key, headers and data (1 int), the time of the last validation in
+ * milliseconds since the epoch (1 long), followed by the key, the validator
+ * headers and the data, padded to 8 bytes.</li>
+ * </ul>
+ * <p>
+ * Neither reads nor writes take a lock. Space for a record is reserved by
+ * advancing the allocation cursor with an atomic compare-and-set, after
+ * which the oldest records are overwritten. The record is written and then
+ * published by an atomic compare-and-set of an index slot. Readers verify the
+ * key of the record and discard it if the cursor has passed it while it was
+ * copied. The positions are absolute and never wrap, so a record that was
+ * overwritten is always detected. A writer that stalls until the ring wraps
+ * around may still write into a newer record, which is detected by its
+ * checksum. A file lock is only taken while a process opens the cache.
+ *
+ */
+
+public class SharedTileCache implements Closeable {
+
+	/*
+	 * Magic number ("TSHC") and version of the file format.
+	 */
+	private static final int MAGIC = 0x54534843;
+	private static final int VERSION = 1;
+
+	private static final int PAGE_SIZE = 4096;
+
+	/*
+	 * Offsets of the header fields.
+	 */
+	private static final int SLOTS_OFFSET = 8;
+	private static final int SEGMENT_SIZE_OFFSET = 16;
+	private static final int CAPACITY_OFFSET = 24;
+	private static final int CURSOR_OFFSET = 32;
+
+	private static final int SLOT_SIZE = 16;
+
+	private static final int RECORD_HEADER_SIZE = 32;
+
+	/*
+	 * Maximum size of a data segment, which is mapped as a whole.
+	 */
+	private static final long MAX_SEGMENT_SIZE = 1L << 28;
+
+	/*
+	 * Expected average size of a record, which determines the number of
+	 * index slots.
+	 */
+	private static final long RECORD_BYTES = 16 << 10;
+
+	/*
+	 * Number of slots that are probed for a key.
+	 */
+	private static final int PROBES = 8;
+
+	/*
+	 * Validator headers that are stored with the data.
+	 */
+	private static final List<String> VALIDATORS = Collections
+			.unmodifiableList(Arrays.asList("ETag", "Last-Modified"));
+
+	/*
+	 * Atomic access to the longs of the mapped file, which also works
+	 * between processes.
+	 */
+	private static final VarHandle LONGS = MethodHandles
+			.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final RandomAccessFile raf;
+
+	private final MappedByteBuffer header;
+
+	private final MappedByteBuffer index;
+
+	private final MappedByteBuffer[] segments;
+
+	private final int slots;
+
+	private final long segmentSize;
+
+	private final long capacity;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong stores = new AtomicLong();
+
+	/**
+	 * Opens a shared cache and creates it if the file does not exist.
+	 *
+	 * @param file
+	 *            The cache file. A new file is only accessible by the current
+	 *            user.
+	 * @param capacity
+	 *            Size of the data section of a new cache in bytes, which is
+	 *            reduced to half of the usable space of the file system. The
+	 *            capacity of an existing cache does not change.
+	 * @return The cache.
+	 * @throws IOException
+	 *             If the file cannot be mapped or is not a shared cache.
+	 */
+	public static SharedTileCache open(File file, long capacity)
+			throws IOException {
+
+		if (!file.exists()) {
+			try {
+				Files.createFile(file.toPath(), PosixFilePermissions
+						.asFileAttribute(PosixFilePermissions
+								.fromString("rw-------")));
+			} catch (UnsupportedOperationException e) {
+				// not a POSIX file system
+			} catch (java.nio.file.FileAlreadyExistsException e) {
+				// created by another process
+			}
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+
+			FileLock lock = raf.getChannel().lock();
+
+			try {
+
+				if (raf.length() == 0) {
+					initialize(raf, Math.min(capacity, Files.getFileStore(
+							file.toPath()).getUsableSpace() / 2));
+				}
+
+			} finally {
+				lock.release();
+			}
+
+			return new SharedTileCache(raf);
+
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+
+	}
+
+	/*
+	 * Allocates the file of a new cache and writes its header, the magic
+	 * number last. A file that cannot be allocated is truncated, so that
+	 * another process can create the cache again.
+	 */
+	private static void initialize(RandomAccessFile raf, long capacity)
+			throws IOException {
+
+		if (capacity < PAGE_SIZE) {
+			throw new IOException("Not enough space for a shared tile cache");
+		}
+
+		try {
+			allocate(raf, capacity);
+		} catch (IOException e) {
+			raf.setLength(0);
+			throw e;
+		}
+
+	}
+
+	private static void allocate(RandomAccessFile raf, long capacity)
+			throws IOException {
+
+		long segmentSize = Math.min(MAX_SEGMENT_SIZE,
+				(capacity + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE);
+		long numberOfSegments = Math.max(1, (capacity + segmentSize - 1)
+				/ segmentSize);
+
+		// a power of two, so that the hash is masked
+		int slots = Integer.highestOneBit((int) Math.min(1 << 24,
+				Math.max(1024, capacity / RECORD_BYTES)));
+
+		long length = dataOffset(slots) + numberOfSegments * segmentSize;
+
+		// write the whole file instead of leaving it sparse, so that the
+		// file system fails now rather than when a page is first touched
+		ByteBuffer zeros = ByteBuffer.allocate(1 << 20);
+
+		for (long position = 0; position < length; position += zeros
+				.capacity()) {
+			zeros.clear().limit((int) Math.min(zeros.capacity(), length
+					- position));
+			write(raf, zeros, position);
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(CURSOR_OFFSET + 8).order(
+				ByteOrder.nativeOrder());
+
+		header.putInt(0, 0);
+		header.putInt(4, VERSION);
+		header.putInt(SLOTS_OFFSET, slots);
+		header.putLong(SEGMENT_SIZE_OFFSET, segmentSize);
+		header.putLong(CAPACITY_OFFSET, numberOfSegments * segmentSize);
+		header.putLong(CURSOR_OFFSET, 0);
+
+		write(raf, header, 0);
+
+		ByteBuffer magic = ByteBuffer.allocate(4).order(
+				ByteOrder.nativeOrder());
+		magic.putInt(0, MAGIC);
+
+		write(raf, magic, 0);
+
+	}
+
+	private static void write(RandomAccessFile raf, ByteBuffer buffer,
+			long position) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			raf.getChannel().write(buffer, position + buffer.position());
+		}
+
+	}
+
+	private static long dataOffset(int slots) {
+
+		return PAGE_SIZE + (long) slots * SLOT_SIZE;
+	}
+
+	private SharedTileCache(RandomAccessFile raf) throws IOException {
+
+		this.raf = raf;
+
+		FileChannel channel = raf.getChannel();
+
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, PAGE_SIZE);
+		header.order(ByteOrder.nativeOrder());
+
+		if (header.getInt(0) != MAGIC) {
+			throw new IOException("Not a shared tile cache file");
+		}
+
+		if (header.getInt(4) != VERSION) {
+			throw new IOException("Unsupported shared tile cache version");
+		}
+
+		slots = header.getInt(SLOTS_OFFSET);
+		segmentSize = header.getLong(SEGMENT_SIZE_OFFSET);
+		capacity = header.getLong(CAPACITY_OFFSET);
+
+		index = channel.map(FileChannel.MapMode.READ_WRITE, PAGE_SIZE,
+				(long) slots * SLOT_SIZE);
+
+		segments = new MappedByteBuffer[(int) (capacity / segmentSize)];
+
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+					dataOffset(slots) + i * segmentSize, segmentSize);
+		}
+
+	}
+
+	/**
+	 * Closes the file. The mapping is released when the cache is no longer
+	 * referenced, so the cache must not be used after it is closed.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		raf.close();
+	}
+
+	/**
+	 * Gets the size of the data section.
+	 *
+	 * @return The size in bytes.
+	 */
+	public long getCapacity() {
+
+		return capacity;
+	}
+
+	/**
+	 * Gets the total size of the records written by all processes, including
+	 * those that were overwritten.
+	 *
+	 * @return The size in bytes.
+	 */
+	public long getWrittenBytes() {
+
+		return (long) LONGS.getAcquire(header, CURSOR_OFFSET);
+	}
+
+	/**
+	 * Gets the number of responses found in the cache by this process.
+	 *
+	 * @return The number of responses.
+	 */
+	public long getHits() {
+
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of responses not found in the cache by this process.
+	 *
+	 * @return The number of responses.
+	 */
+	public long getMisses() {
+
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of responses stored in the cache by this process.
+	 *
+	 * @return The number of responses.
+	 */
+	public long getStores() {
+
+		return stores.get();
+	}
+
+	@Override
+	public String toString() {
+
+		return "SharedTileCache [capacity=" + capacity + ", writtenBytes="
+				+ getWrittenBytes() + ", hits=" + hits + ", misses=" + misses
+				+ ", stores=" + stores + "]";
+	}
+
+	/**
+	 * Returns a cached response.
+	 *
+	 * @param key
+	 *            Path and query of the request.
+	 * @return The response or null if it is not cached.
+	 */
+	Record get(String key) {
+
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+		long hash = hash(keyBytes);
+
+		for (int i = 0; i < PROBES; i++) {
+
+			int slot = (int) ((hash + i) & (slots - 1)) * SLOT_SIZE;
+
+			if ((long) LONGS.getAcquire(index, slot) != hash) {
+				continue;
+			}
+
+			long position = (long) LONGS.getAcquire(index, slot + 8) - 1;
+
+			if (position < 0) {
+				continue;
+			}
+
+			Record record = read(position, hash, keyBytes);
+
+			if (record != null) {
+				hits.incrementAndGet();
+				return record;
+			}
+
+		}
+
+		misses.incrementAndGet();
+
+		return null;
+	}
+
+	/**
+	 * Stores a response. Responses larger than an eighth of the capacity are
+	 * not stored.
+	 *
+	 * @param key
+	 *            Path and query of the request.
+	 * @param headers
+	 *            Headers of the response, of which only the validators are
+	 *            stored.
+	 * @param data
+	 *            Body of the response.
+	 * @param validated
+	 *            Time of the response or of its last validation in
+	 *            milliseconds since the epoch.
+	 */
+	void put(String key, Map<String, List<String>> headers, byte[] data,
+			long validated) {
+
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+		StringBuilder validators = new StringBuilder();
+
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			for (String name : VALIDATORS) {
+				if (name.equalsIgnoreCase(header.getKey())
+						&& !header.getValue().isEmpty()) {
+					validators.append(name).append(": ")
+							.append(header.getValue().get(0)).append('\n');
+				}
+			}
+		}
+
+		byte[] headerBytes = validators.toString().getBytes(
+				StandardCharsets.UTF_8);
+
+		long length = align(RECORD_HEADER_SIZE + keyBytes.length
+				+ headerBytes.length + data.length);
+
+		if (length > capacity / 8 || length > segmentSize) {
+			return;
+		}
+
+		long hash = hash(keyBytes);
+
+		int checksum = checksum(keyBytes, headerBytes, data);
+
+		long position = reserve(length);
+
+		ByteBuffer segment = segment(position);
+		int offset = offset(position);
+
+		segment.putLong(offset, hash);
+		segment.putInt(offset + 8, keyBytes.length);
+		segment.putInt(offset + 12, headerBytes.length);
+		segment.putInt(offset + 16, data.length);
+		segment.putInt(offset + 20, checksum);
+		segment.putLong(offset + 24, validated);
+		segment.put(offset + RECORD_HEADER_SIZE, keyBytes);
+		segment.put(offset + RECORD_HEADER_SIZE + keyBytes.length,
+				headerBytes);
+		segment.put(offset + RECORD_HEADER_SIZE + keyBytes.length
+				+ headerBytes.length, data);
+
+		// the record was overwritten if the writer stalled
+		if (overwritten(position)) {
+			return;
+		}
+
+		publish(hash, position);
+
+		stores.incrementAndGet();
+	}
+
+	/*
+	 * Reserves space for a record in the ring, so that the record does not
+	 * cross the end of a segment, and returns its position.
+	 */
+	private long reserve(long length) {
+
+		while (true) {
+
+			long cursor = (long) LONGS.getVolatile(header, CURSOR_OFFSET);
+
+			long position = cursor;
+
+			long remaining = segmentSize - position % capacity % segmentSize;
+
+			if (remaining < length) {
+				position += remaining;
+			}
+
+			if (LONGS.compareAndSet(header, CURSOR_OFFSET, cursor, position
+					+ length)) {
+				return position;
+			}
+
+		}
+
+	}
+
+	/*
+	 * Publishes a written record in a slot of its key: the slot that
+	 * already holds the key, an empty slot or the slot with the oldest
+	 * record.
+	 */
+	private void publish(long hash, long position) {
+
+		int target = -1;
+		long oldest = Long.MAX_VALUE;
+
+		for (int i = 0; i < PROBES; i++) {
+
+			int slot = (int) ((hash + i) & (slots - 1)) * SLOT_SIZE;
+
+			long slotHash = (long) LONGS.getAcquire(index, slot);
+			long slotPosition = (long) LONGS.getAcquire(index, slot + 8);
+
+			if (slotHash == hash || slotPosition == 0) {
+				target = slot;
+				break;
+			}
+
+			if (slotPosition < oldest) {
+				oldest = slotPosition;
+				target = slot;
+			}
+
+		}
+
+		long previous = (long) LONGS.getAcquire(index, target + 8);
+
+		// a concurrent store to the same slot wins, which only loses this
+		// record
+		if (LONGS.compareAndSet(index, target + 8, previous, position + 1)) {
+			LONGS.setRelease(index, target, hash);
+		}
+
+	}
+
+	/*
+	 * Reads the record at a position if it has the key and was not
+	 * overwritten while it was read.
+	 */
+	private Record read(long position, long hash, byte[] keyBytes) {
+
+		if (overwritten(position)) {
+			return null;
+		}
+
+		ByteBuffer segment = segment(position);
+		int offset = offset(position);
+
+		int keyLength = segment.getInt(offset + 8);
+		int headersLength = segment.getInt(offset + 12);
+		int dataLength = segment.getInt(offset + 16);
+
+		if (segment.getLong(offset) != hash
+				|| keyLength != keyBytes.length
+				|| headersLength < 0
+				|| dataLength < 0
+				|| offset + RECORD_HEADER_SIZE + (long) keyLength
+						+ headersLength + dataLength > segmentSize) {
+			return null;
+		}
+
+		byte[] recordKey = new byte[keyLength];
+		byte[] headers = new byte[headersLength];
+		byte[] data = new byte[dataLength];
+
+		int checksum = segment.getInt(offset + 20);
+		long validated = segment.getLong(offset + 24);
+
+		segment.get(offset + RECORD_HEADER_SIZE, recordKey);
+		segment.get(offset + RECORD_HEADER_SIZE + keyLength, headers);
+		segment.get(offset + RECORD_HEADER_SIZE + keyLength + headersLength,
+				data);
+
+		// the copy is only valid if no writer has reserved the space since
+		VarHandle.acquireFence();
+
+		if (overwritten(position) || !Arrays.equals(recordKey, keyBytes)
+				|| checksum(recordKey, headers, data) != checksum) {
+			return null;
+		}
+
+		Map<String, List<String>> headerMap = new TreeMap<String, List<String>>(
+				String.CASE_INSENSITIVE_ORDER);
+
+		for (String line : new String(headers, StandardCharsets.UTF_8)
+				.split("\n")) {
+
+			int colon = line.indexOf(": ");
+
+			if (colon > 0) {
+				List<String> values = new ArrayList<String>();
+				values.add(line.substring(colon + 2));
+				headerMap.put(line.substring(0, colon), values);
+			}
+
+		}
+
+		return new Record(data, headerMap, validated);
+	}
+
+	private boolean overwritten(long position) {
+
+		return (long) LONGS.getAcquire(header, CURSOR_OFFSET) > position
+				+ capacity;
+	}
+
+	private ByteBuffer segment(long position) {
+
+		// views have their own byte order, which is big-endian by default
+		return segments[(int) (position % capacity / segmentSize)]
+				.duplicate().order(ByteOrder.nativeOrder());
+	}
+
+	private int offset(long position) {
+
+		return (int) (position % capacity % segmentSize);
+	}
+
+	private static int checksum(byte[] key, byte[] headers, byte[] data) {
+
+		CRC32C crc = new CRC32C();
+
+		crc.update(key);
+		crc.update(headers);
+		crc.update(data);
+
+		return (int) crc.getValue();
+	}
+
+	private static long align(long length) {
+
+		return (length + 7) & ~7L;
+	}
+
+	/*
+	 * FNV-1a hash of the key, which is never 0, the hash of an empty slot.
+	 */
+	private static long hash(byte[] key) {
+
+		long hash = 0xcbf29ce484222325L;
+
+		for (byte b : key) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+
+		return hash != 0 ? hash : 1;
+	}
+
+	/*
+	 * A response read from the cache.
+	 */
+	static class Record {
+
+		private final byte[] data;
+
+		private final Map<String, List<String>> headers;
+
+		private final long validated;
+
+		Record(byte[] data, Map<String, List<String>> headers, long validated) {
+
+			this.data = data;
+			this.headers = headers;
+			this.validated = validated;
+		}
+
+		byte[] getData() {
+
+			return data;
+		}
+
+		Map<String, List<String>> getHeaders() {
+
+			return headers;
+		}
+
+		long getValidated() {
+
+			return validated;
+		}
+
+	}
+
+}
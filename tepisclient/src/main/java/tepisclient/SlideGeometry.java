@@ -0,0 +1,212 @@
+package tepisclient;
+
+import java.util.List;
+
+import tepisclient.ImageMetadata.PixelMetadata.Levels.PixelLevelMetadata;
+
+/**
+ * Pixel geometry of a digital slide pyramid.
+ * <p>
+ * Parses the string valued properties of the pixel metadata (pixel size, tile
+ * size and physical spacing) into numeric values for each level. The
+ * downsampling factors are computed relative to the physical spacing of the
+ * first (largest) level in the same way as the MATLAB client does.
+ *
+ */
+
+public class SlideGeometry {
+
+	/*
+	 * Size of each level in pixels.
+	 */
+	private final int[] width;
+	private final int[] height;
+
+	/*
+	 * Tile size of each level in pixels.
+	 */
+	private final int[] tileWidth;
+	private final int[] tileHeight;
+
+	/*
+	 * Physical size of the pixels of each level in mm.
+	 */
+	private final double[] physicalSpacingX;
+	private final double[] physicalSpacingY;
+
+	/**
+	 * @param pixelMetadata
+	 *            Pixel metadata of the digital slide.
+	 */
+	public SlideGeometry(ImageMetadata.PixelMetadata pixelMetadata) {
+
+		List<PixelLevelMetadata> levels = pixelMetadata.getLevels()
+				.getPixelLevelMetadata();
+
+		int numberOfLevels = levels.size();
+
+		width = new int[numberOfLevels];
+		height = new int[numberOfLevels];
+		tileWidth = new int[numberOfLevels];
+		tileHeight = new int[numberOfLevels];
+		physicalSpacingX = new double[numberOfLevels];
+		physicalSpacingY = new double[numberOfLevels];
+
+		for (int i = 0; i < numberOfLevels; i++) {
+
+			PixelLevelMetadata level = levels.get(i);
+
+			double[] pixelSize = toArray(level.getPixelSize());
+			double[] tileSize = toArray(level.getTileSize());
+			double[] physicalSpacing = toArray(level.getPhysicalSpacing());
+
+			width[i] = (int) pixelSize[0];
+			height[i] = (int) pixelSize[1];
+			tileWidth[i] = (int) tileSize[0];
+			tileHeight[i] = (int) tileSize[1];
+			physicalSpacingX[i] = physicalSpacing[0];
+			physicalSpacingY[i] = physicalSpacing[1];
+
+		}
+
+	}
+
+	/**
+	 * Gets the number of levels in the slide pyramid.
+	 *
+	 * @return The number of levels.
+	 */
+	public int getNumberOfLevels() {
+
+		return width.length;
+	}
+
+	/**
+	 * Gets the width of a level in pixels.
+	 *
+	 * @param level
+	 * @return The width.
+	 */
+	public int getWidth(int level) {
+
+		return width[level];
+	}
+
+	/**
+	 * Gets the height of a level in pixels.
+	 *
+	 * @param level
+	 * @return The height.
+	 */
+	public int getHeight(int level) {
+
+		return height[level];
+	}
+
+	/**
+	 * Gets the tile width of a level in pixels.
+	 *
+	 * @param level
+	 * @return The tile width.
+	 */
+	public int getTileWidth(int level) {
+
+		return tileWidth[level];
+	}
+
+	/**
+	 * Gets the tile height of a level in pixels.
+	 *
+	 * @param level
+	 * @return The tile height.
+	 */
+	public int getTileHeight(int level) {
+
+		return tileHeight[level];
+	}
+
+	/**
+	 * Gets the number of tile columns of a level.
+	 *
+	 * @param level
+	 * @return The number of tile columns.
+	 */
+	public int getTileColumns(int level) {
+
+		return (width[level] + tileWidth[level] - 1) / tileWidth[level];
+	}
+
+	/**
+	 * Gets the number of tile rows of a level.
+	 *
+	 * @param level
+	 * @return The number of tile rows.
+	 */
+	public int getTileRows(int level) {
+
+		return (height[level] + tileHeight[level] - 1) / tileHeight[level];
+	}
+
+	/**
+	 * Gets the horizontal physical size of the pixels of a level in mm.
+	 *
+	 * @param level
+	 * @return The horizontal physical spacing.
+	 */
+	public double getPhysicalSpacingX(int level) {
+
+		return physicalSpacingX[level];
+	}
+
+	/**
+	 * Gets the vertical physical size of the pixels of a level in mm.
+	 *
+	 * @param level
+	 * @return The vertical physical spacing.
+	 */
+	public double getPhysicalSpacingY(int level) {
+
+		return physicalSpacingY[level];
+	}
+
+	/**
+	 * Gets the horizontal downsampling factor of a level relative to the
+	 * first level.
+	 *
+	 * @param level
+	 * @return The horizontal downsampling factor.
+	 */
+	public double getDownsamplingX(int level) {
+
+		return physicalSpacingX[level] / physicalSpacingX[0];
+	}
+
+	/**
+	 * Gets the vertical downsampling factor of a level relative to the first
+	 * level.
+	 *
+	 * @param level
+	 * @return The vertical downsampling factor.
+	 */
+	public double getDownsamplingY(int level) {
+
+		return physicalSpacingY[level] / physicalSpacingY[0];
+	}
+
+	/*
+	 * Converts a comma separated string of numbers to an array.
+	 */
+	private static double[] toArray(String value) {
+
+		String[] parts = value.split(",");
+
+		double[] array = new double[parts.length];
+
+		for (int i = 0; i < parts.length; i++) {
+			array[i] = Double.parseDouble(parts[i].trim());
+		}
+
+		return array;
+	}
+
+}
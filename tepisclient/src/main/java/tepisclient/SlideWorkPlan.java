@@ -0,0 +1,31 @@
+package tepisclient;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Work plan for a single slide of a cohort processed by a
+ * {@link CohortScheduler}.
+ *
+ */
+
+public interface SlideWorkPlan {
+
+	/**
+	 * Creates the work units for a slide.
+	 * <p>
+	 * Each work unit should perform a single request to the server (and
+	 * optionally process the result), so that the scheduler can share the
+	 * request slots fairly between the slides. The method is called on the
+	 * executor of the scheduler, concurrently for several slides.
+	 *
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @return The work units of the slide.
+	 * @throws Exception
+	 *             If the plan cannot be created. The slide is reported as
+	 *             failed.
+	 */
+	List<Callable<Void>> createWorkUnits(String imageID) throws Exception;
+
+}
@@ -0,0 +1,282 @@
+package tepisclient;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads large regions of a digital slide as multiple concurrent requests.
+ * <p>
+ * A single request for a large region, for example a whole level, is cropped
+ * and encoded by the server as one image, which is slow, can exceed the
+ * timeouts and must be buffered as a whole. Regions larger than a threshold
+ * are therefore split into tile aligned parts that are read concurrently and
+ * drawn into a single image as they arrive, so the read time of large
+ * regions scales with the number of parallel requests.
+ * <p>
+ * Only regions in pixel units with non-negative integer coordinates are
+ * split. Regions without a unit are assumed to be in pixels and regions
+ * without a level to be in the first level. Other regions are read with a
+ * single request.
+ *
+ */
+
+public class SplitRegionReader {
+
+	/**
+	 * Default maximum number of pixels of a single request.
+	 */
+	public static final int DEFAULT_MAX_PIXELS = 2048 * 2048;
+
+	private final TepisClient client;
+
+	private final String imageID;
+
+	private final SlideGeometry geometry;
+
+	/*
+	 * Executor on which the parts are read and decoded.
+	 */
+	private final ExecutorService executor;
+
+	/*
+	 * Maximum number of pixels of a single request.
+	 */
+	private final int maxPixels;
+
+	/**
+	 * @param client
+	 *            Client used to read the image data.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param executor
+	 *            Executor on which the parts are read and decoded. The number
+	 *            of threads determines the number of parallel requests to the
+	 *            server.
+	 */
+	public SplitRegionReader(TepisClient client, String imageID,
+			SlideGeometry geometry, ExecutorService executor) {
+
+		this(client, imageID, geometry, executor, DEFAULT_MAX_PIXELS);
+	}
+
+	/**
+	 * @param client
+	 *            Client used to read the image data.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param executor
+	 *            Executor on which the parts are read and decoded. The number
+	 *            of threads determines the number of parallel requests to the
+	 *            server.
+	 * @param maxPixels
+	 *            Maximum number of pixels of a single request. Larger regions
+	 *            are split. The parts are at least one tile large.
+	 */
+	public SplitRegionReader(TepisClient client, String imageID,
+			SlideGeometry geometry, ExecutorService executor, int maxPixels) {
+
+		this.client = client;
+		this.imageID = imageID;
+		this.geometry = geometry;
+		this.executor = executor;
+		this.maxPixels = maxPixels;
+	}
+
+	/**
+	 * Reads a region in the default image format and quality of the server.
+	 *
+	 * @param irp
+	 *            Parameter object specifying the region.
+	 * @return The decoded region.
+	 * @throws IOException
+	 *             If any of the parts cannot be read or decoded.
+	 * @see read(ImageRegionParam irp, ImageFormatParam ifp, RequestOptions
+	 *      options)
+	 */
+	public BufferedImage read(ImageRegionParam irp) throws IOException {
+
+		return read(irp, null, null);
+	}
+
+	/**
+	 * Reads a region with specified image format and quality and request
+	 * options.
+	 * <p>
+	 * If any of the parts fails, the remaining parts are cancelled.
+	 *
+	 * @param irp
+	 *            Parameter object specifying the region.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the image data that is read from the server.
+	 * @param options
+	 *            Options of each request such as timeouts.
+	 * @return The decoded region.
+	 * @throws IOException
+	 *             If any of the parts cannot be read or decoded.
+	 * @see read(ImageRegionParam irp)
+	 */
+	public BufferedImage read(ImageRegionParam irp, final ImageFormatParam ifp,
+			final RequestOptions options) throws IOException {
+
+		List<Rectangle> parts = split(irp);
+
+		if (parts == null) {
+			return ImageDecoder.decode(client.getImagePixelData(imageID, irp,
+					ifp, options));
+		}
+
+		final int level = irp.getLevel() != null ? irp.getLevel() : 0;
+
+		final int x = irp.getX().intValue();
+		final int y = irp.getY().intValue();
+
+		final BufferedImage image = new BufferedImage(irp.getWidth()
+				.intValue(), irp.getHeight().intValue(),
+				BufferedImage.TYPE_INT_RGB);
+
+		CompletionService<Void> completionService = new ExecutorCompletionService<Void>(
+				executor);
+
+		Map<Future<Void>, Rectangle> futures = new HashMap<Future<Void>, Rectangle>();
+
+		for (final Rectangle part : parts) {
+			futures.put(completionService.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws IOException {
+
+					ImageRegionParam partIrp = new ImageRegionParam(
+							(float) part.x, (float) part.y,
+							(float) part.width, (float) part.height, level,
+							Unit.PIXEL);
+
+					BufferedImage partImage = ImageDecoder.decode(client
+							.getImagePixelData(imageID, partIrp, ifp, options));
+
+					synchronized (image) {
+
+						Graphics2D graphics = image.createGraphics();
+
+						try {
+							graphics.drawImage(partImage, part.x - x, part.y
+									- y, null);
+						} finally {
+							graphics.dispose();
+						}
+
+					}
+
+					return null;
+				}
+
+			}), part);
+		}
+
+		try {
+
+			for (int i = 0; i < parts.size(); i++) {
+
+				Future<Void> future = completionService.take();
+
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					throw new IOException("Reading of region part "
+							+ futures.get(future) + " failed", e.getCause());
+				}
+
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Reading of region interrupted");
+		} finally {
+			for (Future<Void> future : futures.keySet()) {
+				future.cancel(true);
+			}
+		}
+
+		return image;
+	}
+
+	/**
+	 * Splits a region into tile aligned parts.
+	 *
+	 * @param irp
+	 *            Parameter object specifying the region.
+	 * @return The parts in pixels of the level of the region, or null if the
+	 *         region is read with a single request.
+	 */
+	public List<Rectangle> split(ImageRegionParam irp) {
+
+		if (irp.getUnit() != null && irp.getUnit() != Unit.PIXEL) {
+			return null;
+		}
+
+		float x = irp.getX();
+		float y = irp.getY();
+		float width = irp.getWidth();
+		float height = irp.getHeight();
+
+		if (x < 0 || y < 0 || x != Math.floor(x) || y != Math.floor(y)
+				|| width != Math.floor(width) || height != Math.floor(height)) {
+			return null;
+		}
+
+		if ((double) width * height <= maxPixels) {
+			return null;
+		}
+
+		int level = irp.getLevel() != null ? irp.getLevel() : 0;
+
+		int tileWidth = geometry.getTileWidth(level);
+		int tileHeight = geometry.getTileHeight(level);
+
+		// approximately square parts of whole tiles
+		int partWidth = tileWidth
+				* Math.max(1, (int) (Math.sqrt(maxPixels) / tileWidth));
+		int partHeight = tileHeight
+				* Math.max(1, maxPixels / partWidth / tileHeight);
+
+		Rectangle region = new Rectangle((int) x, (int) y, (int) width,
+				(int) height);
+
+		List<Rectangle> parts = new ArrayList<Rectangle>();
+
+		for (int partY = region.y / partHeight * partHeight; partY < region.y
+				+ region.height; partY += partHeight) {
+			for (int partX = region.x / partWidth * partWidth; partX < region.x
+					+ region.width; partX += partWidth) {
+
+				Rectangle part = new Rectangle(partX, partY, partWidth,
+						partHeight).intersection(region);
+
+				if (!part.isEmpty()) {
+					parts.add(part);
+				}
+
+			}
+		}
+
+		return parts;
+	}
+
+}
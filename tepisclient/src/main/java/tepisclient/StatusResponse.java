@@ -0,0 +1,277 @@
+package tepisclient;
+
+import java.lang.annotation.Annotation;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Link;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+
+/**
+ * Status and headers of an unsuccessful response, without entity, for the
+ * JAX-RS exceptions thrown by the client.
+ * <p>
+ * The responses built by {@link Response#status(int)} need the JAX-RS
+ * runtime, which is not available in the lightweight build of the client.
+ * The values that would need the runtime to be parsed, for example the media
+ * type, are not available.
+ *
+ */
+
+class StatusResponse extends Response {
+
+	private final StatusType status;
+
+	private final MultivaluedMap<String, String> headers = new MultivaluedHashMap<String, String>();
+
+	/**
+	 * @param response
+	 *            The unsuccessful response. Its body is not read.
+	 */
+	StatusResponse(final TransportResponse response) {
+
+		StatusType status = Status.fromStatusCode(response.getStatus());
+
+		if (status == null) {
+			status = new StatusType() {
+
+				@Override
+				public int getStatusCode() {
+
+					return response.getStatus();
+				}
+
+				@Override
+				public Status.Family getFamily() {
+
+					return Status.Family.familyOf(response.getStatus());
+				}
+
+				@Override
+				public String getReasonPhrase() {
+
+					return "";
+				}
+
+			};
+		}
+
+		this.status = status;
+
+		for (Map.Entry<String, List<String>> header : response.getHeaders()
+				.entrySet()) {
+			headers.put(header.getKey(), header.getValue());
+		}
+
+	}
+
+	@Override
+	public int getStatus() {
+
+		return status.getStatusCode();
+	}
+
+	@Override
+	public StatusType getStatusInfo() {
+
+		return status;
+	}
+
+	@Override
+	public Object getEntity() {
+
+		return null;
+	}
+
+	@Override
+	public <T> T readEntity(Class<T> entityType) {
+
+		throw new IllegalStateException("Response has no entity");
+	}
+
+	@Override
+	public <T> T readEntity(GenericType<T> entityType) {
+
+		throw new IllegalStateException("Response has no entity");
+	}
+
+	@Override
+	public <T> T readEntity(Class<T> entityType, Annotation[] annotations) {
+
+		throw new IllegalStateException("Response has no entity");
+	}
+
+	@Override
+	public <T> T readEntity(GenericType<T> entityType,
+			Annotation[] annotations) {
+
+		throw new IllegalStateException("Response has no entity");
+	}
+
+	@Override
+	public boolean hasEntity() {
+
+		return false;
+	}
+
+	@Override
+	public boolean bufferEntity() {
+
+		return false;
+	}
+
+	@Override
+	public void close() {
+
+	}
+
+	@Override
+	public MediaType getMediaType() {
+
+		return null;
+	}
+
+	@Override
+	public Locale getLanguage() {
+
+		return null;
+	}
+
+	@Override
+	public int getLength() {
+
+		String length = getHeaderString("Content-Length");
+
+		try {
+			return length != null ? Integer.parseInt(length.trim()) : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+
+	}
+
+	@Override
+	public Set<String> getAllowedMethods() {
+
+		Set<String> methods = new LinkedHashSet<String>();
+
+		String allow = getHeaderString("Allow");
+
+		if (allow != null) {
+			for (String method : allow.split(",")) {
+				if (!method.trim().isEmpty()) {
+					methods.add(method.trim().toUpperCase(Locale.ROOT));
+				}
+			}
+		}
+
+		return methods;
+	}
+
+	@Override
+	public Map<String, NewCookie> getCookies() {
+
+		return Collections.emptyMap();
+	}
+
+	@Override
+	public EntityTag getEntityTag() {
+
+		return null;
+	}
+
+	@Override
+	public Date getDate() {
+
+		return null;
+	}
+
+	@Override
+	public Date getLastModified() {
+
+		return null;
+	}
+
+	@Override
+	public URI getLocation() {
+
+		String location = getHeaderString("Location");
+
+		return location != null ? URI.create(location) : null;
+	}
+
+	@Override
+	public Set<Link> getLinks() {
+
+		return Collections.emptySet();
+	}
+
+	@Override
+	public boolean hasLink(String relation) {
+
+		return false;
+	}
+
+	@Override
+	public Link getLink(String relation) {
+
+		return null;
+	}
+
+	@Override
+	public Link.Builder getLinkBuilder(String relation) {
+
+		return null;
+	}
+
+	@Override
+	public MultivaluedMap<String, Object> getMetadata() {
+
+		MultivaluedMap<String, Object> metadata = new MultivaluedHashMap<String, Object>();
+
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			for (String value : header.getValue()) {
+				metadata.add(header.getKey(), value);
+			}
+		}
+
+		return metadata;
+	}
+
+	@Override
+	public MultivaluedMap<String, String> getStringHeaders() {
+
+		return headers;
+	}
+
+	@Override
+	public String getHeaderString(String name) {
+
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			if (header.getKey().equalsIgnoreCase(name)) {
+				return String.join(",", header.getValue());
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public String toString() {
+
+		return "StatusResponse [status=" + getStatus() + "]";
+	}
+
+}
@@ -0,0 +1,113 @@
+package tepisclient;
+
+/**
+ * A tissue microarray (TMA) core detected by {@link TMACoreDetector}.
+ * <p>
+ * The location and radius of the core are in pixels of the first (largest)
+ * level of the slide. The location is the 0-based pixel of the detection
+ * level scaled to the first level; the MATLAB toolbox scales the 1-based
+ * pixel instead, so its locations are larger by the downsampling of the
+ * detection level.
+ *
+ */
+
+public class TMACore {
+
+	/*
+	 * ID of the core, starting from 1.
+	 */
+	private final int id;
+
+	/*
+	 * Centre and radius of the core.
+	 */
+	private final double x;
+	private final double y;
+	private final double radius;
+
+	/**
+	 * @param id
+	 *            ID of the core, starting from 1.
+	 * @param x
+	 *            Horizontal coordinate of the centre of the core.
+	 * @param y
+	 *            Vertical coordinate of the centre of the core.
+	 * @param radius
+	 *            Radius of the core.
+	 */
+	public TMACore(int id, double x, double y, double radius) {
+
+		this.id = id;
+		this.x = x;
+		this.y = y;
+		this.radius = radius;
+	}
+
+	/**
+	 * Returns the square region enclosing the core at a level of the slide.
+	 *
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param level
+	 *            Level of the region.
+	 * @return Parameter object specifying the region in pixels of the level.
+	 */
+	public ImageRegionParam getRegion(SlideGeometry geometry, int level) {
+
+		double downsamplingX = geometry.getDownsamplingX(level);
+		double downsamplingY = geometry.getDownsamplingY(level);
+
+		return new ImageRegionParam((float) ((x - radius) / downsamplingX),
+				(float) ((y - radius) / downsamplingY),
+				(float) (2 * radius / downsamplingX),
+				(float) (2 * radius / downsamplingY), level, Unit.PIXEL);
+	}
+
+	/**
+	 * Gets the value of the id property.
+	 *
+	 * @return
+	 */
+	public int getId() {
+
+		return id;
+	}
+
+	/**
+	 * Gets the value of the x property.
+	 *
+	 * @return
+	 */
+	public double getX() {
+
+		return x;
+	}
+
+	/**
+	 * Gets the value of the y property.
+	 *
+	 * @return
+	 */
+	public double getY() {
+
+		return y;
+	}
+
+	/**
+	 * Gets the value of the radius property.
+	 *
+	 * @return
+	 */
+	public double getRadius() {
+
+		return radius;
+	}
+
+	@Override
+	public String toString() {
+
+		return "TMACore [id=" + id + ", x=" + x + ", y=" + y + ", radius="
+				+ radius + "]";
+	}
+
+}
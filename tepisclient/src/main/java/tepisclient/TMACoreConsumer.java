@@ -0,0 +1,23 @@
+package tepisclient;
+
+/**
+ * Receives the image data of tissue microarray (TMA) cores read by
+ * {@link TMACoreDetector}.
+ *
+ */
+
+public interface TMACoreConsumer {
+
+	/**
+	 * Called for each core that is read.
+	 *
+	 * @param core
+	 *            The core.
+	 * @param data
+	 *            The encoded image data of the region enclosing the core.
+	 * @throws Exception
+	 *             If the core cannot be processed.
+	 */
+	void accept(TMACore core, byte[] data) throws Exception;
+
+}
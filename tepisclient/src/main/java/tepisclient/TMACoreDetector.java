@@ -0,0 +1,486 @@
+package tepisclient;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Detects tissue microarray (TMA) cores in a digital slide and reads the image
+ * data of the detected cores.
+ * <p>
+ * This is a Java implementation of the detectTMACores and getTMACoreImage
+ * methods of the MATLAB toolbox. The cores are detected at the smallest level
+ * at which the cores are larger than 20 pixels, with the fast radial symmetry
+ * transform ({@link RadialSymmetryTransform}) followed by non-maxima
+ * suppression. The image data of the detected cores is then read concurrently
+ * at any level of the slide.
+ *
+ */
+
+public class TMACoreDetector {
+
+	/**
+	 * Default diameter of the cores in mm.
+	 */
+	public static final double DEFAULT_CORE_DIAMETER = 0.6;
+
+	/**
+	 * Default tolerance for the radius of the cores in percents.
+	 */
+	public static final double DEFAULT_RADIUS_TOLERANCE = 10;
+
+	/**
+	 * Default strictness of the detection between 0 and 100.
+	 */
+	public static final double DEFAULT_STRICTNESS = 90;
+
+	/**
+	 * Default minimum diameter of the cores in pixels at the detection level.
+	 */
+	public static final double DEFAULT_TARGET_CORE_DIAMETER_PIXELS = 20;
+
+	private final TepisClient client;
+
+	private final String imageID;
+
+	private final SlideGeometry geometry;
+
+	/*
+	 * Executor on which the transform is computed and the cores are read.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * @param client
+	 *            Client used to read the image data.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param executor
+	 *            Executor on which the transform is computed and the cores are
+	 *            read. The number of threads determines the number of parallel
+	 *            requests to the server.
+	 */
+	public TMACoreDetector(TepisClient client, String imageID,
+			SlideGeometry geometry, ExecutorService executor) {
+
+		this.client = client;
+		this.imageID = imageID;
+		this.geometry = geometry;
+		this.executor = executor;
+	}
+
+	/**
+	 * Selects the level at which the cores are detected: the smallest level at
+	 * which the diameter of the cores is larger than 20 pixels, or the
+	 * smallest level of the slide if there is no such level.
+	 *
+	 * @param coreDiameter
+	 *            Diameter of the cores in mm.
+	 * @return The detection level.
+	 * @see selectLevel(double coreDiameter, double targetCoreDiameterPixels)
+	 */
+	public int selectLevel(double coreDiameter) {
+
+		return selectLevel(coreDiameter, DEFAULT_TARGET_CORE_DIAMETER_PIXELS);
+	}
+
+	/**
+	 * Selects the level at which the cores are detected: the smallest level at
+	 * which the diameter of the cores is larger than the target diameter, or
+	 * the smallest level of the slide if there is no such level.
+	 *
+	 * @param coreDiameter
+	 *            Diameter of the cores in mm.
+	 * @param targetCoreDiameterPixels
+	 *            Minimum diameter of the cores in pixels at the detection
+	 *            level.
+	 * @return The detection level.
+	 * @see selectLevel(double coreDiameter)
+	 */
+	public int selectLevel(double coreDiameter, double targetCoreDiameterPixels) {
+
+		// note: only horizontal physical spacing is used
+		for (int level = geometry.getNumberOfLevels() - 1; level >= 0; level--) {
+			if (coreDiameter / geometry.getPhysicalSpacingX(level) > targetCoreDiameterPixels) {
+				return level;
+			}
+		}
+
+		return geometry.getNumberOfLevels() - 1;
+	}
+
+	/**
+	 * Detects the cores with the default parameters.
+	 *
+	 * @return The detected cores.
+	 * @throws IOException
+	 *             If the image data cannot be read or decoded.
+	 * @see detect(double coreDiameter, double radiusTolerance, double
+	 *      strictness)
+	 */
+	public List<TMACore> detect() throws IOException {
+
+		return detect(DEFAULT_CORE_DIAMETER, DEFAULT_RADIUS_TOLERANCE,
+				DEFAULT_STRICTNESS);
+	}
+
+	/**
+	 * Detects the cores.
+	 *
+	 * @param coreDiameter
+	 *            Diameter of the cores in mm.
+	 * @param radiusTolerance
+	 *            Tolerance for the radius of the cores in percents. Use larger
+	 *            value if the diameter of the cores varies significantly.
+	 * @param strictness
+	 *            Strictness of the detection. Must be a number between 0 and
+	 *            100.
+	 * @return The detected cores, in the order of the columns and rows of the
+	 *         detection level.
+	 * @throws IOException
+	 *             If the image data cannot be read or decoded.
+	 * @see detect()
+	 */
+	public List<TMACore> detect(double coreDiameter, double radiusTolerance,
+			double strictness) throws IOException {
+
+		return detect(coreDiameter, radiusTolerance, strictness,
+				DEFAULT_TARGET_CORE_DIAMETER_PIXELS);
+	}
+
+	/**
+	 * Detects the cores at a level selected with a specified target diameter.
+	 *
+	 * @param coreDiameter
+	 *            Diameter of the cores in mm.
+	 * @param radiusTolerance
+	 *            Tolerance for the radius of the cores in percents. Use larger
+	 *            value if the diameter of the cores varies significantly.
+	 * @param strictness
+	 *            Strictness of the detection. Must be a number between 0 and
+	 *            100.
+	 * @param targetCoreDiameterPixels
+	 *            Minimum diameter of the cores in pixels at the detection
+	 *            level.
+	 * @return The detected cores, in the order of the columns and rows of the
+	 *         detection level.
+	 * @throws IOException
+	 *             If the image data cannot be read or decoded.
+	 * @see selectLevel(double coreDiameter, double targetCoreDiameterPixels)
+	 */
+	public List<TMACore> detect(double coreDiameter, double radiusTolerance,
+			double strictness, double targetCoreDiameterPixels)
+			throws IOException {
+
+		int level = selectLevel(coreDiameter, targetCoreDiameterPixels);
+
+		int width = geometry.getWidth(level);
+		int height = geometry.getHeight(level);
+
+		ImageRegionParam irp = new ImageRegionParam(0f, 0f, (float) width,
+				(float) height, level, Unit.PIXEL);
+
+		// the level can be large, so it is read in parts
+		BufferedImage image = new SplitRegionReader(client, imageID,
+				geometry, executor).read(irp);
+
+		// convert to grayscale
+		int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+		double[] gray = new double[rgb.length];
+
+		for (int i = 0; i < rgb.length; i++) {
+			gray[i] = (((rgb[i] >> 16) & 0xFF) + ((rgb[i] >> 8) & 0xFF) + (rgb[i] & 0xFF)) / 3.0;
+		}
+
+		double coreDiameterPixels = coreDiameter
+				/ geometry.getPhysicalSpacingX(level);
+
+		double radius = Math.round(coreDiameterPixels) / 2.0;
+		double tolerance = Math.round(coreDiameterPixels * radiusTolerance
+				/ 100) / 2.0;
+
+		double[] radii = new double[(int) Math.floor(2 * tolerance) + 1];
+
+		for (int i = 0; i < radii.length; i++) {
+			radii[i] = radius - tolerance + i;
+		}
+
+		double[] transform;
+
+		try {
+			transform = RadialSymmetryTransform.transform(gray, width, height,
+					radii, RadialSymmetryTransform.DEFAULT_ALPHA, Double.NaN,
+					null, executor);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("TMA core detection interrupted");
+		}
+
+		int[] maxima = findMaxima(transform, width, height,
+				(int) Math.round(2 * radius),
+				percentile(transform, strictness));
+
+		// core coordinates in the first level
+		double coreRadius = coreDiameter / geometry.getPhysicalSpacingX(0) / 2;
+
+		List<TMACore> cores = new ArrayList<TMACore>();
+
+		for (int i = 0; i < maxima.length; i++) {
+			cores.add(new TMACore(i + 1, (maxima[i] % width)
+					* geometry.getDownsamplingX(level), (maxima[i] / width)
+					* geometry.getDownsamplingY(level), coreRadius));
+		}
+
+		return cores;
+	}
+
+	/**
+	 * Reads the image data of cores concurrently in the default image format
+	 * and quality of the server.
+	 *
+	 * @param cores
+	 *            The cores.
+	 * @param level
+	 *            Level from which the image data is read.
+	 * @param consumer
+	 *            Consumer of the image data.
+	 * @throws IOException
+	 *             If reading or consuming of any of the cores fails.
+	 * @see readCores(List cores, int level, ImageFormatParam ifp,
+	 *      TMACoreConsumer consumer)
+	 */
+	public void readCores(List<TMACore> cores, int level,
+			TMACoreConsumer consumer) throws IOException {
+
+		readCores(cores, level, null, consumer);
+	}
+
+	/**
+	 * Reads the image data of cores concurrently with specified image format
+	 * and quality.
+	 * <p>
+	 * The image data is passed to the consumer on the calling thread as soon
+	 * as it arrives, so the order of the cores is not preserved. If any of the
+	 * cores fails, the remaining requests are cancelled.
+	 *
+	 * @param cores
+	 *            The cores.
+	 * @param level
+	 *            Level from which the image data is read.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the image data.
+	 * @param consumer
+	 *            Consumer of the image data.
+	 * @throws IOException
+	 *             If reading or consuming of any of the cores fails.
+	 * @see readCores(List cores, int level, TMACoreConsumer consumer)
+	 */
+	public void readCores(List<TMACore> cores, final int level,
+			final ImageFormatParam ifp, TMACoreConsumer consumer)
+			throws IOException {
+
+		CompletionService<byte[]> completionService = new ExecutorCompletionService<byte[]>(
+				executor);
+
+		Map<Future<byte[]>, TMACore> futures = new HashMap<Future<byte[]>, TMACore>();
+
+		for (final TMACore core : cores) {
+			futures.put(completionService.submit(new Callable<byte[]>() {
+
+				@Override
+				public byte[] call() {
+
+					return client.getImagePixelData(imageID,
+							core.getRegion(geometry, level), ifp);
+				}
+
+			}), core);
+		}
+
+		try {
+
+			for (int i = 0; i < cores.size(); i++) {
+
+				Future<byte[]> future = completionService.take();
+
+				TMACore core = futures.get(future);
+
+				try {
+					consumer.accept(core, future.get());
+				} catch (ExecutionException e) {
+					throw new IOException("Reading of TMA core " + core.getId()
+							+ " failed", e.getCause());
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException("Processing of TMA core "
+							+ core.getId() + " failed", e);
+				}
+
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Reading of TMA cores interrupted");
+		} finally {
+			for (Future<byte[]> future : futures.keySet()) {
+				future.cancel(true);
+			}
+		}
+
+	}
+
+	/**
+	 * Reads the image data of cores concurrently and returns it in the order
+	 * of the cores. This is a convenience method for use from MATLAB, named
+	 * differently from the methods with a consumer, so that a null image
+	 * format from MATLAB selects it unambiguously.
+	 *
+	 * @param cores
+	 *            The cores.
+	 * @param level
+	 *            Level from which the image data is read.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the image data.
+	 * @return The encoded image data of the cores.
+	 * @throws IOException
+	 *             If reading of any of the cores fails.
+	 */
+	public List<byte[]> readCoreData(List<TMACore> cores, int level,
+			ImageFormatParam ifp) throws IOException {
+
+		final Map<TMACore, byte[]> data = new HashMap<TMACore, byte[]>();
+
+		readCores(cores, level, ifp, new TMACoreConsumer() {
+
+			@Override
+			public void accept(TMACore core, byte[] coreData) {
+
+				data.put(core, coreData);
+			}
+
+		});
+
+		List<byte[]> result = new ArrayList<byte[]>();
+
+		for (TMACore core : cores) {
+			result.add(data.get(core));
+		}
+
+		return result;
+	}
+
+	/*
+	 * Non-maxima suppression with a disk shaped neighbourhood, equivalent to
+	 * the nonmaxsupp function of the MATLAB toolbox. Returns the row-major
+	 * indices of the maxima in column-major order.
+	 */
+	static int[] findMaxima(double[] image, int width, int height, int radius,
+			double threshold) {
+
+		// half widths of the rows of the disk
+		int[] halfWidths = new int[radius + 1];
+
+		for (int dy = 0; dy <= radius; dy++) {
+			halfWidths[dy] = (int) Math.floor(Math.sqrt((double) radius
+					* radius - dy * dy));
+		}
+
+		int[] maxima = new int[16];
+		int count = 0;
+
+		for (int x = 0; x < width; x++) {
+			candidates: for (int y = 0; y < height; y++) {
+
+				double value = image[y * width + x];
+
+				if (!(value > threshold)) {
+					continue;
+				}
+
+				for (int dy = -radius; dy <= radius; dy++) {
+
+					int ny = y + dy;
+
+					if (ny < 0 || ny >= height) {
+						continue;
+					}
+
+					int halfWidth = halfWidths[Math.abs(dy)];
+
+					int from = Math.max(0, x - halfWidth);
+					int to = Math.min(width - 1, x + halfWidth);
+
+					for (int nx = from; nx <= to; nx++) {
+						if (image[ny * width + nx] > value) {
+							continue candidates;
+						}
+					}
+
+				}
+
+				if (count == maxima.length) {
+					maxima = Arrays.copyOf(maxima, 2 * count);
+				}
+
+				maxima[count++] = y * width + x;
+
+			}
+		}
+
+		return Arrays.copyOf(maxima, count);
+	}
+
+	/*
+	 * Percentile of the positive values, computed like the prctile function in
+	 * MATLAB. Returns NaN if there are no positive values.
+	 */
+	static double percentile(double[] values, double percent) {
+
+		double[] positive = new double[values.length];
+		int n = 0;
+
+		for (double value : values) {
+			if (value > 0) {
+				positive[n++] = value;
+			}
+		}
+
+		if (n == 0) {
+			return Double.NaN;
+		}
+
+		Arrays.sort(positive, 0, n);
+
+		// the i-th sorted value corresponds to the percentage 100*(i-0.5)/n
+		double position = percent / 100 * n + 0.5;
+
+		if (position <= 1) {
+			return positive[0];
+		} else if (position >= n) {
+			return positive[n - 1];
+		}
+
+		int lower = (int) Math.floor(position);
+		double fraction = position - lower;
+
+		return positive[lower - 1] + fraction
+				* (positive[lower] - positive[lower - 1]);
+	}
+
+}
@@ -1,16 +1,42 @@
 package tepisclient;
 
-import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Entity;
-import javax.ws.rs.client.WebTarget;
-import javax.ws.rs.core.Form;
-import javax.ws.rs.core.GenericType;
-import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.ForbiddenException;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.NotAcceptableException;
+import javax.ws.rs.NotAllowedException;
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.NotSupportedException;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.RedirectionException;
+import javax.ws.rs.ServerErrorException;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
-import javax.xml.bind.JAXBElement;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import tepisclient.ImageMetadata;
-import tepisclient.AuthenticationFilter;
 
 /**
  * Client for the tEPIS image management and storage (IMS) server. *
@@ -25,28 +51,83 @@ import tepisclient.AuthenticationFilter;
 public class TepisClient {
 
 	/*
-	 * Main resource target.
+	 * Expected sizes of responses for which the content length is not known
+	 * before the response arrives.
+	 */
+	static final long METADATA_BYTES = 64 << 10;
+	static final long TILE_BYTES = 256 * 256 * 3;
+	static final long ASSOCIATED_IMAGE_BYTES = 1 << 20;
+	private static final long REGION_BYTES = 4 << 20;
+
+	/*
+	 * Set on the threads whose reads are not recorded in the access log, for
+	 * example those of a CacheWarmer, which may replay the log that is being
+	 * recorded.
+	 */
+	static final ThreadLocal<Boolean> UNRECORDED = new ThreadLocal<Boolean>();
+
+	private static final String APPLICATION_XML = "application/xml";
+	private static final String APPLICATION_OCTET_STREAM = "application/octet-stream";
+
+	/*
+	 * Parses the XML responses without resolving external entities.
+	 */
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory
+			.newInstance();
+
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		INPUT_FACTORY.setProperty(
+				XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/*
+	 * Transport over which the server is accessed.
 	 */
-	private WebTarget target;
+	private final Transport transport;
 
 	/*
-	 * Image resource target derived from the main resource target.
+	 * Executor on which the asynchronous requests run.
 	 */
-	private WebTarget imageResource;
+	private ExecutorService executor;
+
+	/*
+	 * Budget for the response data of the requests or null if unlimited.
+	 */
+	private ByteBudget budget;
+
+	/*
+	 * Cache for the responses or null if they are not cached.
+	 */
+	private RevalidatingCache cache;
+
+	/*
+	 * Log of the reads or null if they are not recorded.
+	 */
+	private AccessLog accessLog;
 
 	/**
+	 * Creates a client with the Jersey transport, or with the URL connections
+	 * of the JDK in the lightweight build.
 	 * 
 	 * @param tepisUri
 	 *            URI of the tEPIS image management and storage (IMS) server.
 	 */
 	public TepisClient(String tepisUri) {
 
-		target = ClientBuilder.newClient().register(new AuthenticationFilter())
-				.target(tepisUri);
+		this(defaultTransport(tepisUri));
+	}
 
-		imageResource = target.path("ImageService").path("{image}")
-				.path("{imageID}");
+	/**
+	 * 
+	 * @param transport
+	 *            Transport over which the tEPIS image management and storage
+	 *            (IMS) server is accessed, for example a
+	 *            {@link HttpClientTransport} or {@link UrlConnectionTransport}.
+	 */
+	public TepisClient(Transport transport) {
 
+		this.transport = transport;
 	}
 
 	/**
@@ -62,21 +143,31 @@ public class TepisClient {
 	 */
 	public void authenticate(String username, String password) {
 
-		Form form = new Form();
-		form.param("username", username);
-		form.param("password", password);
-
-		Response response = target
-				.path("AccessService")
-				.path("Login")
-				.request(MediaType.APPLICATION_XML_TYPE)
-				.post(Entity.entity(form,
-						MediaType.APPLICATION_FORM_URLENCODED_TYPE));
-
-		Integer status = response.readEntity(
-				new GenericType<JAXBElement<Integer>>() {
-				}).getValue();
-		
+		Map<String, String> form = new LinkedHashMap<String, String>();
+		form.put("username", username);
+		form.put("password", password);
+
+		int status;
+
+		try {
+
+			TransportResponse response = transport.post(new TransportRequest(
+					"AccessService", "Login").header("Accept", APPLICATION_XML),
+					form);
+
+			try {
+				checkStatus(response);
+				status = readInteger(response.getBody());
+			} finally {
+				response.close();
+			}
+
+		} catch (IOException e) {
+			throw new ProcessingException(e);
+		} catch (XMLStreamException e) {
+			throw new ProcessingException(e);
+		}
+
 		if (status != 1) {
 			throw new RuntimeException("Authentication failed");
 		}
@@ -92,11 +183,162 @@ public class TepisClient {
 	 */
 	public ImageMetadata getImageMetadata(String imageID) {
 
-		return imageResource.path("metadata").resolveTemplate("image", "image")
-				.resolveTemplate("imageID", imageID)
-				.request(MediaType.APPLICATION_XML_TYPE)
-				.get(ImageMetadata.class);
+		return getImageMetadata(imageID, null);
+	}
+
+	/**
+	 * Returns metadata of a digital slide with specified request options.
+	 * 
+	 * @param imageID
+	 *            ID of the digital slide for which the metadata is requested.
+	 * @param options
+	 *            Options of the request such as timeouts.
+	 * @return
+	 * @see getImageMetadata(String imageID)
+	 */
+	public ImageMetadata getImageMetadata(String imageID,
+			RequestOptions options) {
+
+		record(AccessLog.metadata(imageID));
+
+		return get(metadataRequest(imageID), IMAGE_METADATA, METADATA_BYTES,
+				options, new Exchange());
+	}
+
+	/**
+	 * Starts an asynchronous request for the metadata of a digital slide.
+	 * 
+	 * @param imageID
+	 *            ID of the digital slide for which the metadata is requested.
+	 * @param options
+	 *            Options of the request such as timeouts.
+	 * @return Future for the metadata. Cancelling the future with
+	 *         interruption aborts the request. The response keeps its
+	 *         reservation in the byte budget until it is retrieved with
+	 *         {@code get} or the future is cancelled, so futures that are not
+	 *         needed anymore should be cancelled rather than dropped.
+	 */
+	public Future<ImageMetadata> getImageMetadataAsync(String imageID,
+			RequestOptions options) {
+
+		record(AccessLog.metadata(imageID));
 
+		return submit(metadataRequest(imageID), IMAGE_METADATA,
+				METADATA_BYTES, options);
+	}
+
+	/**
+	 * Returns the pixel metadata of a digital slide.
+	 * <p>
+	 * Only the pixel metadata is parsed from the response, which is
+	 * considerably cheaper than {@link #getImageMetadata(String)} if only the
+	 * pixel geometry of the slide is needed. Up to 64 KB of the rest of the
+	 * response are skipped without parsing them, so that the connection can
+	 * be reused, and the connection of a longer response is closed instead.
+	 * 
+	 * @param imageID
+	 *            ID of the digital slide for which the metadata is requested.
+	 * @return
+	 * @see getPixelMetadata(String imageID, RequestOptions options)
+	 */
+	public ImageMetadata.PixelMetadata getPixelMetadata(String imageID) {
+
+		return getPixelMetadata(imageID, (RequestOptions) null);
+	}
+
+	/**
+	 * Returns the pixel metadata of a digital slide with specified request
+	 * options.
+	 * 
+	 * @param imageID
+	 *            ID of the digital slide for which the metadata is requested.
+	 * @param options
+	 *            Options of the request such as timeouts.
+	 * @return
+	 * @see getPixelMetadata(String imageID)
+	 */
+	public ImageMetadata.PixelMetadata getPixelMetadata(String imageID,
+			RequestOptions options) {
+
+		record(AccessLog.metadata(imageID));
+
+		return get(metadataRequest(imageID), PIXEL_METADATA, METADATA_BYTES,
+				options, new Exchange());
+	}
+
+	/**
+	 * Returns the pixel metadata of multiple digital slides. The metadata is
+	 * requested in parallel.
+	 * 
+	 * @param imageIDs
+	 *            IDs of the digital slides for which the metadata is
+	 *            requested.
+	 * @param options
+	 *            Options of each request such as timeouts.
+	 * @param parallelism
+	 *            Maximum number of parallel requests.
+	 * @return The pixel metadata in the order of the image IDs.
+	 * @throws ProcessingException
+	 *             If the calling thread is interrupted.
+	 * @see getPixelMetadata(String imageID, RequestOptions options)
+	 */
+	public List<ImageMetadata.PixelMetadata> getPixelMetadata(
+			final List<String> imageIDs, final RequestOptions options,
+			int parallelism) {
+
+		final ImageMetadata.PixelMetadata[] metadata = new ImageMetadata.PixelMetadata[imageIDs
+				.size()];
+
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+		// each worker requests the metadata of the next slide until all are
+		// done or any of them fails
+		List<Future<?>> workers = new ArrayList<Future<?>>();
+
+		for (int i = 0; i < Math.min(parallelism, imageIDs.size()); i++) {
+			workers.add(getExecutor().submit(new Runnable() {
+
+				@Override
+				public void run() {
+
+					int index;
+
+					while (failure.get() == null
+							&& (index = next.getAndIncrement()) < metadata.length) {
+						try {
+							metadata[index] = getPixelMetadata(
+									imageIDs.get(index), options);
+						} catch (RuntimeException e) {
+							failure.compareAndSet(null, e);
+						}
+					}
+
+				}
+
+			}));
+		}
+
+		try {
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		} catch (InterruptedException e) {
+			for (Future<?> worker : workers) {
+				worker.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new ProcessingException("Request interrupted",
+					new InterruptedIOException("Request interrupted"));
+		} catch (ExecutionException e) {
+			throw new ProcessingException(e.getCause());
+		}
+
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+
+		return Arrays.asList(metadata);
 	}
 
 	/**
@@ -137,24 +379,78 @@ public class TepisClient {
 	public byte[] getImagePixelData(String imageID, ImageRegionParam irp,
 			ImageFormatParam ifp) {
 
-		WebTarget target = imageResource.path("pixeldata")
-				.resolveTemplate("image", "image")
-				.resolveTemplate("imageID", imageID);
+		return getImagePixelData(imageID, irp, ifp, null);
+	}
+
+	/**
+	 * Returns pixel data of a rectangular region from a digital slide with
+	 * specified image format, quality and request options.
+	 * 
+	 * @param imageID
+	 *            ID of the digital slide from which the image region should be
+	 *            read.
+	 * @param irp
+	 *            Parameter object specifying the rectangular image region.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the returned image data.
+	 * @param options
+	 *            Options of the request such as timeouts.
+	 * @return The requested image region.
+	 * @see getImagePixelData(String imageID, ImageRegionParam irp,
+	 *      ImageFormatParam ifp)
+	 */
+	public byte[] getImagePixelData(String imageID, ImageRegionParam irp,
+			ImageFormatParam ifp, RequestOptions options) {
+
+		record(AccessLog.region(imageID, irp, ifp));
 
-		target = target.queryParam("x", irp.getX()).queryParam("y", irp.getY())
+		return get(pixelDataRequest(imageID, irp, ifp), BYTES,
+				regionBytes(irp), options, new Exchange());
+	}
+
+	/**
+	 * Starts an asynchronous request for the pixel data of a rectangular
+	 * region from a digital slide.
+	 * 
+	 * @param imageID
+	 *            ID of the digital slide from which the image region should be
+	 *            read.
+	 * @param irp
+	 *            Parameter object specifying the rectangular image region.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the returned image data.
+	 * @param options
+	 *            Options of the request such as timeouts.
+	 * @return Future for the image region. Cancelling the future with
+	 *         interruption aborts the request. The response keeps its
+	 *         reservation in the byte budget until it is retrieved with
+	 *         {@code get} or the future is cancelled, so futures that are not
+	 *         needed anymore should be cancelled rather than dropped.
+	 */
+	public Future<byte[]> getImagePixelDataAsync(String imageID,
+			ImageRegionParam irp, ImageFormatParam ifp, RequestOptions options) {
+
+		record(AccessLog.region(imageID, irp, ifp));
+
+		return submit(pixelDataRequest(imageID, irp, ifp), BYTES,
+				regionBytes(irp), options);
+	}
+
+	private static TransportRequest pixelDataRequest(String imageID,
+			ImageRegionParam irp, ImageFormatParam ifp) {
+
+		TransportRequest request = imageRequest("image", imageID,
+				"pixeldata", APPLICATION_OCTET_STREAM);
+
+		request.queryParam("x", irp.getX()).queryParam("y", irp.getY())
 				.queryParam("width", irp.getWidth())
 				.queryParam("height", irp.getHeight())
 				.queryParam("level", irp.getLevel())
 				.queryParam("unit", irp.getUnit());
 
-		if (ifp != null) {
-			target = target.queryParam("format", ifp.getFormat()).queryParam(
-					"quality", ifp.getQuality());
-		}
-
-		return target.request(MediaType.APPLICATION_OCTET_STREAM_TYPE).get(
-				byte[].class);
-
+		return formatParams(request, ifp);
 	}
 
 	/**
@@ -195,22 +491,75 @@ public class TepisClient {
 	public byte[] getTiledImagePixelData(String imageID, ImageTileParam itp,
 			ImageFormatParam ifp) {
 
-		WebTarget target = imageResource.path("pixeldata")
-				.resolveTemplate("image", "tiledimage")
-				.resolveTemplate("imageID", imageID);
+		return getTiledImagePixelData(imageID, itp, ifp, null);
+	}
 
-		target = target.queryParam("row", itp.getRow())
-				.queryParam("col", itp.getCol())
-				.queryParam("dir", itp.getDir());
+	/**
+	 * Returns pixel data of a tile from a digital slide with specified image
+	 * format, quality and request options.
+	 * 
+	 * @param imageID
+	 *            ID of the digital slide from which the image region should be
+	 *            read.
+	 * @param itp
+	 *            Parameter object specifying the image tile.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the returned image data.
+	 * @param options
+	 *            Options of the request such as timeouts.
+	 * @return The requested image tile.
+	 * @see getTiledImagePixelData(String imageID, ImageTileParam itp,
+	 *      ImageFormatParam ifp)
+	 */
+	public byte[] getTiledImagePixelData(String imageID, ImageTileParam itp,
+			ImageFormatParam ifp, RequestOptions options) {
 
-		if (ifp != null) {
-			target = target.queryParam("format", ifp.getFormat()).queryParam(
-					"quality", ifp.getQuality());
-		}
+		record(AccessLog.tile(imageID, itp, ifp));
 
-		return target.request(MediaType.APPLICATION_OCTET_STREAM_TYPE).get(
-				byte[].class);
+		return get(tileRequest(imageID, itp, ifp), BYTES, TILE_BYTES,
+				options, new Exchange());
+	}
 
+	/**
+	 * Starts an asynchronous request for the pixel data of a tile from a
+	 * digital slide.
+	 * 
+	 * @param imageID
+	 *            ID of the digital slide from which the image region should be
+	 *            read.
+	 * @param itp
+	 *            Parameter object specifying the image tile.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the returned image data.
+	 * @param options
+	 *            Options of the request such as timeouts.
+	 * @return Future for the image tile. Cancelling the future with
+	 *         interruption aborts the request. The response keeps its
+	 *         reservation in the byte budget until it is retrieved with
+	 *         {@code get} or the future is cancelled, so futures that are not
+	 *         needed anymore should be cancelled rather than dropped.
+	 */
+	public Future<byte[]> getTiledImagePixelDataAsync(String imageID,
+			ImageTileParam itp, ImageFormatParam ifp, RequestOptions options) {
+
+		record(AccessLog.tile(imageID, itp, ifp));
+
+		return submit(tileRequest(imageID, itp, ifp), BYTES, TILE_BYTES,
+				options);
+	}
+
+	private static TransportRequest tileRequest(String imageID,
+			ImageTileParam itp, ImageFormatParam ifp) {
+
+		TransportRequest request = imageRequest("tiledimage", imageID,
+				"pixeldata", APPLICATION_OCTET_STREAM);
+
+		request.queryParam("row", itp.getRow()).queryParam("col", itp.getCol())
+				.queryParam("dir", itp.getDir());
+
+		return formatParams(request, ifp);
 	}
 
 	/**
@@ -261,18 +610,514 @@ public class TepisClient {
 	public byte[] getAssociatedImage(String imageID, AssociatedImageType ait,
 			ImageFormatParam ifp) {
 
-		WebTarget target = imageResource.path(ait.toString())
-				.resolveTemplate("image", "image")
-				.resolveTemplate("imageID", imageID);
+		return getAssociatedImage(imageID, ait, ifp, null);
+	}
+
+	/**
+	 * Returns pixel data of an image associated with a digital slide with
+	 * specified image quality, format and request options.
+	 * 
+	 * @param imageID
+	 *            ID of the digital slide from which the associated should be
+	 *            read.
+	 * @param ait
+	 *            Enumeration specifying the associated image type (label, macro
+	 *            or thumbnail image).
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the returned image data.
+	 * @param options
+	 *            Options of the request such as timeouts.
+	 * @return The requested associated image.
+	 * @see getAssociatedImage(String imageID, AssociatedImageType ait,
+	 *      ImageFormatParam ifp)
+	 */
+	public byte[] getAssociatedImage(String imageID, AssociatedImageType ait,
+			ImageFormatParam ifp, RequestOptions options) {
+
+		record(AccessLog.associatedImage(imageID, ait, ifp));
+
+		return get(associatedImageRequest(imageID, ait, ifp), BYTES,
+				ASSOCIATED_IMAGE_BYTES, options, new Exchange());
+	}
+
+	/**
+	 * Starts an asynchronous request for the pixel data of an image associated
+	 * with a digital slide.
+	 * 
+	 * @param imageID
+	 *            ID of the digital slide from which the associated should be
+	 *            read.
+	 * @param ait
+	 *            Enumeration specifying the associated image type (label, macro
+	 *            or thumbnail image).
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the returned image data.
+	 * @param options
+	 *            Options of the request such as timeouts.
+	 * @return Future for the associated image. Cancelling the future with
+	 *         interruption aborts the request. The response keeps its
+	 *         reservation in the byte budget until it is retrieved with
+	 *         {@code get} or the future is cancelled, so futures that are not
+	 *         needed anymore should be cancelled rather than dropped.
+	 */
+	public Future<byte[]> getAssociatedImageAsync(String imageID,
+			AssociatedImageType ait, ImageFormatParam ifp,
+			RequestOptions options) {
+
+		record(AccessLog.associatedImage(imageID, ait, ifp));
+
+		return submit(associatedImageRequest(imageID, ait, ifp), BYTES,
+				ASSOCIATED_IMAGE_BYTES, options);
+	}
+
+	/**
+	 * Sets the executor on which the asynchronous requests run. By default, a
+	 * pool of daemon threads is created on the first asynchronous request.
+	 * With many requests in flight, for example over a high latency link, a
+	 * {@link VirtualThreadExecutor} is cheaper than a pool of threads.
+	 * 
+	 * @param executor
+	 *            The executor.
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the budget for the response data of the requests. Each request
+	 * reserves the expected size of its response, estimated from the request
+	 * and corrected to the content length of the response, and waits while
+	 * the budget is used up. The reservation is released when the response
+	 * is returned or, for asynchronous requests, retrieved from the future.
+	 * The responses of asynchronous requests that are never retrieved are
+	 * released when their future is cancelled or no longer referenced, so
+	 * futures that are not needed anymore should be cancelled rather than
+	 * dropped. By default, the response data is not limited.
+	 * 
+	 * @param budget
+	 *            The budget or null for no limit.
+	 */
+	public synchronized void setByteBudget(ByteBudget budget) {
+
+		this.budget = budget;
+	}
+
+	/**
+	 * Gets the value of the byteBudget property.
+	 * 
+	 * @return
+	 */
+	public synchronized ByteBudget getByteBudget() {
+
+		return budget;
+	}
+
+	/**
+	 * Sets the cache for the responses. Cached responses are revalidated with
+	 * conditional requests, so a slide that was scanned again is read again
+	 * while unchanged responses cost only a 304 Not Modified response. While
+	 * a cache is set, the metadata is read completely even if only the pixel
+	 * metadata is requested. By default, responses are not cached.
+	 * 
+	 * @param cache
+	 *            The cache or null for no caching.
+	 */
+	public synchronized void setResponseCache(RevalidatingCache cache) {
+
+		this.cache = cache;
+	}
+
+	/**
+	 * Gets the value of the responseCache property.
+	 * 
+	 * @return
+	 */
+	public synchronized RevalidatingCache getResponseCache() {
+
+		return cache;
+	}
+
+	/**
+	 * Sets the log in which the reads are recorded, for example to warm the
+	 * caches for a later session with a {@link CacheWarmer}. By default, the
+	 * reads are not recorded.
+	 * 
+	 * @param accessLog
+	 *            The log or null to stop recording.
+	 */
+	public synchronized void setAccessLog(AccessLog accessLog) {
+
+		this.accessLog = accessLog;
+	}
+
+	/**
+	 * Gets the value of the accessLog property.
+	 * 
+	 * @return
+	 */
+	public synchronized AccessLog getAccessLog() {
+
+		return accessLog;
+	}
+
+	/*
+	 * The Jersey transport if the JAX-RS runtime is available, which is not
+	 * the case in the lightweight build, and the URL connections of the JDK
+	 * otherwise.
+	 */
+	private static Transport defaultTransport(String tepisUri) {
+
+		try {
+			Class.forName("org.glassfish.jersey.client.JerseyClient", false,
+					TepisClient.class.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			return new UrlConnectionTransport(tepisUri);
+		}
+
+		return new JerseyTransport(tepisUri);
+	}
+
+	private void record(String access) {
+
+		AccessLog accessLog = getAccessLog();
+
+		if (accessLog != null && UNRECORDED.get() == null) {
+			accessLog.write(access);
+		}
+
+	}
+
+	private static TransportRequest imageRequest(String image,
+			String imageID, String resource, String mediaType) {
+
+		return new TransportRequest("ImageService", image, imageID, resource)
+				.header("Accept", mediaType);
+	}
+
+	private static TransportRequest metadataRequest(String imageID) {
+
+		return imageRequest("image", imageID, "metadata", APPLICATION_XML);
+	}
+
+	private static TransportRequest associatedImageRequest(String imageID,
+			AssociatedImageType ait, ImageFormatParam ifp) {
+
+		return formatParams(
+				imageRequest("image", imageID, ait.toString(),
+						APPLICATION_OCTET_STREAM), ifp);
+	}
+
+	private static TransportRequest formatParams(TransportRequest request,
+			ImageFormatParam ifp) {
 
 		if (ifp != null) {
-			target = target.queryParam("format", ifp.getFormat()).queryParam(
+			request.queryParam("format", ifp.getFormat()).queryParam(
 					"quality", ifp.getQuality());
 		}
 
-		return target.request(MediaType.APPLICATION_OCTET_STREAM_TYPE).get(
-				byte[].class);
+		return request;
+	}
+
+	/*
+	 * Reads the entity of the response to a request.
+	 */
+	private interface EntityReader<T> {
+
+		T read(TransportResponse response, Exchange exchange)
+				throws IOException;
+
+	}
+
+	/*
+	 * Expected size of the response to a region request: the size of the
+	 * uncompressed region, which is an upper bound for the encoded region,
+	 * if the region is in pixels.
+	 */
+	static long regionBytes(ImageRegionParam irp) {
+
+		if ((irp.getUnit() != null && irp.getUnit() != Unit.PIXEL)
+				|| irp.getWidth() == null || irp.getHeight() == null) {
+			return REGION_BYTES;
+		}
+
+		return (long) Math.ceil(irp.getWidth())
+				* (long) Math.ceil(irp.getHeight()) * 3;
+	}
+
+	private static final EntityReader<byte[]> BYTES = new EntityReader<byte[]>() {
+
+		@Override
+		public byte[] read(TransportResponse response, Exchange exchange)
+				throws IOException {
+
+			return response.getBody().readAllBytes();
+		}
+
+	};
+
+	private static final EntityReader<ImageMetadata> IMAGE_METADATA = new EntityReader<ImageMetadata>() {
+
+		@Override
+		public ImageMetadata read(TransportResponse response, Exchange exchange) {
+
+			try {
+				return ImageMetadataParser.parse(response.getBody());
+			} catch (XMLStreamException e) {
+				throw new ProcessingException(e);
+			} catch (NoClassDefFoundError e) {
+				throw new ProcessingException(
+						"Image metadata requires the JAXB runtime, use "
+								+ "getPixelMetadata in the lightweight build", e);
+			}
+
+		}
+
+	};
+
+	/*
+	 * Maximum size of the rest of a response that is skipped to keep the
+	 * connection. Reading more costs more than a new connection.
+	 */
+	private static final long MAX_SKIPPED_BYTES = 64 << 10;
+
+	/*
+	 * Parses only the pixel metadata from the response stream. The rest of
+	 * the response is skipped without parsing it, so that the connection can
+	 * be reused, unless it is longer than MAX_SKIPPED_BYTES, in which case the
+	 * exchange is discarded.
+	 */
+	private static final EntityReader<ImageMetadata.PixelMetadata> PIXEL_METADATA = new EntityReader<ImageMetadata.PixelMetadata>() {
+
+		@Override
+		public ImageMetadata.PixelMetadata read(TransportResponse response,
+				Exchange exchange) throws IOException {
+
+			InputStream body = response.getBody();
+
+			try {
+
+				ImageMetadata.PixelMetadata metadata = PixelMetadataParser
+						.parse(body);
+
+				byte[] buffer = new byte[8192];
+
+				for (long skipped = 0; skipped <= MAX_SKIPPED_BYTES;) {
+
+					int read = body.read(buffer);
+
+					if (read < 0) {
+						return metadata;
+					}
+
+					skipped += read;
+
+				}
+
+				exchange.discard();
+
+				return metadata;
+
+			} catch (XMLStreamException e) {
+				throw new ProcessingException(e);
+			}
+
+		}
+
+	};
+
+	/*
+	 * Reads the integer in the single element of an XML response.
+	 */
+	private static int readInteger(InputStream in) throws XMLStreamException {
+
+		XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+
+		try {
+			reader.nextTag();
+			return Integer.parseInt(reader.getElementText().trim());
+		} catch (NumberFormatException e) {
+			throw new XMLStreamException("Not an integer", e);
+		} finally {
+			reader.close();
+		}
+
+	}
+
+	/*
+	 * Throws the same exceptions as the Jersey Client API for responses that
+	 * are not successful, without needing the JAX-RS runtime.
+	 */
+	private static void checkStatus(TransportResponse response) {
+
+		int status = response.getStatus();
+
+		if (status >= 200 && status < 300) {
+			return;
+		}
+
+		Response jaxrsResponse = new StatusResponse(response);
+
+		switch (status) {
+		case 400:
+			throw new BadRequestException(jaxrsResponse);
+		case 401:
+			throw new NotAuthorizedException(jaxrsResponse);
+		case 403:
+			throw new ForbiddenException(jaxrsResponse);
+		case 404:
+			throw new NotFoundException(jaxrsResponse);
+		case 405:
+			throw new NotAllowedException(jaxrsResponse);
+		case 406:
+			throw new NotAcceptableException(jaxrsResponse);
+		case 415:
+			throw new NotSupportedException(jaxrsResponse);
+		case 500:
+			throw new InternalServerErrorException(jaxrsResponse);
+		case 503:
+			throw new ServiceUnavailableException(jaxrsResponse);
+		default:
+			if (status >= 300 && status < 400) {
+				throw new RedirectionException(jaxrsResponse);
+			} else if (status >= 400 && status < 500) {
+				throw new ClientErrorException(jaxrsResponse);
+			} else if (status >= 500 && status < 600) {
+				throw new ServerErrorException(jaxrsResponse);
+			}
+			throw new WebApplicationException(jaxrsResponse);
+		}
+
+	}
+
+	/*
+	 * Performs a GET request on the current thread. The connect and read
+	 * timeouts are clamped to the time that remains until the total timeout
+	 * expires, at which the exchange is aborted. With a response cache, the
+	 * request is conditional if the response is cached and the response is
+	 * read completely and cached.
+	 */
+	private <T> T get(TransportRequest request, EntityReader<T> reader,
+			long expectedBytes, RequestOptions options, Exchange exchange) {
+
+		exchange.begin(options != null ? options.getTotalTimeout() : 0);
+
+		try {
+
+			RevalidatingCache cache = getResponseCache();
+			RevalidatingCache.Entry cached = null;
+
+			if (cache != null) {
+
+				cached = cache.get(request);
+
+				TransportResponse response = cache.prepare(request, cached);
+
+				if (response != null) {
+					return reader.read(response, exchange);
+				}
+
+			}
+
+			ByteBudget budget = getByteBudget();
+
+			if (budget != null) {
+				exchange.reserve(budget, expectedBytes);
+			}
+
+			if (options != null) {
+				request.setConnectTimeout(exchange.clamp(options
+						.getConnectTimeout()));
+				request.setReadTimeout(exchange.clamp(options.getReadTimeout()));
+			}
+
+			request.setExchange(exchange);
+
+			TransportResponse response = transport.get(request);
+
+			try {
+
+				// correct the reservation to the actual size of the response
+				if (response.getContentLength() >= 0) {
+					exchange.resize(response.getContentLength());
+				}
+
+				if (cached != null && response.getStatus() == 304) {
+					return reader.read(
+							cache.notModified(request, cached, response),
+							exchange);
+				}
+
+				checkStatus(response);
+
+				if (cache != null) {
+					return reader.read(cache.put(request, response, response
+							.getBody().readAllBytes()), exchange);
+				}
+
+				return reader.read(response, exchange);
+
+			} finally {
+				try {
+					response.close();
+				} catch (IOException e) {
+					// the response is already read
+				}
+			}
+
+		} catch (IOException e) {
+			throw exchange.translate(new ProcessingException(e));
+		} catch (RuntimeException e) {
+			throw exchange.translate(e);
+		} finally {
+			exchange.end();
+		}
+
+	}
+
+	/*
+	 * Performs a GET request on the executor.
+	 */
+	private <T> Future<T> submit(final TransportRequest request,
+			final EntityReader<T> reader, final long expectedBytes,
+			final RequestOptions options) {
+
+		final Exchange exchange = new Exchange();
+
+		RequestFuture<T> future = new RequestFuture<T>(new Callable<T>() {
+
+			@Override
+			public T call() {
+
+				return get(request, reader, expectedBytes, options, exchange);
+			}
+
+		}, exchange);
+
+		getExecutor().execute(future);
+
+		return future;
+	}
+
+	private synchronized ExecutorService getExecutor() {
+
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+
+					Thread thread = new Thread(r, "tepisclient-request");
+					thread.setDaemon(true);
+					return thread;
+				}
+
+			});
+		}
 
+		return executor;
 	}
 
 }
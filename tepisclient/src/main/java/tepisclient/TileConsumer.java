@@ -0,0 +1,27 @@
+package tepisclient;
+
+/**
+ * Receives image tiles read from the server.
+ * <p>
+ * Implementations can be called concurrently from multiple threads.
+ *
+ */
+
+public interface TileConsumer {
+
+	/**
+	 * Called for each tile that is read.
+	 *
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param itp
+	 *            Parameter object specifying the image tile.
+	 * @param data
+	 *            The encoded tile data.
+	 * @throws Exception
+	 *             If the tile cannot be processed.
+	 */
+	void accept(String imageID, ImageTileParam itp, byte[] data)
+			throws Exception;
+
+}
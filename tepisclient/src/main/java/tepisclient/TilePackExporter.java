@@ -0,0 +1,343 @@
+package tepisclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exports all tiles of a digital slide to a local tile pack file.
+ * <p>
+ * The tiles of every level are read in parallel with
+ * {@link TepisClient#getTiledImagePixelData(String, ImageTileParam, ImageFormatParam)}
+ * and the encoded tile data is written unchanged to a single file. The file
+ * layout is described in {@link TilePackReader}, which can be used to read the
+ * exported tiles.
+ * <p>
+ * The number of tiles that were submitted for reading but are not yet
+ * written is bounded, so the tasks of all tiles of a large slide are never
+ * queued at the same time.
+ *
+ */
+
+public class TilePackExporter {
+
+	/*
+	 * Default maximum number of tiles that are read or written at the same
+	 * time.
+	 */
+	private static final int DEFAULT_MAX_PENDING_TILES = 256;
+
+	/*
+	 * Client used to read the tiles.
+	 */
+	private final TepisClient client;
+
+	/*
+	 * Executor on which the tiles are read and written.
+	 */
+	private final ExecutorService executor;
+
+	/*
+	 * Maximum number of tiles that are read or written at the same time.
+	 */
+	private final int maxPendingTiles;
+
+	/**
+	 * @param client
+	 *            Client used to read the tiles.
+	 * @param executor
+	 *            Executor on which the tiles are read and written. The number
+	 *            of threads of the executor determines the number of parallel
+	 *            requests to the server.
+	 */
+	public TilePackExporter(TepisClient client, ExecutorService executor) {
+
+		this(client, executor, DEFAULT_MAX_PENDING_TILES);
+	}
+
+	/**
+	 * @param client
+	 *            Client used to read the tiles.
+	 * @param executor
+	 *            Executor on which the tiles are read and written. The number
+	 *            of threads of the executor determines the number of parallel
+	 *            requests to the server.
+	 * @param maxPendingTiles
+	 *            Maximum number of tiles that are submitted to the executor
+	 *            but not yet written. Should be at least the number of
+	 *            threads of the executor.
+	 */
+	public TilePackExporter(TepisClient client, ExecutorService executor,
+			int maxPendingTiles) {
+
+		this.client = client;
+		this.executor = executor;
+		this.maxPendingTiles = maxPendingTiles;
+	}
+
+	/**
+	 * Exports all tiles of a digital slide in the default image format and
+	 * quality of the server.
+	 *
+	 * @param imageID
+	 *            ID of the digital slide that should be exported.
+	 * @param file
+	 *            The tile pack file. An existing file is overwritten.
+	 * @throws IOException
+	 * @see export(String imageID, File file, ImageFormatParam ifp)
+	 */
+	public void export(String imageID, File file) throws IOException {
+
+		export(imageID, file, null);
+	}
+
+	/**
+	 * Exports all tiles of a digital slide with specified image format and
+	 * quality.
+	 * <p>
+	 * If reading of any of the tiles fails, the remaining tiles are cancelled
+	 * and the partially written file is left behind.
+	 *
+	 * @param imageID
+	 *            ID of the digital slide that should be exported.
+	 * @param file
+	 *            The tile pack file. An existing file is overwritten.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the exported tiles.
+	 * @throws IOException
+	 * @see export(String imageID, File file)
+	 */
+	public void export(String imageID, File file, ImageFormatParam ifp)
+			throws IOException {
+
+		SlideGeometry geometry = new SlideGeometry(
+				client.getPixelMetadata(imageID));
+
+		int numberOfLevels = geometry.getNumberOfLevels();
+
+		long[][] offsets = new long[numberOfLevels][];
+		int[][] lengths = new int[numberOfLevels][];
+
+		long tableOffset = TilePackReader.HEADER_SIZE + numberOfLevels
+				* TilePackReader.LEVEL_HEADER_SIZE;
+
+		long[] tableOffsets = new long[numberOfLevels];
+
+		for (int level = 0; level < numberOfLevels; level++) {
+
+			int numberOfTiles = geometry.getTileColumns(level)
+					* geometry.getTileRows(level);
+
+			offsets[level] = new long[numberOfTiles];
+			lengths[level] = new int[numberOfTiles];
+
+			tableOffsets[level] = tableOffset;
+			tableOffset += (long) numberOfTiles
+					* TilePackReader.TABLE_ENTRY_SIZE;
+
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+
+			raf.setLength(0);
+
+			FileChannel channel = raf.getChannel();
+
+			// payloads are appended after the tables in completion order
+			AtomicLong position = new AtomicLong(tableOffset);
+
+			CompletionService<Void> completionService = new ExecutorCompletionService<Void>(
+					executor);
+
+			// tiles that are submitted but not yet taken from the completion
+			// service
+			Set<Future<Void>> futures = new HashSet<Future<Void>>();
+
+			try {
+
+				for (int level = 0; level < numberOfLevels; level++) {
+					for (int row = 0; row < geometry.getTileRows(level); row++) {
+						for (int col = 0; col < geometry.getTileColumns(level); col++) {
+
+							// wait for a tile before submitting the next one
+							if (futures.size() >= maxPendingTiles) {
+								take(completionService, futures);
+							}
+
+							int index = row * geometry.getTileColumns(level)
+									+ col;
+
+							futures.add(completionService.submit(new TileTask(
+									imageID, new ImageTileParam(col, row,
+											level), ifp, index,
+									offsets[level], lengths[level], channel,
+									position)));
+
+						}
+					}
+				}
+
+				while (!futures.isEmpty()) {
+					take(completionService, futures);
+				}
+
+			} catch (InterruptedException e) {
+				cancelAll(futures);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Tile pack export interrupted");
+			} catch (ExecutionException e) {
+				cancelAll(futures);
+				throw toIOException(e.getCause());
+			}
+
+			// header
+			ByteBuffer header = ByteBuffer.allocate(TilePackReader.HEADER_SIZE
+					+ numberOfLevels * TilePackReader.LEVEL_HEADER_SIZE);
+
+			header.putInt(TilePackReader.MAGIC);
+			header.putInt(TilePackReader.VERSION);
+			header.putInt(numberOfLevels);
+
+			for (int level = 0; level < numberOfLevels; level++) {
+
+				header.putInt(geometry.getWidth(level));
+				header.putInt(geometry.getHeight(level));
+				header.putInt(geometry.getTileWidth(level));
+				header.putInt(geometry.getTileHeight(level));
+				header.putInt(geometry.getTileColumns(level));
+				header.putInt(geometry.getTileRows(level));
+				header.putLong(tableOffsets[level]);
+
+			}
+
+			header.flip();
+			writeFully(channel, header, 0);
+
+			// offset/length tables
+			for (int level = 0; level < numberOfLevels; level++) {
+
+				ByteBuffer table = ByteBuffer.allocate(offsets[level].length
+						* TilePackReader.TABLE_ENTRY_SIZE);
+
+				for (int i = 0; i < offsets[level].length; i++) {
+					table.putLong(offsets[level][i]);
+					table.putInt(lengths[level][i]);
+				}
+
+				table.flip();
+				writeFully(channel, table, tableOffsets[level]);
+
+			}
+
+			channel.force(false);
+
+		} finally {
+			raf.close();
+		}
+
+	}
+
+	/*
+	 * Reads a single tile and writes it at the next free position of the
+	 * file.
+	 */
+	private class TileTask implements Callable<Void> {
+
+		private final String imageID;
+		private final ImageTileParam itp;
+		private final ImageFormatParam ifp;
+		private final int index;
+		private final long[] offsets;
+		private final int[] lengths;
+		private final FileChannel channel;
+		private final AtomicLong position;
+
+		TileTask(String imageID, ImageTileParam itp, ImageFormatParam ifp,
+				int index, long[] offsets, int[] lengths, FileChannel channel,
+				AtomicLong position) {
+
+			this.imageID = imageID;
+			this.itp = itp;
+			this.ifp = ifp;
+			this.index = index;
+			this.offsets = offsets;
+			this.lengths = lengths;
+			this.channel = channel;
+			this.position = position;
+		}
+
+		@Override
+		public Void call() throws IOException {
+
+			byte[] data = client.getTiledImagePixelData(imageID, itp, ifp);
+
+			long offset = position.getAndAdd(data.length);
+
+			writeFully(channel, ByteBuffer.wrap(data), offset);
+
+			offsets[index] = offset;
+			lengths[index] = data.length;
+
+			return null;
+		}
+
+	}
+
+	/*
+	 * Writes the remaining content of a buffer at the specified position.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+
+	}
+
+	/*
+	 * Waits for the next completed tile and rethrows its failure.
+	 */
+	private static void take(CompletionService<Void> completionService,
+			Set<Future<Void>> futures) throws InterruptedException,
+			ExecutionException {
+
+		Future<Void> future = completionService.take();
+
+		futures.remove(future);
+		future.get();
+	}
+
+	private static void cancelAll(Set<Future<Void>> futures) {
+
+		for (Future<Void> future : futures) {
+			future.cancel(true);
+		}
+
+	}
+
+	private static IOException toIOException(Throwable cause) {
+
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+
+		return new IOException("Tile pack export failed", cause);
+	}
+
+}
@@ -0,0 +1,323 @@
+package tepisclient;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads tiles from a tile pack file created with {@link TilePackExporter}.
+ * <p>
+ * The file is memory-mapped and the tiles are returned as read-only slices of
+ * the mapping, so no tile data is copied. The file has the following layout
+ * (all values are big-endian):
+ * <ul>
+ * <li>header: magic number, format version and number of levels (3 ints);</li>
+ * <li>level headers: width, height, tile width, tile height, number of tile
+ * columns and number of tile rows (6 ints) and the offset of the tile table
+ * (1 long) for each level;</li>
+ * <li>tile tables: offset (1 long) and length (1 int) of each tile of a level
+ * in row-major order;</li>
+ * <li>tile payloads: the encoded tile data as returned by the server.</li>
+ * </ul>
+ * <p>
+ * Instances can be shared between threads.
+ *
+ */
+
+public class TilePackReader implements Closeable {
+
+	/*
+	 * Magic number ("TPAK") and version of the file format.
+	 */
+	static final int MAGIC = 0x5450414B;
+	static final int VERSION = 1;
+
+	/*
+	 * Sizes of the fixed-size parts of the file in bytes.
+	 */
+	static final int HEADER_SIZE = 3 * 4;
+	static final int LEVEL_HEADER_SIZE = 6 * 4 + 8;
+	static final int TABLE_ENTRY_SIZE = 8 + 4;
+
+	/*
+	 * Stride of the mapped segments of the payload section. Each segment is
+	 * extended by the size of the largest tile so that every tile is fully
+	 * contained in the segment in which it starts.
+	 */
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	private final RandomAccessFile raf;
+
+	/*
+	 * Level headers.
+	 */
+	private final int[] width;
+	private final int[] height;
+	private final int[] tileWidth;
+	private final int[] tileHeight;
+	private final int[] tileColumns;
+	private final int[] tileRows;
+
+	/*
+	 * Tile tables of each level.
+	 */
+	private final long[][] offsets;
+	private final int[][] lengths;
+
+	/*
+	 * Start of the payload section and the mapped payload segments.
+	 */
+	private final long payloadOffset;
+	private final MappedByteBuffer[] segments;
+
+	/**
+	 * @param file
+	 *            The tile pack file.
+	 * @throws IOException
+	 */
+	public TilePackReader(File file) throws IOException {
+
+		raf = new RandomAccessFile(file, "r");
+
+		try {
+
+			FileChannel channel = raf.getChannel();
+
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					HEADER_SIZE);
+
+			if (header.getInt() != MAGIC) {
+				throw new IOException("Not a tile pack file");
+			}
+
+			if (header.getInt() != VERSION) {
+				throw new IOException("Unsupported tile pack version");
+			}
+
+			int numberOfLevels = header.getInt();
+
+			width = new int[numberOfLevels];
+			height = new int[numberOfLevels];
+			tileWidth = new int[numberOfLevels];
+			tileHeight = new int[numberOfLevels];
+			tileColumns = new int[numberOfLevels];
+			tileRows = new int[numberOfLevels];
+			offsets = new long[numberOfLevels][];
+			lengths = new int[numberOfLevels][];
+
+			ByteBuffer levelHeaders = channel.map(
+					FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+					(long) numberOfLevels * LEVEL_HEADER_SIZE);
+
+			long tablesEnd = HEADER_SIZE + (long) numberOfLevels
+					* LEVEL_HEADER_SIZE;
+
+			int maxLength = 0;
+
+			for (int level = 0; level < numberOfLevels; level++) {
+
+				width[level] = levelHeaders.getInt();
+				height[level] = levelHeaders.getInt();
+				tileWidth[level] = levelHeaders.getInt();
+				tileHeight[level] = levelHeaders.getInt();
+				tileColumns[level] = levelHeaders.getInt();
+				tileRows[level] = levelHeaders.getInt();
+
+				long tableOffset = levelHeaders.getLong();
+
+				int numberOfTiles = tileColumns[level] * tileRows[level];
+
+				ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY,
+						tableOffset, (long) numberOfTiles * TABLE_ENTRY_SIZE);
+
+				offsets[level] = new long[numberOfTiles];
+				lengths[level] = new int[numberOfTiles];
+
+				for (int i = 0; i < numberOfTiles; i++) {
+					offsets[level][i] = table.getLong();
+					lengths[level][i] = table.getInt();
+					maxLength = Math.max(maxLength, lengths[level][i]);
+				}
+
+				tablesEnd = Math.max(tablesEnd, tableOffset + (long) numberOfTiles
+						* TABLE_ENTRY_SIZE);
+
+			}
+
+			payloadOffset = tablesEnd;
+
+			long payloadSize = channel.size() - payloadOffset;
+
+			segments = new MappedByteBuffer[(int) ((payloadSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+
+			for (int i = 0; i < segments.length; i++) {
+
+				long start = payloadOffset + i * SEGMENT_SIZE;
+				long size = Math.min(SEGMENT_SIZE + maxLength, channel.size()
+						- start);
+
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						size);
+
+			}
+
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+
+	}
+
+	/**
+	 * Returns the encoded data of a tile.
+	 * <p>
+	 * The returned buffer is a read-only view of the mapped file positioned at
+	 * the start of the tile data and limited to its length.
+	 *
+	 * @param itp
+	 *            Parameter object specifying the image tile.
+	 * @return The requested image tile.
+	 */
+	public ByteBuffer getTile(ImageTileParam itp) {
+
+		int level = itp.getDir();
+
+		if (itp.getCol() < 0 || itp.getCol() >= tileColumns[level]
+				|| itp.getRow() < 0 || itp.getRow() >= tileRows[level]) {
+			throw new IndexOutOfBoundsException("Tile outside of the level: "
+					+ itp);
+		}
+
+		int index = itp.getRow() * tileColumns[level] + itp.getCol();
+
+		// an empty tile may lie at the end of the file, outside of all
+		// segments, or in a file without payload
+		if (lengths[level][index] == 0) {
+			return ByteBuffer.allocate(0).asReadOnlyBuffer();
+		}
+
+		long relativeOffset = offsets[level][index] - payloadOffset;
+
+		ByteBuffer segment = segments[(int) (relativeOffset / SEGMENT_SIZE)]
+				.asReadOnlyBuffer();
+
+		int position = (int) (relativeOffset % SEGMENT_SIZE);
+
+		segment.position(position);
+		segment.limit(position + lengths[level][index]);
+
+		return segment.slice();
+	}
+
+	/**
+	 * Returns the encoded data of a tile as a byte array.
+	 * <p>
+	 * Unlike {@link #getTile(ImageTileParam)} this method copies the tile data.
+	 *
+	 * @param itp
+	 *            Parameter object specifying the image tile.
+	 * @return The requested image tile.
+	 */
+	public byte[] getTiledImagePixelData(ImageTileParam itp) {
+
+		ByteBuffer tile = getTile(itp);
+
+		byte[] data = new byte[tile.remaining()];
+		tile.get(data);
+
+		return data;
+	}
+
+	/**
+	 * Gets the number of levels in the tile pack.
+	 *
+	 * @return The number of levels.
+	 */
+	public int getNumberOfLevels() {
+
+		return width.length;
+	}
+
+	/**
+	 * Gets the width of a level in pixels.
+	 *
+	 * @param level
+	 * @return The width.
+	 */
+	public int getWidth(int level) {
+
+		return width[level];
+	}
+
+	/**
+	 * Gets the height of a level in pixels.
+	 *
+	 * @param level
+	 * @return The height.
+	 */
+	public int getHeight(int level) {
+
+		return height[level];
+	}
+
+	/**
+	 * Gets the tile width of a level in pixels.
+	 *
+	 * @param level
+	 * @return The tile width.
+	 */
+	public int getTileWidth(int level) {
+
+		return tileWidth[level];
+	}
+
+	/**
+	 * Gets the tile height of a level in pixels.
+	 *
+	 * @param level
+	 * @return The tile height.
+	 */
+	public int getTileHeight(int level) {
+
+		return tileHeight[level];
+	}
+
+	/**
+	 * Gets the number of tile columns of a level.
+	 *
+	 * @param level
+	 * @return The number of tile columns.
+	 */
+	public int getTileColumns(int level) {
+
+		return tileColumns[level];
+	}
+
+	/**
+	 * Gets the number of tile rows of a level.
+	 *
+	 * @param level
+	 * @return The number of tile rows.
+	 */
+	public int getTileRows(int level) {
+
+		return tileRows[level];
+	}
+
+	/**
+	 * Closes the underlying file.
+	 * <p>
+	 * Buffers that were already returned remain valid until they are garbage
+	 * collected.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		raf.close();
+	}
+
+}
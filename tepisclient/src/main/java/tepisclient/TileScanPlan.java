@@ -0,0 +1,99 @@
+package tepisclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Work plan that reads all tiles of a level of each slide and passes them to a
+ * {@link TileConsumer}.
+ * <p>
+ * The level is counted from the first (largest) level, or from the last
+ * (smallest) level if negative, so -1 selects the smallest level of each
+ * slide. Optionally, tiles that contain only background are skipped using a
+ * {@link TissueMask} computed from the thumbnail of each slide.
+ *
+ */
+
+public class TileScanPlan implements SlideWorkPlan {
+
+	private final TepisClient client;
+
+	private final int level;
+
+	private final boolean skipBackground;
+
+	private final ImageFormatParam ifp;
+
+	private final TileConsumer consumer;
+
+	/**
+	 * @param client
+	 *            Client used to read the tiles.
+	 * @param level
+	 *            Level of the tiles. Negative values count from the smallest
+	 *            level.
+	 * @param skipBackground
+	 *            If true, tiles without tissue are skipped.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the tiles or null for the server default.
+	 * @param consumer
+	 *            Consumer of the tiles.
+	 */
+	public TileScanPlan(TepisClient client, int level, boolean skipBackground,
+			ImageFormatParam ifp, TileConsumer consumer) {
+
+		this.client = client;
+		this.level = level;
+		this.skipBackground = skipBackground;
+		this.ifp = ifp;
+		this.consumer = consumer;
+	}
+
+	@Override
+	public List<Callable<Void>> createWorkUnits(final String imageID)
+			throws Exception {
+
+		SlideGeometry geometry = new SlideGeometry(
+				client.getPixelMetadata(imageID));
+
+		int selectedLevel = level >= 0 ? level : geometry.getNumberOfLevels()
+				+ level;
+
+		BlockFilter filter = skipBackground ? TissueMask.fromThumbnail(client,
+				imageID, geometry) : null;
+
+		BlockGrid grid = BlockGrid.tileGrid(geometry, selectedLevel, filter);
+
+		List<Callable<Void>> units = new ArrayList<Callable<Void>>();
+
+		for (int row = 0; row < grid.getRows(); row++) {
+			for (int col = 0; col < grid.getColumns(); col++) {
+
+				if (!grid.isAccepted(col, row)) {
+					continue;
+				}
+
+				final ImageTileParam itp = grid.getTile(col, row);
+
+				units.add(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+
+						consumer.accept(imageID, itp,
+								client.getTiledImagePixelData(imageID, itp, ifp));
+
+						return null;
+					}
+
+				});
+
+			}
+		}
+
+		return units;
+	}
+
+}
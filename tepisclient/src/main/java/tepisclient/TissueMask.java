@@ -0,0 +1,356 @@
+package tepisclient;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Binary mask of the tissue in a digital slide computed from a low resolution
+ * image of the whole slide.
+ * <p>
+ * Pixels with mean intensity below a threshold are considered tissue, the
+ * remaining pixels are considered background (glass). The mask can be mapped
+ * to regions and tiles at any level of the slide and can be used as a
+ * {@link BlockFilter} so that background blocks are never read from the
+ * server.
+ * <p>
+ * The coverage of a region is computed conservatively: every mask pixel that
+ * is even partially covered by the region is counted.
+ *
+ */
+
+public class TissueMask implements BlockFilter {
+
+	/**
+	 * Default intensity threshold. Pixels with mean intensity below the
+	 * threshold are considered tissue.
+	 */
+	public static final int DEFAULT_THRESHOLD = 220;
+
+	/*
+	 * Size of the mask in pixels.
+	 */
+	private final int width;
+	private final int height;
+
+	/*
+	 * Size of a mask pixel in pixels of the first level.
+	 */
+	private final double scaleX;
+	private final double scaleY;
+
+	/*
+	 * Summed area table of the mask with an extra leading row and column of
+	 * zeros.
+	 */
+	private final int[] integral;
+
+	/*
+	 * Minimum fraction of tissue pixels for a block to be accepted.
+	 */
+	private final double minCoverage;
+
+	private final SlideGeometry geometry;
+
+	/**
+	 * Computes a tissue mask from an image of the whole slide.
+	 *
+	 * @param image
+	 *            Image covering the whole first level of the slide, for
+	 *            example the thumbnail or a small level of the slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param threshold
+	 *            Intensity threshold. Pixels with mean intensity below the
+	 *            threshold are considered tissue.
+	 * @param minCoverage
+	 *            Minimum fraction of tissue pixels for a block to be accepted
+	 *            by {@link #accept(int, int, int, int, int)}. Blocks with any
+	 *            tissue are accepted if 0.
+	 */
+	public TissueMask(BufferedImage image, SlideGeometry geometry,
+			int threshold, double minCoverage) {
+
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.scaleX = (double) geometry.getWidth(0) / width;
+		this.scaleY = (double) geometry.getHeight(0) / height;
+		this.minCoverage = minCoverage;
+		this.geometry = geometry;
+
+		int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+
+		integral = new int[(width + 1) * (height + 1)];
+
+		for (int y = 0; y < height; y++) {
+
+			int rowSum = 0;
+
+			for (int x = 0; x < width; x++) {
+
+				int pixel = rgb[y * width + x];
+
+				int intensity = (((pixel >> 16) & 0xFF)
+						+ ((pixel >> 8) & 0xFF) + (pixel & 0xFF)) / 3;
+
+				if (intensity < threshold) {
+					rowSum++;
+				}
+
+				integral[(y + 1) * (width + 1) + x + 1] = integral[y
+						* (width + 1) + x + 1]
+						+ rowSum;
+
+			}
+		}
+
+	}
+
+	/**
+	 * Computes a tissue mask from the thumbnail image of a digital slide with
+	 * the default threshold.
+	 *
+	 * @param client
+	 *            Client used to read the thumbnail.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @return The tissue mask.
+	 * @throws IOException
+	 *             If the thumbnail cannot be decoded.
+	 */
+	public static TissueMask fromThumbnail(TepisClient client, String imageID,
+			SlideGeometry geometry) throws IOException {
+
+		BufferedImage image = ImageDecoder.decode(client.getAssociatedImage(
+				imageID, AssociatedImageType.THUMBNAIL));
+
+		return new TissueMask(image, geometry, DEFAULT_THRESHOLD, 0);
+	}
+
+	/**
+	 * Computes a tissue mask from a whole level of a digital slide with the
+	 * default threshold.
+	 * <p>
+	 * Use this method if the thumbnail does not cover the same area as the
+	 * slide levels. The level should be one of the smallest levels.
+	 *
+	 * @param client
+	 *            Client used to read the level.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param level
+	 *            Level from which the mask is computed.
+	 * @return The tissue mask.
+	 * @throws IOException
+	 *             If the image data cannot be decoded.
+	 * @see fromLevel(TepisClient client, String imageID, SlideGeometry
+	 *      geometry, int level, int subsampling)
+	 */
+	public static TissueMask fromLevel(TepisClient client, String imageID,
+			SlideGeometry geometry, int level) throws IOException {
+
+		return fromLevel(client, imageID, geometry, level, 1);
+	}
+
+	/**
+	 * Computes a tissue mask from a whole level of a digital slide with the
+	 * default threshold, decoding only every n-th pixel of the level.
+	 * <p>
+	 * Subsampling gives a coarser mask at a fraction of the decoding time and
+	 * memory, which allows computing the mask from a larger level than would
+	 * otherwise be practical.
+	 *
+	 * @param client
+	 *            Client used to read the level.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param level
+	 *            Level from which the mask is computed.
+	 * @param subsampling
+	 *            Subsampling factor in both directions.
+	 * @return The tissue mask.
+	 * @throws IOException
+	 *             If the image data cannot be decoded.
+	 * @see fromLevel(TepisClient client, String imageID, SlideGeometry
+	 *      geometry, int level)
+	 */
+	public static TissueMask fromLevel(TepisClient client, String imageID,
+			SlideGeometry geometry, int level, int subsampling)
+			throws IOException {
+
+		ImageRegionParam irp = new ImageRegionParam(0f, 0f,
+				(float) geometry.getWidth(level),
+				(float) geometry.getHeight(level), level, Unit.PIXEL);
+
+		BufferedImage image = ImageDecoder.decode(
+				client.getImagePixelData(imageID, irp), new DecodeOptions(
+						subsampling));
+
+		return new TissueMask(image, geometry, DEFAULT_THRESHOLD, 0);
+	}
+
+	/**
+	 * Returns the fraction of tissue pixels in a region.
+	 *
+	 * @param level
+	 *            Level of the region.
+	 * @param x
+	 *            Horizontal coordinate of the top-left corner of the region in
+	 *            pixels of the level.
+	 * @param y
+	 *            Vertical coordinate of the top-left corner of the region in
+	 *            pixels of the level.
+	 * @param width
+	 *            Width of the region in pixels.
+	 * @param height
+	 *            Height of the region in pixels.
+	 * @return Fraction of tissue pixels between 0 and 1.
+	 */
+	public double getCoverage(int level, double x, double y, double width,
+			double height) {
+
+		double downsamplingX = geometry.getDownsamplingX(level);
+		double downsamplingY = geometry.getDownsamplingY(level);
+
+		int fromX = clamp((int) Math.floor(x * downsamplingX / scaleX),
+				this.width);
+		int fromY = clamp((int) Math.floor(y * downsamplingY / scaleY),
+				this.height);
+		int toX = clamp((int) Math.ceil((x + width) * downsamplingX / scaleX),
+				this.width);
+		int toY = clamp(
+				(int) Math.ceil((y + height) * downsamplingY / scaleY),
+				this.height);
+
+		int area = (toX - fromX) * (toY - fromY);
+
+		if (area == 0) {
+			return 0;
+		}
+
+		return (double) count(fromX, fromY, toX, toY) / area;
+	}
+
+	/**
+	 * Returns the fraction of tissue pixels in a tile.
+	 *
+	 * @param itp
+	 *            Parameter object specifying the image tile.
+	 * @return Fraction of tissue pixels between 0 and 1.
+	 */
+	public double getCoverage(ImageTileParam itp) {
+
+		int level = itp.getDir();
+
+		int tileWidth = geometry.getTileWidth(level);
+		int tileHeight = geometry.getTileHeight(level);
+
+		return getCoverage(level, itp.getCol() * tileWidth, itp.getRow()
+				* tileHeight, tileWidth, tileHeight);
+	}
+
+	/**
+	 * Returns the fraction of tissue pixels in a region. The region must be
+	 * specified in pixels.
+	 *
+	 * @param irp
+	 *            Parameter object specifying the rectangular image region.
+	 * @return Fraction of tissue pixels between 0 and 1.
+	 */
+	public double getCoverage(ImageRegionParam irp) {
+
+		int level = irp.getLevel() != null ? irp.getLevel() : 0;
+
+		return getCoverage(level, irp.getX(), irp.getY(), irp.getWidth(),
+				irp.getHeight());
+	}
+
+	@Override
+	public boolean accept(int level, int x, int y, int width, int height) {
+
+		double coverage = getCoverage(level, x, y, width, height);
+
+		return minCoverage > 0 ? coverage >= minCoverage : coverage > 0;
+	}
+
+	/**
+	 * Returns a tissue mask with the same pixels and a different minimum
+	 * coverage.
+	 *
+	 * @param minCoverage
+	 *            Minimum fraction of tissue pixels for a block to be accepted.
+	 * @return The new tissue mask.
+	 */
+	public TissueMask withMinCoverage(double minCoverage) {
+
+		return new TissueMask(this, minCoverage);
+	}
+
+	private TissueMask(TissueMask mask, double minCoverage) {
+
+		this.width = mask.width;
+		this.height = mask.height;
+		this.scaleX = mask.scaleX;
+		this.scaleY = mask.scaleY;
+		this.integral = mask.integral;
+		this.geometry = mask.geometry;
+		this.minCoverage = minCoverage;
+	}
+
+	/**
+	 * Checks whether a mask pixel is tissue.
+	 *
+	 * @param x
+	 *            Horizontal coordinate of the mask pixel.
+	 * @param y
+	 *            Vertical coordinate of the mask pixel.
+	 * @return true for tissue pixels.
+	 */
+	public boolean isTissue(int x, int y) {
+
+		return count(x, y, x + 1, y + 1) > 0;
+	}
+
+	/**
+	 * Gets the width of the mask in pixels.
+	 *
+	 * @return The width.
+	 */
+	public int getWidth() {
+
+		return width;
+	}
+
+	/**
+	 * Gets the height of the mask in pixels.
+	 *
+	 * @return The height.
+	 */
+	public int getHeight() {
+
+		return height;
+	}
+
+	/*
+	 * Number of tissue pixels in a rectangle of the mask.
+	 */
+	private int count(int fromX, int fromY, int toX, int toY) {
+
+		int stride = width + 1;
+
+		return integral[toY * stride + toX] - integral[fromY * stride + toX]
+				- integral[toY * stride + fromX]
+				+ integral[fromY * stride + fromX];
+	}
+
+	private static int clamp(int value, int max) {
+
+		return value < 0 ? 0 : (value > max ? max : value);
+	}
+
+}
@@ -0,0 +1,54 @@
+package tepisclient;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * HTTP transport over which a {@link TepisClient} accesses the server.
+ * <p>
+ * The client builds the requests, including the query parameters and
+ * headers, and interprets the responses: it checks the status, reads and
+ * parses the body and accounts for the response data. A transport only
+ * performs the exchanges, so that different HTTP stacks or an in-memory stub
+ * can be used without changing the client. The session cookie set by the
+ * server on login is managed by the transport.
+ * <p>
+ * Implementations must be thread safe. A transport must attach each
+ * connection to its request with {@link TransportRequest#attach} as soon as
+ * the connection exists, so that the client can abort the exchange from
+ * another thread.
+ *
+ * @see JerseyTransport
+ * @see HttpClientTransport
+ */
+
+public interface Transport {
+
+	/**
+	 * Performs a GET request.
+	 *
+	 * @param request
+	 *            The request.
+	 * @return The response, whose body is read by the caller. Responses with
+	 *         any status are returned.
+	 * @throws IOException
+	 *             If the exchange fails or is aborted.
+	 */
+	TransportResponse get(TransportRequest request) throws IOException;
+
+	/**
+	 * Performs a POST request with a form in the body.
+	 *
+	 * @param request
+	 *            The request.
+	 * @param form
+	 *            Names and values of the form parameters.
+	 * @return The response, whose body is read by the caller. Responses with
+	 *         any status are returned.
+	 * @throws IOException
+	 *             If the exchange fails or is aborted.
+	 */
+	TransportResponse post(TransportRequest request, Map<String, String> form)
+			throws IOException;
+
+}
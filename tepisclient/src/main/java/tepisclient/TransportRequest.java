@@ -0,0 +1,237 @@
+package tepisclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A request of a {@link TepisClient} that is performed by a
+ * {@link Transport}.
+ * <p>
+ * The request is built by the client and only read by the transport. The
+ * path is relative to the URI of the server.
+ *
+ */
+
+public class TransportRequest {
+
+	private final List<String> pathSegments;
+
+	private final Map<String, String> queryParams = new LinkedHashMap<String, String>();
+
+	private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+	/*
+	 * Connect and read timeouts in milliseconds or 0 if none.
+	 */
+	private int connectTimeout;
+
+	private int readTimeout;
+
+	/*
+	 * Exchange to which the connection is attached or null.
+	 */
+	private Exchange exchange;
+
+	/**
+	 * @param pathSegments
+	 *            The unencoded segments of the path.
+	 */
+	TransportRequest(String... pathSegments) {
+
+		this.pathSegments = Collections.unmodifiableList(new ArrayList<String>(
+				Arrays.asList(pathSegments)));
+	}
+
+	/**
+	 * Adds a query parameter. Parameters without a value are omitted.
+	 *
+	 * @param name
+	 *            Name of the parameter.
+	 * @param value
+	 *            Value of the parameter or null.
+	 * @return This request.
+	 */
+	TransportRequest queryParam(String name, Object value) {
+
+		if (value != null) {
+			queryParams.put(name, value.toString());
+		}
+
+		return this;
+	}
+
+	/**
+	 * Sets a header.
+	 *
+	 * @param name
+	 *            Name of the header.
+	 * @param value
+	 *            Value of the header.
+	 * @return This request.
+	 */
+	TransportRequest header(String name, String value) {
+
+		headers.put(name, value);
+
+		return this;
+	}
+
+	void setConnectTimeout(int connectTimeout) {
+
+		this.connectTimeout = connectTimeout;
+	}
+
+	void setReadTimeout(int readTimeout) {
+
+		this.readTimeout = readTimeout;
+	}
+
+	void setExchange(Exchange exchange) {
+
+		this.exchange = exchange;
+	}
+
+	/**
+	 * Attaches the connection of the request, which is closed when the
+	 * client aborts the exchange. Transports call this method as soon as the
+	 * connection exists, before waiting for the response.
+	 *
+	 * @param connection
+	 *            Closes the connection, unblocking any thread that waits for
+	 *            or reads the response.
+	 * @throws IOException
+	 *             If the exchange is already aborted.
+	 */
+	public void attach(Closeable connection) throws IOException {
+
+		if (exchange != null) {
+			exchange.attach(connection);
+		}
+
+	}
+
+	/**
+	 * Gets the value of the pathSegments property.
+	 *
+	 * @return
+	 */
+	public List<String> getPathSegments() {
+
+		return pathSegments;
+	}
+
+	/**
+	 * Gets the value of the queryParams property.
+	 *
+	 * @return
+	 */
+	public Map<String, String> getQueryParams() {
+
+		return Collections.unmodifiableMap(queryParams);
+	}
+
+	/**
+	 * Gets the value of the headers property.
+	 *
+	 * @return
+	 */
+	public Map<String, String> getHeaders() {
+
+		return Collections.unmodifiableMap(headers);
+	}
+
+	/**
+	 * Gets the value of the connectTimeout property.
+	 *
+	 * @return Timeout in milliseconds or 0 if none.
+	 */
+	public int getConnectTimeout() {
+
+		return connectTimeout;
+	}
+
+	/**
+	 * Gets the value of the readTimeout property.
+	 *
+	 * @return Timeout in milliseconds or 0 if none.
+	 */
+	public int getReadTimeout() {
+
+		return readTimeout;
+	}
+
+	/**
+	 * Gets the encoded path and query of the request, which are appended to
+	 * the URI of the server.
+	 *
+	 * @return The path and query, for example
+	 *         <code>ImageService/image/1/pixeldata?x=0.0</code>.
+	 */
+	public String getPathAndQuery() {
+
+		StringBuilder builder = new StringBuilder();
+
+		for (String segment : pathSegments) {
+			if (builder.length() > 0) {
+				builder.append('/');
+			}
+			builder.append(encode(segment));
+		}
+
+		char separator = '?';
+
+		for (Map.Entry<String, String> param : queryParams.entrySet()) {
+			builder.append(separator).append(encode(param.getKey()))
+					.append('=').append(encode(param.getValue()));
+			separator = '&';
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Percent-encodes all characters except the unreserved characters of RFC
+	 * 3986, which is valid in both path segments and query parameters.
+	 *
+	 * @param value
+	 *            The unencoded value.
+	 * @return The encoded value.
+	 */
+	static String encode(String value) {
+
+		StringBuilder builder = new StringBuilder();
+
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+
+			char c = (char) (b & 0xff);
+
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || c == '-' || c == '.'
+					|| c == '_' || c == '~') {
+				builder.append(c);
+			} else {
+				builder.append('%').append(
+						Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+						.append(Character.toUpperCase(Character.forDigit(
+								c & 0xf, 16)));
+			}
+
+		}
+
+		return builder.toString();
+	}
+
+	@Override
+	public String toString() {
+
+		return "TransportRequest [" + getPathAndQuery() + "]";
+	}
+
+}
@@ -0,0 +1,153 @@
+package tepisclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A response returned by a {@link Transport}, whose body is streamed.
+ * <p>
+ * The response must be closed after its body is read, which releases the
+ * connection.
+ *
+ */
+
+public class TransportResponse implements Closeable {
+
+	private final int status;
+
+	/*
+	 * Header values by case insensitive name.
+	 */
+	private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(
+			String.CASE_INSENSITIVE_ORDER);
+
+	private final InputStream body;
+
+	/**
+	 * @param status
+	 *            HTTP status code.
+	 * @param headers
+	 *            Header values by name.
+	 * @param body
+	 *            Stream of the body or null if the response has no body.
+	 */
+	public TransportResponse(int status, Map<String, List<String>> headers,
+			InputStream body) {
+
+		this.status = status;
+
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			// the status line has a null name in HttpURLConnection
+			if (header.getKey() != null) {
+				this.headers.put(header.getKey(), Collections
+						.unmodifiableList(new ArrayList<String>(header
+								.getValue())));
+			}
+		}
+
+		this.body = body != null ? body : new ByteArrayInputStream(new byte[0]);
+	}
+
+	/**
+	 * Gets the value of the status property.
+	 *
+	 * @return
+	 */
+	public int getStatus() {
+
+		return status;
+	}
+
+	/**
+	 * Gets the value of the headers property.
+	 *
+	 * @return Header values by case insensitive name.
+	 */
+	public Map<String, List<String>> getHeaders() {
+
+		return Collections.unmodifiableMap(headers);
+	}
+
+	/**
+	 * Gets the first value of a header.
+	 *
+	 * @param name
+	 *            Case insensitive name of the header.
+	 * @return The value or null if the header is not present.
+	 */
+	public String getHeader(String name) {
+
+		List<String> values = headers.get(name);
+
+		return values != null && !values.isEmpty() ? values.get(0) : null;
+	}
+
+	/**
+	 * Gets all values of a header.
+	 *
+	 * @param name
+	 *            Case insensitive name of the header.
+	 * @return The values, empty if the header is not present.
+	 */
+	public List<String> getHeaders(String name) {
+
+		List<String> values = headers.get(name);
+
+		return values != null ? values : Collections.<String> emptyList();
+	}
+
+	/**
+	 * Gets the length of the body from the Content-Length header.
+	 *
+	 * @return The length in bytes or -1 if not known.
+	 */
+	public long getContentLength() {
+
+		String length = getHeader("Content-Length");
+
+		if (length == null) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(length.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+
+	}
+
+	/**
+	 * Gets the value of the body property.
+	 *
+	 * @return
+	 */
+	public InputStream getBody() {
+
+		return body;
+	}
+
+	/**
+	 * Closes the body of the response.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		body.close();
+	}
+
+	@Override
+	public String toString() {
+
+		return "TransportResponse [status=" + status + ", contentLength="
+				+ getContentLength() + "]";
+	}
+
+}
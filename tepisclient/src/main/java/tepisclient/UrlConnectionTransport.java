@@ -0,0 +1,163 @@
+package tepisclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpCookie;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transport over {@link HttpURLConnection}, with nothing but the JDK.
+ * <p>
+ * Performs the same exchanges as the {@link JerseyTransport}, which uses the
+ * same connections underneath, without loading the JAX-RS runtime. Unlike
+ * the {@link HttpClientTransport}, it does not initialize TLS for servers
+ * that are accessed over plain HTTP, so the first request is fast. This is
+ * the default transport of the lightweight build. The cookies set by the
+ * server, including the session cookie, are kept by the transport.
+ *
+ */
+
+public class UrlConnectionTransport implements Transport {
+
+	/*
+	 * URI of the server with a trailing slash.
+	 */
+	private final String uri;
+
+	/*
+	 * Cookies set by the server by name.
+	 */
+	private final Map<String, HttpCookie> cookies = new ConcurrentHashMap<String, HttpCookie>();
+
+	/**
+	 * @param tepisUri
+	 *            URI of the tEPIS image management and storage (IMS) server.
+	 */
+	public UrlConnectionTransport(String tepisUri) {
+
+		uri = tepisUri.endsWith("/") ? tepisUri : tepisUri + "/";
+	}
+
+	@Override
+	public TransportResponse get(TransportRequest request) throws IOException {
+
+		return send(connect(request), null);
+	}
+
+	@Override
+	public TransportResponse post(TransportRequest request,
+			Map<String, String> form) throws IOException {
+
+		StringBuilder body = new StringBuilder();
+
+		for (Map.Entry<String, String> param : form.entrySet()) {
+			if (body.length() > 0) {
+				body.append('&');
+			}
+			body.append(URLEncoder.encode(param.getKey(), StandardCharsets.UTF_8))
+					.append('=')
+					.append(URLEncoder.encode(param.getValue(),
+							StandardCharsets.UTF_8));
+		}
+
+		HttpURLConnection connection = connect(request);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type",
+				"application/x-www-form-urlencoded");
+
+		return send(connection,
+				body.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private HttpURLConnection connect(TransportRequest request)
+			throws IOException {
+
+		final HttpURLConnection connection = (HttpURLConnection) URI
+				.create(uri + request.getPathAndQuery()).toURL()
+				.openConnection();
+
+		// the connection is only opened when the request is sent
+		request.attach(new Closeable() {
+
+			@Override
+			public void close() {
+
+				connection.disconnect();
+			}
+
+		});
+
+		connection.setConnectTimeout(request.getConnectTimeout());
+		connection.setReadTimeout(request.getReadTimeout());
+
+		for (Map.Entry<String, String> header : request.getHeaders()
+				.entrySet()) {
+			connection.setRequestProperty(header.getKey(), header.getValue());
+		}
+
+		if (!cookies.isEmpty()) {
+
+			StringBuilder cookie = new StringBuilder();
+
+			for (HttpCookie value : cookies.values()) {
+				if (cookie.length() > 0) {
+					cookie.append("; ");
+				}
+				cookie.append(value.getName()).append('=')
+						.append(value.getValue());
+			}
+
+			connection.setRequestProperty("Cookie", cookie.toString());
+
+		}
+
+		return connection;
+	}
+
+	private TransportResponse send(HttpURLConnection connection, byte[] body)
+			throws IOException {
+
+		if (body != null) {
+
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(body.length);
+
+			OutputStream out = connection.getOutputStream();
+
+			try {
+				out.write(body);
+			} finally {
+				out.close();
+			}
+
+		}
+
+		int status = connection.getResponseCode();
+
+		// keep the session cookie for the following requests
+		for (Map.Entry<String, List<String>> header : connection
+				.getHeaderFields().entrySet()) {
+			if ("Set-Cookie".equalsIgnoreCase(header.getKey())) {
+				for (String value : header.getValue()) {
+					for (HttpCookie cookie : HttpCookie.parse(value)) {
+						cookies.put(cookie.getName(), cookie);
+					}
+				}
+			}
+		}
+
+		InputStream in = status >= 400 ? connection.getErrorStream()
+				: connection.getInputStream();
+
+		return new TransportResponse(status, connection.getHeaderFields(), in);
+	}
+
+}
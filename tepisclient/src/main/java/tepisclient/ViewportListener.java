@@ -0,0 +1,36 @@
+package tepisclient;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Receives the tiles of a {@link ViewportSession}.
+ * <p>
+ * The methods are called from the threads of the executor of the session and
+ * can be concurrent. Tiles that are no longer visible when they arrive are not
+ * passed to the listener.
+ *
+ */
+
+public interface ViewportListener {
+
+	/**
+	 * Called when a visible tile is available.
+	 *
+	 * @param itp
+	 *            Parameter object specifying the tile.
+	 * @param image
+	 *            Image data of the tile.
+	 */
+	void tileAvailable(ImageTileParam itp, BufferedImage image);
+
+	/**
+	 * Called when reading of a visible tile fails.
+	 *
+	 * @param itp
+	 *            Parameter object specifying the tile.
+	 * @param cause
+	 *            The failure.
+	 */
+	void tileFailed(ImageTileParam itp, Throwable cause);
+
+}
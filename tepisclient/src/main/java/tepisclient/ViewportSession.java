@@ -0,0 +1,588 @@
+package tepisclient;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Reads the tiles of the visible area (viewport) of a digital slide for
+ * interactive viewing.
+ * <p>
+ * Each time the viewport changes, for example after panning or zooming, the
+ * new viewport is submitted with
+ * {@link #setViewport(int, int, int, int, int)}. Queued tiles that are no
+ * longer visible are dropped, the requests of tiles that are being read and
+ * are no longer visible are aborted and the remaining tiles are read from the
+ * centre of the viewport outwards. Thus, the time until the current viewport
+ * is shown does not depend on the earlier viewports.
+ * <p>
+ * The tiles are requested asynchronously and decoded on the executor when
+ * they arrive, so no thread of the executor waits for a response.
+ * <p>
+ * Tiles that were already delivered and remain visible are not read again.
+ *
+ */
+
+public class ViewportSession {
+
+	private final TepisClient client;
+
+	private final String imageID;
+
+	private final SlideGeometry geometry;
+
+	/*
+	 * Executor on which the tiles are decoded.
+	 */
+	private final ExecutorService executor;
+
+	/*
+	 * Maximum number of requests for tiles that are in flight at the same
+	 * time.
+	 */
+	private final int maxInFlight;
+
+	private final ImageFormatParam ifp;
+
+	/*
+	 * Policy that chooses the image quality of the tiles or null if the
+	 * quality is fixed.
+	 */
+	private final AdaptiveFormatPolicy policy;
+
+	private final ViewportListener listener;
+
+	/*
+	 * Visible tiles that are not requested yet, ordered by
+	 * distance to the centre of the viewport. Guarded by this, together with
+	 * the fields below.
+	 */
+	private final PriorityQueue<TileRequest> queued = new PriorityQueue<TileRequest>();
+
+	/*
+	 * Visible tiles that are requested and not delivered yet.
+	 */
+	private final Map<Long, TileRequest> inFlight = new HashMap<Long, TileRequest>();
+
+	/*
+	 * Visible tiles that were delivered to the listener.
+	 */
+	private final Set<Long> delivered = new HashSet<Long>();
+
+	private long sequence;
+
+	private boolean closed;
+
+	/**
+	 * Creates a session that reads the tiles in the default image format and
+	 * quality of the server.
+	 *
+	 * @param client
+	 *            Client used to read the tiles.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param executor
+	 *            Executor on which the tiles are decoded.
+	 * @param maxInFlight
+	 *            Maximum number of visible tiles that are read at the same
+	 *            time.
+	 * @param listener
+	 *            Listener that receives the tiles.
+	 */
+	public ViewportSession(TepisClient client, String imageID,
+			SlideGeometry geometry, ExecutorService executor, int maxInFlight,
+			ViewportListener listener) {
+
+		this(client, imageID, geometry, executor, maxInFlight,
+				(ImageFormatParam) null, listener);
+	}
+
+	/**
+	 * Creates a session that reads the tiles with specified image format and
+	 * quality.
+	 *
+	 * @param client
+	 *            Client used to read the tiles.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param executor
+	 *            Executor on which the tiles are decoded.
+	 * @param maxInFlight
+	 *            Maximum number of visible tiles that are read at the same
+	 *            time.
+	 * @param ifp
+	 *            Parameter object specifying the image format and quality of
+	 *            the tiles.
+	 * @param listener
+	 *            Listener that receives the tiles.
+	 */
+	public ViewportSession(TepisClient client, String imageID,
+			SlideGeometry geometry, ExecutorService executor, int maxInFlight,
+			ImageFormatParam ifp, ViewportListener listener) {
+
+		this.client = client;
+		this.imageID = imageID;
+		this.geometry = geometry;
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.ifp = ifp;
+		this.policy = null;
+		this.listener = listener;
+	}
+
+	/**
+	 * Creates a session that reads the tiles with an image quality that
+	 * adapts to the throughput of the link to the server. The tiles are read
+	 * as preview reads.
+	 *
+	 * @param client
+	 *            Client used to read the tiles.
+	 * @param imageID
+	 *            ID of the digital slide.
+	 * @param geometry
+	 *            Pixel geometry of the digital slide.
+	 * @param executor
+	 *            Executor on which the tiles are decoded.
+	 * @param maxInFlight
+	 *            Maximum number of visible tiles that are read at the same
+	 *            time.
+	 * @param policy
+	 *            Policy that chooses the image format and quality of the
+	 *            tiles.
+	 * @param listener
+	 *            Listener that receives the tiles.
+	 */
+	public ViewportSession(TepisClient client, String imageID,
+			SlideGeometry geometry, ExecutorService executor, int maxInFlight,
+			AdaptiveFormatPolicy policy, ViewportListener listener) {
+
+		this.client = client;
+		this.imageID = imageID;
+		this.geometry = geometry;
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.ifp = null;
+		this.policy = policy;
+		this.listener = listener;
+	}
+
+	/**
+	 * Submits a new viewport. The method does not block: the visible tiles
+	 * are passed to the listener as they arrive.
+	 *
+	 * @param level
+	 *            Level at which the viewport is shown.
+	 * @param x
+	 *            Horizontal coordinate of the top-left corner of the viewport
+	 *            in pixels of the level.
+	 * @param y
+	 *            Vertical coordinate of the top-left corner of the viewport in
+	 *            pixels of the level.
+	 * @param width
+	 *            Width of the viewport in pixels.
+	 * @param height
+	 *            Height of the viewport in pixels.
+	 */
+	public void setViewport(int level, int x, int y, int width, int height) {
+
+		List<TileRequest> started;
+
+		synchronized (this) {
+
+			if (closed) {
+				throw new IllegalStateException("Viewport session is closed");
+			}
+
+			started = update(level, x, y, width, height);
+
+		}
+
+		start(started);
+
+	}
+
+	/*
+	 * Updates the queued tiles and tiles in flight to a new viewport and
+	 * returns the tiles to request. Must be called while holding the lock.
+	 */
+	private List<TileRequest> update(int level, int x, int y, int width,
+			int height) {
+
+		int tileWidth = geometry.getTileWidth(level);
+		int tileHeight = geometry.getTileHeight(level);
+
+		// visible tiles
+		int fromCol = Math.max(0, x / tileWidth);
+		int fromRow = Math.max(0, y / tileHeight);
+		int toCol = Math.min(geometry.getTileColumns(level),
+				(x + width + tileWidth - 1) / tileWidth);
+		int toRow = Math.min(geometry.getTileRows(level),
+				(y + height + tileHeight - 1) / tileHeight);
+
+		double centreX = x + width / 2.0;
+		double centreY = y + height / 2.0;
+
+		Set<Long> visible = new HashSet<Long>();
+
+		for (int row = fromRow; row < toRow; row++) {
+			for (int col = fromCol; col < toCol; col++) {
+				visible.add(key(level, col, row));
+			}
+		}
+
+		// drop the queued tiles that are no longer visible and reorder the
+		// remaining ones
+		List<TileRequest> requests = new ArrayList<TileRequest>(queued);
+		queued.clear();
+
+		Set<Long> queuedKeys = new HashSet<Long>();
+
+		for (TileRequest request : requests) {
+			if (visible.contains(request.key)) {
+				request.setPriority(centreX, centreY, tileWidth, tileHeight);
+				queued.add(request);
+				queuedKeys.add(request.key);
+			}
+		}
+
+		// cancel the tiles in flight that are no longer visible
+		Iterator<TileRequest> it = inFlight.values().iterator();
+
+		while (it.hasNext()) {
+
+			TileRequest request = it.next();
+
+			if (!visible.contains(request.key)) {
+				request.cancel();
+				it.remove();
+			}
+
+		}
+
+		delivered.retainAll(visible);
+
+		// queue the newly visible tiles
+		for (int row = fromRow; row < toRow; row++) {
+			for (int col = fromCol; col < toCol; col++) {
+
+				Long key = key(level, col, row);
+
+				if (delivered.contains(key) || inFlight.containsKey(key)
+						|| queuedKeys.contains(key)) {
+					continue;
+				}
+
+				TileRequest request = new TileRequest(key);
+				request.setPriority(centreX, centreY, tileWidth, tileHeight);
+				queued.add(request);
+
+			}
+		}
+
+		return dispatch();
+	}
+
+	/**
+	 * Cancels all queued tiles and tiles in flight. Tiles that finish reading
+	 * after the method returns are not passed to the listener.
+	 */
+	public synchronized void close() {
+
+		closed = true;
+
+		queued.clear();
+
+		for (TileRequest request : inFlight.values()) {
+			request.cancel();
+		}
+
+		inFlight.clear();
+		delivered.clear();
+
+	}
+
+	/**
+	 * Gets the number of visible tiles that are waiting to be read.
+	 *
+	 * @return The number of queued tiles.
+	 */
+	public synchronized int getQueuedTiles() {
+
+		return queued.size();
+	}
+
+	/**
+	 * Gets the number of visible tiles that are being read.
+	 *
+	 * @return The number of tiles in flight.
+	 */
+	public synchronized int getInFlightTiles() {
+
+		return inFlight.size();
+	}
+
+	/*
+	 * Moves queued tiles in flight while there are free slots and returns
+	 * them, so that they are requested after the lock is released. Must be
+	 * called while holding the lock.
+	 */
+	private List<TileRequest> dispatch() {
+
+		List<TileRequest> started = new ArrayList<TileRequest>();
+
+		while (!closed && inFlight.size() < maxInFlight && !queued.isEmpty()) {
+
+			TileRequest request = queued.poll();
+
+			inFlight.put(request.key, request);
+			started.add(request);
+
+		}
+
+		return started;
+	}
+
+	/*
+	 * Requests tiles and decodes them on the executor when they arrive. Must
+	 * be called without holding the lock.
+	 */
+	private void start(List<TileRequest> requests) {
+
+		for (final TileRequest request : requests) {
+
+			final ImageTileParam itp = request.getTile();
+			final long start = System.nanoTime();
+
+			Future<byte[]> response;
+
+			try {
+				response = client.getTiledImagePixelDataAsync(imageID, itp,
+						policy != null ? policy
+								.getFormatParam(ReadClass.PREVIEW) : ifp, null);
+			} catch (RuntimeException e) {
+				failed(request, itp, e);
+				continue;
+			}
+
+			synchronized (this) {
+
+				// cancelled while the request was started
+				if (request.cancelled) {
+					response.cancel(true);
+					continue;
+				}
+
+				request.response = response;
+
+			}
+
+			CompletableFuture<byte[]> received = RequestFuture
+					.completion(response);
+
+			if (policy != null) {
+				received = received.thenApply(new Function<byte[], byte[]>() {
+
+					@Override
+					public byte[] apply(byte[] data) {
+
+						policy.recordTransfer(data.length, System.nanoTime()
+								- start);
+
+						return data;
+					}
+
+				});
+			}
+
+			CompletableFuture<BufferedImage> decoded = received.thenApplyAsync(
+					new Function<byte[], BufferedImage>() {
+
+						@Override
+						public BufferedImage apply(byte[] data) {
+
+							if (request.cancelled) {
+								return null;
+							}
+
+							try {
+								return ImageDecoder.decode(data);
+							} catch (IOException e) {
+								throw new CompletionException(e);
+							}
+
+						}
+
+					}, executor);
+
+			synchronized (this) {
+				request.decoding = decoded;
+			}
+
+			decoded.whenComplete(new BiConsumer<BufferedImage, Throwable>() {
+
+				@Override
+				public void accept(BufferedImage image, Throwable e) {
+
+					if (e == null) {
+						delivered(request, itp, image);
+					} else {
+						failed(request, itp,
+								e instanceof CompletionException
+										&& e.getCause() != null ? e
+										.getCause() : e);
+					}
+
+				}
+
+			});
+
+		}
+
+	}
+
+	private void delivered(TileRequest request, ImageTileParam itp,
+			BufferedImage image) {
+
+		List<TileRequest> started;
+
+		synchronized (this) {
+
+			if (request.cancelled) {
+				return;
+			}
+
+			inFlight.remove(request.key);
+			delivered.add(request.key);
+
+			started = dispatch();
+
+		}
+
+		start(started);
+
+		listener.tileAvailable(itp, image);
+
+	}
+
+	private void failed(TileRequest request, ImageTileParam itp, Throwable e) {
+
+		List<TileRequest> started;
+
+		synchronized (this) {
+
+			if (request.cancelled) {
+				return;
+			}
+
+			inFlight.remove(request.key);
+
+			started = dispatch();
+
+		}
+
+		start(started);
+
+		listener.tileFailed(itp, e);
+
+	}
+
+	/*
+	 * Packs the level, column and row of a tile into a single key.
+	 */
+	private static Long key(int level, int col, int row) {
+
+		return ((long) level << 48) | ((long) col << 24) | row;
+	}
+
+	/*
+	 * A visible tile that is queued or in flight.
+	 */
+	private class TileRequest implements Comparable<TileRequest> {
+
+		final Long key;
+
+		/*
+		 * Squared distance of the tile centre to the viewport centre and the
+		 * order of submission for equal distances.
+		 */
+		double distance;
+		long order;
+
+		volatile boolean cancelled;
+
+		/*
+		 * Request for the tile, once it is sent, and the decoding of the
+		 * response.
+		 */
+		Future<byte[]> response;
+		Future<BufferedImage> decoding;
+
+		TileRequest(Long key) {
+
+			this.key = key;
+		}
+
+		ImageTileParam getTile() {
+
+			return new ImageTileParam((int) ((key >> 24) & 0xFFFFFF),
+					(int) (key & 0xFFFFFF), (int) (key >> 48));
+		}
+
+		void setPriority(double centreX, double centreY, int tileWidth,
+				int tileHeight) {
+
+			double dx = (((key >> 24) & 0xFFFFFF) + 0.5) * tileWidth - centreX;
+			double dy = ((key & 0xFFFFFF) + 0.5) * tileHeight - centreY;
+
+			distance = dx * dx + dy * dy;
+			order = sequence++;
+		}
+
+		/*
+		 * Must be called while holding the lock of the session.
+		 */
+		void cancel() {
+
+			cancelled = true;
+
+			// aborts the exchange
+			if (response != null) {
+				response.cancel(true);
+			}
+
+			if (decoding != null) {
+				decoding.cancel(false);
+			}
+
+		}
+
+		@Override
+		public int compareTo(TileRequest other) {
+
+			if (distance != other.distance) {
+				return distance < other.distance ? -1 : 1;
+			}
+
+			return order < other.order ? -1 : (order > other.order ? 1 : 0);
+		}
+
+	}
+
+}
@@ -0,0 +1,170 @@
+package tepisclient;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor that runs each task on its own virtual thread.
+ * <p>
+ * The requests of the client block on network I/O, so hiding the latency of
+ * a remote server requires many requests in flight, and a pool of platform
+ * threads of that size is expensive. A blocked virtual thread only holds its
+ * stack on the heap, so thousands of outstanding requests are cheap. Use this
+ * executor wherever an executor of requests is accepted, for example
+ * {@link TepisClient#setExecutor(ExecutorService)} or
+ * {@link SplitRegionReader}.
+ * <p>
+ * The number of tasks that run at the same time is limited by a semaphore
+ * rather than by the number of threads, so the server is not flooded. The
+ * tasks that exceed the limit wait on their virtual threads in first-in,
+ * first-out order.
+ *
+ */
+
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+	private final ExecutorService executor;
+
+	/*
+	 * Permits of the tasks that run at the same time.
+	 */
+	private final Semaphore semaphore;
+
+	private final int maxConcurrency;
+
+	/**
+	 * @param maxConcurrency
+	 *            Maximum number of tasks that run at the same time.
+	 */
+	public VirtualThreadExecutor(int maxConcurrency) {
+
+		if (maxConcurrency <= 0) {
+			throw new IllegalArgumentException(
+					"Maximum concurrency must be positive");
+		}
+
+		this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+				.name("tepisclient-virtual-", 0).factory());
+		this.semaphore = new Semaphore(maxConcurrency, true);
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	/**
+	 * Runs a task on a new virtual thread once fewer than the maximum number
+	 * of tasks are running. Does not block the calling thread.
+	 * <p>
+	 * A task that is interrupted while waiting, for example by
+	 * {@link #shutdownNow()}, is not run and is cancelled if it is a
+	 * {@link Future}.
+	 *
+	 * @param task
+	 *            The task.
+	 */
+	@Override
+	public void execute(final Runnable task) {
+
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					semaphore.acquire();
+				} catch (InterruptedException e) {
+					if (task instanceof Future) {
+						((Future<?>) task).cancel(false);
+					}
+					return;
+				}
+
+				try {
+					task.run();
+				} finally {
+					semaphore.release();
+				}
+
+			}
+
+		});
+	}
+
+	@Override
+	public void shutdown() {
+
+		executor.shutdown();
+	}
+
+	/**
+	 * Interrupts all running and waiting tasks. The tasks are not returned.
+	 *
+	 * @return An empty list.
+	 */
+	@Override
+	public List<Runnable> shutdownNow() {
+
+		return executor.shutdownNow();
+	}
+
+	@Override
+	public boolean isShutdown() {
+
+		return executor.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+
+		return executor.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+			throws InterruptedException {
+
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Gets the value of the maxConcurrency property.
+	 *
+	 * @return
+	 */
+	public int getMaxConcurrency() {
+
+		return maxConcurrency;
+	}
+
+	/**
+	 * Gets the number of tasks that are running.
+	 *
+	 * @return The number of tasks.
+	 */
+	public int getRunningTasks() {
+
+		return maxConcurrency - semaphore.availablePermits();
+	}
+
+	/**
+	 * Gets the estimated number of tasks that are waiting to run.
+	 *
+	 * @return The number of tasks.
+	 */
+	public int getWaitingTasks() {
+
+		return semaphore.getQueueLength();
+	}
+
+	@Override
+	public String toString() {
+
+		return "VirtualThreadExecutor [runningTasks=" + getRunningTasks()
+				+ ", waitingTasks=" + getWaitingTasks() + ", maxConcurrency="
+				+ maxConcurrency + "]";
+	}
+
+}
@@ -0,0 +1,334 @@
+package tepisclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the tEPIS image management and storage (IMS) server,
+ * which answers the requests of a {@link TepisClient} with a description of
+ * the request, so that the transports can be checked against each other
+ * without a server.
+ * <p>
+ * The server accepts the login of one user with a form POST and sets the
+ * session cookie, which is required by all image requests. The metadata of
+ * every slide has a single level and an ETag, and conditional requests for it
+ * are answered with 304 Not Modified. The pixel data, tiles and associated
+ * images consist of a line that describes the request, with the method, the
+ * path, the sorted query parameters and the Accept header, followed by filler
+ * bytes up to the number of pixels of the requested region or tile. They are
+ * sent in chunks without a content length. Every request for a slide whose ID
+ * is {@code status-} followed by an HTTP status, for example
+ * {@code status-404}, is answered with that status.
+ *
+ * @see TransportConformanceTest
+ */
+
+class StubServer implements Closeable {
+
+	/*
+	 * Name of the session cookie, as set by the tEPIS server.
+	 */
+	private static final String SESSION_COOKIE = ".AuthCookie";
+
+	/*
+	 * Size of a tile and of the slide in pixels.
+	 */
+	private static final int TILE_SIZE = 256;
+	private static final int WIDTH = 4096;
+	private static final int HEIGHT = 3072;
+
+	private static final String ETAG = "\"stub-1\"";
+
+	private static final int CHUNK_SIZE = 16384;
+
+	private static final String APPLICATION_FORM_URLENCODED = "application/x-www-form-urlencoded";
+
+	private final String username;
+
+	private final String password;
+
+	private final String session = UUID.randomUUID().toString();
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Starts the server on a free port of the loopback interface.
+	 *
+	 * @param username
+	 *            User name of the login.
+	 * @param password
+	 *            Password of the login.
+	 * @throws IOException
+	 *             If the server cannot be started.
+	 */
+	StubServer(String username, String password) throws IOException {
+
+		this.username = username;
+		this.password = password;
+
+		server = HttpServer.create(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0), 0);
+
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+
+				Thread thread = new Thread(r, "tepisclient-stub");
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+
+		server.setExecutor(executor);
+
+		server.createContext("/", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+
+				try {
+					StubServer.this.handle(exchange);
+				} finally {
+					exchange.close();
+				}
+
+			}
+
+		});
+
+		server.start();
+	}
+
+	/**
+	 * Gets the URI of the server, which is passed to the transports.
+	 *
+	 * @return The URI.
+	 */
+	String getUri() {
+
+		return "http://" + server.getAddress().getHostString() + ":"
+				+ server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	@Override
+	public void close() {
+
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+
+		String[] path = exchange.getRequestURI().getPath().substring(1)
+				.split("/");
+
+		if (path.length == 2 && "AccessService".equals(path[0])
+				&& "Login".equals(path[1])) {
+			login(exchange);
+			return;
+		}
+
+		if (path.length != 4 || !"ImageService".equals(path[0])) {
+			send(exchange, 404, "Not found");
+			return;
+		}
+
+		if (path[2].startsWith("status-")) {
+			send(exchange, Integer.parseInt(path[2].substring(7)), "Status");
+			return;
+		}
+
+		String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+
+		if (cookie == null
+				|| !cookie.contains(SESSION_COOKIE + "=" + session)) {
+			send(exchange, 401, "Not authenticated");
+			return;
+		}
+
+		if ("metadata".equals(path[3])) {
+			metadata(exchange);
+		} else if ("tiledimage".equals(path[1])) {
+			describe(exchange, TILE_SIZE * TILE_SIZE);
+		} else if ("pixeldata".equals(path[3])) {
+			Map<String, String> query = query(exchange);
+			double width = Double.parseDouble(query.get("width"));
+			double height = Double.parseDouble(query.get("height"));
+			describe(exchange, (long) (width * height));
+		} else {
+			describe(exchange, TILE_SIZE * TILE_SIZE);
+		}
+
+	}
+
+	private void login(HttpExchange exchange) throws IOException {
+
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			send(exchange, 405, "Method not allowed");
+			return;
+		}
+
+		String contentType = exchange.getRequestHeaders().getFirst(
+				"Content-Type");
+
+		if (contentType == null
+				|| !contentType.startsWith(APPLICATION_FORM_URLENCODED)) {
+			send(exchange, 415, "Unsupported media type");
+			return;
+		}
+
+		Map<String, String> form = decode(new String(exchange
+				.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+
+		boolean authenticated = username.equals(form.get("username"))
+				&& password.equals(form.get("password"));
+
+		if (authenticated) {
+			exchange.getResponseHeaders().add("Set-Cookie",
+					SESSION_COOKIE + "=" + session + "; Path=/");
+		}
+
+		exchange.getResponseHeaders().add("Content-Type", "application/xml");
+
+		send(exchange, 200, "<int>" + (authenticated ? 1 : 0) + "</int>");
+	}
+
+	private void metadata(HttpExchange exchange) throws IOException {
+
+		exchange.getResponseHeaders().add("ETag", ETAG);
+
+		String eTag = exchange.getRequestHeaders().getFirst("If-None-Match");
+
+		if (ETAG.equals(eTag)) {
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+
+		exchange.getResponseHeaders().add("Content-Type", "application/xml");
+
+		send(exchange, 200, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<ImageMetadata><PixelMetadata>"
+				+ "<NumberOfLevels>1</NumberOfLevels><Levels>"
+				+ "<PixelLevelMetadata><Level>0</Level>"
+				+ "<PixelSize>" + WIDTH + "," + HEIGHT + "</PixelSize>"
+				+ "<PhysicalOrigin>0,0</PhysicalOrigin>"
+				+ "<PhysicalSpacing>0.25,0.25</PhysicalSpacing>"
+				+ "<ScanFactor>40</ScanFactor>"
+				+ "<IsNativeLevel>true</IsNativeLevel>"
+				+ "<IsLossyCompressed>true</IsLossyCompressed>"
+				+ "<TileSize>" + TILE_SIZE + "," + TILE_SIZE + "</TileSize>"
+				+ "</PixelLevelMetadata></Levels></PixelMetadata>"
+				+ "</ImageMetadata>");
+	}
+
+	/*
+	 * Sends the description of the request followed by filler bytes up to the
+	 * specified size in chunks.
+	 */
+	private void describe(HttpExchange exchange, long size) throws IOException {
+
+		StringBuilder description = new StringBuilder();
+
+		description.append(exchange.getRequestMethod()).append(' ')
+				.append(exchange.getRequestURI().getPath());
+
+		for (Map.Entry<String, String> param : query(exchange).entrySet()) {
+			description.append(' ').append(param.getKey()).append('=')
+					.append(param.getValue());
+		}
+
+		description.append(" Accept=")
+				.append(exchange.getRequestHeaders().getFirst("Accept"))
+				.append('\n');
+
+		byte[] line = description.toString().getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().add("Content-Type",
+				"application/octet-stream");
+		exchange.sendResponseHeaders(200, 0);
+
+		OutputStream out = exchange.getResponseBody();
+
+		out.write(line);
+
+		byte[] chunk = new byte[CHUNK_SIZE];
+
+		for (long written = line.length; written < size;) {
+
+			for (int i = 0; i < chunk.length; i++) {
+				chunk[i] = (byte) ((written + i) % 251);
+			}
+
+			int length = (int) Math.min(chunk.length, size - written);
+
+			out.write(chunk, 0, length);
+			out.flush();
+
+			written += length;
+
+		}
+
+	}
+
+	private static void send(HttpExchange exchange, int status, String body)
+			throws IOException {
+
+		byte[] data = body.getBytes(StandardCharsets.UTF_8);
+
+		exchange.sendResponseHeaders(status, data.length);
+		exchange.getResponseBody().write(data);
+	}
+
+	private static Map<String, String> query(HttpExchange exchange) {
+
+		return decode(exchange.getRequestURI().getRawQuery());
+	}
+
+	/*
+	 * Decodes URL-encoded parameters, sorted by name.
+	 */
+	private static Map<String, String> decode(String encoded) {
+
+		Map<String, String> params = new TreeMap<String, String>();
+
+		if (encoded == null || encoded.isEmpty()) {
+			return params;
+		}
+
+		for (String param : encoded.split("&")) {
+
+			int separator = param.indexOf('=');
+
+			params.put(URLDecoder.decode(separator < 0 ? param : param
+					.substring(0, separator), StandardCharsets.UTF_8),
+					separator < 0 ? "" : URLDecoder.decode(
+							param.substring(separator + 1),
+							StandardCharsets.UTF_8));
+		}
+
+		return params;
+	}
+
+}
@@ -0,0 +1,248 @@
+package tepisclient;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Conformance check of the transports: performs the same requests over the
+ * Jersey, HttpClient and UrlConnection transports against a
+ * {@link StubServer} and checks that the responses and errors are the
+ * expected ones and the same for all transports.
+ * <p>
+ * The cases cover the login with a form POST and the session cookie,
+ * metadata with a conditional request, regions with query parameters,
+ * tiles, associated images, a large region that is streamed in chunks, an
+ * asynchronous request and the errors of the HTTP statuses. The check is run
+ * by the build and can be run in the JVM of MATLAB with
+ * examples/checkTransports.m.
+ *
+ */
+
+public class TransportConformanceTest {
+
+	private static final String USERNAME = "user";
+
+	private static final String PASSWORD = "secret";
+
+	private static final int[] STATUSES = { 400, 401, 403, 404, 405, 406,
+			415, 418, 500, 502, 503 };
+
+	private static final String[] STATUS_ERRORS = {
+			"javax.ws.rs.BadRequestException",
+			"javax.ws.rs.NotAuthorizedException",
+			"javax.ws.rs.ForbiddenException",
+			"javax.ws.rs.NotFoundException",
+			"javax.ws.rs.NotAllowedException",
+			"javax.ws.rs.NotAcceptableException",
+			"javax.ws.rs.NotSupportedException",
+			"javax.ws.rs.ClientErrorException",
+			"javax.ws.rs.InternalServerErrorException",
+			"javax.ws.rs.ServerErrorException",
+			"javax.ws.rs.ServiceUnavailableException" };
+
+	@Test
+	void transportsConform() throws IOException {
+
+		check();
+	}
+
+	/**
+	 * Runs the cases over all transports against a new stub server.
+	 *
+	 * @throws IOException
+	 *             If the stub server cannot be started.
+	 * @throws AssertionError
+	 *             If a response differs from the expected response or
+	 *             between the transports, listing all differences.
+	 */
+	public static void check() throws IOException {
+
+		StubServer server = new StubServer(USERNAME, PASSWORD);
+
+		try {
+
+			String uri = server.getUri();
+
+			Transport[] transports = { new JerseyTransport(uri),
+					new HttpClientTransport(uri),
+					new UrlConnectionTransport(uri) };
+
+			Map<String, Object> expected = expected();
+
+			List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+			List<String> failures = new ArrayList<String>();
+
+			for (Transport transport : transports) {
+
+				String name = transport.getClass().getSimpleName();
+
+				Map<String, Object> result = run(new TepisClient(transport));
+
+				for (Map.Entry<String, Object> entry : expected.entrySet()) {
+					if (!entry.getValue().equals(result.get(entry.getKey()))) {
+						failures.add(name + ": " + entry.getKey() + " is "
+								+ result.get(entry.getKey()) + ", expected "
+								+ entry.getValue());
+					}
+				}
+
+				if (!results.isEmpty()) {
+					for (String key : result.keySet()) {
+						if (!result.get(key).equals(results.get(0).get(key))) {
+							failures.add(transports[0].getClass()
+									.getSimpleName()
+									+ " and " + name + " differ in " + key);
+						}
+					}
+				}
+
+				results.add(result);
+
+			}
+
+			if (!failures.isEmpty()) {
+				throw new AssertionError(String.join("\n", failures));
+			}
+
+		} finally {
+			server.close();
+		}
+
+	}
+
+	/*
+	 * Performs the requests of the cases and returns the responses, or the
+	 * class of the exception, by case.
+	 */
+	private static Map<String, Object> run(final TepisClient client) {
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+
+		result.put("unauthenticatedError", error(new Callable<Object>() {
+
+			@Override
+			public Object call() {
+
+				return client.getPixelMetadata("slide");
+			}
+
+		}));
+
+		result.put("loginError", error(new Callable<Object>() {
+
+			@Override
+			public Object call() {
+
+				client.authenticate(USERNAME, "wrong");
+				return null;
+			}
+
+		}));
+
+		client.authenticate(USERNAME, PASSWORD);
+
+		result.put("pixelSize", client.getPixelMetadata("slide").getLevels()
+				.getPixelLevelMetadata().get(0).getPixelSize());
+
+		// the second request is revalidated with If-None-Match
+		RevalidatingCache cache = new RevalidatingCache(1 << 20, 0);
+		client.setResponseCache(cache);
+		client.getPixelMetadata("slide");
+		client.getPixelMetadata("slide");
+		result.put("revalidations", cache.getRevalidations());
+		client.setResponseCache(null);
+
+		result.put("region", describe(client.getImagePixelData("slide",
+				new ImageRegionParam(16f, 32f, 64f, 48f, 0, Unit.PIXEL),
+				new ImageFormatParam(Format.JPEG, 80))));
+		result.put("tile", describe(client.getTiledImagePixelData("slide",
+				new ImageTileParam(1, 2, 0))));
+		result.put("thumbnail", describe(client.getAssociatedImage("slide",
+				AssociatedImageType.THUMBNAIL)));
+
+		byte[] stream = client.getImagePixelData("slide",
+				new ImageRegionParam(0f, 0f, 2048f, 2048f, 0, Unit.PIXEL));
+
+		result.put("streamLength", stream.length);
+		result.put("streamHash", Arrays.hashCode(stream));
+
+		try {
+			result.put("async", describe(client.getTiledImagePixelDataAsync(
+					"slide", new ImageTileParam(0, 0, 0), null, null).get()));
+		} catch (Exception e) {
+			result.put("async", e.getClass().getName());
+		}
+
+		List<String> statusErrors = new ArrayList<String>();
+
+		for (final int status : STATUSES) {
+			statusErrors.add(error(new Callable<Object>() {
+
+				@Override
+				public Object call() {
+
+					return client.getPixelMetadata("status-" + status);
+				}
+
+			}));
+		}
+
+		result.put("statusErrors", statusErrors);
+
+		return result;
+	}
+
+	private static Map<String, Object> expected() {
+
+		Map<String, Object> expected = new LinkedHashMap<String, Object>();
+
+		expected.put("unauthenticatedError",
+				"javax.ws.rs.NotAuthorizedException");
+		expected.put("loginError", "java.lang.RuntimeException");
+		expected.put("pixelSize", "4096,3072");
+		expected.put("revalidations", 1L);
+		expected.put("region", "GET /ImageService/image/slide/pixeldata"
+				+ " format=image/jpeg height=48.0 level=0 quality=80"
+				+ " unit=pixel width=64.0 x=16.0 y=32.0"
+				+ " Accept=application/octet-stream");
+		expected.put("tile", "GET /ImageService/tiledimage/slide/pixeldata"
+				+ " col=1 dir=0 row=2 Accept=application/octet-stream");
+		expected.put("streamLength", 2048 * 2048);
+		expected.put("statusErrors", Arrays.asList(STATUS_ERRORS));
+
+		return expected;
+	}
+
+	/*
+	 * The description line of a response of the stub server.
+	 */
+	private static String describe(byte[] data) {
+
+		String text = new String(data, StandardCharsets.UTF_8);
+
+		return text.substring(0, text.indexOf('\n'));
+	}
+
+	/*
+	 * Class of the exception thrown by a request or "" if none.
+	 */
+	private static String error(Callable<Object> request) {
+
+		try {
+			request.call();
+			return "";
+		} catch (Exception e) {
+			return e.getClass().getName();
+		}
+
+	}
+
+}
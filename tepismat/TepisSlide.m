@@ -68,11 +68,39 @@ classdef TepisSlide < DigitalSlide
         
     end
     
+    properties (Access = private, Hidden, Transient)
+        
+        % Pixel geometry of the slide (tepisclient.SlideGeometry). The
+        % Java object cannot be saved, so it is rebuilt from the pixel
+        % metadata when it is needed after loading the slide from a MAT
+        % file.
+        Geometry;
+        
+    end
+    
+    methods
+        
+        % Property set/get methods
+        % ------------------------
+        
+        function val = get.Geometry(obj)
+            
+            if isempty(obj.Geometry)
+                obj.Geometry = tepisclient.SlideGeometry(...
+                    TepisSlide.TepisClient.getPixelMetadata(obj.ImageID));
+            end
+            
+            val = obj.Geometry;
+            
+        end
+        
+    end
+    
     methods (Access = public)
         % Constructor
         % -----------
         
-        function obj = TepisSlide(imageID)
+        function obj = TepisSlide(imageID, pixelMetadata)
             % Constructor for the DigitalSlide class.
             %
             % The class must first bee initialized.
@@ -85,14 +113,23 @@ classdef TepisSlide < DigitalSlide
             % ----------------
             % imageID - Unique image ID on the server (string).
             %
-            % See also: initialize
+            % Optional input arguments:
+            % -------------------------
+            % pixelMetadata - Pixel metadata of the slide that was already
+            % read from the server (tepisclient.ImageMetadata$PixelMetadata).
+            %
+            % See also: initialize, open
             %
             
             if nargin > 0 % enables initialization of arrays
                 
                 obj.ImageID = imageID;
                 
-                obj.setMetadata();
+                if nargin < 2
+                    pixelMetadata = [];
+                end
+                
+                obj.setMetadata(pixelMetadata);
                 
             end
             
@@ -130,6 +167,8 @@ classdef TepisSlide < DigitalSlide
             % quality: Quality for the compression of the returned image
             % data (only valid for 'jpeg' format).
             % format: Format of the returned image data.
+            % timeout: Maximum duration of the request in seconds (default:
+            % no timeout).
             %
             % Output arguments:
             % -----------------
@@ -155,12 +194,17 @@ classdef TepisSlide < DigitalSlide
                 parametersStruct.format,...
                 javaInteger(parametersStruct.quality));
             
-            byteArray = TepisSlide.TepisClient.getImagePixelData(...
+            % large regions are read in parts with concurrent requests
+            reader = SplitRegionReader(...
+                TepisSlide.TepisClient,...
                 obj.ImageID,...
-                imageRegionParam,...
-                imageFormatParam);
+                obj.Geometry,...
+                TepisSlide.RegionReadExecutor());
             
-            I = byteArrayToImage(byteArray);
+            I = bufferedImageToImage(reader.read(...
+                imageRegionParam,...
+                imageFormatParam,...
+                requestOptions(parametersStruct.timeout)));
             
             % Nested functions
             % ----------------
@@ -175,6 +219,7 @@ classdef TepisSlide < DigitalSlide
                 ip.addParameter('unit', []);
                 ip.addParameter('quality', []);
                 ip.addParameter('format', []);
+                ip.addParameter('timeout', []);
                 
                 ip.parse(varargin{:});
                 
@@ -213,6 +258,8 @@ classdef TepisSlide < DigitalSlide
             % quality: Quality for the compression of the returned image
             % data (only valid for 'jpeg' format).
             % format: Format of the returned image data.
+            % timeout: Maximum duration of the request in seconds (default:
+            % no timeout).
             %
             % Output arguments:
             % -----------------
@@ -242,7 +289,8 @@ classdef TepisSlide < DigitalSlide
             byteArray = TepisSlide.TepisClient.getTiledImagePixelData(...
                 obj.ImageID,...
                 imageTileParam,...
-                imageFormatParam);
+                imageFormatParam,...
+                requestOptions(parametersStruct.timeout));
             
             I = byteArrayToImage(byteArray);
             
@@ -257,6 +305,7 @@ classdef TepisSlide < DigitalSlide
                 
                 ip.addParameter('quality', []);
                 ip.addParameter('format', []);
+                ip.addParameter('timeout', []);
                 
                 ip.parse(varargin{:});
                 
@@ -290,6 +339,8 @@ classdef TepisSlide < DigitalSlide
             % quality: Quality for the compression of the returned image
             % data (only valid for 'jpeg' format).
             % format: Format of the returned image data.
+            % timeout: Maximum duration of the request in seconds (default:
+            % no timeout).
             %
             % Output arguments:
             % -----------------
@@ -310,7 +361,8 @@ classdef TepisSlide < DigitalSlide
             byteArray = TepisSlide.TepisClient.getAssociatedImage(...
                 obj.ImageID,...
                 AssociatedImageType.valueOf(upper(type)),...
-                imageFormatParam);
+                imageFormatParam,...
+                requestOptions(parametersStruct.timeout));
             
             I = byteArrayToImage(byteArray);
             
@@ -324,6 +376,7 @@ classdef TepisSlide < DigitalSlide
                 
                 ip.addParameter('quality', []);
                 ip.addParameter('format', []);
+                ip.addParameter('timeout', []);
                 
                 ip.parse(varargin{:});
                 
@@ -337,18 +390,140 @@ classdef TepisSlide < DigitalSlide
             
         end
         
+        % TMA support
+        % -----------
+        
+        function detectTMACores(obj, varargin)
+            % Detect tissue microarray (TMA) cores.
+            %
+            % This method sets the TMACores propery. It has the same
+            % arguments as DigitalSlide.detectTMACores but the detection
+            % is done by the multithreaded Java implementation in the
+            % tEPIS client (tepisclient.TMACoreDetector). The locations of
+            % the cores follow the convention of DigitalSlide.detectTMACores.
+            %
+            % Usage:
+            % ------
+            % detectTMACores(slide);
+            % detectTMACores(..., name, value, ...);
+            %
+            % See also: DigitalSlide.detectTMACores, getTMACoreImages
+            %
+            
+            parametersStruct = getParameters();
+            
+            [detector, cleanup] = obj.createTMACoreDetector(); %#ok<ASGLU>
+            
+            cores = detector.detect(...
+                parametersStruct.coreDiameter, ...
+                parametersStruct.radiusTolerance, ...
+                parametersStruct.strictness, ...
+                parametersStruct.targetCoreDiameterPixels);
+            
+            % the detector returns 0-based pixels of the detection level
+            % scaled to the first level, while DigitalSlide.detectTMACores
+            % scales the 1-based pixels, so one pixel of the detection
+            % level is added
+            level = detector.selectLevel(parametersStruct.coreDiameter, ...
+                parametersStruct.targetCoreDiameterPixels);
+            offsetX = obj.Geometry.getDownsamplingX(level);
+            offsetY = obj.Geometry.getDownsamplingY(level);
+            
+            TMACores = zeros(cores.size(), 3);
+            
+            for i_cores = 1:cores.size()
+                core = cores.get(i_cores-1);
+                TMACores(i_cores,:) = [core.getX()+offsetX ...
+                    core.getY()+offsetY core.getRadius()];
+            end
+            
+            obj.TMACores = TMACores;
+            obj.TMACoresDetectionParameters = parametersStruct;
+            
+            function parametersStruct = getParameters
+                
+                ip = inputParser();
+                
+                diameterCheck = @(X)validateattributes(X, {'numeric'}, {'scalar', '>', 0});
+                percentageCheck = @(X)validateattributes(X, {'numeric'}, {'scalar', '>=', 0, '<=', 100});
+                
+                ip.addParameter('coreDiameter', 0.6, diameterCheck);
+                ip.addParameter('radiusTolerance', 10, percentageCheck);
+                ip.addParameter('strictness', 90, percentageCheck);
+                ip.addParameter('targetCoreDiameterPixels', 20, diameterCheck); % undocumented
+                
+                ip.parse(varargin{:});
+                
+                parametersStruct = ip.Results;
+                
+            end
+            
+        end
+        
+        function I = getTMACoreImages(obj, level, coreIDs)
+            % Get image pixel data of multiple tissue microarray (TMA)
+            % cores. The cores are read concurrently.
+            %
+            % Usage:
+            % ------
+            % I = getTMACoreImages(slide, level);
+            % I = getTMACoreImages(slide, level, coreIDs);
+            %
+            % Input arguments:
+            % ----------------
+            % level: Slide level from which the pixel data is read.
+            %
+            % Optional input arguments:
+            % -------------------------
+            % coreIDs: IDs of the requested TMA cores (default: all
+            % cores).
+            %
+            % Output arguments:
+            % -----------------
+            % I: Cell array with the image data of the cores.
+            %
+            % See also: getTMACoreImage, detectTMACores
+            %
+            
+            if isempty(obj.TMACores)
+                error('No TMA cores. Use the detectTMACores method to detect TMA cores before using this method.');
+            end
+            
+            if ~exist('coreIDs', 'var') || isempty(coreIDs)
+                coreIDs = 1:size(obj.TMACores, 1);
+            end
+            
+            cores = java.util.ArrayList();
+            
+            for coreID = coreIDs(:)'
+                core = obj.TMACores(coreID,:);
+                cores.add(tepisclient.TMACore(coreID, core(1), core(2), core(3)));
+            end
+            
+            [detector, cleanup] = obj.createTMACoreDetector(); %#ok<ASGLU>
+            
+            data = detector.readCoreData(cores, level, []);
+            
+            I = cell(1, numel(coreIDs));
+            
+            for i_cores = 1:numel(coreIDs)
+                I{i_cores} = byteArrayToImage(data.get(i_cores-1));
+            end
+            
+        end
         
     end
     
     methods (Static, Access = public)
         
-        function initialize(domain, username, password)
+        function initialize(domain, username, password, sharedCacheSize)
             % Authenticate on the Philips IMS.
             %
             % Usage:
             % ------
             % DigitalSlide.initialize(domain);
             % DigitalSlide.initialize(domain, username, password);
+            % DigitalSlide.initialize(domain, username, password, sharedCacheSize);
             %
             % Input arguments:
             % ----------------
@@ -357,6 +532,13 @@ classdef TepisSlide < DigitalSlide
             % Optional input arguments:
             % -------------------------
             % username, password: User credentials.
+            % sharedCacheSize: Size in bytes of a response cache that is
+            % shared with the other MATLAB processes of the user on this
+            % host, for example the workers of a parallel pool, so each
+            % tile is read once per host (default: 0, no shared cache).
+            % The cache is a file in /dev/shm (or the temporary folder)
+            % that is allocated completely when it is created, and limited
+            % to half of the free space there.
             %
             
             
@@ -364,6 +546,33 @@ classdef TepisSlide < DigitalSlide
             
             tepisClient = TepisClient(domain);
             
+            % limit the response data held in memory to a quarter of the
+            % Java heap, so that concurrent reads cannot exhaust it
+            tepisClient.setByteBudget(ByteBudget(...
+                java.lang.Runtime.getRuntime().maxMemory() / 4));
+            
+            if ~exist('sharedCacheSize', 'var') || isempty(sharedCacheSize)
+                sharedCacheSize = 0;
+            end
+            
+            % keep recent responses, revalidated with the server on each
+            % request, so unchanged metadata and tiles cost only a 304
+            % response while slides that were scanned again are read again;
+            % if requested, the bulk of the responses is kept in a cache
+            % that is shared with the other MATLAB processes on this host,
+            % and the memory tier in front of it is smaller
+            shared = sharedCache(domain, sharedCacheSize);
+            heap = java.lang.Runtime.getRuntime().maxMemory();
+            
+            if isempty(shared)
+                memoryCacheSize = heap / 16;
+            else
+                memoryCacheSize = heap / 64;
+            end
+            
+            tepisClient.setResponseCache(RevalidatingCache(...
+                memoryCacheSize, 0, shared));
+            
             if exist('username', 'var') && exist('password', 'var') && ...
                     ~isempty(username) && ~isempty(password)
                 tepisClient.authenticate(username, password);
@@ -373,6 +582,114 @@ classdef TepisSlide < DigitalSlide
             
         end
         
+        function I = getAssociatedImages(imageIDs, type, thumbnailSize)
+            % Get label, macro or thumbnail images of multiple slides.
+            %
+            % The images are read concurrently and cached, so repeated
+            % calls for the same slides do not access the server.
+            %
+            % Usage:
+            % ------
+            % I = TepisSlide.getAssociatedImages(imageIDs, type);
+            % I = TepisSlide.getAssociatedImages(imageIDs, type, thumbnailSize);
+            %
+            % Input arguments:
+            % ----------------
+            % imageIDs: Cell array with unique image IDs on the server.
+            % type: Associated image type. Can be 'label', 'macro' or
+            % 'thumbnail'.
+            %
+            % Optional input arguments:
+            % -------------------------
+            % thumbnailSize: Maximum [width height] of the returned images.
+            % Larger images are downscaled (default: original size).
+            %
+            % Output arguments:
+            % -----------------
+            % I: Cell array with the images in RGB format. Empty for
+            % slides without an image of the requested type.
+            %
+            % See also: getAssociatedImage
+            %
+            
+            import tepisclient.*;
+            
+            cache = TepisSlide.AssociatedImageCache();
+            
+            requests = java.util.ArrayList();
+            
+            for i_images = 1:numel(imageIDs)
+                requests.add(AssociatedImageRequest(imageIDs{i_images}, ...
+                    AssociatedImageType.valueOf(upper(type))));
+            end
+            
+            I = cell(size(imageIDs));
+            
+            if exist('thumbnailSize', 'var') && ~isempty(thumbnailSize)
+                
+                thumbnails = cache.getThumbnails(requests, ...
+                    thumbnailSize(1), thumbnailSize(2));
+                
+                for i_images = 1:numel(imageIDs)
+                    thumbnail = thumbnails.get(i_images-1);
+                    if ~isempty(thumbnail)
+                        % the thumbnails are of type TYPE_INT_RGB
+                        w = thumbnail.getWidth();
+                        h = thumbnail.getHeight();
+                        rgb = typecast(thumbnail.getRGB(0, 0, w, h, [], 0, w), 'uint8');
+                        rgb = reshape(rgb, 4, w, h);
+                        I{i_images} = permute(rgb([3 2 1],:,:), [3 2 1]);
+                    end
+                end
+                
+            else
+                
+                data = cache.getAll(requests);
+                
+                for i_images = 1:numel(imageIDs)
+                    byteArray = data.get(i_images-1);
+                    if ~isempty(byteArray)
+                        I{i_images} = byteArrayToImage(byteArray);
+                    end
+                end
+                
+            end
+            
+        end
+        
+        function outVal = AssociatedImageCache()
+            % Has the role of a static property. The cache is created on
+            % first use and holds up to 256 MB of associated images.
+            %
+            
+            persistent AssociatedImageCache;
+            
+            if isempty(AssociatedImageCache)
+                AssociatedImageCache = tepisclient.AssociatedImageCache(...
+                    TepisSlide.TepisClient, ...
+                    java.util.concurrent.Executors.newFixedThreadPool(8), ...
+                    [], 256 * 2^20);
+            end
+            
+            outVal = AssociatedImageCache;
+            
+        end
+        
+        function outVal = RegionReadExecutor()
+            % Has the role of a static property. The executor on which
+            % the parts of large regions are read is created on first use.
+            %
+            
+            persistent RegionReadExecutor;
+            
+            if isempty(RegionReadExecutor)
+                RegionReadExecutor = java.util.concurrent.Executors.newFixedThreadPool(8);
+            end
+            
+            outVal = RegionReadExecutor;
+            
+        end
+        
         function outVal = TepisClient(inVal)
             % Has the role of a static property.
             %
@@ -389,11 +706,185 @@ classdef TepisSlide < DigitalSlide
         
     end
     
+    methods (Static, Access = public)
+        
+        function slides = open(imageIDs)
+            % Open multiple slides.
+            %
+            % The metadata of the slides is read concurrently, which is
+            % considerably faster than constructing the slides one by one
+            % for large cohorts.
+            %
+            % Usage:
+            % ------
+            % slides = TepisSlide.open(imageIDs);
+            %
+            % Input arguments:
+            % ----------------
+            % imageIDs - Unique image IDs on the server (cell array of
+            % strings).
+            %
+            % Output arguments:
+            % -----------------
+            % slides - Array of slides in the order of the image IDs.
+            %
+            
+            ids = java.util.ArrayList();
+            
+            for i_slides = 1:numel(imageIDs)
+                ids.add(imageIDs{i_slides});
+            end
+            
+            pixelMetadata = TepisSlide.TepisClient.getPixelMetadata(ids, [], 8);
+            
+            slides = TepisSlide.empty(0, numel(imageIDs));
+            
+            for i_slides = 1:numel(imageIDs)
+                slides(i_slides) = TepisSlide(imageIDs{i_slides}, ...
+                    pixelMetadata.get(i_slides-1));
+            end
+            
+        end
+        
+        function recordAccess(file)
+            % Record the reads of all slides in an access log.
+            %
+            % The log can be used with warmCache to warm the cache before
+            % a later session, for example a review of the same slides.
+            %
+            % Usage:
+            % ------
+            % TepisSlide.recordAccess(file);
+            % TepisSlide.recordAccess([]);
+            %
+            % Input arguments:
+            % ----------------
+            % file: Name of the log file. Reads are appended to an
+            % existing file. Empty stops recording.
+            %
+            % See also: warmCache
+            %
+            
+            client = TepisSlide.TepisClient;
+            
+            if ~isempty(client.getAccessLog())
+                client.getAccessLog().close();
+            end
+            
+            if isempty(file)
+                client.setAccessLog([]);
+            else
+                client.setAccessLog(tepisclient.AccessLog(java.io.File(file)));
+            end
+            
+        end
+        
+        function warmCache(manifest, progress, maxRequestsPerSecond)
+            % Warm the cache with the data listed in a manifest.
+            %
+            % The data is read with few concurrent requests, which give
+            % way to other reads. The progress is saved while warming, so
+            % if warming stops, for example because MATLAB is closed,
+            % calling the function again with the same progress file
+            % resumes it. The reads are not recorded by recordAccess.
+            %
+            % If the data can be larger than the cache, the function
+            % warns and does not warm, because the data warmed last would
+            % evict the data warmed first. The size is estimated from the
+            % uncompressed size of the tiles and regions. To warm more
+            % data, open a large shared cache with the sharedCacheSize
+            % argument of initialize.
+            %
+            % Usage:
+            % ------
+            % TepisSlide.warmCache(manifest);
+            % TepisSlide.warmCache(manifest, progress);
+            % TepisSlide.warmCache(manifest, progress, maxRequestsPerSecond);
+            %
+            % Input arguments:
+            % ----------------
+            % manifest: Name of the manifest file or of an access log
+            % recorded with recordAccess. See tepisclient.CacheWarmer for
+            % the format of the manifest.
+            %
+            % Optional input arguments:
+            % -------------------------
+            % progress: Name of the file in which the progress is saved
+            % (default: none).
+            % maxRequestsPerSecond: Maximum request rate (default: 20).
+            %
+            % See also: recordAccess
+            %
+            
+            if ~exist('progress', 'var') || isempty(progress)
+                progressFile = [];
+            else
+                progressFile = java.io.File(progress);
+            end
+            
+            if ~exist('maxRequestsPerSecond', 'var') || isempty(maxRequestsPerSecond)
+                maxRequestsPerSecond = 20;
+            end
+            
+            executor = java.util.concurrent.Executors.newFixedThreadPool(2);
+            cleanup = onCleanup(@() executor.shutdown());
+            
+            warmer = tepisclient.CacheWarmer(TepisSlide.TepisClient, ...
+                executor, 2, maxRequestsPerSecond);
+            
+            cache = TepisSlide.TepisClient.getResponseCache();
+            capacity = 0;
+            
+            if ~isempty(cache)
+                capacity = cache.getMaxBytes();
+                if ~isempty(cache.getSharedCache())
+                    capacity = max(capacity, ...
+                        cache.getSharedCache().getCapacity());
+                end
+            end
+            
+            bytes = warmer.estimateBytes(java.io.File(manifest));
+            
+            if bytes > capacity
+                warning('TepisSlide:warmCacheTooLarge', ...
+                    ['The data of %s can take up to %d MB, but the cache ' ...
+                    'holds %d MB; the cache is not warmed.'], manifest, ...
+                    ceil(bytes / 2^20), floor(capacity / 2^20));
+                return;
+            end
+            
+            warmer.warm(java.io.File(manifest), progressFile);
+            
+            fprintf('Warmed %d responses, %d failed\n', ...
+                warmer.getWarmed(), warmer.getFailed());
+            
+        end
+        
+    end
+    
     methods (Access = private)
         
-        function setMetadata(obj)
+        function [detector, cleanup] = createTMACoreDetector(obj)
+            % Create a TMA core detector with a thread pool that is shut
+            % down when cleanup is cleared.
+            
+            executor = java.util.concurrent.Executors.newFixedThreadPool(...
+                max(8, java.lang.Runtime.getRuntime().availableProcessors()));
             
-            pixelMetadata = TepisSlide.TepisClient.getImageMetadata(obj.ImageID).getPixelMetadata();
+            cleanup = onCleanup(@() executor.shutdownNow());
+            
+            detector = tepisclient.TMACoreDetector(...
+                TepisSlide.TepisClient, obj.ImageID, obj.Geometry, executor);
+            
+        end
+        
+        function setMetadata(obj, pixelMetadata)
+            
+            if isempty(pixelMetadata)
+                pixelMetadata = TepisSlide.TepisClient.getPixelMetadata(obj.ImageID);
+            end
+            
+            obj.Geometry = tepisclient.SlideGeometry(pixelMetadata);
             
             obj.NumberOfLevels = pixelMetadata.getNumberOfLevels();
             
@@ -447,3 +938,47 @@ if ~isempty(f)
 end
 
 end
+
+function cache = sharedCache(domain, capacity)
+% Opens the cache shared by the processes of the current user on this host
+% for the server, in memory if possible, or returns [] if no capacity is
+% requested or it cannot be opened.
+
+cache = [];
+
+if capacity <= 0
+    return;
+end
+
+if exist('/dev/shm', 'dir')
+    folder = '/dev/shm';
+else
+    folder = tempdir;
+end
+
+file = fullfile(folder, sprintf('tepis-cache-%s-%s', ...
+    char(java.lang.System.getProperty('user.name')), ...
+    regexprep(domain, '[^\w.-]', '_')));
+
+try
+    cache = tepisclient.SharedTileCache.open(java.io.File(file), capacity);
+catch e
+    warning('Shared cache %s cannot be opened: %s', file, e.message);
+end
+
+end
+
+function options = requestOptions(timeout)
+% Create request options with the same connect, read and total timeout.
+
+if isempty(timeout)
+    options = [];
+else
+    timeout = round(timeout * 1000);
+    options = javaObject('tepisclient.RequestOptions', ...
+        int32(min(timeout, intmax('int32'))), ...
+        int32(min(timeout, intmax('int32'))), ...
+        int64(timeout));
+end
+
+end
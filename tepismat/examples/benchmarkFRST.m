@@ -0,0 +1,64 @@
+function results = benchmarkFRST(I, radii, repetitions)
+% Benchmark of the Java implementation of the fast radial symmetry
+% transform (tepisclient.RadialSymmetryTransform) against frst.m.
+%
+% The function checks that both implementations give the same output
+% within tolerance and reports the median run time of each. I is a
+% grayscale image, for example mean(slide.getImagePixelData(...), 3) of a
+% TMA slide level, and radii are the radii passed to frst. If I is not
+% specified, a synthetic image with dark disks is used.
+%
+
+if ~exist('I', 'var') || isempty(I)
+    [x, y] = meshgrid(1:2000, 1:2000);
+    I = 200 + 20*rand(size(x));
+    for cx = 100:200:1900
+        for cy = 100:200:1900
+            I((x-cx).^2 + (y-cy).^2 < 60^2) = 80;
+        end
+    end
+end
+
+if ~exist('radii', 'var') || isempty(radii)
+    radii = 55:65;
+end
+
+if ~exist('repetitions', 'var') || isempty(repetitions)
+    repetitions = 3;
+end
+
+I = double(I);
+[rows, cols] = size(I);
+
+tMatlab = zeros(repetitions, 1);
+tJava = zeros(repetitions, 1);
+
+for i = 1:repetitions
+    
+    tic;
+    S = frst(I, radii);
+    tMatlab(i) = toc;
+    
+    tic;
+    % the Java implementation expects row-major data
+    SJava = tepisclient.RadialSymmetryTransform.transform(...
+        reshape(I', [], 1), cols, rows, radii);
+    SJava = reshape(SJava, cols, rows)';
+    tJava(i) = toc;
+    
+end
+
+results.maxDifference = max(abs(S(:) - SJava(:)));
+results.matlabTime = median(tMatlab);
+results.javaTime = median(tJava);
+results.speedup = results.matlabTime / results.javaTime;
+
+fprintf('frst.m: %.3f s, Java: %.3f s, speedup: %.1fx, max. difference: %g\n', ...
+    results.matlabTime, results.javaTime, results.speedup, ...
+    results.maxDifference);
+
+if results.maxDifference > 1e-9 * max(abs(S(:)))
+    warning('The Java implementation does not match frst.m.');
+end
+
+end
@@ -0,0 +1,57 @@
+function results = benchmarkFirstTile(domain, imageID, username, password)
+% Time to the first tile and footprint of the Java client on the class
+% path.
+%
+% The function reports the size of the tepisclient jar and the time from
+% creating the client to receiving the first tile of the digital slide
+% imageID on the tEPIS server domain, split into the creation of the
+% client, reading the pixel metadata and reading the tile. username and
+% password are optional. Most of the time to the first tile is spent
+% loading classes, so the function must be run once in a fresh MATLAB
+% session for each jar, e.g. once with the full jar and once with the jar
+% built with mvn package -Plight (see init.m).
+%
+
+import tepisclient.*;
+
+results.jar = '';
+results.jarSize = NaN;
+
+classPath = javaclasspath('-dynamic');
+
+for i = 1:numel(classPath)
+    [~, name, ext] = fileparts(classPath{i});
+    if strncmp(name, 'tepisclient', numel('tepisclient')) && strcmp(ext, '.jar')
+        file = dir(classPath{i});
+        results.jar = [name ext];
+        results.jarSize = file.bytes;
+    end
+end
+
+total = tic;
+
+tic;
+client = TepisClient(domain);
+results.clientTime = toc;
+
+if exist('username', 'var') && exist('password', 'var') && ...
+        ~isempty(username) && ~isempty(password)
+    client.authenticate(username, password);
+end
+
+tic;
+client.getPixelMetadata(imageID);
+results.metadataTime = toc;
+
+tic;
+client.getTiledImagePixelData(imageID, ImageTileParam(0, 0, 0));
+results.tileTime = toc;
+
+results.firstTileTime = toc(total);
+
+fprintf('%s (%.0f kB): first tile after %.3f s ', results.jar, ...
+    results.jarSize / 1024, results.firstTileTime);
+fprintf('(client %.3f s, metadata %.3f s, tile %.3f s)\n', ...
+    results.clientTime, results.metadataTime, results.tileTime);
+
+end
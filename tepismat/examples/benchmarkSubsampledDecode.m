@@ -0,0 +1,83 @@
+function results = benchmarkSubsampledDecode(data, targetSize, repetitions)
+% Benchmark of subsampled decoding (tepisclient.ImageDecoder.decodeToFit)
+% against full decoding followed by downscaling.
+%
+% The function reports the median decode time and the memory allocated by
+% each method and the maximum difference between the downscaled images.
+% data is encoded image data, for example the output of
+% TepisSlide.TepisClient.getImagePixelData(...) for a large region, and
+% targetSize is the [height width] of the downscaled image. If data is not
+% specified, a synthetic 4000-by-3000 JPEG image is used.
+%
+
+if ~exist('data', 'var') || isempty(data)
+    [x, y] = meshgrid(1:4000, 1:3000);
+    I = uint8(cat(3, 255*x/4000, 255*y/3000, 128 + 64*sin(x/50)));
+    file = [tempname '.jpg'];
+    imwrite(I, file, 'Quality', 90);
+    fid = fopen(file, 'r');
+    data = fread(fid, inf, '*int8');
+    fclose(fid);
+    delete(file);
+end
+
+if ~exist('targetSize', 'var') || isempty(targetSize)
+    targetSize = [150 200];
+end
+
+if ~exist('repetitions', 'var') || isempty(repetitions)
+    repetitions = 5;
+end
+
+import tepisclient.*;
+
+threads = java.lang.management.ManagementFactory.getThreadMXBean();
+threadID = java.lang.Thread.currentThread().getId();
+
+tFull = zeros(repetitions, 1);
+tSubsampled = zeros(repetitions, 1);
+bytesFull = zeros(repetitions, 1);
+bytesSubsampled = zeros(repetitions, 1);
+
+for i = 1:repetitions
+
+    allocated = threads.getThreadAllocatedBytes(threadID);
+    tic;
+    full = ImageResampler.areaAverage(ImageDecoder.decode(data), ...
+        targetSize(2), targetSize(1));
+    tFull(i) = toc;
+    bytesFull(i) = threads.getThreadAllocatedBytes(threadID) - allocated;
+
+    allocated = threads.getThreadAllocatedBytes(threadID);
+    tic;
+    subsampled = ImageResampler.areaAverage(...
+        ImageDecoder.decodeToFit(data, targetSize(2), targetSize(1)), ...
+        targetSize(2), targetSize(1));
+    tSubsampled(i) = toc;
+    bytesSubsampled(i) = threads.getThreadAllocatedBytes(threadID) - allocated;
+
+end
+
+fullRGB = full.getRGB(0, 0, targetSize(2), targetSize(1), [], 0, targetSize(2));
+subsampledRGB = subsampled.getRGB(0, 0, targetSize(2), targetSize(1), [], 0, targetSize(2));
+
+difference = 0;
+for shift = [0 8 16]
+    difference = max(difference, max(abs(...
+        double(bitand(bitshift(fullRGB, -shift), 255)) - ...
+        double(bitand(bitshift(subsampledRGB, -shift), 255)))));
+end
+
+results.fullTime = median(tFull);
+results.subsampledTime = median(tSubsampled);
+results.speedup = results.fullTime / results.subsampledTime;
+results.fullAllocatedMB = median(bytesFull) / 2^20;
+results.subsampledAllocatedMB = median(bytesSubsampled) / 2^20;
+results.maxDifference = difference;
+
+fprintf(['Full decode: %.3f s, %.1f MB, subsampled decode: %.3f s, ' ...
+    '%.1f MB, speedup: %.1fx, max. difference: %d\n'], ...
+    results.fullTime, results.fullAllocatedMB, results.subsampledTime, ...
+    results.subsampledAllocatedMB, results.speedup, results.maxDifference);
+
+end
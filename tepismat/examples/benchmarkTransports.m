@@ -0,0 +1,122 @@
+function results = benchmarkTransports(domain, imageID, username, password, numTiles)
+% Conformance check and benchmark of the transports of the Java client
+% (tepisclient.JerseyTransport, tepisclient.HttpClientTransport and
+% tepisclient.UrlConnectionTransport).
+%
+% The function performs the same requests over each transport and checks
+% that the responses and errors are the same: metadata, pixel metadata,
+% tiles, regions, associated images, the error of a missing slide and the
+% abort of a request that exceeds its total timeout. It then reports the
+% time of reading numTiles tiles (default: 200) sequentially and in
+% parallel. domain is the domain name of the tEPIS server and imageID the
+% ID of a digital slide on it. username and password are optional.
+%
+% checkTransports performs a more complete check of the transports against
+% a local stub server, without a tEPIS server.
+%
+
+import tepisclient.*;
+
+if ~exist('numTiles', 'var') || isempty(numTiles)
+    numTiles = 200;
+end
+
+transports = {JerseyTransport(domain), HttpClientTransport(domain), ...
+    UrlConnectionTransport(domain)};
+names = {'Jersey', 'HttpClient', 'UrlConnection'};
+
+results = struct('name', names, 'responses', [], 'sequentialTime', [], ...
+    'parallelTime', []);
+
+for i = 1:numel(transports)
+
+    client = TepisClient(transports{i});
+
+    if exist('username', 'var') && exist('password', 'var') && ...
+            ~isempty(username) && ~isempty(password)
+        client.authenticate(username, password);
+    end
+
+    pixelMetadata = client.getPixelMetadata(imageID);
+    geometry = SlideGeometry(pixelMetadata);
+    level = geometry.getNumberOfLevels() - 1;
+
+    r.numberOfLevels = pixelMetadata.getNumberOfLevels();
+    r.pixelSize = char(pixelMetadata.getLevels().getPixelLevelMetadata().get(0).getPixelSize());
+    r.tile = typecast(client.getTiledImagePixelData(imageID, ImageTileParam(0, 0, 0)), 'uint8');
+    r.region = typecast(client.getImagePixelData(imageID, ImageRegionParam(0, 0, ...
+        min(512, geometry.getWidth(level)), min(512, geometry.getHeight(level)), ...
+        level, Unit.PIXEL)), 'uint8');
+    r.thumbnail = typecast(client.getAssociatedImage(imageID, ...
+        AssociatedImageType.THUMBNAIL), 'uint8');
+    r.missingError = errorClass(@() client.getPixelMetadata('tepis-missing-slide'));
+    r.timeoutError = errorClass(@() client.getImagePixelData(imageID, ...
+        ImageRegionParam(0, 0, geometry.getWidth(level), geometry.getHeight(level), ...
+        level, Unit.PIXEL), [], RequestOptions(0, 0, 1)));
+
+    results(i).responses = r;
+
+    % sequential reads of the tiles of the first level, row by row
+    tic;
+    for j = 0:numTiles-1
+        client.getTiledImagePixelData(imageID, ImageTileParam(...
+            mod(j, geometry.getTileColumns(0)), ...
+            floor(j / geometry.getTileColumns(0)), 0));
+    end
+    results(i).sequentialTime = toc;
+
+    % parallel reads of the same tiles as one split region
+    executor = VirtualThreadExecutor(64);
+    cleanup = onCleanup(@() executor.shutdownNow());
+
+    tileWidth = geometry.getTileWidth(0);
+    tileHeight = geometry.getTileHeight(0);
+    columns = min(numTiles, geometry.getTileColumns(0));
+    rows = ceil(numTiles / columns);
+
+    reader = SplitRegionReader(client, imageID, geometry, executor, ...
+        tileWidth * tileHeight);
+
+    tic;
+    reader.read(ImageRegionParam(0, 0, ...
+        min(columns * tileWidth, geometry.getWidth(0)), ...
+        min(rows * tileHeight, geometry.getHeight(0)), 0, Unit.PIXEL));
+    results(i).parallelTime = toc;
+
+    clear cleanup;
+
+    fprintf('%s: %d tiles sequential %.2f s, parallel %.2f s\n', ...
+        names{i}, numTiles, results(i).sequentialTime, ...
+        results(i).parallelTime);
+
+end
+
+fields = fieldnames(results(1).responses);
+
+for i = 2:numel(results)
+    for k = 1:numel(fields)
+        if ~isequal(results(1).responses.(fields{k}), ...
+                results(i).responses.(fields{k}))
+            warning('%s and %s differ in %s', names{1}, names{i}, fields{k});
+        end
+    end
+end
+
+end
+
+function name = errorClass(request)
+% Class of the Java exception thrown by a request or '' if none.
+
+name = '';
+
+try
+    request();
+catch e
+    if isa(e, 'matlab.exception.JavaException')
+        name = char(e.ExceptionObject.getClass().getName());
+    else
+        name = e.identifier;
+    end
+end
+
+end
@@ -0,0 +1,86 @@
+function results = benchmarkVirtualThreads(imageID, level, poolSizes, maxConcurrency)
+% Benchmark of reading tiles on virtual threads
+% (tepisclient.VirtualThreadExecutor) against fixed thread pools.
+%
+% The function reads a region of a digital slide as one request per tile
+% with each executor and reports the read time and the number of live
+% platform threads during the read. imageID is the ID of a digital slide,
+% level is the level that is read (default: the level closest to 4096
+% pixels wide, at most 4096-by-4096 pixels are read), poolSizes are the
+% numbers of threads of the fixed pools (default: [8 64 256]) and
+% maxConcurrency are the limits of the virtual thread executors (default:
+% [256 1024]). Requires MATLAB running on Java 21 or later. Call
+% TepisSlide.initialize first.
+%
+% With 256-by-256 pixel tiles the default region is 256 requests, so pools
+% of more than 256 threads or limits above 256 gain nothing. The read times
+% depend on the latency of the server, and once enough requests are in
+% flight they are bound by decoding the tiles on the cores of the client.
+% The peak platform threads count all live threads of the JVM of MATLAB,
+% including its own, so compare them between the executors rather than as
+% absolute numbers. Run the function twice and use the second run, since
+% the first one includes the warm-up of the JVM.
+%
+
+import tepisclient.*;
+
+client = TepisSlide.TepisClient;
+geometry = SlideGeometry(client.getPixelMetadata(imageID));
+
+if ~exist('level', 'var') || isempty(level)
+    widths = arrayfun(@(l) geometry.getWidth(l), ...
+        0:geometry.getNumberOfLevels()-1);
+    [~, level] = min(abs(widths - 4096));
+    level = level - 1;
+end
+
+if ~exist('poolSizes', 'var') || isempty(poolSizes)
+    poolSizes = [8 64 256];
+end
+
+if ~exist('maxConcurrency', 'var') || isempty(maxConcurrency)
+    maxConcurrency = [256 1024];
+end
+
+width = min(geometry.getWidth(level), 4096);
+height = min(geometry.getHeight(level), 4096);
+tileSize = geometry.getTileWidth(level) * geometry.getTileHeight(level);
+
+irp = ImageRegionParam(0, 0, width, height, level, Unit.PIXEL);
+
+threads = java.lang.management.ManagementFactory.getThreadMXBean();
+
+names = [arrayfun(@(n) sprintf('Fixed pool, %d threads', n), ...
+    poolSizes, 'UniformOutput', false), ...
+    arrayfun(@(n) sprintf('Virtual threads, %d concurrent', n), ...
+    maxConcurrency, 'UniformOutput', false)];
+
+results = struct('name', names, 'time', [], 'platformThreads', []);
+
+for i = 1:numel(names)
+
+    if i <= numel(poolSizes)
+        executor = java.util.concurrent.Executors.newFixedThreadPool(poolSizes(i));
+    else
+        executor = VirtualThreadExecutor(maxConcurrency(i - numel(poolSizes)));
+    end
+
+    cleanup = onCleanup(@() executor.shutdownNow());
+
+    reader = SplitRegionReader(client, imageID, geometry, executor, tileSize);
+
+    threads.resetPeakThreadCount();
+
+    tic;
+    reader.read(irp);
+    results(i).time = toc;
+    results(i).platformThreads = threads.getPeakThreadCount();
+
+    clear cleanup;
+
+    fprintf('%s: %.2f s, peak platform threads: %d\n', ...
+        results(i).name, results(i).time, results(i).platformThreads);
+
+end
+
+end
@@ -0,0 +1,42 @@
+function checkTransports()
+% Conformance check of the transports of the Java client
+% (tepisclient.JerseyTransport, tepisclient.HttpClientTransport and
+% tepisclient.UrlConnectionTransport) against a local stub server.
+%
+% The function runs tepisclient.TransportConformanceTest, which the build
+% also runs with mvn test or mvn package, in the JVM of MATLAB. The test
+% starts a stub server, which answers each request with a description of
+% it, and performs the same requests over each transport: the login with a
+% form POST and the session cookie, metadata with a conditional request,
+% regions with query parameters, tiles, associated images, a large region
+% that is streamed in chunks, an asynchronous request and the errors of the
+% HTTP statuses. It raises an error if a response differs from the expected
+% response or between the transports. No tEPIS server is needed.
+%
+% The test and the stub server are not part of the client jar; they are
+% loaded from tepisclient/target/test-classes, which mvn test-compile (or
+% mvn package) creates.
+%
+
+testClasses = fullfile(fileparts(fileparts(fileparts( ...
+    mfilename('fullpath')))), 'tepisclient', 'target', 'test-classes');
+
+if ~exist(fullfile(testClasses, 'tepisclient', ...
+        'TransportConformanceTest.class'), 'file')
+    error('checkTransports:notCompiled', ...
+        'Run mvn test-compile in tepisclient to compile the test.');
+end
+
+if ~any(strcmp(javaclasspath('-dynamic'), testClasses))
+    javaaddpath(testClasses);
+end
+
+try
+    tepisclient.TransportConformanceTest.check();
+catch e
+    error('checkTransports:mismatch', '%s', e.message);
+end
+
+fprintf('Jersey, HttpClient, UrlConnection transports conform\n');
+
+end
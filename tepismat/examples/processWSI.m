@@ -1,4 +1,5 @@
-function P = processWSI(slide, level, blockSize, net, filterSize)
+function P = processWSI(slide, level, blockSize, net, filterSize, outputFile, ...
+    checkpointFile, shard, shards)
 % Example of block processing a whole slide image with a fully
 % convolutional neural network implemented in the Caffe deep learning
 % framework (http://caffe.berkeleyvision.org). The function returns a
@@ -9,6 +10,27 @@ function P = processWSI(slide, level, blockSize, net, filterSize)
 % train the network (it is assumed that the FC network was obtained by
 % casting inner product layers to convolutional).
 %
+% If outputFile is specified, the probability map is written to a tiled
+% memory-mapped file instead (see tepisclient.ResultRaster), which works
+% for levels of any size. In that case P is the ResultRaster object; use
+% P.read(x, y, width, height) to read parts of the map and P.close() when
+% done.
+%
+% If checkpointFile is specified as well, completed blocks are recorded in
+% it (see tepisclient.ScanCheckpoint) and a run that was interrupted is
+% resumed by calling the function again with the same arguments. The
+% blocks can be split over several MATLAB processes by passing the shard of
+% each process (0 to shards-1) and the number of shards. Each process needs
+% its own outputFile; the blocks of the other shards read as zero, so the
+% maps of the shards can be combined by taking the maximum.
+%
+% Each outputFile needs its own checkpointFile, which records the blocks
+% written to that output only. The checkpoint identifies the slide, level,
+% block size and output, and the function raises an error instead of
+% resuming if the checkpoint belongs to a different scan or output, or if
+% the checkpoint exists but its output does not. Delete both files to start
+% over.
+%
 
 % for skipping mostly empty regions
 MAX_INTENSITY = 220;
@@ -22,11 +44,54 @@ levelSize = slide.PixelSize(level, [2 1]);
 % padding
 p = filterSize/2;
 
-P = zeros(levelSize, 'uint8');
-
 % ignore the border
-for row = 1:blockSize:levelSize(1)-blockSize
-    for col = 1:blockSize:levelSize(2)-blockSize
+rows = 1:blockSize:levelSize(1)-blockSize;
+cols = 1:blockSize:levelSize(2)-blockSize;
+
+checkpoint = [];
+
+if exist('outputFile', 'var') && ~isempty(outputFile)
+    if exist('checkpointFile', 'var') && ~isempty(checkpointFile)
+        if ~exist('shard', 'var') || isempty(shard)
+            shard = 0;
+            shards = 1;
+        end
+        % a checkpoint without its output cannot be resumed, but it may
+        % belong to another output and must not be deleted here
+        if exist(checkpointFile, 'file') && ~exist(outputFile, 'file')
+            error('processWSI:checkpointMismatch', ...
+                ['Checkpoint %s exists but output %s does not; each ' ...
+                'output needs its own checkpoint'], checkpointFile, outputFile);
+        end
+        resume = exist(checkpointFile, 'file');
+        scan = sprintf('%s level %d blocks %d output %s', ...
+            slide.ImageID, level, blockSize, outputFile);
+        checkpoint = tepisclient.ScanCheckpoint.open(...
+            java.io.File(checkpointFile), scan, numel(cols), numel(rows), ...
+            shard, shards);
+        closeCheckpoint = onCleanup(@() checkpoint.close());
+    else
+        resume = false;
+    end
+    if resume
+        P = tepisclient.ResultRaster.open(java.io.File(outputFile));
+    else
+        P = tepisclient.ResultRaster.create(java.io.File(outputFile), ...
+            levelSize(2), levelSize(1), 1, blockSize, blockSize);
+    end
+else
+    P = zeros(levelSize, 'uint8');
+end
+
+for row = rows
+    for col = cols
+        
+        % skip the blocks of other shards and the completed blocks
+        blockCol = (col-1) / blockSize;
+        blockRow = (row-1) / blockSize;
+        if ~isempty(checkpoint) && ~checkpoint.isPending(blockCol, blockRow)
+            continue;
+        end
         
         disp([row col]);        
         
@@ -41,8 +106,18 @@ for row = 1:blockSize:levelSize(1)-blockSize
             prob = net.forward({I});
             % label "1" is the target class
             prob = prob{1}(:,:,2);
-            P(row:row+blockSize-1, col:col+blockSize-1) = ...
-                uint8(255*imresize(prob, [blockSize blockSize], 'nearest'));
+            prob = uint8(255*imresize(prob, [blockSize blockSize], 'nearest'));
+            if isjava(P)
+                % the raster expects row-major data
+                P.write(col-1, row-1, blockSize, blockSize, ...
+                    typecast(reshape(prob', [], 1), 'int8'));
+            else
+                P(row:row+blockSize-1, col:col+blockSize-1) = prob;
+            end
+        end
+        
+        if ~isempty(checkpoint)
+            checkpoint.markDone(blockCol, blockRow);
         end
         
     end
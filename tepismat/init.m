@@ -1,4 +1,13 @@
 addpath(genpath(pwd));
 
-javaaddpath(fullfile(pwd, 'backends', 'tepis', ...
-    'tepisclient-0.0.1-SNAPSHOT-jar-with-dependencies.jar'));
+% prefer the lightweight client, which starts considerably faster, if it
+% was built with mvn package -Plight and copied next to the full client
+lightJar = fullfile(pwd, 'backends', 'tepis', ...
+    'tepisclient-light-0.0.1-SNAPSHOT-jar-with-dependencies.jar');
+
+if exist(lightJar, 'file')
+    javaaddpath(lightJar);
+else
+    javaaddpath(fullfile(pwd, 'backends', 'tepis', ...
+        'tepisclient-0.0.1-SNAPSHOT-jar-with-dependencies.jar'));
+end
@@ -0,0 +1,29 @@
+function I = bufferedImageToImage(bufferedImage)
+% Convert a Java BufferedImage object to image matrix.
+%
+% Usage:
+% ------
+% I = bufferedImageToImage(bufferedImage);
+%
+% NOTE: Make sure that there is sufficient Java heap memory for the
+% conversion.
+%
+
+try
+    h = bufferedImage.getHeight();
+    w = bufferedImage.getWidth();
+    
+    pixels = uint8(bufferedImage.getData.getPixels(0, 0, w, h, []));
+catch e
+    error('Error converting image.');
+end
+
+I = uint8(zeros(h, w, 3));
+
+for i_h = 1:h
+    base = (i_h - 1) * w * 3 + 1;
+    
+    I(i_h, 1:w, :) = deal(reshape(pixels(base:(base + 3*w - 1)), 3, w)');
+end
+
+end